@@ -22,6 +22,7 @@ public class ImageData {
   private ResourceDirectory resourceTable;
   private byte[] exceptionTable;
   private byte[] certificateTable;
+  private int certificateTableOffset = -1;
   private byte[] baseRelocationTable;
   private DebugDirectory debug;
   private byte[] architecture;
@@ -44,6 +45,7 @@ public class ImageData {
 
   // Any trailing data
   private byte[] trailingData;
+  private int trailingDataOffset = -1;
 
   public byte[] getHeaderPadding() {
     return headerPadding;
@@ -100,6 +102,19 @@ public class ImageData {
 
   public void setCertificateTable(byte[] certificateTable) {
     this.certificateTable = certificateTable;
+    this.certificateTableOffset = -1;
+  }
+
+  /**
+   * @return the file offset the certificate table was read from, or -1 if
+   * it has been replaced since it was parsed.
+   */
+  public int getCertificateTableOffset() {
+    return certificateTableOffset;
+  }
+
+  public void setCertificateTableOffset(int certificateTableOffset) {
+    this.certificateTableOffset = certificateTableOffset;
   }
 
   public byte[] getBaseRelocationTable() {
@@ -204,6 +219,19 @@ public class ImageData {
 
   public void setTrailingData(byte[] trailingData) {
     this.trailingData = trailingData;
+    this.trailingDataOffset = -1;
+  }
+
+  /**
+   * @return the file offset the trailing data was read from, or -1 if it
+   * has been replaced since it was parsed.
+   */
+  public int getTrailingDataOffset() {
+    return trailingDataOffset;
+  }
+
+  public void setTrailingDataOffset(int trailingDataOffset) {
+    this.trailingDataOffset = trailingDataOffset;
   }
 
   public byte[] getDebugRawDataPreamble() {
@@ -12,6 +12,7 @@ package org.boris.pecoff4j;
 public class PE {
   private DOSHeader dosHeader;
   private DOSStub stub;
+  private RichHeader richHeader;
   private PESignature signature;
   private COFFHeader coffHeader;
   private OptionalHeader optionalHeader;
@@ -27,6 +28,10 @@ public class PE {
     return stub;
   }
 
+  public RichHeader getRichHeader() {
+    return richHeader;
+  }
+
   public PESignature getSignature() {
     return signature;
   }
@@ -51,6 +56,10 @@ public class PE {
     this.stub = stub;
   }
 
+  public void setRichHeader(RichHeader richHeader) {
+    this.richHeader = richHeader;
+  }
+
   public void setSignature(PESignature signature) {
     this.signature = signature;
   }
@@ -36,4 +36,20 @@ public class RVAConverter {
     int vad = this.virtualAddress[this.virtualAddress.length - 1];
     return prd + virtualAddress - vad;
   }
+
+  public int convertRawDataPointerToVirtualAddress(int pointer) {
+    // Find the section with the closest raw data pointer at or below
+    int index = -1;
+    for (int i = 0; i < pointerToRawData.length; i++) {
+      if (pointerToRawData[i] != 0 && pointerToRawData[i] <= pointer &&
+              (index == -1 || pointerToRawData[i] > pointerToRawData[index])) {
+        index = i;
+      }
+    }
+
+    if (index == -1)
+      return pointer;
+
+    return virtualAddress[index] + pointer - pointerToRawData[index];
+  }
 }
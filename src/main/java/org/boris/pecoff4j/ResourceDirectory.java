@@ -40,6 +40,10 @@ public class ResourceDirectory extends DataObject {
     return entries.get(index);
   }
 
+  public ResourceEntry remove(int index) {
+    return entries.remove(index);
+  }
+
   public int size() {
     return entries.size();
   }
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j;
+
+import org.boris.pecoff4j.util.Reflection;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The undocumented "Rich" header written by the Microsoft linker into the DOS
+ * stub. Each entry records a tool (comp.id) and the number of objects it
+ * contributed to the image.
+ */
+public class RichHeader {
+  public static final int DANS_MAGIC = 0x536e6144; // DanS
+  public static final int RICH_MAGIC = 0x68636952; // Rich
+
+  private int offset;
+  private int key;
+  private int checksum;
+  private int[] compIds;
+  private int[] counts;
+  private byte[] decoded;
+
+  /**
+   * @return the file offset of the "DanS" marker.
+   */
+  public int getOffset() {
+    return offset;
+  }
+
+  public void setOffset(int offset) {
+    this.offset = offset;
+  }
+
+  /**
+   * @return the XOR key stored after the "Rich" marker.
+   */
+  public int getKey() {
+    return key;
+  }
+
+  public void setKey(int key) {
+    this.key = key;
+  }
+
+  /**
+   * @return the checksum calculated from the DOS header, stub and entries.
+   */
+  public int getChecksum() {
+    return checksum;
+  }
+
+  public void setChecksum(int checksum) {
+    this.checksum = checksum;
+  }
+
+  public boolean isChecksumValid() {
+    return checksum == key;
+  }
+
+  public int size() {
+    return compIds.length;
+  }
+
+  public int getCompId(int index) {
+    return compIds[index];
+  }
+
+  public int getProductId(int index) {
+    return compIds[index] >>> 16;
+  }
+
+  public int getBuildNumber(int index) {
+    return compIds[index] & 0xffff;
+  }
+
+  public int getCount(int index) {
+    return counts[index];
+  }
+
+  public void setEntries(int[] compIds, int[] counts) {
+    this.compIds = compIds;
+    this.counts = counts;
+  }
+
+  /**
+   * @return the decoded header from "DanS" up to (but excluding) "Rich".
+   */
+  public byte[] getDecoded() {
+    return decoded;
+  }
+
+  public void setDecoded(byte[] decoded) {
+    this.decoded = decoded;
+  }
+
+  /**
+   * Calculates the rich hash, which is the MD5 digest of the decoded header.
+   * Images built with the same toolchain and object mix share a rich hash.
+   *
+   * @return the 16 byte digest.
+   */
+  public byte[] getRichHash() {
+    try {
+      return MessageDigest.getInstance("MD5").digest(decoded);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 digest not available", e);
+    }
+  }
+
+  public String toString() {
+    return Reflection.toString(this);
+  }
+}
@@ -12,6 +12,7 @@ package org.boris.pecoff4j;
 public class SectionData {
   private byte[] data;
   private byte[] preamble;
+  private int sourceOffset = -1;
 
   public byte[] getPreamble() {
     return preamble;
@@ -27,5 +28,18 @@ public class SectionData {
 
   public void setData(byte[] data) {
     this.data = data;
+    this.sourceOffset = -1;
+  }
+
+  /**
+   * @return the file offset the data was read from, or -1 if the data has
+   * been replaced since it was parsed.
+   */
+  public int getSourceOffset() {
+    return sourceOffset;
+  }
+
+  public void setSourceOffset(int sourceOffset) {
+    this.sourceOffset = sourceOffset;
   }
 }
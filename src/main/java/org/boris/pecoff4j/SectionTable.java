@@ -53,6 +53,20 @@ public class SectionTable {
     sections.put(index, data);
   }
 
+  /**
+   * Removes a section header and its data. The sections after it move down
+   * one index.
+   */
+  public void remove(int index) {
+    headers.remove(index);
+    IntMap old = sections;
+    sections = new IntMap();
+    for (int key : old.keySet()) {
+      if (key != index)
+        sections.put(key > index ? key - 1 : key, old.get(key));
+    }
+  }
+
   public RVAConverter getRVAConverter() {
     return rvaConverter;
   }
@@ -61,6 +75,21 @@ public class SectionTable {
     this.rvaConverter = rvaConverter;
   }
 
+  /**
+   * Creates a new RVA converter from the current section headers.
+   */
+  public void updateRVAConverter() {
+    SectionHeader[] sorted = getHeadersPointerSorted();
+    int[] virtualAddress = new int[sorted.length];
+    int[] pointerToRawData = new int[sorted.length];
+    for (int i = 0; i < sorted.length; i++) {
+      virtualAddress[i] = sorted[i].getVirtualAddress();
+      pointerToRawData[i] = sorted[i].getPointerToRawData();
+    }
+
+    rvaConverter = new RVAConverter(virtualAddress, pointerToRawData);
+  }
+
   public int getFirstSectionRawDataPointer() {
     int pointer = 0;
     for (int i = 0; i < headers.size(); i++) {
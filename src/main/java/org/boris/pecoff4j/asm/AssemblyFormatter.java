@@ -9,36 +9,559 @@
  *******************************************************************************/
 package org.boris.pecoff4j.asm;
 
+import org.boris.pecoff4j.PE;
+import org.boris.pecoff4j.SectionHeader;
+import org.boris.pecoff4j.SectionTable;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes assembly listings in Intel or AT&T syntax.
+ * <p>
+ * Lines are built in one StringBuilder that is reused for the life of the
+ * formatter, with hex digits and register names taken from tables, so
+ * formatting an instruction allocates nothing; format(PE) only allocates
+ * the symbol table, if none is set, and a decoder. The text is passed on to the Appendable
+ * whenever it reaches the buffer size, so the memory held is bounded however
+ * long the listing is. Call flush() at the end.
+ * <p>
+ * When a SymbolTable is set, labels are written before the instructions at
+ * symbol addresses and references to symbols are named in a comment.
+ * <p>
+ * AT&T syntax uses the AT&T names where they differ from the Intel ones,
+ * such as movzbl, cltq and lcall, and adds an operand size suffix where a
+ * memory operand's size is not given by a general register operand of the
+ * same size.
+ */
+public class AssemblyFormatter implements Flushable {
+  public static final int SYNTAX_INTEL = 0;
+  public static final int SYNTAX_ATT = 1;
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final int BYTES_WIDTH = 30;
+
+  // How the AT&T suffix of a mnemonic is chosen
+  private static final byte SUFFIX_INTEGER = 0;
+  private static final byte SUFFIX_NONE = 1;
+  private static final byte SUFFIX_FLOAT = 2;
+  private static final byte SUFFIX_FLOAT_INTEGER = 3;
+  private static final byte SUFFIX_EXTEND = 4;
+
+  // AT&T names indexed by Mnemonic id, null where the Intel name is used
+  private static final String[] ATT_NAMES = new String[Mnemonic.getCount()];
+  private static final byte[] ATT_SUFFIXES = new byte[Mnemonic.getCount()];
+
+  static {
+    String[] names = {"cbw", "cbtw", "cwde", "cwtl", "cdqe", "cltq", "cwd", "cwtd", "cdq", "cltd", "cqo", "cqto",
+            "callf", "lcall", "jmpf", "ljmp", "retf", "lret", "movzx", "movz", "movsx", "movs", "movsxd", "movs"};
+    for (int i = 0; i < names.length; i += 2) {
+      ATT_NAMES[Mnemonic.get(names[i])] = names[i + 1];
+    }
+    Set<String> none = new HashSet<String>(Arrays.asList("lgdt", "sgdt", "lidt", "sidt", "lldt", "sldt", "ltr",
+            "str", "lmsw", "smsw", "invlpg", "clflush", "ldmxcsr", "stmxcsr", "vldmxcsr", "vstmxcsr",
+            "cmpxchg8b", "cmpxchg16b", "lea", "bound", "lds", "les", "lfs", "lgs", "lss"));
+    Set<String> floats = new HashSet<String>(Arrays.asList("fld", "fst", "fstp", "fadd", "fmul", "fcom", "fcomp",
+            "fsub", "fsubr", "fdiv", "fdivr"));
+    for (int id = 0; id < ATT_SUFFIXES.length; id++) {
+      String s = Mnemonic.getName(id);
+      if (s.equals("movzx") || s.equals("movsx") || s.equals("movsxd"))
+        ATT_SUFFIXES[id] = SUFFIX_EXTEND;
+      else if (floats.contains(s))
+        ATT_SUFFIXES[id] = SUFFIX_FLOAT;
+      else if (s.startsWith("fi"))
+        ATT_SUFFIXES[id] = SUFFIX_FLOAT_INTEGER;
+      else if (s.startsWith("f") || s.startsWith("set") || s.startsWith("prefetch") || s.startsWith("xsave") ||
+              s.startsWith("xrstor") || none.contains(s))
+        ATT_SUFFIXES[id] = SUFFIX_NONE;
+    }
+  }
+
+  private final Appendable out;
+  private final int syntax;
+  private final int bufferSize;
+  private final StringBuilder sb;
+  private final char[] chars;
+  private SymbolTable symbols;
+
+  public AssemblyFormatter(@NotNull Appendable out, int syntax) {
+    this(out, syntax, 8192);
+  }
+
+  /**
+   * @param out        the destination.
+   * @param syntax     SYNTAX_INTEL or SYNTAX_ATT.
+   * @param bufferSize the number of chars to collect before writing them.
+   */
+  public AssemblyFormatter(@NotNull Appendable out, int syntax, int bufferSize) {
+    if (syntax != SYNTAX_INTEL && syntax != SYNTAX_ATT)
+      throw new IllegalArgumentException("Invalid syntax: " + syntax);
+    if (bufferSize <= 0)
+      throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+    this.out = out;
+    this.syntax = syntax;
+    this.bufferSize = bufferSize;
+    this.sb = new StringBuilder(bufferSize + 256);
+    this.chars = out instanceof Writer ? new char[bufferSize + 256] : null;
+  }
+
+  public void setSymbols(@Nullable SymbolTable symbols) {
+    this.symbols = symbols;
+  }
+
+  /**
+   * Writes a line for an instruction: its address, bytes and text.
+   */
+  public void format(@NotNull DecodedInstruction ins) throws IOException {
+    long address = ins.getAddress();
+    if (symbols != null) {
+      String name = symbols.getByAddress(address);
+      if (name != null)
+        sb.append(name).append(":\n");
+    }
+    appendHex(sb, address, address > 0xffffffffL ? 16 : 8);
+    sb.append("   ");
+    for (int i = 0; i < ins.getLength(); i++) {
+      appendByte(sb, ins.getByte(i));
+    }
+    for (int i = ins.getLength() * 2; i < BYTES_WIDTH; i++) {
+      sb.append(' ');
+    }
+    sb.append(' ');
+    appendInstruction(sb, ins, syntax, symbols);
+    sb.append('\n');
+    if (sb.length() >= bufferSize)
+      drain();
+  }
+
+  /**
+   * Writes a listing of the executable sections of an image, decoded with a
+   * linear sweep. Names the imports and exports if no symbols are set.
+   */
+  public void format(@NotNull PE pe) throws IOException {
+    if (symbols == null)
+      symbols = SymbolTable.forPE(pe);
+    X86Decoder decoder = X86Decoder.forPE(pe);
+    DecodedInstruction ins = new DecodedInstruction();
+    long imageBase = pe.getOptionalHeader().getImageBase();
+    SectionTable st = pe.getSectionTable();
+    for (int i = 0; i < st.getNumberOfSections(); i++) {
+      int limit = SectionDisassembler.getCodeLimit(st, i);
+      if (limit == 0)
+        continue;
+      SectionHeader sh = st.getHeader(i);
+      sb.append('\n').append(syntax == SYNTAX_ATT ? '#' : ';').append(" section ").append(sh.getName())
+              .append("\n\n");
+      ByteBuffer code = ByteBuffer.wrap(st.getSection(i).getData(), 0, limit);
+      long base = imageBase + sh.getVirtualAddress();
+      int len;
+      for (int p = 0; (len = decoder.decode(code, p, base + p, ins)) > 0; p += len) {
+        format(ins);
+      }
+    }
+  }
+
+  /**
+   * Writes any buffered text to the destination, and flushes it if it is
+   * Flushable.
+   */
+  public void flush() throws IOException {
+    drain();
+    if (out instanceof Flushable)
+      ((Flushable) out).flush();
+  }
+
+  private void drain() throws IOException {
+    int n = sb.length();
+    if (n == 0)
+      return;
+    if (chars != null && n <= chars.length) {
+      sb.getChars(0, n, chars, 0);
+      ((Writer) out).write(chars, 0, n);
+    } else {
+      out.append(sb);
+    }
+    sb.setLength(0);
+  }
+
+  /**
+   * Appends the text of an instruction.
+   *
+   * @param symbols names referenced addresses in a comment, or null.
+   */
+  public static void appendInstruction(@NotNull StringBuilder sb, @NotNull DecodedInstruction ins, int syntax,
+                                       @Nullable SymbolTable symbols) {
+    int prefixes = ins.getPrefixes();
+    int mandatory = ins.getMandatoryPrefix();
+    if ((prefixes & DecodedInstruction.PREFIX_LOCK) != 0)
+      sb.append("lock ");
+    if ((prefixes & DecodedInstruction.PREFIX_REP) != 0 && mandatory != 0xf3)
+      sb.append("rep ");
+    if ((prefixes & DecodedInstruction.PREFIX_REPNE) != 0 && mandatory != 0xf2)
+      sb.append("repne ");
+    int n = ins.getOperandCount();
+    if (syntax == SYNTAX_ATT) {
+      appendATTMnemonic(sb, ins);
+      // The AT&T compares against st(0) name only the other register
+      int first = n == 2 && Mnemonic.getName(ins.getMnemonic()).startsWith("fcom") &&
+              ins.getOperandKind(0) == DecodedInstruction.OPERAND_REGISTER ? 1 : 0;
+      for (int i = n - 1; i >= first; i--) {
+        sb.append(i == n - 1 ? " " : ",");
+        appendATTOperand(sb, ins, i);
+      }
+    } else {
+      sb.append(Mnemonic.getName(ins.getMnemonic()));
+      for (int i = 0; i < n; i++) {
+        sb.append(i == 0 ? " " : ", ");
+        appendIntelOperand(sb, ins, i);
+      }
+    }
+
+    if (symbols != null && ins.isValid()) {
+      long address = ins.getRelativeOperand() != -1 ? ins.getTarget() : ins.getMemoryAddress();
+      String name = address == -1 ? null : symbols.getByAddress(address);
+      if (name != null)
+        sb.append(syntax == SYNTAX_ATT ? "  # " : "  ; ").append(name);
+    }
+  }
+
+  private static void appendIntelOperand(@NotNull StringBuilder sb, @NotNull DecodedInstruction ins, int i) {
+    int segment = ins.getSegment();
+    switch (ins.getOperandKind(i)) {
+      case DecodedInstruction.OPERAND_REGISTER:
+        sb.append(Register.getName(ins.getOperandRegister(i)));
+        break;
+      case DecodedInstruction.OPERAND_MEMORY:
+        appendPtr(sb, ins.getOperandSize(i));
+        if (segment != Register.NONE)
+          sb.append(Register.getName(segment)).append(':');
+        sb.append('[');
+        boolean first = true;
+        if (ins.getBase() != Register.NONE) {
+          sb.append(Register.getName(ins.getBase()));
+          first = false;
+        }
+        if (ins.getIndex() != Register.NONE) {
+          if (!first)
+            sb.append('+');
+          sb.append(Register.getName(ins.getIndex())).append('*').append(ins.getScale());
+          first = false;
+        }
+        long disp = ins.getDisplacement();
+        if (first) {
+          appendHex(sb, DecodedInstruction.mask(disp, ins.getAddressSize()));
+        } else if (disp != 0) {
+          sb.append(disp < 0 ? '-' : '+');
+          appendHex(sb, Math.abs(disp));
+        }
+        sb.append(']');
+        break;
+      case DecodedInstruction.OPERAND_IMMEDIATE:
+        appendHex(sb, getImmediate(ins, i));
+        break;
+      case DecodedInstruction.OPERAND_RELATIVE:
+        appendHex(sb, ins.getTarget());
+        break;
+      case DecodedInstruction.OPERAND_FAR_POINTER:
+        appendHex(sb, ins.getImmediate2() & 0xffff);
+        sb.append(':');
+        appendHex(sb, DecodedInstruction.mask(ins.getImmediate(), ins.getOperandSize(i) - 2));
+        break;
+      case DecodedInstruction.OPERAND_STRING:
+        appendPtr(sb, ins.getOperandSize(i));
+        sb.append(Register.getName(getStringSegment(ins, i))).append(":[")
+                .append(Register.getName(ins.getOperandRegister(i))).append(']');
+        break;
+    }
+  }
+
+  private static void appendATTOperand(@NotNull StringBuilder sb, @NotNull DecodedInstruction ins, int i) {
+    int segment = ins.getSegment();
+    int kind = ins.getOperandKind(i);
+    int flow = ins.getFlow();
+    if ((flow == Mnemonic.FLOW_CALL || flow == Mnemonic.FLOW_JUMP) &&
+            (kind == DecodedInstruction.OPERAND_REGISTER || kind == DecodedInstruction.OPERAND_MEMORY))
+      sb.append('*');
+    switch (kind) {
+      case DecodedInstruction.OPERAND_REGISTER:
+        sb.append('%').append(Register.getName(ins.getOperandRegister(i)));
+        break;
+      case DecodedInstruction.OPERAND_MEMORY:
+        if (segment != Register.NONE)
+          sb.append('%').append(Register.getName(segment)).append(':');
+        long disp = ins.getDisplacement();
+        int base = ins.getBase();
+        int index = ins.getIndex();
+        if (base == Register.NONE && index == Register.NONE) {
+          appendHex(sb, DecodedInstruction.mask(disp, ins.getAddressSize()));
+          break;
+        }
+        if (disp < 0)
+          sb.append('-');
+        if (disp != 0)
+          appendHex(sb, Math.abs(disp));
+        sb.append('(');
+        if (base != Register.NONE)
+          sb.append('%').append(Register.getName(base));
+        if (index != Register.NONE)
+          sb.append(",%").append(Register.getName(index)).append(',').append(ins.getScale());
+        sb.append(')');
+        break;
+      case DecodedInstruction.OPERAND_IMMEDIATE:
+        sb.append('$');
+        appendHex(sb, getImmediate(ins, i));
+        break;
+      case DecodedInstruction.OPERAND_RELATIVE:
+        appendHex(sb, ins.getTarget());
+        break;
+      case DecodedInstruction.OPERAND_FAR_POINTER:
+        sb.append('$');
+        appendHex(sb, ins.getImmediate2() & 0xffff);
+        sb.append(",$");
+        appendHex(sb, DecodedInstruction.mask(ins.getImmediate(), ins.getOperandSize(i) - 2));
+        break;
+      case DecodedInstruction.OPERAND_STRING:
+        sb.append('%').append(Register.getName(getStringSegment(ins, i))).append(":(%")
+                .append(Register.getName(ins.getOperandRegister(i))).append(')');
+        break;
+    }
+  }
+
+  /**
+   * Appends the AT&T mnemonic with its operand size suffix. Sign and zero
+   * extensions name both sizes, as in movzbl. Otherwise the suffix is added
+   * when there is a memory operand and no general register operand of the
+   * same size, so that movzx and shl with a cl count are not ambiguous.
+   */
+  private static void appendATTMnemonic(@NotNull StringBuilder sb, @NotNull DecodedInstruction ins) {
+    int m = ins.getMnemonic();
+    String name = ATT_NAMES[m];
+    int n = ins.getOperandCount();
+    if (name == null) {
+      name = Mnemonic.getName(m);
+      if (m == Mnemonic.MOV && isAbsolute(ins)) {
+        name = "movabs";
+      } else if (name.endsWith("d") && hasString(ins)) {
+        // movsd, stosd and the like are movsl, stosl
+        sb.append(name, 0, name.length() - 1).append('l');
+        return;
+      }
+    }
+    sb.append(name);
+    int kind = ATT_SUFFIXES[m];
+    if (kind == SUFFIX_EXTEND) {
+      if (n == 2) {
+        int source = ins.getOperandSize(1);
+        int dest = ins.getOperandSize(0);
+        if (source == dest) {
+          sb.setLength(sb.length() - name.length());
+          sb.append("mov");
+        } else {
+          appendSuffix(sb, source, SUFFIX_INTEGER);
+        }
+        appendSuffix(sb, dest, SUFFIX_INTEGER);
+      }
+      return;
+    }
+    if (kind == SUFFIX_NONE || ins.getFlow() != Mnemonic.FLOW_NONE)
+      return;
+
+    int memory = 0;
+    for (int i = 0; i < n; i++) {
+      if (ins.getOperandKind(i) == DecodedInstruction.OPERAND_MEMORY)
+        memory = ins.getOperandSize(i);
+    }
+    if (memory == 0)
+      return;
+    boolean sized = false;
+    for (int i = 0; i < n; i++) {
+      if (ins.getOperandKind(i) != DecodedInstruction.OPERAND_REGISTER)
+        continue;
+      int register = ins.getOperandRegister(i);
+      if (!isGeneralRegister(register))
+        return;
+      if (Register.getSize(register) != memory) {
+        sized = false;
+        break;
+      }
+      sized = true;
+    }
+    if (!sized)
+      appendSuffix(sb, memory, kind);
+  }
+
+  /**
+   * Checks for the x64 mov forms with a 64-bit immediate or address.
+   */
+  private static boolean isAbsolute(@NotNull DecodedInstruction ins) {
+    int opcode = ins.getOpcode();
+    if (opcode >= 0xb8 && opcode <= 0xbf)
+      return ins.getOperandSize(1) == 8;
+    return opcode >= 0xa0 && opcode <= 0xa3 && ins.getAddressSize() == 8;
+  }
+
+  private static boolean hasString(@NotNull DecodedInstruction ins) {
+    for (int i = 0; i < ins.getOperandCount(); i++) {
+      if (ins.getOperandKind(i) == DecodedInstruction.OPERAND_STRING)
+        return true;
+    }
+    return false;
+  }
+
+  private static boolean isGeneralRegister(int register) {
+    switch (Register.getType(register)) {
+      case Register.GPR8:
+      case Register.GPR8_REX:
+      case Register.GPR16:
+      case Register.GPR32:
+      case Register.GPR64:
+        return true;
+    }
+    return false;
+  }
+
+  private static void appendSuffix(@NotNull StringBuilder sb, int size, int kind) {
+    switch (kind) {
+      case SUFFIX_INTEGER:
+        switch (size) {
+          case 1:
+            sb.append('b');
+            break;
+          case 2:
+            sb.append('w');
+            break;
+          case 4:
+            sb.append('l');
+            break;
+          case 8:
+            sb.append('q');
+            break;
+        }
+        break;
+      case SUFFIX_FLOAT:
+        switch (size) {
+          case 4:
+            sb.append('s');
+            break;
+          case 8:
+            sb.append('l');
+            break;
+          case 10:
+            sb.append('t');
+            break;
+        }
+        break;
+      case SUFFIX_FLOAT_INTEGER:
+        switch (size) {
+          case 2:
+            sb.append('s');
+            break;
+          case 4:
+            sb.append('l');
+            break;
+          case 8:
+            sb.append("ll");
+            break;
+        }
+        break;
+    }
+  }
+
+  private static long getImmediate(@NotNull DecodedInstruction ins, int i) {
+    long value = ins.getOperandRegister(i) == 1 ? ins.getImmediate2() : ins.getImmediate();
+    return DecodedInstruction.mask(value, ins.getOperandSize(i));
+  }
+
+  private static int getStringSegment(@NotNull DecodedInstruction ins, int i) {
+    if (Register.getNumber(ins.getOperandRegister(i)) == 7)
+      return Register.ES;
+    return ins.getSegment() == Register.NONE ? Register.DS : ins.getSegment();
+  }
+
+  private static void appendPtr(@NotNull StringBuilder sb, int size) {
+    switch (size) {
+      case 1:
+        sb.append("byte ptr ");
+        break;
+      case 2:
+        sb.append("word ptr ");
+        break;
+      case 4:
+        sb.append("dword ptr ");
+        break;
+      case 6:
+        sb.append("fword ptr ");
+        break;
+      case 8:
+        sb.append("qword ptr ");
+        break;
+      case 10:
+        sb.append("tbyte ptr ");
+        break;
+      case 16:
+        sb.append("xmmword ptr ");
+        break;
+      case 32:
+        sb.append("ymmword ptr ");
+        break;
+    }
+  }
+
+  /**
+   * Appends 0x and the value in hex without leading zeros.
+   */
+  static void appendHex(@NotNull StringBuilder sb, long value) {
+    sb.append("0x");
+    int digits = Math.max(1, 16 - Long.numberOfLeadingZeros(value) / 4);
+    for (int i = digits - 1; i >= 0; i--) {
+      sb.append(HEX[(int) (value >>> (i * 4)) & 15]);
+    }
+  }
+
+  /**
+   * Appends the value in hex, zero padded to a number of digits.
+   */
+  static void appendHex(@NotNull StringBuilder sb, long value, int digits) {
+    for (int i = digits - 1; i >= 0; i--) {
+      sb.append(HEX[(int) (value >>> (i * 4)) & 15]);
+    }
+  }
+
+  static void appendByte(@NotNull StringBuilder sb, int b) {
+    sb.append(HEX[b >> 4 & 15]).append(HEX[b & 15]);
+  }
 
-public class AssemblyFormatter {
   public static void format(@NotNull AbstractInstruction[] instructions, @NotNull PrintStream out) throws IOException {
+    StringBuilder sb = new StringBuilder();
     for (AbstractInstruction ai : instructions) {
-      out.print(AbstractInstruction.toHexString(ai.getOffset(), false));
-      out.print("   ");
-      out.print(toHexString(ai.toCode(), 30));
-      out.println(ai.toIntelAssembly());
+      sb.setLength(0);
+      sb.append(AbstractInstruction.toHexString(ai.getOffset(), false));
+      sb.append("   ");
+      appendHex(sb, ai.toCode(), BYTES_WIDTH);
+      sb.append(ai.toIntelAssembly());
+      out.println(sb);
     }
   }
 
   public static String toHexString(@NotNull byte[] bytes, int pad) {
-    StringBuilder sb = new StringBuilder();
+    StringBuilder sb = new StringBuilder(Math.max(pad, bytes.length * 2));
+    appendHex(sb, bytes, pad);
+    return sb.toString();
+  }
+
+  private static void appendHex(@NotNull StringBuilder sb, @NotNull byte[] bytes, int pad) {
     for (byte b : bytes) {
-      sb.append(toHexString(b));
+      appendByte(sb, b & 0xff);
     }
     for (int i = pad - bytes.length * 2; i > 0; i--)
       sb.append(' ');
-    return sb.toString();
-  }
-
-  private static String toHexString(byte b) {
-    String s = Integer.toHexString(((int) b) & 0xff);
-    if (s.length() == 1) {
-      return "0" + s;
-    } else
-      return s;
   }
 }
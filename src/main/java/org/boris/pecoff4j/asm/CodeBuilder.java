@@ -0,0 +1,782 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.asm;
+
+import org.boris.pecoff4j.util.PEBuilder;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Assembles x86 or x64 code.
+ * <p>
+ * Instructions are appended with one method each, named after the mnemonic,
+ * with registers given as Register ids; the register sizes select the
+ * operand size. Labels are ints returned by newLabel, so they can be used
+ * before they are bound. Branches to labels start out short and link()
+ * lengthens those whose target is out of range, repeating until every
+ * branch fits. Nothing is allocated per instruction, and reset() lets one
+ * builder assemble many stubs.
+ * <p>
+ * Imported functions are called through their import address table slot.
+ * addTo places the code in a section of a PEBuilder and adds the fixups for
+ * the slots and for absolute label addresses.
+ * <p>
+ * eg. a console program that calls ExitProcess(0):
+ * <pre>
+ * CodeBuilder cb = new CodeBuilder(X86Decoder.MODE_32);
+ * cb.pushImm(0);
+ * cb.callImport("kernel32.dll", "ExitProcess");
+ * PEBuilder pb = new PEBuilder(MachineType.IMAGE_FILE_MACHINE_I386);
+ * cb.addTo(pb, ".text");
+ * pb.setEntryPoint(".text", 0);
+ * </pre>
+ */
+public class CodeBuilder {
+  // Condition codes for jcc
+  public static final int COND_O = 0;
+  public static final int COND_NO = 1;
+  public static final int COND_B = 2;
+  public static final int COND_AE = 3;
+  public static final int COND_E = 4;
+  public static final int COND_NE = 5;
+  public static final int COND_BE = 6;
+  public static final int COND_A = 7;
+  public static final int COND_S = 8;
+  public static final int COND_NS = 9;
+  public static final int COND_P = 10;
+  public static final int COND_NP = 11;
+  public static final int COND_L = 12;
+  public static final int COND_GE = 13;
+  public static final int COND_LE = 14;
+  public static final int COND_G = 15;
+
+  // ALU operations, in opcode order
+  private static final int ADD = 0;
+  private static final int OR = 1;
+  private static final int AND = 4;
+  private static final int SUB = 5;
+  private static final int XOR = 6;
+  private static final int CMP = 7;
+
+  // Branch kinds, or a condition code for jcc
+  private static final int BRANCH_JMP = -1;
+  private static final int BRANCH_CALL = -2;
+
+  // Fixup types
+  private static final int LABEL_REL32 = 0;
+  private static final int LABEL_ABSOLUTE = 1;
+  private static final int IMPORT = 2;
+
+  private final int mode;
+  private ByteBuffer buf;
+
+  // Labels: buffer position and the number of branches before it
+  private int labelCount;
+  private int[] labelPos = new int[16];
+  private int[] labelBranches = new int[16];
+
+  // Branches to labels, which are not in the buffer until linked
+  private int branchCount;
+  private int[] branchPos = new int[16];
+  private int[] branchLabel = new int[16];
+  private int[] branchKind = new int[16];
+  private byte[] branchSize = new byte[16];
+
+  // Fields that refer to labels or imports
+  private int fixupCount;
+  private int[] fixupPos = new int[16];
+  private int[] fixupBranches = new int[16];
+  private int[] fixupType = new int[16];
+  private int[] fixupTarget = new int[16];
+  private int[] fixupTrail = new int[16];
+  private final List<String> importDlls = new ArrayList<String>();
+  private final List<String> importFunctions = new ArrayList<String>();
+
+  // Set by link
+  private byte[] code;
+  private int[] branchOffsets;
+
+  /**
+   * Creates a builder for X86Decoder.MODE_32 or MODE_64 code.
+   */
+  public CodeBuilder(int mode) {
+    this(mode, 256);
+  }
+
+  public CodeBuilder(int mode, int capacity) {
+    if (mode != X86Decoder.MODE_32 && mode != X86Decoder.MODE_64)
+      throw new IllegalArgumentException("Invalid mode: " + mode);
+    this.mode = mode;
+    this.buf = ByteBuffer.allocate(Math.max(capacity, 16)).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  public int getMode() {
+    return mode;
+  }
+
+  /**
+   * Clears the code and labels so the builder can be used again.
+   */
+  public void reset() {
+    buf.clear();
+    labelCount = 0;
+    branchCount = 0;
+    fixupCount = 0;
+    importDlls.clear();
+    importFunctions.clear();
+    code = null;
+    branchOffsets = null;
+  }
+
+  public int newLabel() {
+    if (labelCount == labelPos.length) {
+      labelPos = Arrays.copyOf(labelPos, labelCount * 2);
+      labelBranches = Arrays.copyOf(labelBranches, labelCount * 2);
+    }
+    labelPos[labelCount] = -1;
+    return labelCount++;
+  }
+
+  /**
+   * Binds a label to the next instruction.
+   *
+   * @throws IllegalStateException if the label is already bound.
+   */
+  public void bind(int label) {
+    checkLabel(label);
+    if (labelPos[label] != -1)
+      throw new IllegalStateException("Label already bound: " + label);
+    edit();
+    labelPos[label] = buf.position();
+    labelBranches[label] = branchCount;
+  }
+
+  public void jmp(int label) {
+    branch(BRANCH_JMP, label);
+  }
+
+  /**
+   * Jumps to a label if a condition holds.
+   *
+   * @param cond one of the COND constants.
+   */
+  public void jcc(int cond, int label) {
+    if (cond < 0 || cond > 15)
+      throw new IllegalArgumentException("Invalid condition: " + cond);
+    branch(cond, label);
+  }
+
+  public void call(int label) {
+    branch(BRANCH_CALL, label);
+  }
+
+  /**
+   * Calls the address in a register.
+   */
+  public void callRegister(int reg) {
+    indirect(2, reg);
+  }
+
+  /**
+   * Jumps to the address in a register.
+   */
+  public void jmpRegister(int reg) {
+    indirect(4, reg);
+  }
+
+  /**
+   * Calls an imported function through its import address table slot.
+   */
+  public void callImport(@NotNull String dll, @NotNull String function) {
+    importOp(0xff, 2, dll, function);
+  }
+
+  /**
+   * Jumps to an imported function through its import address table slot.
+   */
+  public void jmpImport(@NotNull String dll, @NotNull String function) {
+    importOp(0xff, 4, dll, function);
+  }
+
+  /**
+   * Loads the address of an imported function from its import address
+   * table slot into a register.
+   */
+  public void loadImport(int reg, @NotNull String dll, @NotNull String function) {
+    checkNative(reg);
+    edit();
+    rex(reg, Register.NONE, mode == X86Decoder.MODE_64);
+    importOp(0x8b, Register.getNumber(reg), dll, function);
+  }
+
+  public void ret() {
+    db(0xc3);
+  }
+
+  /**
+   * Returns and pops bytes of arguments.
+   */
+  public void ret(int bytes) {
+    db(0xc2);
+    dw(bytes);
+  }
+
+  public void push(int reg) {
+    checkNative(reg);
+    rex(Register.NONE, reg, false);
+    db(0x50 + (Register.getNumber(reg) & 7));
+  }
+
+  public void pop(int reg) {
+    checkNative(reg);
+    rex(Register.NONE, reg, false);
+    db(0x58 + (Register.getNumber(reg) & 7));
+  }
+
+  public void pushImm(int imm) {
+    if (imm == (byte) imm) {
+      db(0x6a);
+      db(imm);
+    } else {
+      db(0x68);
+      dd(imm);
+    }
+  }
+
+  /**
+   * Moves a register to a register of the same size.
+   */
+  public void mov(int dst, int src) {
+    registerOp(0x88, src, dst);
+  }
+
+  /**
+   * Moves an immediate to a register, using the shortest encoding.
+   */
+  public void movImm(int reg, long imm) {
+    int size = checkGPR(reg);
+    int n = Register.getNumber(reg) & 7;
+    switch (size) {
+      case 1:
+        rex(Register.NONE, reg, false);
+        db(0xb0 + n);
+        db((int) imm);
+        break;
+      case 2:
+        db(0x66);
+        rex(Register.NONE, reg, false);
+        db(0xb8 + n);
+        dw((int) imm);
+        break;
+      case 4:
+        rex(Register.NONE, reg, false);
+        db(0xb8 + n);
+        dd((int) imm);
+        break;
+      default:
+        if (imm == (int) imm) {
+          rex(Register.NONE, reg, true);
+          db(0xc7);
+          db(0xc0 + n);
+          dd((int) imm);
+        } else if ((imm & 0xffffffffL) == imm) {
+          // Writing the 32 bit register clears the top half
+          movImm(Register.GPR32 + Register.getNumber(reg), imm);
+        } else {
+          rex(Register.NONE, reg, true);
+          db(0xb8 + n);
+          dq(imm);
+        }
+    }
+  }
+
+  /**
+   * Loads a register from [base + disp]. A base of Register.NONE addresses
+   * disp absolutely.
+   */
+  public void load(int reg, int base, int disp) {
+    memoryOp(0x8a, reg, base, disp);
+  }
+
+  /**
+   * Stores a register to [base + disp].
+   */
+  public void store(int base, int disp, int reg) {
+    memoryOp(0x88, reg, base, disp);
+  }
+
+  /**
+   * Loads the address base + disp into a register.
+   */
+  public void lea(int reg, int base, int disp) {
+    if (checkGPR(reg) == 1)
+      throw new IllegalArgumentException("Invalid register: " + Register.getName(reg));
+    memoryOp(0x8d, reg, base, disp);
+  }
+
+  /**
+   * Loads the address of a label into a register: a RIP-relative lea for
+   * x64, or a mov of the absolute address for x86.
+   */
+  public void leaLabel(int reg, int label) {
+    checkNative(reg);
+    checkLabel(label);
+    edit();
+    if (mode == X86Decoder.MODE_64) {
+      rex(reg, Register.NONE, true);
+      db(0x8d);
+      db((Register.getNumber(reg) & 7) << 3 | 5);
+      fixup(LABEL_REL32, label, 0);
+      dd(0);
+    } else {
+      db(0xb8 + Register.getNumber(reg));
+      fixup(LABEL_ABSOLUTE, label, 0);
+      dd(0);
+    }
+  }
+
+  public void add(int dst, int src) {
+    registerOp(ADD << 3, src, dst);
+  }
+
+  public void or(int dst, int src) {
+    registerOp(OR << 3, src, dst);
+  }
+
+  public void and(int dst, int src) {
+    registerOp(AND << 3, src, dst);
+  }
+
+  public void sub(int dst, int src) {
+    registerOp(SUB << 3, src, dst);
+  }
+
+  public void xor(int dst, int src) {
+    registerOp(XOR << 3, src, dst);
+  }
+
+  public void cmp(int dst, int src) {
+    registerOp(CMP << 3, src, dst);
+  }
+
+  public void test(int dst, int src) {
+    registerOp(0x84, src, dst);
+  }
+
+  public void addImm(int reg, int imm) {
+    immediateOp(ADD, reg, imm);
+  }
+
+  public void orImm(int reg, int imm) {
+    immediateOp(OR, reg, imm);
+  }
+
+  public void andImm(int reg, int imm) {
+    immediateOp(AND, reg, imm);
+  }
+
+  public void subImm(int reg, int imm) {
+    immediateOp(SUB, reg, imm);
+  }
+
+  public void xorImm(int reg, int imm) {
+    immediateOp(XOR, reg, imm);
+  }
+
+  public void cmpImm(int reg, int imm) {
+    immediateOp(CMP, reg, imm);
+  }
+
+  public void nop() {
+    db(0x90);
+  }
+
+  public void int3() {
+    db(0xcc);
+  }
+
+  public void db(int b) {
+    ensure(1);
+    buf.put((byte) b);
+  }
+
+  public void db(@NotNull byte[] b) {
+    ensure(b.length);
+    buf.put(b);
+  }
+
+  public void dw(int w) {
+    ensure(2);
+    buf.putShort((short) w);
+  }
+
+  public void dd(int d) {
+    ensure(4);
+    buf.putInt(d);
+  }
+
+  public void dq(long q) {
+    ensure(8);
+    buf.putLong(q);
+  }
+
+  /**
+   * Lays out the branches and resolves the label references. Called by
+   * toBytes and addTo; further instructions may be added afterwards.
+   *
+   * @throws IllegalStateException if a referenced label is not bound.
+   */
+  public void link() {
+    if (code != null)
+      return;
+    for (int i = 0; i < branchCount; i++) {
+      checkBound(branchLabel[i]);
+      branchSize[i] = (byte) (branchKind[i] == BRANCH_CALL ? 5 : 2);
+    }
+    for (int i = 0; i < fixupCount; i++) {
+      if (fixupType[i] != IMPORT)
+        checkBound(fixupTarget[i]);
+    }
+
+    // Lengthen the short branches that do not reach until all fit. Branches
+    // only grow so this terminates.
+    int[] offsets = new int[branchCount + 1];
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = 0; i < branchCount; i++) {
+        offsets[i + 1] = offsets[i] + branchSize[i];
+      }
+      for (int i = 0; i < branchCount; i++) {
+        if (branchSize[i] != 2)
+          continue;
+        int end = branchPos[i] + offsets[i] + 2;
+        int l = branchLabel[i];
+        int d = labelPos[l] + offsets[labelBranches[l]] - end;
+        if (d != (byte) d) {
+          branchSize[i] = (byte) (branchKind[i] == BRANCH_JMP ? 5 : 6);
+          changed = true;
+        }
+      }
+    }
+    branchOffsets = offsets;
+
+    int length = buf.position() + offsets[branchCount];
+    ByteBuffer out = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    byte[] src = buf.array();
+    int p = 0;
+    for (int i = 0; i < branchCount; i++) {
+      out.put(src, p, branchPos[i] - p);
+      p = branchPos[i];
+      int kind = branchKind[i];
+      int size = branchSize[i];
+      int l = branchLabel[i];
+      int d = offsetOf(labelPos[l], labelBranches[l]) - (out.position() + size);
+      if (size == 2) {
+        out.put((byte) (kind == BRANCH_JMP ? 0xeb : 0x70 + kind));
+        out.put((byte) d);
+      } else {
+        if (kind >= 0)
+          out.put((byte) 0x0f).put((byte) (0x80 + kind));
+        else
+          out.put((byte) (kind == BRANCH_JMP ? 0xe9 : 0xe8));
+        out.putInt(d);
+      }
+    }
+    out.put(src, p, buf.position() - p);
+
+    for (int i = 0; i < fixupCount; i++) {
+      int field = offsetOf(fixupPos[i], fixupBranches[i]);
+      switch (fixupType[i]) {
+        case LABEL_REL32:
+          out.putInt(field, getOffset(fixupTarget[i]) - (field + 4 + fixupTrail[i]));
+          break;
+        case LABEL_ABSOLUTE:
+          out.putInt(field, getOffset(fixupTarget[i]));
+          break;
+      }
+    }
+    code = out.array();
+  }
+
+  /**
+   * Links the code and returns it. Absolute label addresses hold the offset
+   * of the label until they are relocated.
+   */
+  @NotNull
+  public byte[] toBytes() {
+    link();
+    return code.clone();
+  }
+
+  /**
+   * Gets the offset of a bound label in the linked code.
+   */
+  public int getOffset(int label) {
+    checkBound(label);
+    if (branchOffsets == null)
+      link();
+    return offsetOf(labelPos[label], labelBranches[label]);
+  }
+
+  /**
+   * Links the code and adds it to a PEBuilder as a code section, with
+   * fixups for the import slots and absolute label addresses it uses.
+   *
+   * @param pb      the builder, for the same machine as this code.
+   * @param section the section name, eg. ".text".
+   */
+  public void addTo(@NotNull PEBuilder pb, @NotNull String section) {
+    link();
+    pb.addSection(section, PEBuilder.CODE, code.clone());
+    boolean x64 = mode == X86Decoder.MODE_64;
+    for (int i = 0; i < fixupCount; i++) {
+      int field = offsetOf(fixupPos[i], fixupBranches[i]);
+      switch (fixupType[i]) {
+        case LABEL_ABSOLUTE:
+          pb.addFixup(section, field, PEBuilder.FIXUP_VA32, section, getOffset(fixupTarget[i]));
+          break;
+        case IMPORT:
+          int k = fixupTarget[i];
+          pb.addImportFixup(section, field, x64 ? PEBuilder.FIXUP_REL32 : PEBuilder.FIXUP_VA32,
+                  importDlls.get(k), importFunctions.get(k));
+          break;
+      }
+    }
+  }
+
+  private int offsetOf(int pos, int branches) {
+    return pos + branchOffsets[branches];
+  }
+
+  private void branch(int kind, int label) {
+    checkLabel(label);
+    edit();
+    if (branchCount == branchPos.length) {
+      int n = branchCount * 2;
+      branchPos = Arrays.copyOf(branchPos, n);
+      branchLabel = Arrays.copyOf(branchLabel, n);
+      branchKind = Arrays.copyOf(branchKind, n);
+      branchSize = Arrays.copyOf(branchSize, n);
+    }
+    branchPos[branchCount] = buf.position();
+    branchLabel[branchCount] = label;
+    branchKind[branchCount] = kind;
+    branchCount++;
+  }
+
+  /**
+   * Records a reference in the field about to be written.
+   *
+   * @param trail the bytes of the instruction after the field.
+   */
+  private void fixup(int type, int target, int trail) {
+    if (fixupCount == fixupPos.length) {
+      int n = fixupCount * 2;
+      fixupPos = Arrays.copyOf(fixupPos, n);
+      fixupBranches = Arrays.copyOf(fixupBranches, n);
+      fixupType = Arrays.copyOf(fixupType, n);
+      fixupTarget = Arrays.copyOf(fixupTarget, n);
+      fixupTrail = Arrays.copyOf(fixupTrail, n);
+    }
+    fixupPos[fixupCount] = buf.position();
+    fixupBranches[fixupCount] = branchCount;
+    fixupType[fixupCount] = type;
+    fixupTarget[fixupCount] = target;
+    fixupTrail[fixupCount] = trail;
+    fixupCount++;
+  }
+
+  /**
+   * Emits an opcode with a [slot] operand: absolute for x86, RIP-relative
+   * for x64.
+   */
+  private void importOp(int opcode, int regField, @NotNull String dll, @NotNull String function) {
+    edit();
+    int k = importDlls.size();
+    importDlls.add(dll);
+    importFunctions.add(function);
+    db(opcode);
+    db((regField & 7) << 3 | 5);
+    fixup(IMPORT, k, 0);
+    dd(0);
+  }
+
+  private void indirect(int regField, int reg) {
+    checkNative(reg);
+    rex(Register.NONE, reg, false);
+    db(0xff);
+    db(0xc0 | regField << 3 | Register.getNumber(reg) & 7);
+  }
+
+  /**
+   * Emits a register to register instruction whose opcode has a byte form
+   * and a word form at opcode + 1.
+   */
+  private void registerOp(int opcode, int reg, int rm) {
+    int size = checkGPR(reg);
+    if (checkGPR(rm) != size)
+      throw new IllegalArgumentException("Register sizes differ: " + Register.getName(reg) + ", " +
+              Register.getName(rm));
+    sizePrefix(size);
+    rex(reg, rm, size == 8);
+    db(size == 1 ? opcode : opcode + 1);
+    db(0xc0 | (Register.getNumber(reg) & 7) << 3 | Register.getNumber(rm) & 7);
+  }
+
+  private void immediateOp(int op, int reg, int imm) {
+    int size = checkGPR(reg);
+    sizePrefix(size);
+    rex(Register.NONE, reg, size == 8);
+    int modrm = 0xc0 | op << 3 | Register.getNumber(reg) & 7;
+    if (size == 1) {
+      db(0x80);
+      db(modrm);
+      db(imm);
+    } else if (imm == (byte) imm) {
+      db(0x83);
+      db(modrm);
+      db(imm);
+    } else {
+      db(0x81);
+      db(modrm);
+      if (size == 2)
+        dw(imm);
+      else
+        dd(imm);
+    }
+  }
+
+  private void memoryOp(int opcode, int reg, int base, int disp) {
+    int size = checkGPR(reg);
+    if (base != Register.NONE && base != Register.RIP)
+      checkNative(base);
+    sizePrefix(size);
+    rex(reg, base == Register.RIP ? Register.NONE : base, size == 8);
+    db(size == 1 ? opcode : opcode | 1);
+    int r = (Register.getNumber(reg) & 7) << 3;
+    if (base == Register.RIP) {
+      if (mode != X86Decoder.MODE_64)
+        throw new IllegalArgumentException("RIP addressing needs 64-bit mode");
+      db(r | 5);
+      dd(disp);
+    } else if (base == Register.NONE) {
+      if (mode == X86Decoder.MODE_64) {
+        // mod 00 rm 101 is RIP-relative, so use a SIB without base or index
+        db(r | 4);
+        db(0x25);
+      } else {
+        db(r | 5);
+      }
+      dd(disp);
+    } else {
+      int b = Register.getNumber(base) & 7;
+      int mod = disp == 0 && b != 5 ? 0 : disp == (byte) disp ? 0x40 : 0x80;
+      db(mod | r | b);
+      if (b == 4)
+        db(0x24);
+      if (mod == 0x40)
+        db(disp);
+      else if (mod == 0x80)
+        dd(disp);
+    }
+  }
+
+  private void sizePrefix(int size) {
+    if (size == 2)
+      db(0x66);
+  }
+
+  /**
+   * Emits a REX prefix if the registers or operand size need one.
+   *
+   * @param reg the register in ModRM.reg, or Register.NONE.
+   * @param rm  the register in ModRM.rm, the SIB base or the opcode, or
+   *            Register.NONE.
+   */
+  private void rex(int reg, int rm, boolean w) {
+    int rex = (w ? 8 : 0) | (reg != Register.NONE && Register.getNumber(reg) > 7 ? 4 : 0) |
+            (rm != Register.NONE && Register.getNumber(rm) > 7 ? 1 : 0);
+    boolean force = isRexByte(reg) || isRexByte(rm);
+    if (rex == 0 && !force)
+      return;
+    if (mode != X86Decoder.MODE_64)
+      throw new IllegalArgumentException("Register needs 64-bit mode: " +
+              Register.getName(reg != Register.NONE && Register.getNumber(reg) > 7 ? reg : rm));
+    if (isHighByte(reg) || isHighByte(rm))
+      throw new IllegalArgumentException("ah, ch, dh and bh cannot be used with a REX prefix");
+    db(0x40 | rex);
+  }
+
+  private static boolean isRexByte(int reg) {
+    return reg != Register.NONE && Register.getType(reg) == Register.GPR8_REX && Register.getNumber(reg) > 3;
+  }
+
+  private static boolean isHighByte(int reg) {
+    return reg != Register.NONE && Register.getType(reg) == Register.GPR8 && Register.getNumber(reg) > 3;
+  }
+
+  /**
+   * Checks a general purpose register fits the mode and returns its size.
+   */
+  private int checkGPR(int reg) {
+    int type = Register.getType(reg);
+    if (reg == Register.NONE || type > Register.GPR64 ||
+            mode != X86Decoder.MODE_64 && (type == Register.GPR64 || type == Register.GPR8_REX))
+      throw new IllegalArgumentException("Invalid register: " + (reg == Register.NONE ? "none" :
+              Register.getName(reg)));
+    return Register.getSize(reg);
+  }
+
+  /**
+   * Checks a register is the size of an address.
+   */
+  private void checkNative(int reg) {
+    if (reg == Register.NONE || Register.getType(reg) != (mode == X86Decoder.MODE_64 ? Register.GPR64 :
+            Register.GPR32))
+      throw new IllegalArgumentException("Invalid register: " + (reg == Register.NONE ? "none" :
+              Register.getName(reg)));
+  }
+
+  private void checkLabel(int label) {
+    if (label < 0 || label >= labelCount)
+      throw new IllegalArgumentException("Invalid label: " + label);
+  }
+
+  private void checkBound(int label) {
+    checkLabel(label);
+    if (labelPos[label] == -1)
+      throw new IllegalStateException("Label not bound: " + label);
+  }
+
+  /**
+   * Discards the linked code, as the buffer is about to change.
+   */
+  private void edit() {
+    code = null;
+    branchOffsets = null;
+  }
+
+  private void ensure(int n) {
+    edit();
+    if (buf.remaining() < n) {
+      ByteBuffer b = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + n))
+              .order(ByteOrder.LITTLE_ENDIAN);
+      buf.flip();
+      b.put(buf);
+      buf = b;
+    }
+  }
+}
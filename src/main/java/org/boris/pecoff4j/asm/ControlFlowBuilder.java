@@ -0,0 +1,460 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.asm;
+
+import org.boris.pecoff4j.PE;
+import org.boris.pecoff4j.SectionTable;
+import org.boris.pecoff4j.util.ForkJoinTasks;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the control flow graph of an image by recursive descent.
+ * <p>
+ * Analysis starts from the function starts the image declares (the entry
+ * point, the exports and the .pdata functions) and follows relative jumps,
+ * conditional branches and calls. Each function is walked with a worklist and
+ * a visited bitset that covers the executable sections; the bits a function
+ * sets are cleared afterwards, so one bitset serves every function a worker
+ * analyzes. The targets of calls and tail jumps that are not known functions
+ * are analyzed in a further round, until no new functions are found.
+ * <p>
+ * Functions are independent, so the parallel method runs one worker per
+ * thread of the pool, each taking the next function of the round.
+ */
+public class ControlFlowBuilder {
+  private final X86Decoder decoder;
+  private final long imageBase;
+  private final long imageSize;
+  private final int[] declaredStarts;
+
+  // Executable sections, sorted by RVA
+  private final int[] sectionStarts;
+  private final int[] sectionEnds;
+  private final ByteBuffer[] sectionCode;
+  private final int codeStart;
+  private final int codeEnd;
+
+  /**
+   * Creates a builder for an image.
+   *
+   * @throws IllegalArgumentException if the machine is not x86 or x64.
+   */
+  public ControlFlowBuilder(@NotNull PE pe) {
+    SectionDisassembler sd = new SectionDisassembler(pe);
+    this.decoder = sd.getDecoder();
+    this.imageBase = pe.getOptionalHeader().getImageBase();
+    this.imageSize = pe.getOptionalHeader().getSizeOfImage() & 0xffffffffL;
+    this.declaredStarts = sd.getFunctionStarts();
+
+    SectionTable st = pe.getSectionTable();
+    List<Integer> sections = new ArrayList<Integer>();
+    for (int i = 0; i < st.getNumberOfSections(); i++) {
+      if (SectionDisassembler.getCodeLimit(st, i) > 0)
+        sections.add(i);
+    }
+    int n = sections.size();
+    sectionStarts = new int[n];
+    sectionEnds = new int[n];
+    sectionCode = new ByteBuffer[n];
+    long[] sorted = new long[n];
+    for (int i = 0; i < n; i++) {
+      sorted[i] = (long) st.getHeader(sections.get(i)).getVirtualAddress() << 32 | sections.get(i);
+    }
+    Arrays.sort(sorted);
+    for (int i = 0; i < n; i++) {
+      int index = (int) sorted[i];
+      int limit = SectionDisassembler.getCodeLimit(st, index);
+      sectionStarts[i] = st.getHeader(index).getVirtualAddress();
+      sectionEnds[i] = sectionStarts[i] + limit;
+      sectionCode[i] = ByteBuffer.wrap(st.getSection(index).getData(), 0, limit);
+    }
+    codeStart = n == 0 ? 0 : sectionStarts[0];
+    codeEnd = n == 0 ? 0 : sectionEnds[n - 1];
+  }
+
+  /**
+   * Builds the graph on the calling thread.
+   */
+  @NotNull
+  public ControlFlowGraph build() {
+    return analyze(null);
+  }
+
+  /**
+   * Builds the graph, analyzing functions in parallel.
+   *
+   * @param pool the pool to analyze on.
+   */
+  @NotNull
+  public ControlFlowGraph build(@NotNull ForkJoinPool pool) {
+    return analyze(pool);
+  }
+
+  @NotNull
+  private ControlFlowGraph analyze(@Nullable ForkJoinPool pool) {
+    List<Function> functions = new ArrayList<Function>();
+    int[] known = declaredStarts;
+    int[] round = declaredStarts;
+    while (round.length > 0) {
+      Function[] results = new Function[round.length];
+      analyze(round, known, results, pool);
+
+      int[] found = new int[16];
+      int n = 0;
+      for (Function f : results) {
+        functions.add(f);
+        for (int c : f.callees) {
+          if (Arrays.binarySearch(known, c) < 0 && isCode(c)) {
+            found = grow(found, n);
+            found[n++] = c;
+          }
+        }
+      }
+      round = unique(found, n);
+      known = merge(known, round);
+    }
+    return toGraph(functions);
+  }
+
+  private void analyze(@NotNull int[] round, @NotNull int[] known, @NotNull Function[] results,
+                       @Nullable ForkJoinPool pool) {
+    AtomicInteger next = new AtomicInteger();
+    if (pool == null) {
+      new Worker(round, known, results, next).compute();
+      return;
+    }
+    int workers = Math.min(pool.getParallelism(), round.length);
+    List<Worker> tasks = new ArrayList<Worker>();
+    for (int i = 0; i < workers; i++) {
+      tasks.add(new Worker(round, known, results, next));
+    }
+    ForkJoinTasks.invokeAll(pool, tasks);
+  }
+
+  @NotNull
+  private ControlFlowGraph toGraph(@NotNull List<Function> list) {
+    Function[] fs = list.toArray(new Function[list.size()]);
+    Arrays.sort(fs, new Comparator<Function>() {
+      public int compare(@NotNull Function o1, @NotNull Function o2) {
+        return Integer.compare(o1.entry, o2.entry);
+      }
+    });
+    int blocks = 0;
+    int edges = 0;
+    for (Function f : fs) {
+      blocks += f.starts.length;
+      edges += f.edgeCount;
+    }
+    int[] functions = new int[fs.length];
+    int[] functionBlocks = new int[fs.length + 1];
+    int[] blockStarts = new int[blocks];
+    int[] blockEnds = new int[blocks];
+    byte[] blockFlows = new byte[blocks];
+    int[] blockEdges = new int[blocks + 1];
+    int[] edgeTargets = new int[edges];
+    byte[] edgeKinds = new byte[edges];
+    int b = 0;
+    int e = 0;
+    for (int i = 0; i < fs.length; i++) {
+      Function f = fs[i];
+      functions[i] = f.entry;
+      functionBlocks[i] = b;
+      System.arraycopy(f.starts, 0, blockStarts, b, f.starts.length);
+      System.arraycopy(f.ends, 0, blockEnds, b, f.starts.length);
+      System.arraycopy(f.flows, 0, blockFlows, b, f.starts.length);
+      for (int k = 0; k < f.starts.length; k++) {
+        blockEdges[b + k] = e + f.edgeStarts[k];
+      }
+      for (int k = 0; k < f.edgeCount; k++) {
+        edgeTargets[e + k] = b + f.edgeTargets[k];
+      }
+      System.arraycopy(f.edgeKinds, 0, edgeKinds, e, f.edgeCount);
+      b += f.starts.length;
+      e += f.edgeCount;
+    }
+    functionBlocks[fs.length] = b;
+    blockEdges[blocks] = e;
+    return new ControlFlowGraph(functions, functionBlocks, blockStarts, blockEnds, blockFlows, blockEdges,
+            edgeTargets, edgeKinds);
+  }
+
+  private int findSection(int rva) {
+    for (int i = 0; i < sectionStarts.length; i++) {
+      if (rva >= sectionStarts[i] && rva < sectionEnds[i])
+        return i;
+    }
+    return -1;
+  }
+
+  private boolean isCode(int rva) {
+    return findSection(rva) != -1;
+  }
+
+  private int toRVA(long address) {
+    long rva = address - imageBase;
+    return rva >= 0 && rva < imageSize ? (int) rva : -1;
+  }
+
+  @NotNull
+  private static int[] unique(@NotNull int[] a, int n) {
+    Arrays.sort(a, 0, n);
+    int m = 0;
+    for (int i = 0; i < n; i++) {
+      if (m == 0 || a[i] != a[m - 1])
+        a[m++] = a[i];
+    }
+    return Arrays.copyOf(a, m);
+  }
+
+  @NotNull
+  private static int[] merge(@NotNull int[] a, @NotNull int[] b) {
+    int[] r = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, r, a.length, b.length);
+    Arrays.sort(r);
+    return r;
+  }
+
+  @NotNull
+  private static int[] grow(@NotNull int[] a, int n) {
+    return n < a.length ? a : Arrays.copyOf(a, a.length * 2);
+  }
+
+  /**
+   * The blocks and edges of one function, with edge targets as indexes into
+   * its own blocks.
+   */
+  private static class Function {
+    int entry;
+    int[] starts;
+    int[] ends;
+    byte[] flows;
+    int[] edgeStarts;
+    int edgeCount;
+    int[] edgeTargets;
+    byte[] edgeKinds;
+    int[] callees;
+  }
+
+  private class Worker extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final int[] round;
+    private final int[] known;
+    private final Function[] results;
+    private final AtomicInteger next;
+    private final DecodedInstruction ins = new DecodedInstruction();
+
+    // Instruction starts visited by the current function, from codeStart
+    private final long[] visited = new long[(codeEnd - codeStart + 63) >>> 6];
+
+    // The instructions of the current function, in the order decoded
+    private int count;
+    private int[] rvas = new int[256];
+    private int[] ends = new int[256];
+    private byte[] flows = new byte[256];
+    private int[] targets = new int[256];
+
+    private int[] work = new int[64];
+    private int[] leaders = new int[64];
+    private int[] callees = new int[64];
+
+    public Worker(int[] round, int[] known, Function[] results, AtomicInteger next) {
+      this.round = round;
+      this.known = known;
+      this.results = results;
+      this.next = next;
+    }
+
+    protected void compute() {
+      int i;
+      while ((i = next.getAndIncrement()) < round.length) {
+        results[i] = analyze(round[i]);
+      }
+    }
+
+    @NotNull
+    private Function analyze(int entry) {
+      count = 0;
+      int workCount = 0;
+      int leaderCount = 0;
+      int calleeCount = 0;
+      work[workCount++] = entry;
+      leaders[leaderCount++] = entry;
+      while (workCount > 0) {
+        int rva = work[--workCount];
+        int s;
+        while ((s = findSection(rva)) != -1) {
+          if (isVisited(rva)) {
+            // Joins code already decoded, which starts a block
+            leaders = grow(leaders, leaderCount);
+            leaders[leaderCount++] = rva;
+            break;
+          }
+          setVisited(rva);
+          int offset = rva - sectionStarts[s];
+          int len = decoder.decode(sectionCode[s], offset, imageBase + rva, ins);
+          int flow = ins.isValid() ? ins.getFlow() : Mnemonic.FLOW_HALT;
+          int target = ins.isValid() && ins.getRelativeOperand() != -1 ? toRVA(ins.getTarget()) : -1;
+          add(rva, rva + len, flow, target);
+          rva += len;
+          switch (flow) {
+            case Mnemonic.FLOW_NONE:
+              continue;
+            case Mnemonic.FLOW_CALL:
+              if (target != -1) {
+                callees = grow(callees, calleeCount);
+                callees[calleeCount++] = target;
+              }
+              continue;
+            case Mnemonic.FLOW_CONDITIONAL:
+              if (target != -1) {
+                work = grow(work, workCount);
+                work[workCount++] = target;
+                leaders = grow(leaders, leaderCount);
+                leaders[leaderCount++] = target;
+              }
+              leaders = grow(leaders, leaderCount);
+              leaders[leaderCount++] = rva;
+              continue;
+            case Mnemonic.FLOW_JUMP:
+              if (target == -1)
+                break;
+              // A jump to another known function is a tail call
+              if (target != entry && Arrays.binarySearch(known, target) >= 0) {
+                callees = grow(callees, calleeCount);
+                callees[calleeCount++] = target;
+              } else {
+                work = grow(work, workCount);
+                work[workCount++] = target;
+                leaders = grow(leaders, leaderCount);
+                leaders[leaderCount++] = target;
+              }
+              break;
+          }
+          break;
+        }
+      }
+
+      Function f = toFunction(entry, unique(leaders, leaderCount));
+      f.callees = unique(callees, calleeCount);
+      for (int i = 0; i < count; i++) {
+        clearVisited(rvas[i]);
+      }
+      return f;
+    }
+
+    @NotNull
+    private Function toFunction(int entry, @NotNull int[] leaders) {
+      // Sort the instructions by RVA, keeping their decode index
+      long[] order = new long[count];
+      for (int i = 0; i < count; i++) {
+        order[i] = (long) rvas[i] << 32 | i;
+      }
+      Arrays.sort(order);
+
+      int[] starts = new int[count];
+      int[] blockEnds = new int[count];
+      byte[] blockFlows = new byte[count];
+      int[] last = new int[count];
+      int n = 0;
+      boolean split = true;
+      for (long o : order) {
+        int i = (int) o;
+        int rva = rvas[i];
+        if (split || rva != blockEnds[n - 1] || Arrays.binarySearch(leaders, rva) >= 0) {
+          starts[n++] = rva;
+        }
+        blockEnds[n - 1] = ends[i];
+        last[n - 1] = i;
+        split = flows[i] != Mnemonic.FLOW_NONE && flows[i] != Mnemonic.FLOW_CALL;
+      }
+
+      Function f = new Function();
+      f.entry = entry;
+      f.starts = Arrays.copyOf(starts, n);
+      f.ends = Arrays.copyOf(blockEnds, n);
+      f.flows = new byte[n];
+      f.edgeStarts = new int[n];
+      f.edgeTargets = new int[n * 2];
+      f.edgeKinds = new byte[n * 2];
+      int e = 0;
+      for (int b = 0; b < n; b++) {
+        int i = last[b];
+        int flow = flows[i];
+        f.flows[b] = (byte) flow;
+        f.edgeStarts[b] = e;
+        switch (flow) {
+          case Mnemonic.FLOW_CONDITIONAL:
+            e = addEdge(f, e, targets[i], ControlFlowGraph.EDGE_TAKEN);
+            e = addEdge(f, e, ends[i], ControlFlowGraph.EDGE_NOT_TAKEN);
+            break;
+          case Mnemonic.FLOW_JUMP:
+            e = addEdge(f, e, targets[i], ControlFlowGraph.EDGE_JUMP);
+            break;
+          case Mnemonic.FLOW_NONE:
+          case Mnemonic.FLOW_CALL:
+            e = addEdge(f, e, ends[i], ControlFlowGraph.EDGE_FALLTHROUGH);
+            break;
+        }
+      }
+      f.edgeCount = e;
+      return f;
+    }
+
+    private int addEdge(@NotNull Function f, int e, int rva, int kind) {
+      int target = rva == -1 ? -1 : Arrays.binarySearch(f.starts, rva);
+      if (target < 0)
+        return e;
+      f.edgeTargets[e] = target;
+      f.edgeKinds[e] = (byte) kind;
+      return e + 1;
+    }
+
+    private void add(int rva, int end, int flow, int target) {
+      if (count == rvas.length) {
+        int n = count * 2;
+        rvas = Arrays.copyOf(rvas, n);
+        ends = Arrays.copyOf(ends, n);
+        flows = Arrays.copyOf(flows, n);
+        targets = Arrays.copyOf(targets, n);
+      }
+      rvas[count] = rva;
+      ends[count] = end;
+      flows[count] = (byte) flow;
+      targets[count] = target;
+      count++;
+    }
+
+    private boolean isVisited(int rva) {
+      int bit = rva - codeStart;
+      return (visited[bit >>> 6] & 1L << bit) != 0;
+    }
+
+    private void setVisited(int rva) {
+      int bit = rva - codeStart;
+      visited[bit >>> 6] |= 1L << bit;
+    }
+
+    private void clearVisited(int rva) {
+      int bit = rva - codeStart;
+      visited[bit >>> 6] &= ~(1L << bit);
+    }
+  }
+}
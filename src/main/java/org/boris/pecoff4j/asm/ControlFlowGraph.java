@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.asm;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * The functions, basic blocks and edges of an image, as built by
+ * ControlFlowBuilder.
+ * <p>
+ * Everything is held in int arrays. Functions are sorted by entry RVA and
+ * own a contiguous, non-empty range of blocks, sorted by start RVA, with the
+ * entry block not necessarily first. Each block owns a contiguous range of edges whose
+ * targets are block indexes within the same function. Code shared by two
+ * functions appears as blocks in both.
+ */
+public class ControlFlowGraph {
+  public static final int EDGE_FALLTHROUGH = 0;
+  public static final int EDGE_JUMP = 1;
+  public static final int EDGE_TAKEN = 2;
+  public static final int EDGE_NOT_TAKEN = 3;
+
+  private final int[] functions;
+  private final int[] functionBlocks;
+  private final int[] blockStarts;
+  private final int[] blockEnds;
+  private final byte[] blockFlows;
+  private final int[] blockEdges;
+  private final int[] edgeTargets;
+  private final byte[] edgeKinds;
+
+  ControlFlowGraph(@NotNull int[] functions, @NotNull int[] functionBlocks, @NotNull int[] blockStarts,
+                   @NotNull int[] blockEnds, @NotNull byte[] blockFlows, @NotNull int[] blockEdges,
+                   @NotNull int[] edgeTargets, @NotNull byte[] edgeKinds) {
+    this.functions = functions;
+    this.functionBlocks = functionBlocks;
+    this.blockStarts = blockStarts;
+    this.blockEnds = blockEnds;
+    this.blockFlows = blockFlows;
+    this.blockEdges = blockEdges;
+    this.edgeTargets = edgeTargets;
+    this.edgeKinds = edgeKinds;
+  }
+
+  public int getFunctionCount() {
+    return functions.length;
+  }
+
+  /**
+   * Gets the entry RVA of a function.
+   */
+  public int getFunction(int f) {
+    return functions[f];
+  }
+
+  /**
+   * Gets the index of the function with an entry RVA, or -1.
+   */
+  public int indexOfFunction(int rva) {
+    int i = Arrays.binarySearch(functions, rva);
+    return i < 0 ? -1 : i;
+  }
+
+  /**
+   * Gets the index of the first block of a function.
+   */
+  public int getFirstBlock(int f) {
+    return functionBlocks[f];
+  }
+
+  /**
+   * Gets the index after the last block of a function.
+   */
+  public int getLastBlock(int f) {
+    return functionBlocks[f + 1];
+  }
+
+  /**
+   * Gets the index of the entry block of a function.
+   */
+  public int getEntryBlock(int f) {
+    return indexOfBlock(f, functions[f]);
+  }
+
+  /**
+   * Gets the index of the block of a function that starts at an RVA, or -1.
+   */
+  public int indexOfBlock(int f, int rva) {
+    int i = Arrays.binarySearch(blockStarts, functionBlocks[f], functionBlocks[f + 1], rva);
+    return i < 0 ? -1 : i;
+  }
+
+  /**
+   * Gets the function that owns a block.
+   */
+  public int getFunctionOf(int block) {
+    int i = Arrays.binarySearch(functionBlocks, block);
+    return i < 0 ? -i - 2 : i;
+  }
+
+  public int getBlockCount() {
+    return blockStarts.length;
+  }
+
+  public int getBlockStart(int b) {
+    return blockStarts[b];
+  }
+
+  /**
+   * Gets the RVA after the last instruction of a block.
+   */
+  public int getBlockEnd(int b) {
+    return blockEnds[b];
+  }
+
+  /**
+   * Gets how the last instruction of a block affects control flow, one of
+   * the Mnemonic.FLOW constants. A block that ends with FLOW_NONE or
+   * FLOW_CALL falls through into the next block; a block that ends with an
+   * instruction that did not decode has FLOW_HALT.
+   */
+  public int getBlockFlow(int b) {
+    return blockFlows[b];
+  }
+
+  /**
+   * Gets the index of the first edge out of a block.
+   */
+  public int getFirstEdge(int b) {
+    return blockEdges[b];
+  }
+
+  /**
+   * Gets the index after the last edge out of a block.
+   */
+  public int getLastEdge(int b) {
+    return blockEdges[b + 1];
+  }
+
+  public int getEdgeCount() {
+    return edgeTargets.length;
+  }
+
+  /**
+   * Gets the block an edge leads to.
+   */
+  public int getEdgeTarget(int e) {
+    return edgeTargets[e];
+  }
+
+  /**
+   * Gets the kind of an edge, one of the EDGE constants.
+   */
+  public int getEdgeKind(int e) {
+    return edgeKinds[e];
+  }
+}
@@ -0,0 +1,306 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.asm;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * An instruction decoded by X86Decoder. The decoder overwrites the same
+ * object for each instruction, so a sweep over a section allocates nothing;
+ * copy out anything that needs to outlive the next decode.
+ * <p>
+ * An instruction has up to four operands. Register operands hold a Register
+ * id. An instruction has at most one ModRM memory operand, described by the
+ * base, index, scale and displacement; string instructions address memory
+ * through rSI and rDI instead.
+ */
+public class DecodedInstruction implements Instruction {
+  public static final int PREFIX_LOCK = 0x01;
+  public static final int PREFIX_REP = 0x02;
+  public static final int PREFIX_REPNE = 0x04;
+  public static final int PREFIX_OPERAND_SIZE = 0x08;
+  public static final int PREFIX_ADDRESS_SIZE = 0x10;
+  public static final int PREFIX_SEGMENT = 0x20;
+  public static final int PREFIX_REX = 0x40;
+  public static final int PREFIX_VEX = 0x80;
+
+  public static final int OPERAND_NONE = 0;
+  public static final int OPERAND_REGISTER = 1;
+  public static final int OPERAND_MEMORY = 2;
+  public static final int OPERAND_IMMEDIATE = 3;
+  public static final int OPERAND_RELATIVE = 4;
+  public static final int OPERAND_FAR_POINTER = 5;
+  public static final int OPERAND_STRING = 6;
+
+  public static final int MAX_LENGTH = 15;
+  public static final int MAX_OPERANDS = 4;
+
+  long address;
+  int length;
+  final byte[] code = new byte[MAX_LENGTH];
+  int prefixes;
+  int rex;
+  int vectorSize;
+  int mandatoryPrefix;
+  int segment;
+  int opcode;
+  int mnemonic;
+  int modrm;
+  int sib;
+  int operandSize;
+  int addressSize;
+
+  int operandCount;
+  final int[] kinds = new int[MAX_OPERANDS];
+  final int[] sizes = new int[MAX_OPERANDS];
+  final int[] registers = new int[MAX_OPERANDS];
+
+  int base;
+  int index;
+  int scale;
+  long displacement;
+  long immediate;
+  int immediate2;
+
+  void reset(long address) {
+    this.address = address;
+    length = 0;
+    prefixes = 0;
+    rex = 0;
+    vectorSize = 0;
+    mandatoryPrefix = 0;
+    segment = Register.NONE;
+    opcode = 0;
+    mnemonic = Mnemonic.INVALID;
+    modrm = -1;
+    sib = -1;
+    operandCount = 0;
+    base = Register.NONE;
+    index = Register.NONE;
+    scale = 1;
+    displacement = 0;
+    immediate = 0;
+    immediate2 = 0;
+  }
+
+  public long getAddress() {
+    return address;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  public int size() {
+    return length;
+  }
+
+  public byte[] toCode() {
+    byte[] b = new byte[length];
+    System.arraycopy(code, 0, b, 0, length);
+    return b;
+  }
+
+  public int getByte(int i) {
+    return code[i] & 0xff;
+  }
+
+  public boolean isValid() {
+    return mnemonic != Mnemonic.INVALID;
+  }
+
+  /**
+   * Gets the prefixes as a mask of the PREFIX constants.
+   */
+  public int getPrefixes() {
+    return prefixes;
+  }
+
+  /**
+   * Gets the REX prefix byte, or 0 if there is none.
+   */
+  public int getRex() {
+    return rex;
+  }
+
+  /**
+   * Gets the vector length in bytes of a VEX encoded instruction, 16 or 32,
+   * or 0 if the instruction is not VEX encoded.
+   */
+  public int getVectorSize() {
+    return vectorSize;
+  }
+
+  /**
+   * Gets the 66, F2 or F3 prefix that selected the instruction, or 0. For a
+   * VEX encoded instruction this is the prefix that VEX.pp stands for.
+   */
+  public int getMandatoryPrefix() {
+    return mandatoryPrefix;
+  }
+
+  /**
+   * Gets the segment override register, or Register.NONE.
+   */
+  public int getSegment() {
+    return segment;
+  }
+
+  /**
+   * Gets the opcode, with any escape bytes: 0x8b, 0x0f84 or 0x0f3a0f.
+   */
+  public int getOpcode() {
+    return opcode;
+  }
+
+  public int getMnemonic() {
+    return mnemonic;
+  }
+
+  @NotNull
+  public String getMnemonicName() {
+    return Mnemonic.getName(mnemonic);
+  }
+
+  /**
+   * Gets how the instruction affects control flow, one of the
+   * Mnemonic.FLOW constants.
+   */
+  public int getFlow() {
+    return Mnemonic.getFlow(mnemonic);
+  }
+
+  public int getModRM() {
+    return modrm;
+  }
+
+  public int getSIB() {
+    return sib;
+  }
+
+  /**
+   * Gets the operand size in bytes.
+   */
+  public int getOperandSize() {
+    return operandSize;
+  }
+
+  /**
+   * Gets the address size in bytes.
+   */
+  public int getAddressSize() {
+    return addressSize;
+  }
+
+  public int getOperandCount() {
+    return operandCount;
+  }
+
+  /**
+   * Gets the kind of an operand, one of the OPERAND constants.
+   */
+  public int getOperandKind(int i) {
+    return kinds[i];
+  }
+
+  /**
+   * Gets the size of an operand in bytes, or 0 if it has no size.
+   */
+  public int getOperandSize(int i) {
+    return sizes[i];
+  }
+
+  /**
+   * Gets the register of a register operand, the address register of a
+   * string operand, or which immediate an immediate operand uses (0 for
+   * getImmediate, 1 for getImmediate2).
+   */
+  public int getOperandRegister(int i) {
+    return registers[i];
+  }
+
+  public int getBase() {
+    return base;
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public int getScale() {
+    return scale;
+  }
+
+  public long getDisplacement() {
+    return displacement;
+  }
+
+  /**
+   * Gets the first immediate, or the offset of a relative or far operand.
+   */
+  public long getImmediate() {
+    return immediate;
+  }
+
+  /**
+   * Gets the second immediate of enter, or the selector of a far pointer.
+   */
+  public int getImmediate2() {
+    return immediate2;
+  }
+
+  /**
+   * Gets the index of the relative operand, or -1 if there is none.
+   */
+  public int getRelativeOperand() {
+    for (int i = 0; i < operandCount; i++) {
+      if (kinds[i] == OPERAND_RELATIVE)
+        return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Gets the destination of a relative branch. A 16 bit operand size
+   * truncates the instruction pointer to 16 bits.
+   */
+  public long getTarget() {
+    return mask(address + length + immediate, operandSize == 2 ? 2 : addressSize);
+  }
+
+  /**
+   * Gets the address a memory operand refers to when it does not depend on
+   * registers: an absolute or a RIP-relative address. Returns -1 otherwise.
+   */
+  public long getMemoryAddress() {
+    if (base == Register.RIP || base == Register.EIP)
+      return mask(address + length + displacement, addressSize);
+    for (int i = 0; i < operandCount; i++) {
+      if (kinds[i] == OPERAND_MEMORY)
+        return base == Register.NONE && index == Register.NONE ? mask(displacement, addressSize) : -1;
+    }
+    return -1;
+  }
+
+  @NotNull
+  public String toIntelAssembly() {
+    StringBuilder sb = new StringBuilder();
+    AssemblyFormatter.appendInstruction(sb, this, AssemblyFormatter.SYNTAX_INTEL, null);
+    return sb.toString();
+  }
+
+  public String toString() {
+    return toIntelAssembly();
+  }
+
+  static long mask(long value, int size) {
+    return size >= 8 || size <= 0 ? value : value & ((1L << (size * 8)) - 1);
+  }
+}
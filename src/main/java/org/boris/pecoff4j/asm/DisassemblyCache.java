@@ -0,0 +1,262 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.asm;
+
+import org.boris.pecoff4j.SectionData;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of decoded sections, keyed by the SHA-256 digest of the section
+ * data. The same system DLLs recur across a corpus, so their sections only
+ * need to be decoded once. Set it on a SectionDisassembler to use it.
+ * <p>
+ * Streams are held in memory in least recently used order, up to a maximum
+ * number of encoded bytes. If a directory is given, streams are also written
+ * to it, one file per key, and memory mapped to read them back, so they
+ * survive the process and can be shared between processes. The files are
+ * only a cache: one that cannot be read counts as a miss, and one that
+ * cannot be written is left out.
+ * <p>
+ * The streams returned are shared and must not be modified. The methods
+ * are thread safe.
+ */
+public class DisassemblyCache {
+  private static final int MAGIC = 0x52545349; // "ISTR"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 12;
+
+  private final long maxSize;
+  private final File directory;
+  private final LinkedHashMap<String, InstructionStream> entries =
+          new LinkedHashMap<String, InstructionStream>(16, 0.75f, true);
+  private long size;
+  private int hits;
+  private int diskHits;
+  private int misses;
+
+  /**
+   * Creates a cache held in memory only.
+   *
+   * @param maxSize the most bytes of encoded instructions to hold.
+   */
+  public DisassemblyCache(long maxSize) {
+    this(maxSize, null);
+  }
+
+  /**
+   * @param maxSize   the most bytes of encoded instructions to hold in
+   *                  memory.
+   * @param directory the directory for the disk tier, or null for none.
+   */
+  public DisassemblyCache(long maxSize, @Nullable File directory) {
+    if (maxSize < 0)
+      throw new IllegalArgumentException("Invalid cache size: " + maxSize);
+    if (directory != null && !directory.isDirectory())
+      throw new IllegalArgumentException("Not a directory: " + directory);
+    this.maxSize = maxSize;
+    this.directory = directory;
+  }
+
+  /**
+   * Gets the key for the data of a section.
+   */
+  @NotNull
+  public static String getKey(@NotNull SectionData sd) {
+    byte[] data = sd.getData();
+    return getKey(data, data == null ? 0 : data.length, new long[0]);
+  }
+
+  /**
+   * Gets the key for the first bytes of some data, together with the values
+   * the decoded stream depends on.
+   */
+  @NotNull
+  static String getKey(@Nullable byte[] data, int length, @NotNull long[] context) {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 digest not available", e);
+    }
+    byte[] b = new byte[8];
+    for (long value : context) {
+      for (int i = 0; i < 8; i++) {
+        b[i] = (byte) (value >>> (i * 8));
+      }
+      md.update(b);
+    }
+    if (data != null)
+      md.update(data, 0, length);
+    StringBuilder sb = new StringBuilder(64);
+    for (byte d : md.digest()) {
+      AssemblyFormatter.appendByte(sb, d & 0xff);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Gets a stream from memory, or else from the disk tier, or null.
+   */
+  @Nullable
+  public InstructionStream get(@NotNull String key) {
+    synchronized (this) {
+      InstructionStream s = entries.get(key);
+      if (s != null) {
+        hits++;
+        return s;
+      }
+    }
+    InstructionStream s = directory == null ? null : read(getFile(key));
+    synchronized (this) {
+      if (s == null) {
+        misses++;
+      } else {
+        diskHits++;
+        store(key, s);
+      }
+    }
+    return s;
+  }
+
+  /**
+   * Adds a stream to the cache, writing it to the disk tier if there is one.
+   */
+  public void put(@NotNull String key, @NotNull InstructionStream s) {
+    synchronized (this) {
+      store(key, s);
+    }
+    if (directory != null)
+      write(getFile(key), s);
+  }
+
+  /**
+   * Removes all the streams held in memory. The disk tier is kept.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    size = 0;
+  }
+
+  /**
+   * @return the bytes of encoded instructions held in memory.
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  @Nullable
+  public File getDirectory() {
+    return directory;
+  }
+
+  public synchronized int getHitCount() {
+    return hits;
+  }
+
+  public synchronized int getDiskHitCount() {
+    return diskHits;
+  }
+
+  public synchronized int getMissCount() {
+    return misses;
+  }
+
+  private void store(@NotNull String key, @NotNull InstructionStream s) {
+    long n = (long) s.size() * InstructionStream.ENTRY_SIZE;
+    if (n > maxSize)
+      return;
+    InstructionStream old = entries.put(key, s);
+    if (old != null)
+      size -= (long) old.size() * InstructionStream.ENTRY_SIZE;
+    size += n;
+    Iterator<Map.Entry<String, InstructionStream>> i = entries.entrySet().iterator();
+    while (size > maxSize) {
+      size -= (long) i.next().getValue().size() * InstructionStream.ENTRY_SIZE;
+      i.remove();
+    }
+  }
+
+  @NotNull
+  private File getFile(@NotNull String key) {
+    return new File(directory, key + ".dis");
+  }
+
+  @Nullable
+  private static InstructionStream read(@NotNull File f) {
+    if (!f.isFile())
+      return null;
+    try {
+      RandomAccessFile raf = new RandomAccessFile(f, "r");
+      try {
+        long length = raf.length();
+        if (length < HEADER_SIZE || length > Integer.MAX_VALUE)
+          return null;
+        MappedByteBuffer bb = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        int count = bb.getInt(8);
+        if (bb.getInt(0) != MAGIC || bb.getInt(4) != VERSION || count < 0 ||
+                HEADER_SIZE + (long) count * InstructionStream.ENTRY_SIZE != length)
+          return null;
+        bb.position(HEADER_SIZE);
+        return InstructionStream.read(bb, count);
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static void write(@NotNull File f, @NotNull InstructionStream s) {
+    long length = HEADER_SIZE + (long) s.size() * InstructionStream.ENTRY_SIZE;
+    if (f.isFile() && f.length() == length || length > Integer.MAX_VALUE)
+      return;
+    // Written to a temporary file and renamed, so readers never see part of it
+    File temp = null;
+    try {
+      temp = File.createTempFile(f.getName(), ".tmp", f.getParentFile());
+      RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+      try {
+        MappedByteBuffer bb = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(MAGIC);
+        bb.putInt(VERSION);
+        bb.putInt(s.size());
+        s.write(bb);
+      } finally {
+        raf.close();
+      }
+      if (temp.renameTo(f))
+        temp = null;
+    } catch (IOException e) {
+      // The entry is kept in memory only
+    } finally {
+      if (temp != null)
+        temp.delete();
+    }
+  }
+}
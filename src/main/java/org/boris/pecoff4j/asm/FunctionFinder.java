@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.asm;
+
+import org.boris.pecoff4j.PE;
+import org.boris.pecoff4j.SectionTable;
+import org.boris.pecoff4j.util.ForkJoinTasks;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds the functions of an image, including 32-bit images that have no
+ * .pdata to declare them.
+ * <p>
+ * The function starts the image declares (the entry point, the exports and
+ * the x64 runtime functions) are combined with the targets of direct calls
+ * and with the standard frame prologue, push ebp / mov ebp, esp, where it
+ * follows padding or a return. The calls are taken from the instructions of
+ * a SectionDisassembler, so its cache is used, and the prologues are searched
+ * for in each executable section, in parallel for the pool method, with the
+ * results merged into one sorted array.
+ */
+public class FunctionFinder {
+  private static final byte[] PUSH_EBP = new PUSH(5).toCode();
+  private static final byte[] MOV_EBP_ESP = new MOV(new ModRM(0xec)).toCode();
+
+  private final PE pe;
+  private final SectionDisassembler disassembler;
+  private final boolean x64;
+  private final int[] declared;
+
+  /**
+   * Creates a finder for an image.
+   *
+   * @throws IllegalArgumentException if the machine is not x86 or x64.
+   */
+  public FunctionFinder(@NotNull PE pe) {
+    this(new SectionDisassembler(pe));
+  }
+
+  /**
+   * Creates a finder that takes the instructions of an image from a
+   * disassembler, and so from its cache if it has one.
+   */
+  public FunctionFinder(@NotNull SectionDisassembler disassembler) {
+    this.pe = disassembler.getPE();
+    this.disassembler = disassembler;
+    this.x64 = disassembler.getDecoder().getMode() == X86Decoder.MODE_64;
+    this.declared = disassembler.getFunctionStarts();
+  }
+
+  /**
+   * Finds the function starts on the calling thread.
+   *
+   * @return the RVAs of the functions, sorted and without duplicates.
+   */
+  @NotNull
+  public int[] find() {
+    SectionTable st = pe.getSectionTable();
+    List<int[]> found = new ArrayList<int[]>();
+    found.add(getCallTargets(disassembler.disassemble()));
+    for (int i = 0; i < st.getNumberOfSections(); i++) {
+      if (SectionDisassembler.getCodeLimit(st, i) > 0)
+        found.add(searchPrologues(i));
+    }
+    return merge(found);
+  }
+
+  /**
+   * Finds the function starts, disassembling and searching the sections in
+   * parallel.
+   *
+   * @param pool the pool to search on.
+   * @return the RVAs of the functions, sorted and without duplicates.
+   */
+  @NotNull
+  public int[] find(@NotNull ForkJoinPool pool) {
+    SectionTable st = pe.getSectionTable();
+    List<int[]> found = new ArrayList<int[]>();
+    found.add(getCallTargets(disassembler.disassemble(pool)));
+    List<SectionTask> tasks = new ArrayList<SectionTask>();
+    for (int i = 0; i < st.getNumberOfSections(); i++) {
+      if (SectionDisassembler.getCodeLimit(st, i) > 0)
+        tasks.add(new SectionTask(i));
+    }
+    ForkJoinTasks.invokeAll(pool, tasks);
+    for (SectionTask t : tasks) {
+      found.add(t.result);
+    }
+    return merge(found);
+  }
+
+  /**
+   * Gets the index of the function that contains an RVA, that is the last
+   * function that starts at or before it, or -1 if it is before the first.
+   *
+   * @param functions function starts as returned by find.
+   */
+  public static int indexOfFunction(@NotNull int[] functions, int rva) {
+    int lo = 0;
+    int hi = functions.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (functions[mid] <= rva)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo - 1;
+  }
+
+  @NotNull
+  private int[] merge(@NotNull List<int[]> found) {
+    int n = declared.length;
+    for (int[] a : found) {
+      n += a.length;
+    }
+    int[] all = Arrays.copyOf(declared, n);
+    n = declared.length;
+    for (int[] a : found) {
+      System.arraycopy(a, 0, all, n, a.length);
+      n += a.length;
+    }
+    Arrays.sort(all);
+    int m = 0;
+    for (int i = 0; i < all.length; i++) {
+      if (m == 0 || all[i] != all[m - 1])
+        all[m++] = all[i];
+    }
+    return Arrays.copyOf(all, m);
+  }
+
+  /**
+   * Gets the executable targets of the direct calls in a stream, unsorted.
+   */
+  @NotNull
+  private int[] getCallTargets(@NotNull InstructionStream s) {
+    SectionTable st = pe.getSectionTable();
+    int[] found = new int[64];
+    int n = 0;
+    for (int i = 0; i < s.size(); i++) {
+      int rva = s.getReference(i);
+      if (rva != -1 && Mnemonic.getFlow(s.getMnemonic(i)) == Mnemonic.FLOW_CALL &&
+              InstructionStream.getOperandKind(s.getOperands(i), 0) == DecodedInstruction.OPERAND_RELATIVE &&
+              SectionDisassembler.isExecutable(st, rva)) {
+        found = grow(found, n);
+        found[n++] = rva;
+      }
+    }
+    return Arrays.copyOf(found, n);
+  }
+
+  /**
+   * Gets the prologues found in a section, in order.
+   */
+  @NotNull
+  private int[] searchPrologues(int section) {
+    SectionTable st = pe.getSectionTable();
+    byte[] data = st.getSection(section).getData();
+    int limit = SectionDisassembler.getCodeLimit(st, section);
+    int va = st.getHeader(section).getVirtualAddress();
+    int[] found = new int[64];
+    int n = 0;
+    for (int p = 0; p + PUSH_EBP.length + MOV_EBP_ESP.length <= limit; p++) {
+      int start = getPrologue(data, p, limit);
+      if (start != -1) {
+        found = grow(found, n);
+        found[n++] = va + start;
+      }
+    }
+    return Arrays.copyOf(found, n);
+  }
+
+  /**
+   * Gets the start of a function whose push ebp is at an offset, or -1. In
+   * 32-bit code the mov edi, edi hot patch point before it is included, and
+   * the prologue must be at the start of the section or follow padding or a
+   * return, with or without an immediate.
+   */
+  private int getPrologue(@NotNull byte[] data, int p, int limit) {
+    if (data[p] != PUSH_EBP[0])
+      return -1;
+    int q = p + 1;
+    if (x64) {
+      if (data[q] != 0x48 || q + 2 >= limit)
+        return -1;
+      q++;
+    }
+    int op = data[q] & 0xff;
+    int modrm = data[q + 1] & 0xff;
+    // mov ebp, esp has a load and a store encoding
+    if (!(op == (MOV_EBP_ESP[0] & 0xff) && modrm == (MOV_EBP_ESP[1] & 0xff)) && !(op == 0x89 && modrm == 0xe5))
+      return -1;
+
+    int start = p;
+    if (!x64 && p >= 2 && (data[p - 2] & 0xff) == 0x8b && (data[p - 1] & 0xff) == 0xff)
+      start = p - 2;
+    if (start == 0)
+      return start;
+    // ret imm16
+    if (start >= 3 && (data[start - 3] & 0xff) == 0xc2)
+      return start;
+    switch (data[start - 1] & 0xff) {
+      case 0xcc:
+      case 0x90:
+      case 0xc3:
+        return start;
+    }
+    return -1;
+  }
+
+  @NotNull
+  private static int[] grow(@NotNull int[] a, int n) {
+    return n < a.length ? a : Arrays.copyOf(a, a.length * 2);
+  }
+
+  private class SectionTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final int section;
+    private int[] result;
+
+    public SectionTask(int section) {
+      this.section = section;
+    }
+
+    protected void compute() {
+      result = searchPrologues(section);
+    }
+  }
+}
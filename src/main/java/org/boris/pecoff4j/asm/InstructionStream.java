@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.asm;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A sequence of decoded instructions held as parallel arrays, one entry per
+ * instruction in ascending RVA order. This keeps a whole image of
+ * instructions in a few arrays instead of an object per instruction.
+ * <p>
+ * The operands of an instruction are packed into a long, 16 bits per operand
+ * with the first operand in the low bits. Each operand holds its kind, one of
+ * the DecodedInstruction.OPERAND constants, its size and its register: the
+ * register of a register or string operand, the base register of a memory
+ * operand, or which immediate an immediate operand uses. Use the static
+ * getOperand methods to unpack them.
+ */
+public class InstructionStream {
+  // Bytes written per instruction: rva, length, mnemonic, opcode, operands and reference
+  static final int ENTRY_SIZE = 4 + 1 + 2 + 4 + 8 + 4;
+
+  private static final int[] SIZES = {0, 1, 2, 4, 6, 8, 10, 16, 32};
+  private static final byte[] SIZE_CODES = new byte[33];
+
+  static {
+    for (int i = 0; i < SIZES.length; i++) {
+      SIZE_CODES[SIZES[i]] = (byte) i;
+    }
+  }
+
+  private int count;
+  private int[] rvas;
+  private byte[] lengths;
+  private short[] mnemonics;
+  private int[] opcodes;
+  private long[] operands;
+  private int[] references;
+
+  public InstructionStream() {
+    this(16);
+  }
+
+  public InstructionStream(int capacity) {
+    capacity = Math.max(capacity, 1);
+    rvas = new int[capacity];
+    lengths = new byte[capacity];
+    mnemonics = new short[capacity];
+    opcodes = new int[capacity];
+    operands = new long[capacity];
+    references = new int[capacity];
+  }
+
+  /**
+   * Appends an instruction.
+   *
+   * @param ins       the instruction.
+   * @param rva       the RVA of the instruction.
+   * @param reference the RVA the instruction refers to, or -1.
+   */
+  public void add(@NotNull DecodedInstruction ins, int rva, int reference) {
+    if (count == rvas.length)
+      grow(count + 1);
+    rvas[count] = rva;
+    lengths[count] = (byte) ins.getLength();
+    mnemonics[count] = (short) ins.getMnemonic();
+    opcodes[count] = ins.getOpcode();
+    operands[count] = pack(ins);
+    references[count] = reference;
+    count++;
+  }
+
+  /**
+   * Appends all the instructions of another stream.
+   */
+  public void addAll(@NotNull InstructionStream s) {
+    if (count + s.count > rvas.length)
+      grow(count + s.count);
+    System.arraycopy(s.rvas, 0, rvas, count, s.count);
+    System.arraycopy(s.lengths, 0, lengths, count, s.count);
+    System.arraycopy(s.mnemonics, 0, mnemonics, count, s.count);
+    System.arraycopy(s.opcodes, 0, opcodes, count, s.count);
+    System.arraycopy(s.operands, 0, operands, count, s.count);
+    System.arraycopy(s.references, 0, references, count, s.count);
+    count += s.count;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  public int getRVA(int i) {
+    return rvas[i];
+  }
+
+  public int getLength(int i) {
+    return lengths[i];
+  }
+
+  /**
+   * Gets the Mnemonic id of an instruction, Mnemonic.INVALID for bytes that
+   * did not decode.
+   */
+  public int getMnemonic(int i) {
+    return mnemonics[i];
+  }
+
+  /**
+   * Gets the opcode of an instruction, as returned by
+   * DecodedInstruction.getOpcode.
+   */
+  public int getOpcode(int i) {
+    return opcodes[i];
+  }
+
+  /**
+   * Gets the packed operands of an instruction.
+   */
+  public long getOperands(int i) {
+    return operands[i];
+  }
+
+  /**
+   * Gets the RVA an instruction refers to: the target of a relative branch,
+   * else an absolute or RIP-relative memory address, else an immediate that
+   * is an address inside the image. Returns -1 if there is none.
+   */
+  public int getReference(int i) {
+    return references[i];
+  }
+
+  /**
+   * Gets the index of the instruction that starts at an RVA, or -1.
+   */
+  public int indexOf(int rva) {
+    int i = Arrays.binarySearch(rvas, 0, count, rva);
+    return i < 0 ? -1 : i;
+  }
+
+  /**
+   * Gets the index of the instruction that covers an RVA, or -1.
+   */
+  public int indexAt(int rva) {
+    int i = Arrays.binarySearch(rvas, 0, count, rva);
+    if (i >= 0)
+      return i;
+    i = -i - 2;
+    return i >= 0 && rva - rvas[i] < lengths[i] ? i : -1;
+  }
+
+  /**
+   * Writes the instructions to a buffer, ENTRY_SIZE bytes each, as one array
+   * after another.
+   */
+  void write(@NotNull ByteBuffer bb) {
+    int p = bb.position();
+    bb.asIntBuffer().put(rvas, 0, count);
+    p += count * 4;
+    bb.position(p);
+    bb.put(lengths, 0, count);
+    p += count;
+    bb.asShortBuffer().put(mnemonics, 0, count);
+    p += count * 2;
+    bb.position(p);
+    bb.asIntBuffer().put(opcodes, 0, count);
+    p += count * 4;
+    bb.position(p);
+    bb.asLongBuffer().put(operands, 0, count);
+    p += count * 8;
+    bb.position(p);
+    bb.asIntBuffer().put(references, 0, count);
+    bb.position(p + count * 4);
+  }
+
+  /**
+   * Reads instructions written by write.
+   */
+  @NotNull
+  static InstructionStream read(@NotNull ByteBuffer bb, int count) {
+    InstructionStream s = new InstructionStream(count);
+    int p = bb.position();
+    bb.asIntBuffer().get(s.rvas, 0, count);
+    p += count * 4;
+    bb.position(p);
+    bb.get(s.lengths, 0, count);
+    p += count;
+    bb.asShortBuffer().get(s.mnemonics, 0, count);
+    p += count * 2;
+    bb.position(p);
+    bb.asIntBuffer().get(s.opcodes, 0, count);
+    p += count * 4;
+    bb.position(p);
+    bb.asLongBuffer().get(s.operands, 0, count);
+    p += count * 8;
+    bb.position(p);
+    bb.asIntBuffer().get(s.references, 0, count);
+    bb.position(p + count * 4);
+    s.count = count;
+    return s;
+  }
+
+  public static int getOperandCount(long operands) {
+    int n = 0;
+    while (n < DecodedInstruction.MAX_OPERANDS && getOperandKind(operands, n) != DecodedInstruction.OPERAND_NONE)
+      n++;
+    return n;
+  }
+
+  public static int getOperandKind(long operands, int i) {
+    return (int) (operands >>> (i * 16 + 13)) & 7;
+  }
+
+  public static int getOperandSize(long operands, int i) {
+    return SIZES[(int) (operands >>> (i * 16 + 9)) & 15];
+  }
+
+  public static int getOperandRegister(long operands, int i) {
+    return (int) (operands >>> (i * 16)) & 0x1ff;
+  }
+
+  private static long pack(@NotNull DecodedInstruction ins) {
+    long p = 0;
+    for (int i = 0; i < ins.getOperandCount(); i++) {
+      int kind = ins.getOperandKind(i);
+      int reg = kind == DecodedInstruction.OPERAND_MEMORY ? ins.getBase() : ins.getOperandRegister(i);
+      int size = ins.getOperandSize(i);
+      long op = kind << 13 | (size < SIZE_CODES.length ? SIZE_CODES[size] : 0) << 9 | reg & 0x1ff;
+      p |= op << (i * 16);
+    }
+    return p;
+  }
+
+  private void grow(int min) {
+    int n = Math.max(min, rvas.length + (rvas.length >> 1));
+    rvas = Arrays.copyOf(rvas, n);
+    lengths = Arrays.copyOf(lengths, n);
+    mnemonics = Arrays.copyOf(mnemonics, n);
+    opcodes = Arrays.copyOf(opcodes, n);
+    operands = Arrays.copyOf(operands, n);
+    references = Arrays.copyOf(references, n);
+  }
+}
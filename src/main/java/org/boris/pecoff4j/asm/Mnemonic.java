@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.asm;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mnemonic ids. Every mnemonic in the opcode maps has a small id, assigned in
+ * the order the maps list them, so decoded instructions can be counted and
+ * compared without strings.
+ */
+public class Mnemonic {
+  public static final int FLOW_NONE = 0;
+  public static final int FLOW_JUMP = 1;
+  public static final int FLOW_CONDITIONAL = 2;
+  public static final int FLOW_CALL = 3;
+  public static final int FLOW_RETURN = 4;
+  public static final int FLOW_HALT = 5;
+
+  private static final List<String> NAMES = new ArrayList<String>();
+  private static final Map<String, Integer> IDS = new HashMap<String, Integer>();
+
+  static {
+    add("(bad)");
+    addAll(OpcodeMap.ONE_BYTE);
+    addAll(OpcodeMap.TWO_BYTE);
+    addAll(OpcodeMap.THREE_BYTE_38);
+    addAll(OpcodeMap.THREE_BYTE_3A);
+    for (String[] group : OpcodeMap.GROUPS) {
+      for (int i = 1; i < group.length; i++) {
+        for (String s : group[i].split(";")) {
+          addEntry(s);
+        }
+      }
+    }
+    addAll(OpcodeMap.AMD_3DNOW);
+    addAll(OpcodeMap.ONE_BYTE_64);
+    addAll(OpcodeMap.VEX_0F);
+    addAll(OpcodeMap.VEX_0F38);
+    addAll(OpcodeMap.VEX_0F3A);
+  }
+
+  public static final int INVALID = 0;
+  public static final int CALL = get("call");
+  public static final int CALLF = get("callf");
+  public static final int JMP = get("jmp");
+  public static final int JMPF = get("jmpf");
+  public static final int RET = get("ret");
+  public static final int RETF = get("retf");
+  public static final int PUSH = get("push");
+  public static final int POP = get("pop");
+  public static final int MOV = get("mov");
+  public static final int LEA = get("lea");
+  public static final int NOP = get("nop");
+  public static final int INT3 = get("int3");
+  public static final int HLT = get("hlt");
+
+  private static final byte[] FLOW = new byte[NAMES.size()];
+
+  static {
+    String[] conditional = {"jo", "jno", "jb", "jae", "je", "jne", "jbe", "ja", "js", "jns", "jp", "jnp", "jl",
+            "jge", "jle", "jg", "jcxz", "jecxz", "jrcxz", "loop", "loope", "loopne", "xbegin"};
+    for (String s : conditional) {
+      FLOW[get(s)] = FLOW_CONDITIONAL;
+    }
+    FLOW[JMP] = FLOW[JMPF] = FLOW_JUMP;
+    FLOW[CALL] = FLOW[CALLF] = FLOW_CALL;
+    for (String s : new String[]{"ret", "retf", "iret", "iretd", "iretq", "sysret", "sysexit"}) {
+      FLOW[get(s)] = FLOW_RETURN;
+    }
+    for (String s : new String[]{"hlt", "ud0", "ud1", "ud2", "int3"}) {
+      FLOW[get(s)] = FLOW_HALT;
+    }
+  }
+
+  /**
+   * Gets the id of a mnemonic.
+   *
+   * @throws IllegalArgumentException if the mnemonic is unknown.
+   */
+  public static int get(@NotNull String name) {
+    Integer id = IDS.get(name);
+    if (id == null)
+      throw new IllegalArgumentException("Unknown mnemonic: " + name);
+    return id;
+  }
+
+  @NotNull
+  public static String getName(int id) {
+    return NAMES.get(id);
+  }
+
+  /**
+   * Gets the number of mnemonics, which is one more than the largest id.
+   */
+  public static int getCount() {
+    return NAMES.size();
+  }
+
+  /**
+   * Gets how a mnemonic affects control flow, one of the FLOW constants.
+   */
+  public static int getFlow(int id) {
+    return FLOW[id];
+  }
+
+  private static void addAll(@NotNull String[] entries) {
+    for (String s : entries) {
+      int eq = s.indexOf('=');
+      addEntry(eq == -1 || eq > 2 ? s : s.substring(eq + 1));
+    }
+  }
+
+  private static void addEntry(@NotNull String entry) {
+    for (String s : entry.split("[|~^@]")) {
+      s = s.trim();
+      if (s.length() == 0 || s.charAt(0) == '#')
+        continue;
+      if (s.charAt(0) == '*' || s.charAt(0) == '+')
+        s = s.substring(1);
+      int sp = s.indexOf(' ');
+      for (String name : (sp == -1 ? s : s.substring(0, sp)).split(":")) {
+        add(name);
+      }
+    }
+  }
+
+  private static void add(@NotNull String name) {
+    if (!IDS.containsKey(name)) {
+      IDS.put(name, NAMES.size());
+      NAMES.add(name);
+    }
+  }
+}
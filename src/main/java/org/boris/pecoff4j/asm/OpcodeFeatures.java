@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.asm;
+
+import org.boris.pecoff4j.PE;
+import org.boris.pecoff4j.SectionTable;
+import org.boris.pecoff4j.util.ForkJoinTasks;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opcode statistics of an executable section for classifiers: a histogram
+ * of the Mnemonic ids, and counts of the mnemonic 2-grams and 3-grams hashed
+ * into a fixed number of buckets.
+ * <p>
+ * The sections are swept in the chunks SectionDisassembler uses, and the
+ * n-grams start again at each chunk, that is at each declared function. The
+ * parallel method runs one worker per pool thread, each taking chunks in
+ * turn and counting into its own arrays, and adds the workers' counts
+ * together at the end, so the result is the same as the sequential one.
+ * Nothing is allocated per instruction.
+ */
+public class OpcodeFeatures {
+  public static final int DEFAULT_BUCKETS = 4096;
+
+  private final int[] histogram;
+  private final int[] bigrams;
+  private final int[] trigrams;
+  private int instructions;
+
+  private OpcodeFeatures(int buckets) {
+    this.histogram = new int[Mnemonic.getCount()];
+    this.bigrams = new int[buckets];
+    this.trigrams = new int[buckets];
+  }
+
+  /**
+   * Extracts the features of each executable section on the calling thread.
+   *
+   * @return the features, indexed by section, null for sections that are
+   * not executable.
+   */
+  @NotNull
+  public static OpcodeFeatures[] extract(@NotNull PE pe) {
+    return extract(pe, DEFAULT_BUCKETS, null);
+  }
+
+  /**
+   * Extracts the features of each executable section.
+   *
+   * @param buckets the number of n-gram buckets, a power of two.
+   * @param pool    the pool to decode on, or null for the calling thread.
+   * @return the features, indexed by section, null for sections that are
+   * not executable.
+   */
+  @NotNull
+  public static OpcodeFeatures[] extract(@NotNull PE pe, int buckets, @Nullable ForkJoinPool pool) {
+    if (buckets <= 0 || (buckets & (buckets - 1)) != 0)
+      throw new IllegalArgumentException("Buckets must be a power of two: " + buckets);
+    SectionDisassembler sd = new SectionDisassembler(pe);
+    int[] chunks = sd.getChunks();
+    AtomicInteger next = new AtomicInteger();
+    List<Worker> workers = new ArrayList<Worker>();
+    if (pool == null) {
+      Worker w = new Worker(pe, sd.getDecoder(), chunks, buckets, next);
+      w.compute();
+      workers.add(w);
+    } else {
+      int n = Math.max(1, Math.min(pool.getParallelism(), chunks.length / 3));
+      for (int i = 0; i < n; i++) {
+        workers.add(new Worker(pe, sd.getDecoder(), chunks, buckets, next));
+      }
+      ForkJoinTasks.invokeAll(pool, workers);
+    }
+
+    SectionTable st = pe.getSectionTable();
+    OpcodeFeatures[] features = new OpcodeFeatures[st.getNumberOfSections()];
+    for (int i = 0; i < features.length; i++) {
+      if (SectionDisassembler.getCodeLimit(st, i) > 0)
+        features[i] = new OpcodeFeatures(buckets);
+    }
+    for (Worker w : workers) {
+      for (int i = 0; i < features.length; i++) {
+        if (w.features[i] != null)
+          features[i].add(w.features[i]);
+      }
+    }
+    return features;
+  }
+
+  /**
+   * @return the number of instructions, including bytes that did not
+   * decode, which count as Mnemonic.INVALID.
+   */
+  public int getInstructionCount() {
+    return instructions;
+  }
+
+  /**
+   * @return the count of each mnemonic, indexed by Mnemonic id.
+   */
+  @NotNull
+  public int[] getHistogram() {
+    return histogram;
+  }
+
+  /**
+   * @return the counts of the hashed mnemonic pairs.
+   */
+  @NotNull
+  public int[] getBigrams() {
+    return bigrams;
+  }
+
+  /**
+   * @return the counts of the hashed mnemonic triples.
+   */
+  @NotNull
+  public int[] getTrigrams() {
+    return trigrams;
+  }
+
+  /**
+   * Gets the histogram, 2-grams and 3-grams as one vector of frequencies,
+   * each count divided by the number of instructions.
+   */
+  @NotNull
+  public double[] toVector() {
+    double[] v = new double[histogram.length + bigrams.length + trigrams.length];
+    if (instructions == 0)
+      return v;
+    int n = 0;
+    for (int c : histogram) {
+      v[n++] = (double) c / instructions;
+    }
+    for (int c : bigrams) {
+      v[n++] = (double) c / instructions;
+    }
+    for (int c : trigrams) {
+      v[n++] = (double) c / instructions;
+    }
+    return v;
+  }
+
+  /**
+   * Adds the counts of other features with the same number of buckets.
+   */
+  public void add(@NotNull OpcodeFeatures f) {
+    if (f.bigrams.length != bigrams.length)
+      throw new IllegalArgumentException("Features have different buckets");
+    for (int i = 0; i < histogram.length; i++) {
+      histogram[i] += f.histogram[i];
+    }
+    for (int i = 0; i < bigrams.length; i++) {
+      bigrams[i] += f.bigrams[i];
+      trigrams[i] += f.trigrams[i];
+    }
+    instructions += f.instructions;
+  }
+
+  private void count(int m, int m1, int m2) {
+    instructions++;
+    histogram[m]++;
+    if (m1 == -1)
+      return;
+    bigrams[hash(m1 * 0x9e3779b1 + m) & (bigrams.length - 1)]++;
+    if (m2 == -1)
+      return;
+    trigrams[hash((m2 * 0x9e3779b1 + m1) * 0x9e3779b1 + m) & (trigrams.length - 1)]++;
+  }
+
+  private static int hash(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    return h;
+  }
+
+  private static class Worker extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final SectionTable st;
+    private final long imageBase;
+    private final X86Decoder decoder;
+    private final int[] chunks;
+    private final int buckets;
+    private final AtomicInteger next;
+    private final DecodedInstruction ins = new DecodedInstruction();
+
+    // This worker's counts, indexed by section
+    private final OpcodeFeatures[] features;
+
+    public Worker(PE pe, X86Decoder decoder, int[] chunks, int buckets, AtomicInteger next) {
+      this.st = pe.getSectionTable();
+      this.imageBase = pe.getOptionalHeader().getImageBase();
+      this.decoder = decoder;
+      this.chunks = chunks;
+      this.buckets = buckets;
+      this.next = next;
+      this.features = new OpcodeFeatures[st.getNumberOfSections()];
+    }
+
+    protected void compute() {
+      int section = -1;
+      ByteBuffer code = null;
+      int c;
+      while ((c = next.getAndIncrement() * 3) < chunks.length) {
+        if (chunks[c] != section) {
+          section = chunks[c];
+          code = ByteBuffer.wrap(st.getSection(section).getData(), 0, SectionDisassembler.getCodeLimit(st, section));
+          if (features[section] == null)
+            features[section] = new OpcodeFeatures(buckets);
+        }
+        OpcodeFeatures f = features[section];
+        long base = imageBase + st.getHeader(section).getVirtualAddress();
+        int m1 = -1;
+        int m2 = -1;
+        int end = chunks[c + 2];
+        int len;
+        for (int p = chunks[c + 1]; p < end; p += len) {
+          len = decoder.decode(code, p, base + p, ins);
+          int m = ins.getMnemonic();
+          f.count(m, m1, m2);
+          m2 = m1;
+          m1 = m;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,460 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.asm;
+
+/**
+ * The x86 opcode maps, written in the notation of the Intel manuals so they
+ * can be checked against them. X86Decoder compiles these into lookup tables.
+ * <p>
+ * An entry is a mnemonic followed by its operands and flags, for example
+ * "add Ev,Gv". Mnemonics that depend on the operand size are written as
+ * alternatives for 16, 32 and 64 bit operands, such as "cwd:cdq:cqo". An
+ * entry can also be:
+ * <ul>
+ * <li>"a|b|c|d" - chosen by the mandatory prefix: none, 66, F3 or F2.</li>
+ * <li>"mem~reg" - chosen by whether ModRM addresses memory or a register.</li>
+ * <li>"#name ops" - a group chosen by the reg field of ModRM, which inherits
+ * the operands and flags.</li>
+ * <li>"w0^w1" - chosen by VEX.W.</li>
+ * <li>"l0@l1" - chosen by VEX.L.</li>
+ * <li>"*name" - an MMX instruction with an SSE form: "name Pq,Qq|name Vx,Wx".</li>
+ * <li>"+name" - a VEX instruction with a 66 prefix: "|name Vx,Hx,Wx".</li>
+ * <li>"" - an invalid opcode.</li>
+ * </ul>
+ * A group with 8 rows where any row contains ';' is indexed by the whole
+ * ModRM byte instead: each such row lists the 8 entries for r/m 0 to 7.
+ * <p>
+ * Operands are an addressing method and a type. Methods: E (ModRM r/m),
+ * G (ModRM reg), M (r/m, memory only), R (r/m, register only), I (immediate),
+ * J (relative offset), O (absolute offset), A (far pointer), S (segment
+ * register), C (control register), D (debug register), P/Q/N (MMX as G/E/R),
+ * V/W/U (XMM as G/E/R), F (st(i) in r/m), Z (register in the opcode), X and Y
+ * (DS:rSI and ES:rDI), H (VEX.vvvv XMM), B (VEX.vvvv general register) and
+ * L (XMM in imm8[7:4]). Types: b, w, d, q, dq, qq, t (10 bytes), v (operand
+ * size), z (16 or 32 bits), y (32 or 64 bits), x (dq or qq by VEX.L),
+ * h, f and e (a half, a quarter and an eighth of x, in an XMM register),
+ * p (far pointer), s (descriptor), a (bound pair), r (32 or 64 bits by
+ * mode) and bs (byte sign-extended to the operand size). Registers are written as AL,
+ * DX and so on; rAX is the accumulator of the operand size and zAX of the
+ * z type. Types of the form "Rd/Mw" differ for registers and memory.
+ * <p>
+ * Flags: !i64 (invalid in 64-bit mode), !o64 (64-bit mode only), !d64
+ * (defaults to 64-bit operands in 64-bit mode), !f64 (always 64-bit operands
+ * in 64-bit mode), !as (the mnemonic depends on the address size rather than
+ * the operand size), !rm (r/m is a register whatever the mod), !3dnow
+ * (the mnemonic is in the immediate byte) and !vsibd and !vsibq (the SIB
+ * index is a vector of dwords or qwords).
+ */
+class OpcodeMap {
+  static final String[] ONE_BYTE = {
+          // 00
+          "add Eb,Gb", "add Ev,Gv", "add Gb,Eb", "add Gv,Ev", "add AL,Ib", "add rAX,Iz", "push ES !i64", "pop ES !i64",
+          "or Eb,Gb", "or Ev,Gv", "or Gb,Eb", "or Gv,Ev", "or AL,Ib", "or rAX,Iz", "push CS !i64", "",
+          // 10
+          "adc Eb,Gb", "adc Ev,Gv", "adc Gb,Eb", "adc Gv,Ev", "adc AL,Ib", "adc rAX,Iz", "push SS !i64", "pop SS !i64",
+          "sbb Eb,Gb", "sbb Ev,Gv", "sbb Gb,Eb", "sbb Gv,Ev", "sbb AL,Ib", "sbb rAX,Iz", "push DS !i64", "pop DS !i64",
+          // 20
+          "and Eb,Gb", "and Ev,Gv", "and Gb,Eb", "and Gv,Ev", "and AL,Ib", "and rAX,Iz", "", "daa !i64",
+          "sub Eb,Gb", "sub Ev,Gv", "sub Gb,Eb", "sub Gv,Ev", "sub AL,Ib", "sub rAX,Iz", "", "das !i64",
+          // 30
+          "xor Eb,Gb", "xor Ev,Gv", "xor Gb,Eb", "xor Gv,Ev", "xor AL,Ib", "xor rAX,Iz", "", "aaa !i64",
+          "cmp Eb,Gb", "cmp Ev,Gv", "cmp Gb,Eb", "cmp Gv,Ev", "cmp AL,Ib", "cmp rAX,Iz", "", "aas !i64",
+          // 40
+          "inc Zv !i64", "inc Zv !i64", "inc Zv !i64", "inc Zv !i64", "inc Zv !i64", "inc Zv !i64", "inc Zv !i64", "inc Zv !i64",
+          "dec Zv !i64", "dec Zv !i64", "dec Zv !i64", "dec Zv !i64", "dec Zv !i64", "dec Zv !i64", "dec Zv !i64", "dec Zv !i64",
+          // 50
+          "push Zv !d64", "push Zv !d64", "push Zv !d64", "push Zv !d64", "push Zv !d64", "push Zv !d64", "push Zv !d64", "push Zv !d64",
+          "pop Zv !d64", "pop Zv !d64", "pop Zv !d64", "pop Zv !d64", "pop Zv !d64", "pop Zv !d64", "pop Zv !d64", "pop Zv !d64",
+          // 60
+          "pusha:pushad !i64", "popa:popad !i64", "bound Gv,Ma !i64", "arpl Ew,Gw", "", "", "", "",
+          "push Iz !d64", "imul Gv,Ev,Iz", "push Ibs !d64", "imul Gv,Ev,Ibs", "insb Yb,DX", "insw:insd Yz,DX", "outsb DX,Xb", "outsw:outsd DX,Xz",
+          // 70
+          "jo Jb !f64", "jno Jb !f64", "jb Jb !f64", "jae Jb !f64", "je Jb !f64", "jne Jb !f64", "jbe Jb !f64", "ja Jb !f64",
+          "js Jb !f64", "jns Jb !f64", "jp Jb !f64", "jnp Jb !f64", "jl Jb !f64", "jge Jb !f64", "jle Jb !f64", "jg Jb !f64",
+          // 80
+          "#grp1 Eb,Ib", "#grp1 Ev,Iz", "#grp1 Eb,Ib !i64", "#grp1 Ev,Ibs", "test Eb,Gb", "test Ev,Gv", "xchg Eb,Gb", "xchg Ev,Gv",
+          "mov Eb,Gb", "mov Ev,Gv", "mov Gb,Eb", "mov Gv,Ev", "mov Rv/Mw,Sw", "lea Gv,M", "mov Sw,Ew", "#grp1a",
+          // 90
+          "nop||pause", "xchg Zv,rAX", "xchg Zv,rAX", "xchg Zv,rAX", "xchg Zv,rAX", "xchg Zv,rAX", "xchg Zv,rAX", "xchg Zv,rAX",
+          "cbw:cwde:cdqe", "cwd:cdq:cqo", "callf Ap !i64", "fwait", "pushf:pushfd:pushfq !d64", "popf:popfd:popfq !d64", "sahf", "lahf",
+          // A0
+          "mov AL,Ob", "mov rAX,Ov", "mov Ob,AL", "mov Ov,rAX", "movsb Yb,Xb", "movsw:movsd:movsq Yv,Xv", "cmpsb Xb,Yb", "cmpsw:cmpsd:cmpsq Xv,Yv",
+          "test AL,Ib", "test rAX,Iz", "stosb Yb,AL", "stosw:stosd:stosq Yv,rAX", "lodsb AL,Xb", "lodsw:lodsd:lodsq rAX,Xv", "scasb AL,Yb", "scasw:scasd:scasq rAX,Yv",
+          // B0
+          "mov Zb,Ib", "mov Zb,Ib", "mov Zb,Ib", "mov Zb,Ib", "mov Zb,Ib", "mov Zb,Ib", "mov Zb,Ib", "mov Zb,Ib",
+          "mov Zv,Iv", "mov Zv,Iv", "mov Zv,Iv", "mov Zv,Iv", "mov Zv,Iv", "mov Zv,Iv", "mov Zv,Iv", "mov Zv,Iv",
+          // C0
+          "#grp2 Eb,Ib", "#grp2 Ev,Ib", "ret Iw !f64", "ret !f64", "les Gz,Mp !i64", "lds Gz,Mp !i64", "#grp11b~#grp11br", "#grp11v~#grp11vr",
+          "enter Iw,Ib !d64", "leave !d64", "retf Iw", "retf", "int3", "int Ib", "into !i64", "iret:iretd:iretq",
+          // D0
+          "#grp2 Eb,1", "#grp2 Ev,1", "#grp2 Eb,CL", "#grp2 Ev,CL", "aam Ib !i64", "aad Ib !i64", "", "xlatb",
+          "#fpud8m~#fpud8r", "#fpud9m~#fpud9r", "#fpudam~#fpudar", "#fpudbm~#fpudbr",
+          "#fpudcm~#fpudcr", "#fpuddm~#fpuddr", "#fpudem~#fpuder", "#fpudfm~#fpudfr",
+          // E0
+          "loopne Jb !f64", "loope Jb !f64", "loop Jb !f64", "jcxz:jecxz:jrcxz Jb !f64 !as", "in AL,Ib", "in zAX,Ib", "out Ib,AL", "out Ib,zAX",
+          "call Jz !f64", "jmp Jz !f64", "jmpf Ap !i64", "jmp Jb !f64", "in AL,DX", "in zAX,DX", "out DX,AL", "out DX,zAX",
+          // F0
+          "", "int1", "", "", "hlt", "cmc", "#grp3b", "#grp3v",
+          "clc", "stc", "cli", "sti", "cld", "std", "#grp4", "#grp5",
+  };
+
+  static final String[] TWO_BYTE = {
+          // 0F 00
+          "#grp6", "#grp7m~#grp7r", "lar Gv,Rv/Mw", "lsl Gv,Rv/Mw", "", "syscall", "clts", "sysret",
+          "invd", "wbinvd", "", "ud2", "", "#prefetch~nop Ev", "femms", "3dnow Pq,Qq !3dnow",
+          // 0F 10
+          "movups Vx,Wx|movupd Vx,Wx|movss Vdq,Wd|movsd Vdq,Wq",
+          "movups Wx,Vx|movupd Wx,Vx|movss Wd,Vdq|movsd Wq,Vdq",
+          "movlps Vdq,Mq~movhlps Vdq,Udq|movlpd Vdq,Mq|movsldup Vx,Wx|movddup Vx,Wq",
+          "movlps Mq,Vdq|movlpd Mq,Vdq",
+          "unpcklps Vx,Wx|unpcklpd Vx,Wx", "unpckhps Vx,Wx|unpckhpd Vx,Wx",
+          "movhps Vdq,Mq~movlhps Vdq,Udq|movhpd Vdq,Mq|movshdup Vx,Wx",
+          "movhps Mq,Vdq|movhpd Mq,Vdq",
+          "#grp16~nop Ev", "nop Ev", "nop Ev", "nop Ev", "nop Ev", "nop Ev", "nop Ev||nop Ev~#endbr", "nop Ev",
+          // 0F 20
+          "mov Rr,Cr !rm !f64", "mov Rr,Dr !rm !f64", "mov Cr,Rr !rm !f64", "mov Dr,Rr !rm !f64", "", "", "", "",
+          "movaps Vx,Wx|movapd Vx,Wx", "movaps Wx,Vx|movapd Wx,Vx",
+          "cvtpi2ps Vdq,Qq|cvtpi2pd Vdq,Qq|cvtsi2ss Vdq,Ey|cvtsi2sd Vdq,Ey",
+          "movntps Mx,Vx|movntpd Mx,Vx",
+          "cvttps2pi Pq,Wq|cvttpd2pi Pq,Wdq|cvttss2si Gy,Wd|cvttsd2si Gy,Wq",
+          "cvtps2pi Pq,Wq|cvtpd2pi Pq,Wdq|cvtss2si Gy,Wd|cvtsd2si Gy,Wq",
+          "ucomiss Vdq,Wd|ucomisd Vdq,Wq", "comiss Vdq,Wd|comisd Vdq,Wq",
+          // 0F 30
+          "wrmsr", "rdtsc", "rdmsr", "rdpmc", "sysenter", "sysexit", "", "getsec",
+          "", "", "", "", "", "", "", "",
+          // 0F 40
+          "cmovo Gv,Ev", "cmovno Gv,Ev", "cmovb Gv,Ev", "cmovae Gv,Ev", "cmove Gv,Ev", "cmovne Gv,Ev", "cmovbe Gv,Ev", "cmova Gv,Ev",
+          "cmovs Gv,Ev", "cmovns Gv,Ev", "cmovp Gv,Ev", "cmovnp Gv,Ev", "cmovl Gv,Ev", "cmovge Gv,Ev", "cmovle Gv,Ev", "cmovg Gv,Ev",
+          // 0F 50
+          "movmskps Gd,Ux|movmskpd Gd,Ux",
+          "sqrtps Vx,Wx|sqrtpd Vx,Wx|sqrtss Vdq,Wd|sqrtsd Vdq,Wq",
+          "rsqrtps Vx,Wx||rsqrtss Vdq,Wd", "rcpps Vx,Wx||rcpss Vdq,Wd",
+          "andps Vx,Wx|andpd Vx,Wx", "andnps Vx,Wx|andnpd Vx,Wx", "orps Vx,Wx|orpd Vx,Wx", "xorps Vx,Wx|xorpd Vx,Wx",
+          "addps Vx,Wx|addpd Vx,Wx|addss Vdq,Wd|addsd Vdq,Wq",
+          "mulps Vx,Wx|mulpd Vx,Wx|mulss Vdq,Wd|mulsd Vdq,Wq",
+          "cvtps2pd Vdq,Wq|cvtpd2ps Vdq,Wx|cvtss2sd Vdq,Wd|cvtsd2ss Vdq,Wq",
+          "cvtdq2ps Vx,Wx|cvtps2dq Vx,Wx|cvttps2dq Vx,Wx",
+          "subps Vx,Wx|subpd Vx,Wx|subss Vdq,Wd|subsd Vdq,Wq",
+          "minps Vx,Wx|minpd Vx,Wx|minss Vdq,Wd|minsd Vdq,Wq",
+          "divps Vx,Wx|divpd Vx,Wx|divss Vdq,Wd|divsd Vdq,Wq",
+          "maxps Vx,Wx|maxpd Vx,Wx|maxss Vdq,Wd|maxsd Vdq,Wq",
+          // 0F 60
+          "punpcklbw Pq,Qd|punpcklbw Vx,Wx", "punpcklwd Pq,Qd|punpcklwd Vx,Wx", "punpckldq Pq,Qd|punpckldq Vx,Wx",
+          "*packsswb", "*pcmpgtb", "*pcmpgtw", "*pcmpgtd", "*packuswb",
+          "*punpckhbw", "*punpckhwd", "*punpckhdq", "*packssdw", "|punpcklqdq Vx,Wx", "|punpckhqdq Vx,Wx",
+          "movd:movd:movq Pq,Ey|movd:movd:movq Vdq,Ey", "movq Pq,Qq|movdqa Vx,Wx|movdqu Vx,Wx",
+          // 0F 70
+          "pshufw Pq,Qq,Ib|pshufd Vx,Wx,Ib|pshufhw Vx,Wx,Ib|pshuflw Vx,Wx,Ib",
+          "#grp12|#grp12x", "#grp13|#grp13x", "#grp14|#grp14x",
+          "*pcmpeqb", "*pcmpeqw", "*pcmpeqd", "emms",
+          "vmread Ey,Gy !f64", "vmwrite Gy,Ey !f64", "", "",
+          "|haddpd Vx,Wx||haddps Vx,Wx", "|hsubpd Vx,Wx||hsubps Vx,Wx",
+          "movd:movd:movq Ey,Pq|movd:movd:movq Ey,Vdq|movq Vdq,Wq", "movq Qq,Pq|movdqa Wx,Vx|movdqu Wx,Vx",
+          // 0F 80
+          "jo Jz !f64", "jno Jz !f64", "jb Jz !f64", "jae Jz !f64", "je Jz !f64", "jne Jz !f64", "jbe Jz !f64", "ja Jz !f64",
+          "js Jz !f64", "jns Jz !f64", "jp Jz !f64", "jnp Jz !f64", "jl Jz !f64", "jge Jz !f64", "jle Jz !f64", "jg Jz !f64",
+          // 0F 90
+          "seto Eb", "setno Eb", "setb Eb", "setae Eb", "sete Eb", "setne Eb", "setbe Eb", "seta Eb",
+          "sets Eb", "setns Eb", "setp Eb", "setnp Eb", "setl Eb", "setge Eb", "setle Eb", "setg Eb",
+          // 0F A0
+          "push FS !d64", "pop FS !d64", "cpuid", "bt Ev,Gv", "shld Ev,Gv,Ib", "shld Ev,Gv,CL", "", "",
+          "push GS !d64", "pop GS !d64", "rsm", "bts Ev,Gv", "shrd Ev,Gv,Ib", "shrd Ev,Gv,CL",
+          "#grp15m~#grp15r|#grp15m66~|~#grp15f3", "imul Gv,Ev",
+          // 0F B0
+          "cmpxchg Eb,Gb", "cmpxchg Ev,Gv", "lss Gv,Mp", "btr Ev,Gv", "lfs Gv,Mp", "lgs Gv,Mp", "movzx Gv,Eb", "movzx Gv,Ew",
+          "||popcnt Gv,Ev", "ud1 Gv,Ev", "#grp8 Ev,Ib", "btc Ev,Gv", "bsf Gv,Ev||tzcnt Gv,Ev", "bsr Gv,Ev||lzcnt Gv,Ev",
+          "movsx Gv,Eb", "movsx Gv,Ew",
+          // 0F C0
+          "xadd Eb,Gb", "xadd Ev,Gv",
+          "cmpps Vx,Wx,Ib|cmppd Vx,Wx,Ib|cmpss Vdq,Wd,Ib|cmpsd Vdq,Wq,Ib",
+          "movnti My,Gy",
+          "pinsrw Pq,Rd/Mw,Ib|pinsrw Vdq,Rd/Mw,Ib", "pextrw Gd,Nq,Ib|pextrw Gd,Udq,Ib",
+          "shufps Vx,Wx,Ib|shufpd Vx,Wx,Ib", "#grp9m~#grp9r|#grp9m66~|#grp9mf3~#grp9rf3",
+          "bswap Zy", "bswap Zy", "bswap Zy", "bswap Zy", "bswap Zy", "bswap Zy", "bswap Zy", "bswap Zy",
+          // 0F D0
+          "|addsubpd Vx,Wx||addsubps Vx,Wx", "*psrlw", "*psrld", "*psrlq", "*paddq", "*pmullw",
+          "|movq Wq,Vdq|movq2dq Vdq,Nq|movdq2q Pq,Udq", "pmovmskb Gd,Nq|pmovmskb Gd,Ux",
+          "*psubusb", "*psubusw", "*pminub", "*pand", "*paddusb", "*paddusw", "*pmaxub", "*pandn",
+          // 0F E0
+          "*pavgb", "*psraw", "*psrad", "*pavgw", "*pmulhuw", "*pmulhw",
+          "|cvttpd2dq Vdq,Wx|cvtdq2pd Vx,Wq|cvtpd2dq Vdq,Wx", "movntq Mq,Pq|movntdq Mx,Vx",
+          "*psubsb", "*psubsw", "*pminsw", "*por", "*paddsb", "*paddsw", "*pmaxsw", "*pxor",
+          // 0F F0
+          "|||lddqu Vx,Mx", "*psllw", "*pslld", "*psllq", "*pmuludq", "*pmaddwd", "*psadbw", "maskmovq Pq,Nq|maskmovdqu Vdq,Udq",
+          "*psubb", "*psubw", "*psubd", "*psubq", "*paddb", "*paddw", "*paddd", "ud0 Gv,Ev",
+  };
+
+  /**
+   * The 0F 38 map, as opcode=entry.
+   */
+  static final String[] THREE_BYTE_38 = {
+          "00=*pshufb", "01=*phaddw", "02=*phaddd", "03=*phaddsw", "04=*pmaddubsw", "05=*phsubw", "06=*phsubd",
+          "07=*phsubsw", "08=*psignb", "09=*psignw", "0a=*psignd", "0b=*pmulhrsw",
+          "10=|pblendvb Vdq,Wdq", "14=|blendvps Vdq,Wdq", "15=|blendvpd Vdq,Wdq", "17=|ptest Vx,Wx",
+          "1c=*pabsb", "1d=*pabsw", "1e=*pabsd",
+          "20=|pmovsxbw Vdq,Wq", "21=|pmovsxbd Vdq,Wd", "22=|pmovsxbq Vdq,Ww", "23=|pmovsxwd Vdq,Wq",
+          "24=|pmovsxwq Vdq,Wd", "25=|pmovsxdq Vdq,Wq",
+          "28=|pmuldq Vx,Wx", "29=|pcmpeqq Vx,Wx", "2a=|movntdqa Vx,Mx", "2b=|packusdw Vx,Wx",
+          "30=|pmovzxbw Vdq,Wq", "31=|pmovzxbd Vdq,Wd", "32=|pmovzxbq Vdq,Ww", "33=|pmovzxwd Vdq,Wq",
+          "34=|pmovzxwq Vdq,Wd", "35=|pmovzxdq Vdq,Wq", "37=|pcmpgtq Vx,Wx",
+          "38=|pminsb Vx,Wx", "39=|pminsd Vx,Wx", "3a=|pminuw Vx,Wx", "3b=|pminud Vx,Wx",
+          "3c=|pmaxsb Vx,Wx", "3d=|pmaxsd Vx,Wx", "3e=|pmaxuw Vx,Wx", "3f=|pmaxud Vx,Wx",
+          "40=|pmulld Vx,Wx", "41=|phminposuw Vdq,Wdq",
+          "80=|invept Gr,Mdq", "81=|invvpid Gr,Mdq", "82=|invpcid Gr,Mdq",
+          "c8=sha1nexte Vdq,Wdq", "c9=sha1msg1 Vdq,Wdq", "ca=sha1msg2 Vdq,Wdq", "cb=sha256rnds2 Vdq,Wdq",
+          "cc=sha256msg1 Vdq,Wdq", "cd=sha256msg2 Vdq,Wdq",
+          "db=|aesimc Vdq,Wdq", "dc=|aesenc Vdq,Wdq", "dd=|aesenclast Vdq,Wdq", "de=|aesdec Vdq,Wdq",
+          "df=|aesdeclast Vdq,Wdq",
+          "f0=movbe Gv,Mv|||crc32 Gy,Eb", "f1=movbe Mv,Gv|||crc32 Gy,Ev", "f6=|adcx Gy,Ey|adox Gy,Ey",
+  };
+
+  /**
+   * The 0F 3A map, as opcode=entry. All of these take an immediate byte.
+   */
+  static final String[] THREE_BYTE_3A = {
+          "08=|roundps Vx,Wx,Ib", "09=|roundpd Vx,Wx,Ib", "0a=|roundss Vdq,Wd,Ib", "0b=|roundsd Vdq,Wq,Ib",
+          "0c=|blendps Vx,Wx,Ib", "0d=|blendpd Vx,Wx,Ib", "0e=|pblendw Vx,Wx,Ib", "0f=palignr Pq,Qq,Ib|palignr Vx,Wx,Ib",
+          "14=|pextrb Rd/Mb,Vdq,Ib", "15=|pextrw Rd/Mw,Vdq,Ib", "16=|pextrd:pextrd:pextrq Ey,Vdq,Ib",
+          "17=|extractps Ed,Vdq,Ib",
+          "20=|pinsrb Vdq,Rd/Mb,Ib", "21=|insertps Vdq,Udq/Md,Ib", "22=|pinsrd:pinsrd:pinsrq Vdq,Ey,Ib",
+          "40=|dpps Vx,Wx,Ib", "41=|dppd Vdq,Wdq,Ib", "42=|mpsadbw Vx,Wx,Ib", "44=|pclmulqdq Vdq,Wdq,Ib",
+          "60=|pcmpestrm Vdq,Wdq,Ib", "61=|pcmpestri Vdq,Wdq,Ib", "62=|pcmpistrm Vdq,Wdq,Ib",
+          "63=|pcmpistri Vdq,Wdq,Ib",
+          "cc=sha1rnds4 Vdq,Wdq,Ib", "df=|aeskeygenassist Vdq,Wdq,Ib",
+  };
+
+  /**
+   * The one byte opcodes that differ in 64-bit mode, as opcode=entry.
+   */
+  static final String[] ONE_BYTE_64 = {
+          "63=movsxd Gv,Ed",
+  };
+
+  /**
+   * The VEX 0F map, as opcode=entry.
+   */
+  static final String[] VEX_0F = {
+          "10=vmovups Vx,Wx|vmovupd Vx,Wx|vmovss Vdq,Md~vmovss Vdq,Hdq,Udq|vmovsd Vdq,Mq~vmovsd Vdq,Hdq,Udq",
+          "11=vmovups Wx,Vx|vmovupd Wx,Vx|vmovss Md,Vdq~vmovss Udq,Hdq,Vdq|vmovsd Mq,Vdq~vmovsd Udq,Hdq,Vdq",
+          "12=vmovlps Vdq,Hdq,Mq~vmovhlps Vdq,Hdq,Udq|vmovlpd Vdq,Hdq,Mq|vmovsldup Vx,Wx|vmovddup Vx,Wx",
+          "13=vmovlps Mq,Vdq|vmovlpd Mq,Vdq",
+          "14=vunpcklps Vx,Hx,Wx|vunpcklpd Vx,Hx,Wx", "15=vunpckhps Vx,Hx,Wx|vunpckhpd Vx,Hx,Wx",
+          "16=vmovhps Vdq,Hdq,Mq~vmovlhps Vdq,Hdq,Udq|vmovhpd Vdq,Hdq,Mq|vmovshdup Vx,Wx",
+          "17=vmovhps Mq,Vdq|vmovhpd Mq,Vdq",
+          "28=vmovaps Vx,Wx|vmovapd Vx,Wx", "29=vmovaps Wx,Vx|vmovapd Wx,Vx",
+          "2a=||vcvtsi2ss Vdq,Hdq,Ey|vcvtsi2sd Vdq,Hdq,Ey", "2b=vmovntps Mx,Vx|vmovntpd Mx,Vx",
+          "2c=||vcvttss2si Gy,Wd|vcvttsd2si Gy,Wq", "2d=||vcvtss2si Gy,Wd|vcvtsd2si Gy,Wq",
+          "2e=vucomiss Vdq,Wd|vucomisd Vdq,Wq", "2f=vcomiss Vdq,Wd|vcomisd Vdq,Wq",
+          "50=vmovmskps Gd,Ux|vmovmskpd Gd,Ux",
+          "51=vsqrtps Vx,Wx|vsqrtpd Vx,Wx|vsqrtss Vdq,Hdq,Wd|vsqrtsd Vdq,Hdq,Wq",
+          "52=vrsqrtps Vx,Wx||vrsqrtss Vdq,Hdq,Wd", "53=vrcpps Vx,Wx||vrcpss Vdq,Hdq,Wd",
+          "54=vandps Vx,Hx,Wx|vandpd Vx,Hx,Wx", "55=vandnps Vx,Hx,Wx|vandnpd Vx,Hx,Wx",
+          "56=vorps Vx,Hx,Wx|vorpd Vx,Hx,Wx", "57=vxorps Vx,Hx,Wx|vxorpd Vx,Hx,Wx",
+          "58=vaddps Vx,Hx,Wx|vaddpd Vx,Hx,Wx|vaddss Vdq,Hdq,Wd|vaddsd Vdq,Hdq,Wq",
+          "59=vmulps Vx,Hx,Wx|vmulpd Vx,Hx,Wx|vmulss Vdq,Hdq,Wd|vmulsd Vdq,Hdq,Wq",
+          "5a=vcvtps2pd Vx,Wh|vcvtpd2ps Vdq,Wx|vcvtss2sd Vdq,Hdq,Wd|vcvtsd2ss Vdq,Hdq,Wq",
+          "5b=vcvtdq2ps Vx,Wx|vcvtps2dq Vx,Wx|vcvttps2dq Vx,Wx",
+          "5c=vsubps Vx,Hx,Wx|vsubpd Vx,Hx,Wx|vsubss Vdq,Hdq,Wd|vsubsd Vdq,Hdq,Wq",
+          "5d=vminps Vx,Hx,Wx|vminpd Vx,Hx,Wx|vminss Vdq,Hdq,Wd|vminsd Vdq,Hdq,Wq",
+          "5e=vdivps Vx,Hx,Wx|vdivpd Vx,Hx,Wx|vdivss Vdq,Hdq,Wd|vdivsd Vdq,Hdq,Wq",
+          "5f=vmaxps Vx,Hx,Wx|vmaxpd Vx,Hx,Wx|vmaxss Vdq,Hdq,Wd|vmaxsd Vdq,Hdq,Wq",
+          "60=+vpunpcklbw", "61=+vpunpcklwd", "62=+vpunpckldq", "63=+vpacksswb", "64=+vpcmpgtb", "65=+vpcmpgtw",
+          "66=+vpcmpgtd", "67=+vpackuswb", "68=+vpunpckhbw", "69=+vpunpckhwd", "6a=+vpunpckhdq", "6b=+vpackssdw",
+          "6c=+vpunpcklqdq", "6d=+vpunpckhqdq", "6e=|vmovd:vmovd:vmovq Vdq,Ey", "6f=|vmovdqa Vx,Wx|vmovdqu Vx,Wx",
+          "70=|vpshufd Vx,Wx,Ib|vpshufhw Vx,Wx,Ib|vpshuflw Vx,Wx,Ib",
+          "71=|#vgrp12", "72=|#vgrp13", "73=|#vgrp14",
+          "74=+vpcmpeqb", "75=+vpcmpeqw", "76=+vpcmpeqd", "77=vzeroupper@vzeroall",
+          "7c=|vhaddpd Vx,Hx,Wx||vhaddps Vx,Hx,Wx", "7d=|vhsubpd Vx,Hx,Wx||vhsubps Vx,Hx,Wx",
+          "7e=|vmovd:vmovd:vmovq Ey,Vdq|vmovq Vdq,Wq", "7f=|vmovdqa Wx,Vx|vmovdqu Wx,Vx",
+          "ae=#vgrp15",
+          "c2=vcmpps Vx,Hx,Wx,Ib|vcmppd Vx,Hx,Wx,Ib|vcmpss Vdq,Hdq,Wd,Ib|vcmpsd Vdq,Hdq,Wq,Ib",
+          "c4=|vpinsrw Vdq,Hdq,Rd/Mw,Ib", "c5=|vpextrw Gd,Udq,Ib", "c6=vshufps Vx,Hx,Wx,Ib|vshufpd Vx,Hx,Wx,Ib",
+          "d0=|vaddsubpd Vx,Hx,Wx||vaddsubps Vx,Hx,Wx", "d1=|vpsrlw Vx,Hx,Wdq", "d2=|vpsrld Vx,Hx,Wdq",
+          "d3=|vpsrlq Vx,Hx,Wdq", "d4=+vpaddq", "d5=+vpmullw", "d6=|vmovq Wq,Vdq", "d7=|vpmovmskb Gd,Ux",
+          "d8=+vpsubusb", "d9=+vpsubusw", "da=+vpminub", "db=+vpand", "dc=+vpaddusb", "dd=+vpaddusw",
+          "de=+vpmaxub", "df=+vpandn",
+          "e0=+vpavgb", "e1=|vpsraw Vx,Hx,Wdq", "e2=|vpsrad Vx,Hx,Wdq", "e3=+vpavgw", "e4=+vpmulhuw",
+          "e5=+vpmulhw", "e6=|vcvttpd2dq Vdq,Wx|vcvtdq2pd Vx,Wh|vcvtpd2dq Vdq,Wx", "e7=|vmovntdq Mx,Vx",
+          "e8=+vpsubsb", "e9=+vpsubsw", "ea=+vpminsw", "eb=+vpor", "ec=+vpaddsb", "ed=+vpaddsw", "ee=+vpmaxsw",
+          "ef=+vpxor",
+          "f0=|||vlddqu Vx,Mx", "f1=|vpsllw Vx,Hx,Wdq", "f2=|vpslld Vx,Hx,Wdq", "f3=|vpsllq Vx,Hx,Wdq",
+          "f4=+vpmuludq", "f5=+vpmaddwd", "f6=+vpsadbw", "f7=|vmaskmovdqu Vdq,Udq",
+          "f8=+vpsubb", "f9=+vpsubw", "fa=+vpsubd", "fb=+vpsubq", "fc=+vpaddb", "fd=+vpaddw", "fe=+vpaddd",
+  };
+
+  /**
+   * The VEX 0F 38 map, as opcode=entry.
+   */
+  static final String[] VEX_0F38 = {
+          "00=+vpshufb", "01=+vphaddw", "02=+vphaddd", "03=+vphaddsw", "04=+vpmaddubsw", "05=+vphsubw",
+          "06=+vphsubd", "07=+vphsubsw", "08=+vpsignb", "09=+vpsignw", "0a=+vpsignd", "0b=+vpmulhrsw",
+          "0c=+vpermilps", "0d=+vpermilpd", "0e=|vtestps Vx,Wx", "0f=|vtestpd Vx,Wx",
+          "13=|vcvtph2ps Vx,Wh", "16=|vpermps Vqq,Hqq,Wqq", "17=|vptest Vx,Wx",
+          "18=|vbroadcastss Vx,Wd", "19=|vbroadcastsd Vqq,Wq", "1a=|vbroadcastf128 Vqq,Mdq",
+          "1c=|vpabsb Vx,Wx", "1d=|vpabsw Vx,Wx", "1e=|vpabsd Vx,Wx",
+          "20=|vpmovsxbw Vx,Wh", "21=|vpmovsxbd Vx,Wf", "22=|vpmovsxbq Vx,We", "23=|vpmovsxwd Vx,Wh",
+          "24=|vpmovsxwq Vx,Wf", "25=|vpmovsxdq Vx,Wh",
+          "28=+vpmuldq", "29=+vpcmpeqq", "2a=|vmovntdqa Vx,Mx", "2b=+vpackusdw",
+          "2c=|vmaskmovps Vx,Hx,Mx", "2d=|vmaskmovpd Vx,Hx,Mx", "2e=|vmaskmovps Mx,Hx,Vx",
+          "2f=|vmaskmovpd Mx,Hx,Vx",
+          "30=|vpmovzxbw Vx,Wh", "31=|vpmovzxbd Vx,Wf", "32=|vpmovzxbq Vx,We", "33=|vpmovzxwd Vx,Wh",
+          "34=|vpmovzxwq Vx,Wf", "35=|vpmovzxdq Vx,Wh", "36=|vpermd Vqq,Hqq,Wqq", "37=+vpcmpgtq",
+          "38=+vpminsb", "39=+vpminsd", "3a=+vpminuw", "3b=+vpminud", "3c=+vpmaxsb", "3d=+vpmaxsd",
+          "3e=+vpmaxuw", "3f=+vpmaxud",
+          "40=+vpmulld", "41=|vphminposuw Vdq,Wdq",
+          "45=|vpsrlvd Vx,Hx,Wx^vpsrlvq Vx,Hx,Wx", "46=|vpsravd Vx,Hx,Wx",
+          "47=|vpsllvd Vx,Hx,Wx^vpsllvq Vx,Hx,Wx",
+          "58=|vpbroadcastd Vx,Wd", "59=|vpbroadcastq Vx,Wq", "5a=|vbroadcasti128 Vqq,Mdq",
+          "78=|vpbroadcastb Vx,Wb", "79=|vpbroadcastw Vx,Ww",
+          "8c=|vpmaskmovd Vx,Hx,Mx^vpmaskmovq Vx,Hx,Mx", "8e=|vpmaskmovd Mx,Hx,Vx^vpmaskmovq Mx,Hx,Vx",
+          "90=|vpgatherdd Vx,Md,Hx !vsibd^vpgatherdq Vx,Mq,Hx !vsibd",
+          "91=|vpgatherqd Vdq,Md,Hdq !vsibq^vpgatherqq Vx,Mq,Hx !vsibq",
+          "92=|vgatherdps Vx,Md,Hx !vsibd^vgatherdpd Vx,Mq,Hx !vsibd",
+          "93=|vgatherqps Vdq,Md,Hdq !vsibq^vgatherqpd Vx,Mq,Hx !vsibq",
+          "96=|vfmaddsub132ps Vx,Hx,Wx^vfmaddsub132pd Vx,Hx,Wx",
+          "97=|vfmsubadd132ps Vx,Hx,Wx^vfmsubadd132pd Vx,Hx,Wx",
+          "98=|vfmadd132ps Vx,Hx,Wx^vfmadd132pd Vx,Hx,Wx", "99=|vfmadd132ss Vdq,Hdq,Wd^vfmadd132sd Vdq,Hdq,Wq",
+          "9a=|vfmsub132ps Vx,Hx,Wx^vfmsub132pd Vx,Hx,Wx", "9b=|vfmsub132ss Vdq,Hdq,Wd^vfmsub132sd Vdq,Hdq,Wq",
+          "9c=|vfnmadd132ps Vx,Hx,Wx^vfnmadd132pd Vx,Hx,Wx",
+          "9d=|vfnmadd132ss Vdq,Hdq,Wd^vfnmadd132sd Vdq,Hdq,Wq",
+          "9e=|vfnmsub132ps Vx,Hx,Wx^vfnmsub132pd Vx,Hx,Wx",
+          "9f=|vfnmsub132ss Vdq,Hdq,Wd^vfnmsub132sd Vdq,Hdq,Wq",
+          "a6=|vfmaddsub213ps Vx,Hx,Wx^vfmaddsub213pd Vx,Hx,Wx",
+          "a7=|vfmsubadd213ps Vx,Hx,Wx^vfmsubadd213pd Vx,Hx,Wx",
+          "a8=|vfmadd213ps Vx,Hx,Wx^vfmadd213pd Vx,Hx,Wx", "a9=|vfmadd213ss Vdq,Hdq,Wd^vfmadd213sd Vdq,Hdq,Wq",
+          "aa=|vfmsub213ps Vx,Hx,Wx^vfmsub213pd Vx,Hx,Wx", "ab=|vfmsub213ss Vdq,Hdq,Wd^vfmsub213sd Vdq,Hdq,Wq",
+          "ac=|vfnmadd213ps Vx,Hx,Wx^vfnmadd213pd Vx,Hx,Wx",
+          "ad=|vfnmadd213ss Vdq,Hdq,Wd^vfnmadd213sd Vdq,Hdq,Wq",
+          "ae=|vfnmsub213ps Vx,Hx,Wx^vfnmsub213pd Vx,Hx,Wx",
+          "af=|vfnmsub213ss Vdq,Hdq,Wd^vfnmsub213sd Vdq,Hdq,Wq",
+          "b6=|vfmaddsub231ps Vx,Hx,Wx^vfmaddsub231pd Vx,Hx,Wx",
+          "b7=|vfmsubadd231ps Vx,Hx,Wx^vfmsubadd231pd Vx,Hx,Wx",
+          "b8=|vfmadd231ps Vx,Hx,Wx^vfmadd231pd Vx,Hx,Wx", "b9=|vfmadd231ss Vdq,Hdq,Wd^vfmadd231sd Vdq,Hdq,Wq",
+          "ba=|vfmsub231ps Vx,Hx,Wx^vfmsub231pd Vx,Hx,Wx", "bb=|vfmsub231ss Vdq,Hdq,Wd^vfmsub231sd Vdq,Hdq,Wq",
+          "bc=|vfnmadd231ps Vx,Hx,Wx^vfnmadd231pd Vx,Hx,Wx",
+          "bd=|vfnmadd231ss Vdq,Hdq,Wd^vfnmadd231sd Vdq,Hdq,Wq",
+          "be=|vfnmsub231ps Vx,Hx,Wx^vfnmsub231pd Vx,Hx,Wx",
+          "bf=|vfnmsub231ss Vdq,Hdq,Wd^vfnmsub231sd Vdq,Hdq,Wq",
+          "db=|vaesimc Vdq,Wdq", "dc=+vaesenc", "dd=+vaesenclast", "de=+vaesdec", "df=+vaesdeclast",
+          "f2=andn Gy,By,Ey", "f3=#vgrp17 By,Ey", "f5=bzhi Gy,Ey,By||pext Gy,By,Ey|pdep Gy,By,Ey",
+          "f6=|||mulx Gy,By,Ey", "f7=bextr Gy,Ey,By|shlx Gy,Ey,By|sarx Gy,Ey,By|shrx Gy,Ey,By",
+  };
+
+  /**
+   * The VEX 0F 3A map, as opcode=entry.
+   */
+  static final String[] VEX_0F3A = {
+          "00=|vpermq Vqq,Wqq,Ib", "01=|vpermpd Vqq,Wqq,Ib", "02=|vpblendd Vx,Hx,Wx,Ib",
+          "04=|vpermilps Vx,Wx,Ib", "05=|vpermilpd Vx,Wx,Ib", "06=|vperm2f128 Vqq,Hqq,Wqq,Ib",
+          "08=|vroundps Vx,Wx,Ib", "09=|vroundpd Vx,Wx,Ib", "0a=|vroundss Vdq,Hdq,Wd,Ib",
+          "0b=|vroundsd Vdq,Hdq,Wq,Ib", "0c=|vblendps Vx,Hx,Wx,Ib", "0d=|vblendpd Vx,Hx,Wx,Ib",
+          "0e=|vpblendw Vx,Hx,Wx,Ib", "0f=|vpalignr Vx,Hx,Wx,Ib",
+          "14=|vpextrb Rd/Mb,Vdq,Ib", "15=|vpextrw Rd/Mw,Vdq,Ib", "16=|vpextrd:vpextrd:vpextrq Ey,Vdq,Ib",
+          "17=|vextractps Ed,Vdq,Ib", "18=|vinsertf128 Vqq,Hqq,Wdq,Ib", "19=|vextractf128 Wdq,Vqq,Ib",
+          "1d=|vcvtps2ph Wh,Vx,Ib",
+          "20=|vpinsrb Vdq,Hdq,Rd/Mb,Ib", "21=|vinsertps Vdq,Hdq,Udq/Md,Ib",
+          "22=|vpinsrd:vpinsrd:vpinsrq Vdq,Hdq,Ey,Ib",
+          "38=|vinserti128 Vqq,Hqq,Wdq,Ib", "39=|vextracti128 Wdq,Vqq,Ib",
+          "40=|vdpps Vx,Hx,Wx,Ib", "41=|vdppd Vdq,Hdq,Wdq,Ib", "42=|vmpsadbw Vx,Hx,Wx,Ib",
+          "44=|vpclmulqdq Vx,Hx,Wx,Ib", "46=|vperm2i128 Vqq,Hqq,Wqq,Ib",
+          "4a=|vblendvps Vx,Hx,Wx,Lx", "4b=|vblendvpd Vx,Hx,Wx,Lx", "4c=|vpblendvb Vx,Hx,Wx,Lx",
+          "60=|vpcmpestrm Vdq,Wdq,Ib", "61=|vpcmpestri Vdq,Wdq,Ib", "62=|vpcmpistrm Vdq,Wdq,Ib",
+          "63=|vpcmpistri Vdq,Wdq,Ib",
+          "df=|vaeskeygenassist Vdq,Wdq,Ib", "f0=|||rorx Gy,Ey,Ib",
+  };
+
+  /**
+   * The groups, each a name followed by 8 entries.
+   */
+  static final String[][] GROUPS = {
+          {"grp1", "add", "or", "adc", "sbb", "and", "sub", "xor", "cmp"},
+          {"grp1a", "pop Ev !d64", "", "", "", "", "", "", ""},
+          {"grp2", "rol", "ror", "rcl", "rcr", "shl", "shr", "sal", "sar"},
+          {"grp3b", "test Eb,Ib", "test Eb,Ib", "not Eb", "neg Eb", "mul Eb", "imul Eb", "div Eb", "idiv Eb"},
+          {"grp3v", "test Ev,Iz", "test Ev,Iz", "not Ev", "neg Ev", "mul Ev", "imul Ev", "div Ev", "idiv Ev"},
+          {"grp4", "inc Eb", "dec Eb", "", "", "", "", "", ""},
+          {"grp5", "inc Ev", "dec Ev", "call Ev !f64", "callf Mp", "jmp Ev !f64", "jmpf Mp", "push Ev !d64", ""},
+          {"grp6", "sldt Rv/Mw", "str Rv/Mw", "lldt Ew", "ltr Ew", "verr Ew", "verw Ew", "", ""},
+          {"grp7m", "sgdt Ms", "sidt Ms", "lgdt Ms", "lidt Ms", "smsw Rv/Mw", "", "lmsw Ew", "invlpg Mb"},
+          {"grp7r", ";vmcall;vmlaunch;vmresume;vmxoff;;;", "monitor;mwait;clac;stac;;;;encls",
+                  "xgetbv;xsetbv;;;vmfunc;xend;xtest;enclu", "vmrun;vmmcall;vmload;vmsave;stgi;clgi;skinit;invlpga",
+                  "smsw Rv", ";;;;;;rdpkru;wrpkru", "lmsw Rw", "swapgs !o64;rdtscp;monitorx;mwaitx;clzero;rdpru;;"},
+          {"grp8", "", "", "", "", "bt", "bts", "btr", "btc"},
+          {"grp9m", "", "cmpxchg8b:cmpxchg8b:cmpxchg16b Mq", "", "xrstors M", "xsavec M", "xsaves M", "vmptrld Mq",
+                  "vmptrst Mq"},
+          {"grp9m66", "", "", "", "", "", "", "vmclear Mq", ""},
+          {"grp9mf3", "", "", "", "", "", "", "vmxon Mq", ""},
+          {"grp9r", "", "", "", "", "", "", "rdrand Rv", "rdseed Rv"},
+          {"grp9rf3", "", "", "", "", "", "", "", "rdpid Rr"},
+          {"grp11b", "mov Eb,Ib", "", "", "", "", "", "", ""},
+          {"grp11br", "mov Eb,Ib", "", "", "", "", "", "", "xabort Ib;;;;;;;"},
+          {"grp11v", "mov Ev,Iz", "", "", "", "", "", "", ""},
+          {"grp11vr", "mov Ev,Iz", "", "", "", "", "", "", "xbegin Jz;;;;;;;"},
+          {"grp12", "", "", "psrlw Nq,Ib", "", "psraw Nq,Ib", "", "psllw Nq,Ib", ""},
+          {"grp12x", "", "", "psrlw Ux,Ib", "", "psraw Ux,Ib", "", "psllw Ux,Ib", ""},
+          {"grp13", "", "", "psrld Nq,Ib", "", "psrad Nq,Ib", "", "pslld Nq,Ib", ""},
+          {"grp13x", "", "", "psrld Ux,Ib", "", "psrad Ux,Ib", "", "pslld Ux,Ib", ""},
+          {"grp14", "", "", "psrlq Nq,Ib", "", "", "", "psllq Nq,Ib", ""},
+          {"grp14x", "", "", "psrlq Ux,Ib", "psrldq Ux,Ib", "", "", "psllq Ux,Ib", "pslldq Ux,Ib"},
+          {"grp15m", "fxsave M", "fxrstor M", "ldmxcsr Md", "stmxcsr Md", "xsave M", "xrstor M", "xsaveopt M",
+                  "clflush Mb"},
+          {"grp15m66", "", "", "", "", "", "", "clwb Mb", "clflushopt Mb"},
+          {"grp15r", "", "", "", "", "", "lfence", "mfence", "sfence"},
+          {"grp15f3", "rdfsbase Ry !o64", "rdgsbase Ry !o64", "wrfsbase Ry !o64", "wrgsbase Ry !o64", "", "", "",
+                  ""},
+          {"grp16", "prefetchnta Mb", "prefetcht0 Mb", "prefetcht1 Mb", "prefetcht2 Mb", "nop Ev", "nop Ev", "nop Ev",
+                  "nop Ev"},
+          {"prefetch", "prefetch Mb", "prefetchw Mb", "prefetchwt1 Mb", "prefetch Mb", "prefetch Mb", "prefetch Mb",
+                  "prefetch Mb", "prefetch Mb"},
+          {"endbr", "nop Ev", "nop Ev", "nop Ev", "nop Ev", "nop Ev", "nop Ev", "nop Ev",
+                  "nop Ev;nop Ev;endbr64;endbr32;nop Ev;nop Ev;nop Ev;nop Ev"},
+
+          {"fpud8m", "fadd Md", "fmul Md", "fcom Md", "fcomp Md", "fsub Md", "fsubr Md", "fdiv Md", "fdivr Md"},
+          {"fpud8r", "fadd ST,F", "fmul ST,F", "fcom ST,F", "fcomp ST,F", "fsub ST,F", "fsubr ST,F", "fdiv ST,F",
+                  "fdivr ST,F"},
+          {"fpud9m", "fld Md", "", "fst Md", "fstp Md", "fldenv M", "fldcw Mw", "fnstenv M", "fnstcw Mw"},
+          {"fpud9r", "fld F", "fxch F", "fnop;;;;;;;", "", "fchs;fabs;;;ftst;fxam;;",
+                  "fld1;fldl2t;fldl2e;fldpi;fldlg2;fldln2;fldz;",
+                  "f2xm1;fyl2x;fptan;fpatan;fxtract;fprem1;fdecstp;fincstp",
+                  "fprem;fyl2xp1;fsqrt;fsincos;frndint;fscale;fsin;fcos"},
+          {"fpudam", "fiadd Md", "fimul Md", "ficom Md", "ficomp Md", "fisub Md", "fisubr Md", "fidiv Md",
+                  "fidivr Md"},
+          {"fpudar", "fcmovb ST,F", "fcmove ST,F", "fcmovbe ST,F", "fcmovu ST,F", "", ";fucompp;;;;;;", "", ""},
+          {"fpudbm", "fild Md", "fisttp Md", "fist Md", "fistp Md", "", "fld Mt", "", "fstp Mt"},
+          {"fpudbr", "fcmovnb ST,F", "fcmovne ST,F", "fcmovnbe ST,F", "fcmovnu ST,F", ";;fnclex;fninit;;;;",
+                  "fucomi ST,F", "fcomi ST,F", ""},
+          {"fpudcm", "fadd Mq", "fmul Mq", "fcom Mq", "fcomp Mq", "fsub Mq", "fsubr Mq", "fdiv Mq", "fdivr Mq"},
+          {"fpudcr", "fadd F,ST", "fmul F,ST", "", "", "fsubr F,ST", "fsub F,ST", "fdivr F,ST", "fdiv F,ST"},
+          {"fpuddm", "fld Mq", "fisttp Mq", "fst Mq", "fstp Mq", "frstor M", "", "fnsave M", "fnstsw Mw"},
+          {"fpuddr", "ffree F", "", "fst F", "fstp F", "fucom F", "fucomp F", "", ""},
+          {"fpudem", "fiadd Mw", "fimul Mw", "ficom Mw", "ficomp Mw", "fisub Mw", "fisubr Mw", "fidiv Mw",
+                  "fidivr Mw"},
+          {"fpuder", "faddp F,ST", "fmulp F,ST", "", ";fcompp;;;;;;", "fsubrp F,ST", "fsubp F,ST", "fdivrp F,ST",
+                  "fdivp F,ST"},
+          {"fpudfm", "fild Mw", "fisttp Mw", "fist Mw", "fistp Mw", "fbld Mt", "fild Mq", "fbstp Mt", "fistp Mq"},
+          {"fpudfr", "ffreep F", "", "", "", "fnstsw AX;;;;;;;", "fucomip ST,F", "fcomip ST,F", ""},
+
+          {"vgrp12", "", "", "vpsrlw Hx,Ux,Ib", "", "vpsraw Hx,Ux,Ib", "", "vpsllw Hx,Ux,Ib", ""},
+          {"vgrp13", "", "", "vpsrld Hx,Ux,Ib", "", "vpsrad Hx,Ux,Ib", "", "vpslld Hx,Ux,Ib", ""},
+          {"vgrp14", "", "", "vpsrlq Hx,Ux,Ib", "vpsrldq Hx,Ux,Ib", "", "", "vpsllq Hx,Ux,Ib", "vpslldq Hx,Ux,Ib"},
+          {"vgrp15", "", "", "vldmxcsr Md", "vstmxcsr Md", "", "", "", ""},
+          {"vgrp17", "", "blsr", "blsmsk", "blsi", "", "", "", ""},
+  };
+
+  /**
+   * The 3DNow! instructions, as the immediate byte=mnemonic.
+   */
+  static final String[] AMD_3DNOW = {
+          "0c=pi2fw", "0d=pi2fd", "1c=pf2iw", "1d=pf2id", "8a=pfnacc", "8e=pfpnacc", "90=pfcmpge", "94=pfmin",
+          "96=pfrcp", "97=pfrsqrt", "9a=pfsub", "9e=pfadd", "a0=pfcmpgt", "a4=pfmax", "a6=pfrcpit1",
+          "a7=pfrsqit1", "aa=pfsubr", "ae=pfacc", "b0=pfcmpeq", "b4=pfmul", "b6=pfrcpit2", "b7=pmulhrw",
+          "bb=pswapd", "bf=pavgusb",
+  };
+}
@@ -1,7 +1,7 @@
 /*******************************************************************************
  * This program and the accompanying materials
  * are made available under the terms of the Common Public License v1.0
- * which accompanies this distribution, and is available at 
+ * which accompanies this distribution, and is available at
  * http://www.eclipse.org/legal/cpl-v10.html
  *
  * Contributors:
@@ -9,9 +9,72 @@
  *******************************************************************************/
 package org.boris.pecoff4j.asm;
 
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+/**
+ * Register names. A register id is a register class plus the register
+ * number within the class, so eax is GPR32 + 0 and xmm3 is XMM + 3.
+ */
 public class Register {
+  public static final int NONE = -1;
+
+  public static final int GPR8 = 0x000;
+  public static final int GPR8_REX = 0x020;
+  public static final int GPR16 = 0x040;
+  public static final int GPR32 = 0x060;
+  public static final int GPR64 = 0x080;
+  public static final int SEGMENT = 0x0a0;
+  public static final int CONTROL = 0x0c0;
+  public static final int DEBUG = 0x0e0;
+  public static final int FPU = 0x100;
+  public static final int MMX = 0x120;
+  public static final int XMM = 0x140;
+  public static final int YMM = 0x160;
+  public static final int IP = 0x180;
+
+  public static final int ES = SEGMENT;
+  public static final int CS = SEGMENT + 1;
+  public static final int SS = SEGMENT + 2;
+  public static final int DS = SEGMENT + 3;
+  public static final int FS = SEGMENT + 4;
+  public static final int GS = SEGMENT + 5;
+
+  public static final int EIP = IP + 1;
+  public static final int RIP = IP + 2;
+
+  public static final int EAX = GPR32;
+  public static final int ECX = GPR32 + 1;
+  public static final int EDX = GPR32 + 2;
+  public static final int EBX = GPR32 + 3;
+  public static final int ESP = GPR32 + 4;
+  public static final int EBP = GPR32 + 5;
+  public static final int ESI = GPR32 + 6;
+  public static final int EDI = GPR32 + 7;
+
+  public static final int RAX = GPR64;
+  public static final int RCX = GPR64 + 1;
+  public static final int RDX = GPR64 + 2;
+  public static final int RBX = GPR64 + 3;
+  public static final int RSP = GPR64 + 4;
+  public static final int RBP = GPR64 + 5;
+  public static final int RSI = GPR64 + 6;
+  public static final int RDI = GPR64 + 7;
+  public static final int R8 = GPR64 + 8;
+  public static final int R9 = GPR64 + 9;
+  public static final int R10 = GPR64 + 10;
+  public static final int R11 = GPR64 + 11;
+  public static final int R12 = GPR64 + 12;
+  public static final int R13 = GPR64 + 13;
+  public static final int R14 = GPR64 + 14;
+  public static final int R15 = GPR64 + 15;
+
+  private static final String[] GPR8_NAMES = {"al", "cl", "dl", "bl", "ah", "ch", "dh", "bh"};
+  private static final String[] GPR8_REX_NAMES = {"al", "cl", "dl", "bl", "spl", "bpl", "sil", "dil"};
+  private static final String[] GPR_NAMES = {"ax", "cx", "dx", "bx", "sp", "bp", "si", "di"};
+  private static final String[] SEGMENT_NAMES = {"es", "cs", "ss", "ds", "fs", "gs"};
+  private static final String[] IP_NAMES = {"ip", "eip", "rip"};
+
   @Nullable
   public static String to32(int register) {
     switch (register) {
@@ -34,4 +97,84 @@ public class Register {
     }
     return null;
   }
+
+  public static int getType(int register) {
+    return register & ~0x1f;
+  }
+
+  public static int getNumber(int register) {
+    return register & 0x1f;
+  }
+
+  /**
+   * Gets the size of a register in bytes.
+   */
+  public static int getSize(int register) {
+    switch (getType(register)) {
+      case GPR8:
+      case GPR8_REX:
+        return 1;
+      case GPR16:
+      case SEGMENT:
+        return 2;
+      case GPR32:
+        return 4;
+      case FPU:
+        return 10;
+      case XMM:
+        return 16;
+      case YMM:
+        return 32;
+      default:
+        return 8;
+    }
+  }
+
+  // Names indexed by register id, so that getName does not allocate
+  private static final String[] NAMES = new String[IP + 0x20];
+
+  static {
+    for (int i = 0; i < NAMES.length; i++) {
+      NAMES[i] = toName(i);
+    }
+  }
+
+  @NotNull
+  public static String getName(int register) {
+    return register >= 0 && register < NAMES.length ? NAMES[register] : "?";
+  }
+
+  @NotNull
+  private static String toName(int register) {
+    int n = getNumber(register);
+    switch (getType(register)) {
+      case GPR8:
+        return n < 8 ? GPR8_NAMES[n] : "r" + n + "b";
+      case GPR8_REX:
+        return n < 8 ? GPR8_REX_NAMES[n] : "r" + n + "b";
+      case GPR16:
+        return n < 8 ? GPR_NAMES[n] : "r" + n + "w";
+      case GPR32:
+        return n < 8 ? "e" + GPR_NAMES[n] : "r" + n + "d";
+      case GPR64:
+        return n < 8 ? "r" + GPR_NAMES[n] : "r" + n;
+      case SEGMENT:
+        return n < SEGMENT_NAMES.length ? SEGMENT_NAMES[n] : "seg" + n;
+      case CONTROL:
+        return "cr" + n;
+      case DEBUG:
+        return "dr" + n;
+      case FPU:
+        return "st(" + n + ")";
+      case MMX:
+        return "mm" + n;
+      case XMM:
+        return "xmm" + n;
+      case YMM:
+        return "ymm" + n;
+      case IP:
+        return n < IP_NAMES.length ? IP_NAMES[n] : "ip";
+    }
+    return "?";
+  }
 }
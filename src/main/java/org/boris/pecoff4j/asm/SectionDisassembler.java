@@ -0,0 +1,433 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.asm;
+
+import org.boris.pecoff4j.ExportDirectory;
+import org.boris.pecoff4j.ImageData;
+import org.boris.pecoff4j.PE;
+import org.boris.pecoff4j.SectionData;
+import org.boris.pecoff4j.SectionHeader;
+import org.boris.pecoff4j.SectionTable;
+import org.boris.pecoff4j.util.ForkJoinTasks;
+import org.boris.pecoff4j.constant.MachineType;
+import org.boris.pecoff4j.constant.SectionFlag;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Disassembles the executable sections of an image with a linear sweep.
+ * <p>
+ * Each section is split into chunks at the function starts the image
+ * declares: the entry point, the exports and, for x64, the .pdata runtime
+ * functions. The sweep starts again at each of these, so data between
+ * functions cannot put it out of step with the code that follows, and the
+ * chunks can be decoded independently. The parallel methods decode runs of
+ * chunks on a ForkJoinPool and merge them in order, so the result is the same
+ * as the sequential sweep.
+ * <p>
+ * With a DisassemblyCache set, each section is looked up before it is
+ * decoded and stored after, so a section seen before, in this image or
+ * another, is not decoded again.
+ */
+public class SectionDisassembler {
+  // Runs of chunks smaller than this are decoded by one task
+  private static final int MIN_TASK_SIZE = 0x4000;
+
+  private final PE pe;
+  private final X86Decoder decoder;
+  private final long imageBase;
+  private final long imageSize;
+  private DisassemblyCache cache;
+
+  /**
+   * Creates a disassembler for an image.
+   *
+   * @throws IllegalArgumentException if the machine is not x86 or x64.
+   */
+  public SectionDisassembler(@NotNull PE pe) {
+    this.pe = pe;
+    this.decoder = X86Decoder.forPE(pe);
+    this.imageBase = pe.getOptionalHeader().getImageBase();
+    this.imageSize = pe.getOptionalHeader().getSizeOfImage() & 0xffffffffL;
+  }
+
+  @NotNull
+  public PE getPE() {
+    return pe;
+  }
+
+  @NotNull
+  public X86Decoder getDecoder() {
+    return decoder;
+  }
+
+  /**
+   * Sets a cache of decoded sections, or null for none.
+   */
+  public void setCache(@Nullable DisassemblyCache cache) {
+    this.cache = cache;
+  }
+
+  @Nullable
+  public DisassemblyCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Disassembles the executable sections on the calling thread.
+   */
+  @NotNull
+  public InstructionStream disassemble() {
+    int[] chunks = getChunks();
+    InstructionStream s = new InstructionStream(estimate(chunks, 0, chunks.length));
+    if (cache == null) {
+      decode(chunks, 0, chunks.length, s);
+      return s;
+    }
+    for (int c = 0; c < chunks.length; ) {
+      int end = getSectionEnd(chunks, c);
+      String key = getKey(chunks, c, end);
+      InstructionStream t = cache.get(key);
+      if (t == null) {
+        t = new InstructionStream(estimate(chunks, c, end));
+        decode(chunks, c, end, t);
+        cache.put(key, t);
+      }
+      s.addAll(t);
+      c = end;
+    }
+    return s;
+  }
+
+  /**
+   * Disassembles the executable sections in parallel.
+   *
+   * @param pool the pool to decode on.
+   */
+  @NotNull
+  public InstructionStream disassemble(@NotNull ForkJoinPool pool) {
+    int[] chunks = getChunks();
+    List<ChunkTask> tasks;
+    if (cache == null) {
+      tasks = split(chunks, 0, chunks.length);
+    } else {
+      tasks = new ArrayList<ChunkTask>();
+      for (int c = 0; c < chunks.length; ) {
+        int end = getSectionEnd(chunks, c);
+        tasks.add(new ChunkTask(chunks, c, end, true));
+        c = end;
+      }
+    }
+    ForkJoinTasks.invokeAll(pool, tasks);
+    return merge(tasks);
+  }
+
+  /**
+   * Splits a run of chunks into tasks of at least MIN_TASK_SIZE bytes.
+   */
+  @NotNull
+  private List<ChunkTask> split(@NotNull int[] chunks, int first, int last) {
+    List<ChunkTask> tasks = new ArrayList<ChunkTask>();
+    int start = first;
+    int size = 0;
+    for (int i = first; i < last; i += 3) {
+      size += chunks[i + 2] - chunks[i + 1];
+      if (size >= MIN_TASK_SIZE || i + 3 == last) {
+        tasks.add(new ChunkTask(chunks, start, i + 3, false));
+        start = i + 3;
+        size = 0;
+      }
+    }
+    return tasks;
+  }
+
+  @NotNull
+  private static InstructionStream merge(@NotNull List<ChunkTask> tasks) {
+    int count = 0;
+    for (ChunkTask t : tasks) {
+      count += t.result.size();
+    }
+    InstructionStream s = new InstructionStream(count);
+    for (ChunkTask t : tasks) {
+      s.addAll(t.result);
+    }
+    return s;
+  }
+
+  /**
+   * Gets the end of the run of chunks in the same section as a chunk.
+   */
+  private static int getSectionEnd(@NotNull int[] chunks, int first) {
+    int end = first + 3;
+    while (end < chunks.length && chunks[end] == chunks[first]) {
+      end += 3;
+    }
+    return end;
+  }
+
+  /**
+   * Gets the cache key of the chunks of a section. The decoded stream
+   * depends on where the section is loaded, the mode and where the sweep
+   * restarts as well as on the code, so these are part of the key.
+   */
+  @NotNull
+  private String getKey(@NotNull int[] chunks, int first, int last) {
+    SectionTable st = pe.getSectionTable();
+    int section = chunks[first];
+    long[] context = new long[5 + (last - first) / 3];
+    context[0] = decoder.getMode();
+    context[1] = imageBase;
+    context[2] = imageSize;
+    context[3] = st.getHeader(section).getVirtualAddress();
+    context[4] = getCodeLimit(st, section);
+    for (int c = first, i = 5; c < last; c += 3, i++) {
+      context[i] = chunks[c + 1];
+    }
+    return DisassemblyCache.getKey(st.getSection(section).getData(), getCodeLimit(st, section), context);
+  }
+
+  /**
+   * Gets the function starts the image declares that lie in its executable
+   * sections, sorted and without duplicates.
+   */
+  @NotNull
+  public int[] getFunctionStarts() {
+    SectionTable st = pe.getSectionTable();
+    int[] starts = new int[16];
+    int n = 0;
+    starts[n++] = pe.getOptionalHeader().getAddressOfEntryPoint();
+
+    ImageData id = pe.getImageData();
+    ExportDirectory ed = id == null ? null : id.getExportTable();
+    if (ed != null) {
+      int eat = (int) ed.getExportAddressTableRVA();
+      int entries = (int) ed.getAddressTableEntries();
+      for (int i = 0; i < entries; i++) {
+        int rva = readInt(st, eat + i * 4);
+        if (rva != 0) {
+          starts = grow(starts, n);
+          starts[n++] = rva;
+        }
+      }
+    }
+
+    // x64 .pdata holds RUNTIME_FUNCTION entries: begin, end and unwind RVAs
+    byte[] pdata = id == null ? null : id.getExceptionTable();
+    if (pdata != null && pe.getCoffHeader().getMachine() == MachineType.IMAGE_FILE_MACHINE_AMD64) {
+      ByteBuffer bb = ByteBuffer.wrap(pdata).order(ByteOrder.LITTLE_ENDIAN);
+      for (int p = 0; p + 12 <= pdata.length; p += 12) {
+        int rva = bb.getInt(p);
+        if (rva != 0) {
+          starts = grow(starts, n);
+          starts[n++] = rva;
+        }
+      }
+    }
+
+    Arrays.sort(starts, 0, n);
+    int m = 0;
+    for (int i = 0; i < n; i++) {
+      if ((m == 0 || starts[i] != starts[m - 1]) && isExecutable(st, starts[i]))
+        starts[m++] = starts[i];
+    }
+    return Arrays.copyOf(starts, m);
+  }
+
+  /**
+   * Gets the chunks to decode as triples of section index, start offset and
+   * end offset, in RVA order.
+   */
+  @NotNull
+  int[] getChunks() {
+    SectionTable st = pe.getSectionTable();
+    int[] starts = getFunctionStarts();
+    int[] chunks = new int[48];
+    int n = 0;
+    for (int i = 0; i < st.getNumberOfSections(); i++) {
+      int limit = getCodeLimit(st, i);
+      if (limit == 0)
+        continue;
+      int va = st.getHeader(i).getVirtualAddress();
+      int k = Arrays.binarySearch(starts, va);
+      if (k < 0)
+        k = -k - 1;
+      int start = 0;
+      for (; ; k++) {
+        int end = k < starts.length ? starts[k] - va : limit;
+        if (end > limit)
+          end = limit;
+        if (end > start) {
+          if (n + 3 > chunks.length)
+            chunks = Arrays.copyOf(chunks, chunks.length * 2);
+          chunks[n++] = i;
+          chunks[n++] = start;
+          chunks[n++] = end;
+          start = end;
+        }
+        if (end == limit)
+          break;
+      }
+    }
+    return Arrays.copyOf(chunks, n);
+  }
+
+  private void decode(@NotNull int[] chunks, int first, int last, @NotNull InstructionStream s) {
+    SectionTable st = pe.getSectionTable();
+    DecodedInstruction ins = new DecodedInstruction();
+    ByteBuffer code = null;
+    int section = -1;
+    for (int c = first; c < last; c += 3) {
+      if (chunks[c] != section) {
+        section = chunks[c];
+        code = ByteBuffer.wrap(st.getSection(section).getData(), 0, getCodeLimit(st, section));
+      }
+      int va = st.getHeader(section).getVirtualAddress();
+      int end = chunks[c + 2];
+      int len;
+      for (int p = chunks[c + 1]; p < end; p += len) {
+        long address = imageBase + va + p;
+        len = decoder.decode(code, p, address, ins);
+        s.add(ins, va + p, getReference(ins));
+      }
+    }
+  }
+
+  private int getReference(@NotNull DecodedInstruction ins) {
+    if (!ins.isValid())
+      return -1;
+    if (ins.getRelativeOperand() != -1)
+      return toRVA(ins.getTarget());
+    long address = ins.getMemoryAddress();
+    if (address != -1)
+      return toRVA(address);
+    for (int i = 0; i < ins.getOperandCount(); i++) {
+      if (ins.getOperandKind(i) == DecodedInstruction.OPERAND_IMMEDIATE && ins.getOperandRegister(i) == 0 &&
+              ins.getOperandSize(i) >= 4) {
+        int rva = toRVA(DecodedInstruction.mask(ins.getImmediate(), ins.getOperandSize(i)));
+        if (rva != -1)
+          return rva;
+      }
+    }
+    return -1;
+  }
+
+  private int toRVA(long address) {
+    long rva = address - imageBase;
+    return rva >= 0 && rva < imageSize ? (int) rva : -1;
+  }
+
+  private static int estimate(@NotNull int[] chunks, int first, int last) {
+    int size = 0;
+    for (int c = first; c < last; c += 3) {
+      size += chunks[c + 2] - chunks[c + 1];
+    }
+    return size / 3;
+  }
+
+  /**
+   * Gets the number of bytes of code in a section, or 0 if it is not
+   * executable. The raw data is padded to the file alignment, so it is cut
+   * to the virtual size.
+   */
+  static int getCodeLimit(@NotNull SectionTable st, int index) {
+    SectionHeader sh = st.getHeader(index);
+    SectionData sd = st.getSection(index);
+    if ((sh.getCharacteristics() & SectionFlag.IMAGE_SCN_MEM_EXECUTE) == 0 || sd == null || sd.getData() == null)
+      return 0;
+    int limit = sd.getData().length;
+    if (sh.getVirtualSize() > 0 && sh.getVirtualSize() < limit)
+      limit = sh.getVirtualSize();
+    return limit;
+  }
+
+  static boolean isExecutable(@NotNull SectionTable st, int rva) {
+    for (int i = 0; i < st.getNumberOfSections(); i++) {
+      int offset = rva - st.getHeader(i).getVirtualAddress();
+      if (offset >= 0 && offset < getCodeLimit(st, i))
+        return true;
+    }
+    return false;
+  }
+
+  static int readInt(@NotNull SectionTable st, int rva) {
+    for (int i = 0; i < st.getNumberOfSections(); i++) {
+      SectionData sd = st.getSection(i);
+      int offset = rva - st.getHeader(i).getVirtualAddress();
+      if (sd != null && sd.getData() != null && offset >= 0 && offset + 4 <= sd.getData().length) {
+        byte[] b = sd.getData();
+        return b[offset] & 0xff | (b[offset + 1] & 0xff) << 8 | (b[offset + 2] & 0xff) << 16 |
+                (b[offset + 3] & 0xff) << 24;
+      }
+    }
+    return 0;
+  }
+
+  static int readShort(@NotNull SectionTable st, int rva) {
+    for (int i = 0; i < st.getNumberOfSections(); i++) {
+      SectionData sd = st.getSection(i);
+      int offset = rva - st.getHeader(i).getVirtualAddress();
+      if (sd != null && sd.getData() != null && offset >= 0 && offset + 2 <= sd.getData().length) {
+        byte[] b = sd.getData();
+        return b[offset] & 0xff | (b[offset + 1] & 0xff) << 8;
+      }
+    }
+    return 0;
+  }
+
+  @NotNull
+  private static int[] grow(@NotNull int[] a, int n) {
+    return n < a.length ? a : Arrays.copyOf(a, a.length * 2);
+  }
+
+  private class ChunkTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final int[] chunks;
+    private final int first;
+    private final int last;
+    private final boolean cached;
+    private InstructionStream result;
+
+    /**
+     * @param cached true if the chunks are a whole section to look up in
+     *               the cache.
+     */
+    public ChunkTask(int[] chunks, int first, int last, boolean cached) {
+      this.chunks = chunks;
+      this.first = first;
+      this.last = last;
+      this.cached = cached;
+    }
+
+    protected void compute() {
+      if (!cached) {
+        result = new InstructionStream(estimate(chunks, first, last));
+        decode(chunks, first, last, result);
+        return;
+      }
+      String key = getKey(chunks, first, last);
+      result = cache.get(key);
+      if (result == null) {
+        List<ChunkTask> tasks = split(chunks, first, last);
+        invokeAll(tasks);
+        result = merge(tasks);
+        cache.put(key, result);
+      }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.asm;
+
+import org.boris.pecoff4j.ExportDirectory;
+import org.boris.pecoff4j.ImageData;
+import org.boris.pecoff4j.PE;
+import org.boris.pecoff4j.SectionTable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Names for RVAs of an image, held as a sorted int array with a parallel
+ * array of names. Imports are named module!function after their import
+ * address table slot, and exports by their exported name.
+ */
+public class SymbolTable {
+  private final long imageBase;
+  private final int[] rvas;
+  private final String[] names;
+
+  /**
+   * @param imageBase the image base, for lookups by address.
+   * @param rvas      the RVAs, in any order.
+   * @param names     the names of the RVAs.
+   */
+  public SymbolTable(long imageBase, @NotNull int[] rvas, @NotNull String[] names) {
+    if (rvas.length != names.length)
+      throw new IllegalArgumentException("Symbol RVAs and names differ in length");
+    long[] keys = new long[rvas.length];
+    for (int i = 0; i < rvas.length; i++) {
+      keys[i] = (long) rvas[i] << 32 | i;
+    }
+    Arrays.sort(keys);
+    this.imageBase = imageBase;
+    this.rvas = new int[rvas.length];
+    this.names = new String[rvas.length];
+    for (int i = 0; i < keys.length; i++) {
+      this.rvas[i] = (int) (keys[i] >>> 32);
+      this.names[i] = names[(int) keys[i]];
+    }
+  }
+
+  /**
+   * Creates a table of the imports and exports of an image.
+   */
+  @NotNull
+  public static SymbolTable forPE(@NotNull PE pe) {
+    SectionTable st = pe.getSectionTable();
+    List<XrefIndex.Import> imports = XrefIndex.readImports(pe);
+    ImageData id = pe.getImageData();
+    ExportDirectory ed = id == null ? null : id.getExportTable();
+    int exports = ed == null ? 0 : (int) ed.getNumberOfNamePointers();
+
+    int[] rvas = new int[imports.size() + exports];
+    String[] names = new String[rvas.length];
+    int n = 0;
+    for (XrefIndex.Import im : imports) {
+      rvas[n] = im.slot;
+      names[n++] = im.module + "!" + im.name;
+    }
+    if (ed != null) {
+      int eat = (int) ed.getExportAddressTableRVA();
+      int namePointers = (int) ed.getNamePointerRVA();
+      int ordinals = (int) ed.getOrdinalTableRVA();
+      for (int i = 0; i < exports; i++) {
+        int ordinal = SectionDisassembler.readShort(st, ordinals + i * 2);
+        int rva = SectionDisassembler.readInt(st, eat + ordinal * 4);
+        if (rva == 0)
+          continue;
+        rvas[n] = rva;
+        names[n++] = XrefIndex.readString(st, SectionDisassembler.readInt(st, namePointers + i * 4));
+      }
+    }
+    return new SymbolTable(pe.getOptionalHeader().getImageBase(), Arrays.copyOf(rvas, n),
+            Arrays.copyOf(names, n));
+  }
+
+  public long getImageBase() {
+    return imageBase;
+  }
+
+  public int size() {
+    return rvas.length;
+  }
+
+  public int getRVA(int i) {
+    return rvas[i];
+  }
+
+  @NotNull
+  public String getName(int i) {
+    return names[i];
+  }
+
+  /**
+   * Gets the index of the first symbol at an RVA, or -1.
+   */
+  public int indexOf(int rva) {
+    int lo = 0;
+    int hi = rvas.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (rvas[mid] < rva)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo < rvas.length && rvas[lo] == rva ? lo : -1;
+  }
+
+  /**
+   * Gets the name of the first symbol at an RVA, or null.
+   */
+  @Nullable
+  public String get(int rva) {
+    int i = indexOf(rva);
+    return i == -1 ? null : names[i];
+  }
+
+  /**
+   * Gets the name of the first symbol at a virtual address, or null.
+   */
+  @Nullable
+  public String getByAddress(long address) {
+    long rva = address - imageBase;
+    return rva < 0 || rva > Integer.MAX_VALUE ? null : get((int) rva);
+  }
+}
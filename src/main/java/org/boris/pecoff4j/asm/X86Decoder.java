@@ -0,0 +1,1009 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.asm;
+
+import org.boris.pecoff4j.PE;
+import org.boris.pecoff4j.constant.MachineType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A table driven x86 and x64 instruction decoder. The opcode maps in OpcodeMap are
+ * compiled once into a flat table of nodes; decoding walks from the opcode
+ * through any prefix, group or ModRM nodes to an instruction node, then reads
+ * the operands it lists. Instructions are decoded straight from a buffer into
+ * a reusable DecodedInstruction, so decoding allocates nothing.
+ * <p>
+ * In 64-bit mode the decoder handles REX prefixes, the extended registers
+ * and RIP-relative addressing. VEX encoded instructions are decoded in both
+ * modes.
+ * <p>
+ * A decoder has no state of its own and may be shared between threads.
+ */
+public class X86Decoder {
+  public static final int MODE_32 = 32;
+  public static final int MODE_64 = 64;
+
+  // Node kinds
+  private static final int NORMAL = 0;
+  private static final int INVALID = 1;
+  private static final int GROUP = 2;
+  private static final int RMTABLE = 3;
+  private static final int PREFIX = 4;
+  private static final int MOD = 5;
+  private static final int VEXW = 6;
+  private static final int VEXL = 7;
+
+  // Node layout
+  private static final int KIND = 0;
+  private static final int CHILD = 1;
+  private static final int NAMES = 2;
+  private static final int OPS = 5;
+  private static final int FLAGS = 9;
+  private static final int STRIDE = 10;
+
+  // Flags
+  static final int F_I64 = 0x01;
+  static final int F_O64 = 0x02;
+  static final int F_D64 = 0x04;
+  static final int F_F64 = 0x08;
+  static final int F_AS = 0x10;
+  static final int F_RM = 0x20;
+  static final int F_3DNOW = 0x40;
+  static final int F_MODRM = 0x80;
+  static final int F_VSIBD = 0x100;
+  static final int F_VSIBQ = 0x200;
+
+  // Operand addressing methods
+  static final int M_E = 1;
+  static final int M_G = 2;
+  static final int M_M = 3;
+  static final int M_R = 4;
+  static final int M_I = 5;
+  static final int M_J = 6;
+  static final int M_O = 7;
+  static final int M_A = 8;
+  static final int M_S = 9;
+  static final int M_C = 10;
+  static final int M_D = 11;
+  static final int M_P = 12;
+  static final int M_Q = 13;
+  static final int M_N = 14;
+  static final int M_V = 15;
+  static final int M_W = 16;
+  static final int M_U = 17;
+  static final int M_F = 18;
+  static final int M_Z = 19;
+  static final int M_X = 20;
+  static final int M_Y = 21;
+  static final int M_H = 22;
+  static final int M_B = 23;
+  static final int M_L = 24;
+  static final int M_REG = 25;
+  static final int M_VREG = 26;
+  static final int M_ZREG = 27;
+  static final int M_ONE = 28;
+
+  // Operand types
+  static final int T_NONE = 0;
+  static final int T_B = 1;
+  static final int T_W = 2;
+  static final int T_D = 3;
+  static final int T_Q = 4;
+  static final int T_DQ = 5;
+  static final int T_QQ = 6;
+  static final int T_T = 7;
+  static final int T_V = 8;
+  static final int T_Z = 9;
+  static final int T_Y = 10;
+  static final int T_X = 11;
+  static final int T_P = 12;
+  static final int T_S = 13;
+  static final int T_A = 14;
+  static final int T_R = 15;
+  static final int T_BS = 16;
+  static final int T_H = 17;
+  static final int T_F = 18;
+  static final int T_E = 19;
+
+  private static final int[] BASE16 = {Register.GPR16 + 3, Register.GPR16 + 3, Register.GPR16 + 5,
+          Register.GPR16 + 5, Register.GPR16 + 6, Register.GPR16 + 7, Register.GPR16 + 5, Register.GPR16 + 3};
+  private static final int[] INDEX16 = {Register.GPR16 + 6, Register.GPR16 + 7, Register.GPR16 + 6,
+          Register.GPR16 + 7, Register.NONE, Register.NONE, Register.NONE, Register.NONE};
+
+  private static final int[] NODE;
+  private static final int[] ONE_BYTE = new int[256];
+  private static final int[] ONE_BYTE_64 = new int[256];
+  private static final int[] TWO_BYTE = new int[256];
+  private static final int[] THREE_BYTE_38 = new int[256];
+  private static final int[] THREE_BYTE_3A = new int[256];
+  private static final int[] VEX_0F = new int[256];
+  private static final int[] VEX_0F38 = new int[256];
+  private static final int[] VEX_0F3A = new int[256];
+  private static final int[] AMD_3DNOW = new int[256];
+
+  static {
+    Builder b = new Builder();
+    for (int i = 0; i < 256; i++) {
+      ONE_BYTE[i] = b.compile(OpcodeMap.ONE_BYTE[i], null, 0);
+      TWO_BYTE[i] = b.compile(OpcodeMap.TWO_BYTE[i], null, 0);
+    }
+    System.arraycopy(ONE_BYTE, 0, ONE_BYTE_64, 0, 256);
+    b.compileSparse(OpcodeMap.ONE_BYTE_64, ONE_BYTE_64);
+    b.compileSparse(OpcodeMap.THREE_BYTE_38, THREE_BYTE_38);
+    b.compileSparse(OpcodeMap.THREE_BYTE_3A, THREE_BYTE_3A);
+    b.compileSparse(OpcodeMap.VEX_0F, VEX_0F);
+    b.compileSparse(OpcodeMap.VEX_0F38, VEX_0F38);
+    b.compileSparse(OpcodeMap.VEX_0F3A, VEX_0F3A);
+    for (String s : OpcodeMap.AMD_3DNOW) {
+      AMD_3DNOW[Integer.parseInt(s.substring(0, 2), 16)] = Mnemonic.get(s.substring(3));
+    }
+    NODE = b.toArray();
+  }
+
+  private final int mode;
+
+  /**
+   * Creates a decoder for 32-bit code.
+   */
+  public X86Decoder() {
+    this(MODE_32);
+  }
+
+  /**
+   * Creates a decoder for MODE_32 or MODE_64 code.
+   */
+  public X86Decoder(int mode) {
+    if (mode != MODE_32 && mode != MODE_64)
+      throw new IllegalArgumentException("Invalid mode: " + mode);
+    this.mode = mode;
+  }
+
+  /**
+   * Creates a decoder for the code of a machine type.
+   *
+   * @throws IllegalArgumentException if the machine is not x86 or x64.
+   */
+  @NotNull
+  public static X86Decoder forMachine(int machine) {
+    switch (machine) {
+      case MachineType.IMAGE_FILE_MACHINE_I386:
+        return new X86Decoder(MODE_32);
+      case MachineType.IMAGE_FILE_MACHINE_AMD64:
+        return new X86Decoder(MODE_64);
+    }
+    throw new IllegalArgumentException("Unsupported machine: 0x" + Integer.toHexString(machine));
+  }
+
+  /**
+   * Creates a decoder for the code of an image, chosen by its machine type.
+   *
+   * @throws IllegalArgumentException if the machine is not x86 or x64.
+   */
+  @NotNull
+  public static X86Decoder forPE(@NotNull PE pe) {
+    return forMachine(pe.getCoffHeader().getMachine());
+  }
+
+  public int getMode() {
+    return mode;
+  }
+
+  /**
+   * Decodes an instruction.
+   *
+   * @param code    the code, read with absolute gets so its position is not
+   *                used or changed.
+   * @param offset  the index of the instruction in the buffer.
+   * @param address the address of the instruction, used for branch targets.
+   * @param ins     the instruction to decode into.
+   * @return the length of the instruction, or 0 if offset is at the end of
+   * the buffer. Bytes that do not decode give an invalid instruction one
+   * byte long.
+   */
+  public int decode(@NotNull ByteBuffer code, int offset, long address, @NotNull DecodedInstruction ins) {
+    ins.reset(address);
+    int limit = code.limit();
+    if (offset >= limit)
+      return 0;
+    int end = Math.min(limit, offset + DecodedInstruction.MAX_LENGTH);
+    boolean x64 = mode == MODE_64;
+
+    // Prefixes. REX only counts directly before the opcode.
+    int p = offset;
+    int prefixes = 0;
+    int segment = Register.NONE;
+    int rep = 0;
+    int rex = 0;
+    int b = 0;
+    prefix:
+    for (; p < end; p++) {
+      b = code.get(p) & 0xff;
+      switch (b) {
+        case 0xf0:
+          prefixes |= DecodedInstruction.PREFIX_LOCK;
+          break;
+        case 0xf2:
+          prefixes = prefixes & ~DecodedInstruction.PREFIX_REP | DecodedInstruction.PREFIX_REPNE;
+          rep = b;
+          break;
+        case 0xf3:
+          prefixes = prefixes & ~DecodedInstruction.PREFIX_REPNE | DecodedInstruction.PREFIX_REP;
+          rep = b;
+          break;
+        case 0x26:
+        case 0x2e:
+        case 0x36:
+        case 0x3e:
+          if (!x64) {
+            segment = Register.SEGMENT + (b >> 3 & 3);
+            prefixes |= DecodedInstruction.PREFIX_SEGMENT;
+          }
+          break;
+        case 0x64:
+        case 0x65:
+          segment = Register.SEGMENT + (b & 7);
+          prefixes |= DecodedInstruction.PREFIX_SEGMENT;
+          break;
+        case 0x66:
+          prefixes |= DecodedInstruction.PREFIX_OPERAND_SIZE;
+          break;
+        case 0x67:
+          prefixes |= DecodedInstruction.PREFIX_ADDRESS_SIZE;
+          break;
+        default:
+          if (x64 && (b & 0xf0) == 0x40) {
+            rex = b;
+            continue;
+          }
+          break prefix;
+      }
+      rex = 0;
+    }
+    if (p >= end)
+      return invalid(code, offset, ins);
+    if (rex != 0)
+      prefixes |= DecodedInstruction.PREFIX_REX;
+
+    // Opcode. The REX or VEX W, R, X and B bits are kept together in ext.
+    int[] map = x64 ? ONE_BYTE_64 : ONE_BYTE;
+    int opcode = b;
+    int ext = rex & 0xf;
+    int sel = rep == 0xf2 ? 3 : rep == 0xf3 ? 2 :
+            (prefixes & DecodedInstruction.PREFIX_OPERAND_SIZE) != 0 ? 1 : 0;
+    boolean vex = false;
+    int vvvv = 0;
+    int vexL = 0;
+    p++;
+    if ((b == 0xc4 || b == 0xc5) && p < end && (x64 || (code.get(p) & 0xc0) == 0xc0)) {
+      // VEX replaces the REX, mandatory prefix and escape bytes
+      if (rex != 0 || sel != 0 || (prefixes & DecodedInstruction.PREFIX_LOCK) != 0)
+        return invalid(code, offset, ins);
+      int b1 = code.get(p++) & 0xff;
+      int b2 = b1;
+      int escape = 1;
+      ext = ~b1 >> 5 & 4;
+      if (b == 0xc4) {
+        if (p >= end)
+          return invalid(code, offset, ins);
+        ext = ~b1 >> 5 & 7;
+        escape = b1 & 0x1f;
+        b2 = code.get(p++) & 0xff;
+        ext |= b2 >> 4 & 8;
+      }
+      if (!x64)
+        ext &= 8;
+      vvvv = ~b2 >> 3 & (x64 ? 15 : 7);
+      vexL = b2 >> 2 & 1;
+      sel = b2 & 3;
+      switch (escape) {
+        case 1:
+          map = VEX_0F;
+          opcode = 0x0f00;
+          break;
+        case 2:
+          map = VEX_0F38;
+          opcode = 0x0f3800;
+          break;
+        case 3:
+          map = VEX_0F3A;
+          opcode = 0x0f3a00;
+          break;
+        default:
+          return invalid(code, offset, ins);
+      }
+      if (p >= end)
+        return invalid(code, offset, ins);
+      b = code.get(p++) & 0xff;
+      opcode |= b;
+      vex = true;
+      prefixes |= DecodedInstruction.PREFIX_VEX;
+    } else if (b == 0x0f) {
+      if (p >= end)
+        return invalid(code, offset, ins);
+      b = code.get(p++) & 0xff;
+      if (b == 0x38 || b == 0x3a) {
+        if (p >= end)
+          return invalid(code, offset, ins);
+        map = b == 0x38 ? THREE_BYTE_38 : THREE_BYTE_3A;
+        int b3 = code.get(p++) & 0xff;
+        opcode = 0x0f0000 | b << 8 | b3;
+        b = b3;
+      } else {
+        map = TWO_BYTE;
+        opcode = 0x0f00 | b;
+      }
+    }
+
+    // Walk the prefix, group and ModRM nodes to the instruction. If a
+    // mandatory prefix leads nowhere, try again treating it as an ordinary
+    // prefix. With REX.B, 90 is xchg rather than nop.
+    int root = map == ONE_BYTE_64 && b == 0x90 && (ext & 1) != 0 ? map[0x91] : map[b];
+    int mandatory = 0;
+    int modrm = -1;
+    int n = root;
+    for (; ; ) {
+      int kind = NODE[n * STRIDE + KIND];
+      if (kind == NORMAL)
+        break;
+      if (kind == INVALID) {
+        if (mandatory == 0 || vex)
+          return invalid(code, offset, ins);
+        mandatory = 0;
+        sel = 0;
+        n = root;
+        continue;
+      }
+      int child = NODE[n * STRIDE + CHILD];
+      if (kind == PREFIX) {
+        if (sel != 0)
+          mandatory = sel == 1 ? 0x66 : sel == 2 ? 0xf3 : 0xf2;
+        n = child + sel;
+        continue;
+      }
+      if (kind == VEXW) {
+        n = child + (ext >> 3);
+        continue;
+      }
+      if (kind == VEXL) {
+        n = child + vexL;
+        continue;
+      }
+      if (modrm < 0) {
+        if (p >= end)
+          return invalid(code, offset, ins);
+        modrm = code.get(p++) & 0xff;
+      }
+      if (kind == GROUP)
+        n = child + (modrm >> 3 & 7);
+      else if (kind == MOD)
+        n = child + (modrm >= 0xc0 ? 1 : 0);
+      else
+        n = child + (modrm & 0x3f);
+    }
+    if (vex && sel != 0 && mandatory == 0)
+      return invalid(code, offset, ins);
+
+    int node = n * STRIDE;
+    int flags = NODE[node + FLAGS];
+    if ((flags & (x64 ? F_I64 : F_O64)) != 0)
+      return invalid(code, offset, ins);
+    if ((flags & F_MODRM) != 0 && modrm < 0) {
+      if (p >= end)
+        return invalid(code, offset, ins);
+      modrm = code.get(p++) & 0xff;
+    }
+
+    boolean opsize = (prefixes & DecodedInstruction.PREFIX_OPERAND_SIZE) != 0 && mandatory != 0x66;
+    int operandSize;
+    if (vex)
+      operandSize = x64 && (ext & 8) != 0 ? 8 : 4;
+    else if (!x64)
+      operandSize = opsize ? 2 : 4;
+    else if ((flags & F_F64) != 0 || (ext & 8) != 0)
+      operandSize = 8;
+    else
+      operandSize = opsize ? 2 : (flags & F_D64) != 0 ? 8 : 4;
+    boolean adsize = (prefixes & DecodedInstruction.PREFIX_ADDRESS_SIZE) != 0;
+    int addressSize = x64 ? (adsize ? 4 : 8) : (adsize ? 2 : 4);
+    int vectorSize = vexL != 0 ? 32 : 16;
+    int nameSize = (flags & F_AS) != 0 ? addressSize : operandSize;
+    ins.mnemonic = NODE[node + NAMES + (nameSize == 2 ? 0 : nameSize == 4 ? 1 : 2)];
+
+    // Memory operand
+    boolean memory = modrm >= 0 && modrm < 0xc0 && (flags & F_RM) == 0;
+    boolean vsib = (flags & (F_VSIBD | F_VSIBQ)) != 0;
+    if (memory) {
+      int mod = modrm >> 6;
+      int rm = modrm & 7;
+      int disp = 0;
+      if (addressSize == 2) {
+        if (mod == 0 && rm == 6) {
+          disp = 2;
+        } else {
+          ins.base = BASE16[rm];
+          ins.index = INDEX16[rm];
+          disp = mod == 1 ? 1 : mod == 2 ? 2 : 0;
+        }
+      } else {
+        int gpr = addressSize == 8 ? Register.GPR64 : Register.GPR32;
+        if (rm == 4) {
+          if (p >= end)
+            return invalid(code, offset, ins);
+          int sib = code.get(p++) & 0xff;
+          ins.sib = sib;
+          ins.scale = 1 << (sib >> 6);
+          int index = sib >> 3 & 7 | (ext & 2) << 2;
+          if (vsib) {
+            boolean ymm = vexL != 0 && ((flags & F_VSIBQ) != 0 || (ext & 8) == 0);
+            ins.index = (ymm ? Register.YMM : Register.XMM) + index;
+          } else if (index != 4) {
+            ins.index = gpr + index;
+          }
+          rm = sib & 7;
+          if (rm == 5 && mod == 0)
+            disp = 4;
+          else
+            ins.base = gpr + (rm | (ext & 1) << 3);
+        } else if (vsib) {
+          return invalid(code, offset, ins);
+        } else if (rm == 5 && mod == 0) {
+          disp = 4;
+          if (x64)
+            ins.base = addressSize == 8 ? Register.RIP : Register.EIP;
+        } else {
+          ins.base = gpr + (rm | (ext & 1) << 3);
+        }
+        if (mod == 1)
+          disp = 1;
+        else if (mod == 2)
+          disp = 4;
+      }
+      if (p + disp > end)
+        return invalid(code, offset, ins);
+      ins.displacement = readSigned(code, p, disp);
+      p += disp;
+    } else if (vsib) {
+      return invalid(code, offset, ins);
+    }
+
+    // Operands
+    int reg3 = modrm >> 3 & 7;
+    int rm3 = modrm & 7;
+    int immediates = 0;
+    int count = 0;
+    boolean vvvvUsed = false;
+    for (int i = 0; i < 4; i++) {
+      int op = NODE[node + OPS + i];
+      if (op == 0)
+        break;
+      int method = op >>> 26;
+      int type = op >> 21 & 0x1f;
+      int memType = op >> 16 & 0x1f;
+      int kind = DecodedInstruction.OPERAND_REGISTER;
+      int size = 0;
+      int reg = Register.NONE;
+      switch (method) {
+        case M_E:
+        case M_Q:
+        case M_W:
+          if (memory) {
+            kind = DecodedInstruction.OPERAND_MEMORY;
+            size = sizeOf(memType, operandSize, vectorSize);
+          } else if (method == M_E) {
+            reg = gpr(sizeOf(type, operandSize, vectorSize), rm3 | (ext & 1) << 3, rex);
+          } else {
+            reg = method == M_Q ? Register.MMX + rm3 : vector(type, vexL) + (rm3 | (ext & 1) << 3);
+          }
+          break;
+        case M_M:
+          if (!memory)
+            return invalid(code, offset, ins);
+          kind = DecodedInstruction.OPERAND_MEMORY;
+          size = sizeOf(memType, operandSize, vectorSize);
+          break;
+        case M_R:
+        case M_N:
+        case M_U:
+          if (memory)
+            return invalid(code, offset, ins);
+          if (method == M_R)
+            reg = gpr(sizeOf(type, operandSize, vectorSize), rm3 | (ext & 1) << 3, rex);
+          else
+            reg = method == M_N ? Register.MMX + rm3 : vector(type, vexL) + (rm3 | (ext & 1) << 3);
+          break;
+        case M_G:
+          reg = gpr(sizeOf(type, operandSize, vectorSize), reg3 | (ext & 4) << 1, rex);
+          break;
+        case M_S:
+          if (reg3 > 5)
+            return invalid(code, offset, ins);
+          reg = Register.SEGMENT + reg3;
+          break;
+        case M_C:
+          reg = Register.CONTROL + (reg3 | (ext & 4) << 1);
+          break;
+        case M_D:
+          reg = Register.DEBUG + (reg3 | (ext & 4) << 1);
+          break;
+        case M_P:
+          reg = Register.MMX + reg3;
+          break;
+        case M_V:
+          reg = vector(type, vexL) + (reg3 | (ext & 4) << 1);
+          break;
+        case M_H:
+          reg = vector(type, vexL) + vvvv;
+          vvvvUsed = true;
+          break;
+        case M_B:
+          reg = gpr(sizeOf(type, operandSize, vectorSize), vvvv, rex);
+          vvvvUsed = true;
+          break;
+        case M_L:
+          if (p >= end)
+            return invalid(code, offset, ins);
+          reg = vector(type, vexL) + ((code.get(p++) & 0xff) >> 4 & (x64 ? 15 : 7));
+          break;
+        case M_F:
+          reg = Register.FPU + rm3;
+          break;
+        case M_Z:
+          reg = gpr(sizeOf(type, operandSize, vectorSize), opcode & 7 | (ext & 1) << 3, rex);
+          break;
+        case M_REG:
+          reg = op & 0xffff;
+          break;
+        case M_VREG:
+          reg = gpr(operandSize, op & 0xffff, rex);
+          break;
+        case M_ZREG:
+          reg = gpr(operandSize == 2 ? 2 : 4, op & 0xffff, rex);
+          break;
+        case M_ONE:
+          kind = DecodedInstruction.OPERAND_IMMEDIATE;
+          size = 1;
+          reg = immediates++;
+          if (reg == 0)
+            ins.immediate = 1;
+          else
+            ins.immediate2 = 1;
+          break;
+        case M_I: {
+          kind = DecodedInstruction.OPERAND_IMMEDIATE;
+          int len = type == T_BS ? 1 : type == T_V ? operandSize :
+                  Math.min(sizeOf(type, operandSize, vectorSize), 4);
+          size = type == T_BS || type == T_Z ? operandSize : sizeOf(type, operandSize, vectorSize);
+          if (p + len > end)
+            return invalid(code, offset, ins);
+          long value = type == T_BS || type == T_Z ? readSigned(code, p, len) : readUnsigned(code, p, len);
+          p += len;
+          reg = immediates++;
+          if (reg == 0)
+            ins.immediate = value;
+          else
+            ins.immediate2 = (int) value;
+          break;
+        }
+        case M_J: {
+          kind = DecodedInstruction.OPERAND_RELATIVE;
+          int len = type == T_B ? 1 : operandSize == 2 ? 2 : 4;
+          if (p + len > end)
+            return invalid(code, offset, ins);
+          ins.immediate = readSigned(code, p, len);
+          p += len;
+          size = addressSize;
+          break;
+        }
+        case M_O:
+          kind = DecodedInstruction.OPERAND_MEMORY;
+          size = sizeOf(type, operandSize, vectorSize);
+          if (p + addressSize > end)
+            return invalid(code, offset, ins);
+          ins.displacement = readUnsigned(code, p, addressSize);
+          p += addressSize;
+          break;
+        case M_A: {
+          kind = DecodedInstruction.OPERAND_FAR_POINTER;
+          int len = operandSize == 2 ? 2 : 4;
+          if (p + len + 2 > end)
+            return invalid(code, offset, ins);
+          ins.immediate = readUnsigned(code, p, len);
+          ins.immediate2 = (int) readUnsigned(code, p + len, 2);
+          p += len + 2;
+          size = len + 2;
+          break;
+        }
+        case M_X:
+        case M_Y:
+          kind = DecodedInstruction.OPERAND_STRING;
+          size = sizeOf(type, operandSize, vectorSize);
+          reg = gpr(addressSize, method == M_X ? 6 : 7, 0);
+          break;
+        default:
+          return invalid(code, offset, ins);
+      }
+      if (kind == DecodedInstruction.OPERAND_REGISTER)
+        size = Register.getSize(reg);
+      ins.kinds[count] = kind;
+      ins.sizes[count] = size;
+      ins.registers[count] = reg;
+      count++;
+    }
+    if (vvvv != 0 && !vvvvUsed)
+      return invalid(code, offset, ins);
+
+    if ((flags & F_3DNOW) != 0) {
+      if (p >= end)
+        return invalid(code, offset, ins);
+      int suffix = code.get(p++) & 0xff;
+      ins.mnemonic = AMD_3DNOW[suffix];
+      if (ins.mnemonic == Mnemonic.INVALID)
+        return invalid(code, offset, ins);
+      opcode = opcode << 8 | suffix;
+    }
+
+    int length = p - offset;
+    for (int i = 0; i < length; i++) {
+      ins.code[i] = code.get(offset + i);
+    }
+    ins.length = length;
+    ins.prefixes = prefixes;
+    ins.rex = rex;
+    ins.vectorSize = vex ? vectorSize : 0;
+    ins.mandatoryPrefix = mandatory;
+    ins.segment = segment;
+    ins.opcode = opcode;
+    ins.modrm = modrm;
+    ins.operandSize = operandSize;
+    ins.addressSize = addressSize;
+    ins.operandCount = count;
+    return length;
+  }
+
+  private int invalid(@NotNull ByteBuffer code, int offset, @NotNull DecodedInstruction ins) {
+    ins.reset(ins.address);
+    ins.code[0] = code.get(offset);
+    ins.opcode = code.get(offset) & 0xff;
+    ins.length = 1;
+    ins.operandSize = 4;
+    ins.addressSize = mode == MODE_64 ? 8 : 4;
+    return 1;
+  }
+
+  /**
+   * Gets a general register. Any REX prefix selects spl, bpl, sil and dil
+   * in place of ah, ch, dh and bh.
+   */
+  private static int gpr(int size, int number, int rex) {
+    switch (size) {
+      case 1:
+        return (rex != 0 || number > 7 ? Register.GPR8_REX : Register.GPR8) + number;
+      case 2:
+        return Register.GPR16 + number;
+      case 8:
+        return Register.GPR64 + number;
+      default:
+        return Register.GPR32 + number;
+    }
+  }
+
+  private static int vector(int type, int vexL) {
+    return type == T_QQ || type == T_X && vexL != 0 ? Register.YMM : Register.XMM;
+  }
+
+  private int sizeOf(int type, int operandSize, int vectorSize) {
+    switch (type) {
+      case T_B:
+        return 1;
+      case T_W:
+        return 2;
+      case T_D:
+        return 4;
+      case T_Q:
+        return 8;
+      case T_DQ:
+        return 16;
+      case T_X:
+        return vectorSize;
+      case T_H:
+        return vectorSize / 2;
+      case T_F:
+        return vectorSize / 4;
+      case T_E:
+        return vectorSize / 8;
+      case T_QQ:
+        return 32;
+      case T_T:
+        return 10;
+      case T_V:
+      case T_BS:
+        return operandSize;
+      case T_Z:
+        return operandSize == 2 ? 2 : 4;
+      case T_Y:
+        return operandSize == 8 ? 8 : 4;
+      case T_P:
+        return operandSize + 2;
+      case T_S:
+        return mode == MODE_64 ? 10 : 6;
+      case T_A:
+        return operandSize * 2;
+      case T_R:
+        return mode == MODE_64 ? 8 : 4;
+    }
+    return 0;
+  }
+
+  private static long readUnsigned(@NotNull ByteBuffer code, int p, int len) {
+    long value = 0;
+    for (int i = len - 1; i >= 0; i--) {
+      value = value << 8 | code.get(p + i) & 0xff;
+    }
+    return value;
+  }
+
+  private static long readSigned(@NotNull ByteBuffer code, int p, int len) {
+    if (len == 0)
+      return 0;
+    long value = readUnsigned(code, p, len);
+    int shift = 64 - len * 8;
+    return value << shift >> shift;
+  }
+
+  /**
+   * Compiles the opcode map notation into nodes.
+   */
+  private static class Builder {
+    private List<int[]> nodes = new ArrayList<int[]>();
+    private Map<String, String[]> groups = new HashMap<String, String[]>();
+
+    Builder() {
+      nodes.add(node(INVALID));
+      for (String[] g : OpcodeMap.GROUPS) {
+        String[] rows = new String[8];
+        System.arraycopy(g, 1, rows, 0, 8);
+        groups.put(g[0], rows);
+      }
+    }
+
+    @NotNull
+    int[] toArray() {
+      int[] a = new int[nodes.size() * STRIDE];
+      for (int i = 0; i < nodes.size(); i++) {
+        System.arraycopy(nodes.get(i), 0, a, i * STRIDE, STRIDE);
+      }
+      return a;
+    }
+
+    void compileSparse(@NotNull String[] entries, @NotNull int[] map) {
+      for (String s : entries) {
+        map[Integer.parseInt(s.substring(0, 2), 16)] = compile(s.substring(3), null, 0);
+      }
+    }
+
+    int compile(@NotNull String entry, @Nullable int[] ops, int flags) {
+      entry = entry.trim();
+      if (entry.length() == 0)
+        return 0;
+      if (entry.charAt(0) == '*') {
+        String name = entry.substring(1);
+        entry = name + " Pq,Qq|" + name + " Vx,Wx";
+      } else if (entry.charAt(0) == '+') {
+        entry = "|" + entry.substring(1) + " Vx,Hx,Wx";
+      }
+      if (entry.indexOf('|') != -1)
+        return compileChoice(PREFIX, entry.split("\\|"), 4, ops, flags);
+      if (entry.indexOf('~') != -1)
+        return compileChoice(MOD, entry.split("~", -1), 2, ops, flags);
+      if (entry.indexOf('^') != -1)
+        return compileChoice(VEXW, entry.split("\\^", -1), 2, ops, flags);
+      if (entry.indexOf('@') != -1)
+        return compileChoice(VEXL, entry.split("@", -1), 2, ops, flags);
+
+      // Split off the operands and flags
+      String[] tokens = entry.split("\\s+");
+      String operands = null;
+      for (int i = 1; i < tokens.length; i++) {
+        if (tokens[i].startsWith("!"))
+          flags |= parseFlag(tokens[i]);
+        else
+          operands = tokens[i];
+      }
+      if (operands != null)
+        ops = parseOperands(operands);
+
+      if (tokens[0].startsWith("#")) {
+        String[] rows = groups.get(tokens[0].substring(1));
+        if (rows == null)
+          throw new IllegalStateException("Unknown group: " + tokens[0]);
+        boolean rm = false;
+        for (String row : rows) {
+          rm |= row.indexOf(';') != -1;
+        }
+        int[] group = node(rm ? RMTABLE : GROUP);
+        group[CHILD] = reserve(rm ? 64 : 8);
+        for (int i = 0; i < 8; i++) {
+          if (rm) {
+            String[] cells = rows[i].split(";", -1);
+            for (int j = 0; j < 8; j++) {
+              set(group[CHILD] + i * 8 + j, compile(cells.length == 8 ? cells[j] : rows[i], ops, flags));
+            }
+          } else {
+            set(group[CHILD] + i, compile(rows[i], ops, flags));
+          }
+        }
+        return add(group);
+      }
+
+      int[] node = node(NORMAL);
+      String[] names = tokens[0].split(":");
+      for (int i = 0; i < 3; i++) {
+        node[NAMES + i] = Mnemonic.get(names[Math.min(i, names.length - 1)]);
+      }
+      if (ops != null) {
+        System.arraycopy(ops, 0, node, OPS, ops.length);
+        for (int op : ops) {
+          if (usesModRM(op >>> 26))
+            flags |= F_MODRM;
+        }
+      }
+      node[FLAGS] = flags;
+      return add(node);
+    }
+
+    private int compileChoice(int kind, @NotNull String[] choices, int count, @Nullable int[] ops, int flags) {
+      int[] node = node(kind);
+      node[CHILD] = reserve(count);
+      for (int i = 0; i < count; i++) {
+        set(node[CHILD] + i, i < choices.length ? compile(choices[i], ops, flags) : 0);
+      }
+      return add(node);
+    }
+
+    private int reserve(int count) {
+      int first = nodes.size();
+      for (int i = 0; i < count; i++) {
+        nodes.add(null);
+      }
+      return first;
+    }
+
+    private void set(int index, int node) {
+      nodes.set(index, nodes.get(node).clone());
+    }
+
+    private int add(@NotNull int[] node) {
+      nodes.add(node);
+      return nodes.size() - 1;
+    }
+
+    @NotNull
+    private static int[] node(int kind) {
+      int[] node = new int[STRIDE];
+      node[KIND] = kind;
+      return node;
+    }
+
+    private static boolean usesModRM(int method) {
+      switch (method) {
+        case M_E:
+        case M_G:
+        case M_M:
+        case M_R:
+        case M_S:
+        case M_C:
+        case M_D:
+        case M_P:
+        case M_Q:
+        case M_N:
+        case M_V:
+        case M_W:
+        case M_U:
+        case M_F:
+          return true;
+      }
+      return false;
+    }
+
+    private static int parseFlag(@NotNull String flag) {
+      if (flag.equals("!i64"))
+        return F_I64;
+      if (flag.equals("!o64"))
+        return F_O64;
+      if (flag.equals("!d64"))
+        return F_D64;
+      if (flag.equals("!f64"))
+        return F_F64;
+      if (flag.equals("!as"))
+        return F_AS;
+      if (flag.equals("!rm"))
+        return F_RM;
+      if (flag.equals("!3dnow"))
+        return F_3DNOW;
+      if (flag.equals("!vsibd"))
+        return F_VSIBD;
+      if (flag.equals("!vsibq"))
+        return F_VSIBQ;
+      throw new IllegalStateException("Unknown flag: " + flag);
+    }
+
+    @NotNull
+    private static int[] parseOperands(@NotNull String operands) {
+      String[] s = operands.split(",");
+      int[] ops = new int[s.length];
+      for (int i = 0; i < s.length; i++) {
+        ops[i] = parseOperand(s[i]);
+      }
+      return ops;
+    }
+
+    private static int parseOperand(@NotNull String s) {
+      String fixed = "AL CL DL BL AH CH DH BH ";
+      int i = fixed.indexOf(s + " ");
+      if (s.length() == 2 && i != -1)
+        return operand(M_REG, T_NONE, T_NONE, Register.GPR8 + i / 3);
+      String segments = "ES CS SS DS FS GS ";
+      i = segments.indexOf(s + " ");
+      if (s.length() == 2 && i != -1)
+        return operand(M_REG, T_NONE, T_NONE, Register.SEGMENT + i / 3);
+      if (s.equals("AX"))
+        return operand(M_REG, T_NONE, T_NONE, Register.GPR16);
+      if (s.equals("DX"))
+        return operand(M_REG, T_NONE, T_NONE, Register.GPR16 + 2);
+      if (s.equals("ST"))
+        return operand(M_REG, T_NONE, T_NONE, Register.FPU);
+      if (s.equals("1"))
+        return operand(M_ONE, T_NONE, T_NONE, 0);
+      if (s.equals("zAX"))
+        return operand(M_ZREG, T_NONE, T_NONE, 0);
+      String accumulators = "rAX rCX rDX rBX rSP rBP rSI rDI ";
+      i = accumulators.indexOf(s + " ");
+      if (s.length() == 3 && i != -1)
+        return operand(M_VREG, T_NONE, T_NONE, i / 4);
+
+      int slash = s.indexOf('/');
+      if (slash != -1) {
+        // Different types for register and memory, as in Rd/Mw
+        String a = s.substring(0, slash);
+        String b = s.substring(slash + 1);
+        String reg = a.charAt(0) == 'M' ? b : a;
+        String mem = a.charAt(0) == 'M' ? a : b;
+        int method = reg.charAt(0) == 'R' ? M_E : reg.charAt(0) == 'U' ? M_W : M_Q;
+        return operand(method, parseType(reg.substring(1)), parseType(mem.substring(1)), 0);
+      }
+
+      int method = "EGMRIJOASCDPQNVWUFZXYHBL".indexOf(s.charAt(0));
+      if (method == -1)
+        throw new IllegalStateException("Unknown operand: " + s);
+      int type = parseType(s.substring(1));
+      return operand(method + 1, type, type, 0);
+    }
+
+    private static int parseType(@NotNull String s) {
+      String[] types = {"", "b", "w", "d", "q", "dq", "qq", "t", "v", "z", "y", "x", "p", "s", "a", "r", "bs", "h", "f", "e"};
+      for (int i = 0; i < types.length; i++) {
+        if (types[i].equals(s))
+          return i;
+      }
+      throw new IllegalStateException("Unknown operand type: " + s);
+    }
+
+    private static int operand(int method, int type, int memType, int reg) {
+      return method << 26 | type << 21 | memType << 16 | reg;
+    }
+  }
+}
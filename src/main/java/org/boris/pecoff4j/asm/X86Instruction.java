@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.asm;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A copy of a DecodedInstruction that keeps its bytes and text, as returned
+ * by AssemblyParser.
+ */
+public class X86Instruction extends AbstractInstruction {
+  private int mnemonic;
+  private int flow;
+  private long target;
+  private String text;
+
+  public X86Instruction(@NotNull DecodedInstruction ins) {
+    this.code = ins.toCode();
+    this.mnemonic = ins.getMnemonic();
+    this.flow = ins.getFlow();
+    this.target = ins.getRelativeOperand() == -1 ? -1 : ins.getTarget();
+    this.text = ins.toIntelAssembly();
+  }
+
+  public int getMnemonic() {
+    return mnemonic;
+  }
+
+  public int getFlow() {
+    return flow;
+  }
+
+  /**
+   * Gets the destination of a relative branch, or -1 if there is none.
+   */
+  public long getTarget() {
+    return target;
+  }
+
+  @NotNull
+  public String toIntelAssembly() {
+    return text;
+  }
+}
@@ -0,0 +1,540 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.asm;
+
+import org.boris.pecoff4j.ImageData;
+import org.boris.pecoff4j.ImportDirectory;
+import org.boris.pecoff4j.ImportDirectoryEntry;
+import org.boris.pecoff4j.PE;
+import org.boris.pecoff4j.SectionData;
+import org.boris.pecoff4j.SectionTable;
+import org.boris.pecoff4j.constant.MachineType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An index of the references between the instructions of an image and the
+ * RVAs they call, jump to or address, built from an InstructionStream.
+ * <p>
+ * References are held in sorted int arrays: once by source, which is the
+ * order of the stream, and once by target. Either lookup is a binary search.
+ * The import address table slots of the image are indexed with their module
+ * and function names, so a call through a slot, or through a thunk that
+ * jumps through one, can be tied to the import it calls.
+ * <p>
+ * The index can be written to a file and read back. Sources are stored as
+ * deltas and targets relative to their source, as variable length ints.
+ */
+public class XrefIndex {
+  public static final int XREF_CALL = 0;
+  public static final int XREF_JUMP = 1;
+  public static final int XREF_DATA = 2;
+
+  private static final int MAGIC = 0x58524546; // XREF
+  private static final int VERSION = 1;
+
+  // References by source
+  private final int[] sources;
+  private final int[] targets;
+  private final byte[] kinds;
+
+  // References by target, as indexes into the source arrays
+  private final int[] sortedTargets;
+  private final int[] targetIndexes;
+
+  // Import address table slots, sorted
+  private final int[] importSlots;
+  private final String[] importModules;
+  private final String[] importNames;
+
+  // Instructions that jump through a slot, sorted, with their import index
+  private final int[] thunks;
+  private final int[] thunkImports;
+
+  private XrefIndex(@NotNull int[] sources, @NotNull int[] targets, @NotNull byte[] kinds,
+                    @NotNull int[] importSlots, @NotNull String[] importModules, @NotNull String[] importNames,
+                    @NotNull int[] thunks, @NotNull int[] thunkImports) {
+    this.sources = sources;
+    this.targets = targets;
+    this.kinds = kinds;
+    this.importSlots = importSlots;
+    this.importModules = importModules;
+    this.importNames = importNames;
+    this.thunks = thunks;
+    this.thunkImports = thunkImports;
+
+    int n = sources.length;
+    long[] keys = new long[n];
+    for (int i = 0; i < n; i++) {
+      keys[i] = (long) targets[i] << 32 | i;
+    }
+    Arrays.sort(keys);
+    sortedTargets = new int[n];
+    targetIndexes = new int[n];
+    for (int i = 0; i < n; i++) {
+      sortedTargets[i] = (int) (keys[i] >>> 32);
+      targetIndexes[i] = (int) keys[i];
+    }
+  }
+
+  /**
+   * Builds an index from the instructions of an image.
+   *
+   * @param pe           the image, for its imports.
+   * @param instructions the instructions, in RVA order.
+   */
+  @NotNull
+  public static XrefIndex build(@NotNull PE pe, @NotNull InstructionStream instructions) {
+    int n = 0;
+    for (int i = 0; i < instructions.size(); i++) {
+      if (instructions.getReference(i) != -1)
+        n++;
+    }
+    int[] sources = new int[n];
+    int[] targets = new int[n];
+    byte[] kinds = new byte[n];
+    n = 0;
+    for (int i = 0; i < instructions.size(); i++) {
+      int ref = instructions.getReference(i);
+      if (ref == -1)
+        continue;
+      sources[n] = instructions.getRVA(i);
+      targets[n] = ref;
+      switch (Mnemonic.getFlow(instructions.getMnemonic(i))) {
+        case Mnemonic.FLOW_CALL:
+          kinds[n] = XREF_CALL;
+          break;
+        case Mnemonic.FLOW_JUMP:
+        case Mnemonic.FLOW_CONDITIONAL:
+          kinds[n] = XREF_JUMP;
+          break;
+        default:
+          kinds[n] = XREF_DATA;
+      }
+      n++;
+    }
+
+    List<Import> imports = readImports(pe);
+    int[] importSlots = new int[imports.size()];
+    String[] importModules = new String[imports.size()];
+    String[] importNames = new String[imports.size()];
+    for (int i = 0; i < importSlots.length; i++) {
+      Import im = imports.get(i);
+      importSlots[i] = im.slot;
+      importModules[i] = im.module;
+      importNames[i] = im.name;
+    }
+
+    // A jump through a slot is a thunk only if it is called, as a function
+    // may also end in a tail jump through a slot
+    int[] called = new int[n];
+    int c = 0;
+    for (int i = 0; i < n; i++) {
+      if (kinds[i] == XREF_CALL)
+        called[c++] = targets[i];
+    }
+    Arrays.sort(called, 0, c);
+
+    int[] thunks = new int[16];
+    int[] thunkImports = new int[16];
+    int t = 0;
+    for (int i = 0; i < n; i++) {
+      int im = Arrays.binarySearch(importSlots, targets[i]);
+      if (im >= 0 && kinds[i] == XREF_JUMP && Arrays.binarySearch(called, 0, c, sources[i]) >= 0) {
+        if (t == thunks.length) {
+          thunks = Arrays.copyOf(thunks, t * 2);
+          thunkImports = Arrays.copyOf(thunkImports, t * 2);
+        }
+        thunks[t] = sources[i];
+        thunkImports[t++] = im;
+      }
+    }
+    return new XrefIndex(sources, targets, kinds, importSlots, importModules, importNames,
+            Arrays.copyOf(thunks, t), Arrays.copyOf(thunkImports, t));
+  }
+
+  /**
+   * Builds an index from a linear sweep of the executable sections of an
+   * image.
+   */
+  @NotNull
+  public static XrefIndex build(@NotNull PE pe) {
+    return build(pe, new SectionDisassembler(pe).disassemble());
+  }
+
+  /**
+   * Gets the number of references.
+   */
+  public int size() {
+    return sources.length;
+  }
+
+  /**
+   * Gets the RVA of the instruction that makes a reference.
+   */
+  public int getSource(int i) {
+    return sources[i];
+  }
+
+  /**
+   * Gets the RVA a reference refers to.
+   */
+  public int getTarget(int i) {
+    return targets[i];
+  }
+
+  /**
+   * Gets the kind of a reference, one of the XREF constants.
+   */
+  public int getKind(int i) {
+    return kinds[i];
+  }
+
+  /**
+   * Gets the index of the reference made by the instruction at an RVA, or
+   * -1 if it makes none.
+   */
+  public int indexOfSource(int rva) {
+    int i = Arrays.binarySearch(sources, rva);
+    return i < 0 ? -1 : i;
+  }
+
+  /**
+   * Gets the instructions that refer to an RVA, sorted.
+   */
+  @NotNull
+  public int[] getReferencesTo(int rva) {
+    return getReferencesTo(rva, -1);
+  }
+
+  /**
+   * Gets the instructions that refer to an RVA with a kind of reference,
+   * sorted.
+   *
+   * @param rva  the RVA.
+   * @param kind one of the XREF constants, or -1 for any.
+   */
+  @NotNull
+  public int[] getReferencesTo(int rva, int kind) {
+    int lo = lowerBound(sortedTargets, rva);
+    int n = 0;
+    int[] r = new int[8];
+    for (int i = lo; i < sortedTargets.length && sortedTargets[i] == rva; i++) {
+      int k = targetIndexes[i];
+      if (kind == -1 || kinds[k] == kind) {
+        if (n == r.length)
+          r = Arrays.copyOf(r, n * 2);
+        r[n++] = sources[k];
+      }
+    }
+    return Arrays.copyOf(r, n);
+  }
+
+  /**
+   * Gets the instructions that call an RVA, sorted.
+   */
+  @NotNull
+  public int[] getCallers(int rva) {
+    return getReferencesTo(rva, XREF_CALL);
+  }
+
+  public int getImportCount() {
+    return importSlots.length;
+  }
+
+  /**
+   * Gets the RVA of the import address table slot of an import.
+   */
+  public int getImportSlot(int i) {
+    return importSlots[i];
+  }
+
+  @NotNull
+  public String getImportModule(int i) {
+    return importModules[i];
+  }
+
+  /**
+   * Gets the function name of an import, or #ordinal for an import by
+   * ordinal.
+   */
+  @NotNull
+  public String getImportName(int i) {
+    return importNames[i];
+  }
+
+  /**
+   * Gets the import whose slot is at an RVA, or -1.
+   */
+  public int indexOfImport(int slot) {
+    int i = Arrays.binarySearch(importSlots, slot);
+    return i < 0 ? -1 : i;
+  }
+
+  /**
+   * Gets the first import with a function name, or -1.
+   *
+   * @param module the module name, compared ignoring case, or null for any.
+   * @param name   the function name.
+   */
+  public int indexOfImport(@Nullable String module, @NotNull String name) {
+    for (int i = 0; i < importNames.length; i++) {
+      if (importNames[i].equals(name) && (module == null || importModules[i].equalsIgnoreCase(module)))
+        return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Gets the import that a call to an RVA ends up in: the RVA is either a
+   * slot, or a thunk that jumps through one. Returns -1 otherwise.
+   */
+  public int resolveImport(int rva) {
+    int i = Arrays.binarySearch(thunks, rva);
+    if (i >= 0)
+      return thunkImports[i];
+    return indexOfImport(rva);
+  }
+
+  /**
+   * Gets the instructions that call or jump to an import, either through its
+   * slot or through a thunk that jumps through the slot, sorted. The jumps
+   * of the thunks themselves are left out.
+   */
+  @NotNull
+  public int[] getImportCallers(int i) {
+    int[] r = getCallersAndJumps(importSlots[i]);
+    for (int t = 0; t < thunks.length; t++) {
+      if (thunkImports[t] == i) {
+        int[] c = getCallersAndJumps(thunks[t]);
+        int n = 0;
+        for (int source : r) {
+          if (source != thunks[t])
+            r[n++] = source;
+        }
+        r = Arrays.copyOf(r, n + c.length);
+        System.arraycopy(c, 0, r, n, c.length);
+      }
+    }
+    Arrays.sort(r);
+    return r;
+  }
+
+  @NotNull
+  private int[] getCallersAndJumps(int rva) {
+    int[] c = getReferencesTo(rva, XREF_CALL);
+    int[] j = getReferencesTo(rva, XREF_JUMP);
+    int[] r = Arrays.copyOf(c, c.length + j.length);
+    System.arraycopy(j, 0, r, c.length, j.length);
+    return r;
+  }
+
+  /**
+   * Writes the index to a file.
+   */
+  public void write(@NotNull File file) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      writeVarInt(out, sources.length);
+      int prev = 0;
+      for (int i = 0; i < sources.length; i++) {
+        writeVarInt(out, sources[i] - prev);
+        writeVarInt(out, zigzag(targets[i] - sources[i]));
+        out.writeByte(kinds[i]);
+        prev = sources[i];
+      }
+      writeVarInt(out, importSlots.length);
+      for (int i = 0; i < importSlots.length; i++) {
+        out.writeInt(importSlots[i]);
+        out.writeUTF(importModules[i]);
+        out.writeUTF(importNames[i]);
+      }
+      writeVarInt(out, thunks.length);
+      for (int i = 0; i < thunks.length; i++) {
+        out.writeInt(thunks[i]);
+        writeVarInt(out, thunkImports[i]);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Reads an index written by write.
+   *
+   * @throws IOException if the file is not an index or cannot be read.
+   */
+  @NotNull
+  public static XrefIndex read(@NotNull File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC)
+        throw new IOException("Not a cross reference index: " + file);
+      int version = in.readInt();
+      if (version != VERSION)
+        throw new IOException("Unsupported cross reference index version: " + version);
+      int n = readVarInt(in);
+      int[] sources = new int[n];
+      int[] targets = new int[n];
+      byte[] kinds = new byte[n];
+      int prev = 0;
+      for (int i = 0; i < n; i++) {
+        sources[i] = prev + readVarInt(in);
+        targets[i] = sources[i] + unzigzag(readVarInt(in));
+        kinds[i] = in.readByte();
+        prev = sources[i];
+      }
+      n = readVarInt(in);
+      int[] importSlots = new int[n];
+      String[] importModules = new String[n];
+      String[] importNames = new String[n];
+      for (int i = 0; i < n; i++) {
+        importSlots[i] = in.readInt();
+        importModules[i] = in.readUTF();
+        importNames[i] = in.readUTF();
+      }
+      n = readVarInt(in);
+      int[] thunks = new int[n];
+      int[] thunkImports = new int[n];
+      for (int i = 0; i < n; i++) {
+        thunks[i] = in.readInt();
+        thunkImports[i] = readVarInt(in);
+      }
+      return new XrefIndex(sources, targets, kinds, importSlots, importModules, importNames, thunks,
+              thunkImports);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static int lowerBound(@NotNull int[] a, int key) {
+    int lo = 0;
+    int hi = a.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (a[mid] < key)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+
+  private static int zigzag(int v) {
+    return v << 1 ^ v >> 31;
+  }
+
+  private static int unzigzag(int v) {
+    return v >>> 1 ^ -(v & 1);
+  }
+
+  private static void writeVarInt(@NotNull DataOutputStream out, int v) throws IOException {
+    while ((v & ~0x7f) != 0) {
+      out.writeByte(v & 0x7f | 0x80);
+      v >>>= 7;
+    }
+    out.writeByte(v);
+  }
+
+  private static int readVarInt(@NotNull DataInputStream in) throws IOException {
+    int v = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.readUnsignedByte();
+      v |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        return v;
+    }
+    throw new IOException("Invalid variable length int");
+  }
+
+  /**
+   * Reads the import address table slots of an image with the names they
+   * are bound to, from the import lookup tables in the section data.
+   */
+  @NotNull
+  static List<Import> readImports(@NotNull PE pe) {
+    List<Import> imports = new ArrayList<Import>();
+    ImageData id = pe.getImageData();
+    ImportDirectory dir = id == null ? null : id.getImportTable();
+    if (dir == null)
+      return imports;
+    SectionTable st = pe.getSectionTable();
+    boolean x64 = pe.getCoffHeader().getMachine() == MachineType.IMAGE_FILE_MACHINE_AMD64;
+    int size = x64 ? 8 : 4;
+    for (int i = 0; i < dir.size(); i++) {
+      ImportDirectoryEntry e = dir.getEntry(i);
+      String module = readString(st, e.getNameRVA());
+      int lookup = e.getImportLookupTableRVA() != 0 ? e.getImportLookupTableRVA() :
+              e.getImportAddressTableRVA();
+      for (int k = 0; ; k++) {
+        int lo = SectionDisassembler.readInt(st, lookup + k * size);
+        int hi = x64 ? SectionDisassembler.readInt(st, lookup + k * size + 4) : 0;
+        if (lo == 0 && hi == 0)
+          break;
+        Import im = new Import();
+        im.slot = e.getImportAddressTableRVA() + k * size;
+        im.module = module;
+        if ((x64 ? hi : lo) < 0)
+          im.name = "#" + (lo & 0xffff);
+        else
+          im.name = readString(st, lo + 2);
+        imports.add(im);
+      }
+    }
+    Import[] sorted = imports.toArray(new Import[imports.size()]);
+    Arrays.sort(sorted, new Comparator<Import>() {
+      public int compare(@NotNull Import o1, @NotNull Import o2) {
+        return Integer.compare(o1.slot, o2.slot);
+      }
+    });
+    return Arrays.asList(sorted);
+  }
+
+  @NotNull
+  static String readString(@NotNull SectionTable st, int rva) {
+    for (int i = 0; i < st.getNumberOfSections(); i++) {
+      SectionData sd = st.getSection(i);
+      int offset = rva - st.getHeader(i).getVirtualAddress();
+      if (sd != null && sd.getData() != null && offset >= 0 && offset < sd.getData().length) {
+        byte[] b = sd.getData();
+        int end = offset;
+        while (end < b.length && b[end] != 0)
+          end++;
+        StringBuilder sb = new StringBuilder(end - offset);
+        for (int p = offset; p < end; p++) {
+          sb.append((char) (b[p] & 0xff));
+        }
+        return sb.toString();
+      }
+    }
+    return "";
+  }
+
+  static class Import {
+    int slot;
+    String module;
+    String name;
+  }
+}
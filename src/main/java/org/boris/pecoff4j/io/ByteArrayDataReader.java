@@ -13,6 +13,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 public class ByteArrayDataReader implements IDataReader {
   private byte[] data;
@@ -22,6 +23,7 @@ public class ByteArrayDataReader implements IDataReader {
 
   public ByteArrayDataReader(byte[] data) {
     this.data = data;
+    this.length = data.length;
   }
 
   public ByteArrayDataReader(byte[] data, int offset, int length) {
@@ -70,7 +72,7 @@ public class ByteArrayDataReader implements IDataReader {
   public String readUtf(int size) throws IOException {
     byte[] b = new byte[size];
     read(b);
-    return new String(b);
+    return new String(b, StandardCharsets.ISO_8859_1);
   }
 
   public String readUtf() throws IOException {
@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.io;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A data writer for a channel. Ranges of an unchanged source file can be
+ * copied across with transfer(), which lets the operating system do the copy
+ * without the data passing through the java heap. Large arrays are written
+ * together with the buffered data in a single gathering write, and when
+ * writing a new file long runs of zeros can be skipped, leaving holes that
+ * the file system may store sparsely.
+ */
+public class ChannelDataWriter implements IDataWriter {
+  private static final int BUFFER_SIZE = 65536;
+
+  @NotNull
+  private WritableByteChannel out;
+  @Nullable
+  private FileChannel source;
+  @NotNull
+  private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+  private int position;
+  private boolean sparse;
+
+  public ChannelDataWriter(@NotNull WritableByteChannel out) {
+    this(out, null);
+  }
+
+  /**
+   * @param out    the channel to write to.
+   * @param source the file that unchanged data is transferred from.
+   */
+  public ChannelDataWriter(@NotNull WritableByteChannel out, @Nullable FileChannel source) {
+    this.out = out;
+    this.source = source;
+  }
+
+  @Nullable
+  public FileChannel getSource() {
+    return source;
+  }
+
+  public boolean isSparse() {
+    return sparse;
+  }
+
+  /**
+   * Skips runs of zeros of at least a buffer in length instead of writing
+   * them. This relies on the skipped bytes reading as zeros, so the output
+   * must be a file channel writing a new or truncated file.
+   */
+  public void setSparse(boolean sparse) {
+    if (sparse && !(out instanceof FileChannel))
+      throw new IllegalStateException("Sparse output needs a file channel");
+    this.sparse = sparse;
+  }
+
+  public void writeByte(int b) throws IOException {
+    ensure(1);
+    buffer.put((byte) b);
+    position++;
+  }
+
+  public void writeByte(int b, int count) throws IOException {
+    if (sparse && b == 0 && count >= BUFFER_SIZE) {
+      flushBuffer();
+      FileChannel fc = (FileChannel) out;
+      fc.position(fc.position() + count);
+      position += count;
+      return;
+    }
+    position += count;
+    while (count > 0) {
+      if (!buffer.hasRemaining())
+        flushBuffer();
+      int len = Math.min(count, buffer.remaining());
+      int end = buffer.position() + len;
+      Arrays.fill(buffer.array(), buffer.position(), end, (byte) b);
+      buffer.position(end);
+      count -= len;
+    }
+  }
+
+  public void writeWord(int w) throws IOException {
+    ensure(2);
+    buffer.putShort((short) w);
+    position += 2;
+  }
+
+  public void writeDoubleWord(int dw) throws IOException {
+    ensure(4);
+    buffer.putInt(dw);
+    position += 4;
+  }
+
+  public void writeLong(long l) throws IOException {
+    ensure(8);
+    buffer.putLong(l);
+    position += 8;
+  }
+
+  public void writeBytes(@NotNull byte[] b) throws IOException {
+    if (b.length > buffer.remaining()) {
+      if (b.length > buffer.capacity()) {
+        buffer.flip();
+        write(new ByteBuffer[]{buffer, ByteBuffer.wrap(b)});
+        buffer.clear();
+        position += b.length;
+        return;
+      }
+      flushBuffer();
+    }
+    buffer.put(b);
+    position += b.length;
+  }
+
+  public void writeUtf(@NotNull String s) throws IOException {
+    writeBytes(s.getBytes(StandardCharsets.ISO_8859_1));
+    writeByte(0);
+  }
+
+  public void writeUtf(@NotNull String s, int len) throws IOException {
+    byte[] b = s.getBytes(StandardCharsets.ISO_8859_1);
+    if (b.length >= len) {
+      byte[] t = new byte[len];
+      System.arraycopy(b, 0, t, 0, len);
+      writeBytes(t);
+    } else {
+      writeBytes(b);
+      writeByte(0, len - b.length);
+    }
+  }
+
+  /**
+   * Copies a range of the source file to the output.
+   *
+   * @param offset the offset in the source file.
+   * @param length the number of bytes to copy.
+   * @throws IOException if the source is too short or an error occurs.
+   */
+  public void transfer(long offset, int length) throws IOException {
+    if (source == null)
+      throw new IllegalStateException("No source channel");
+    flushBuffer();
+    long done = 0;
+    while (done < length) {
+      long n = source.transferTo(offset + done, length - done, out);
+      if (n <= 0) {
+        if (offset + done >= source.size())
+          throw new IOException("Unexpected end of source file");
+        // Some channels refuse to transfer directly
+        ByteBuffer bb = ByteBuffer.allocate((int) Math.min(length - done, BUFFER_SIZE));
+        n = source.read(bb, offset + done);
+        if (n <= 0)
+          throw new IOException("Unexpected end of source file");
+        bb.flip();
+        write(bb);
+      }
+      done += n;
+    }
+    position += length;
+  }
+
+  public int getPosition() {
+    return position;
+  }
+
+  public void flush() throws IOException {
+    flushBuffer();
+    if (sparse) {
+      // A trailing hole does not extend the file until something is written
+      FileChannel fc = (FileChannel) out;
+      long end = fc.position();
+      if (end > fc.size())
+        fc.write(ByteBuffer.allocate(1), end - 1);
+    }
+  }
+
+  public void close() throws IOException {
+    flush();
+    out.close();
+  }
+
+  private void ensure(int size) throws IOException {
+    if (buffer.remaining() < size)
+      flushBuffer();
+  }
+
+  private void flushBuffer() throws IOException {
+    buffer.flip();
+    write(buffer);
+    buffer.clear();
+  }
+
+  private void write(@NotNull ByteBuffer bb) throws IOException {
+    while (bb.hasRemaining()) {
+      out.write(bb);
+    }
+  }
+
+  private void write(@NotNull ByteBuffer[] bbs) throws IOException {
+    ByteBuffer last = bbs[bbs.length - 1];
+    if (out instanceof GatheringByteChannel) {
+      while (last.hasRemaining()) {
+        ((GatheringByteChannel) out).write(bbs);
+      }
+    } else {
+      for (ByteBuffer bb : bbs) {
+        write(bb);
+      }
+    }
+  }
+}
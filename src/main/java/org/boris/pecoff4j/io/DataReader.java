@@ -13,6 +13,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 
 public class DataReader implements IDataReader {
   private InputStream dis;
@@ -65,14 +66,14 @@ public class DataReader implements IDataReader {
 
   public int getLength() {
     try {
-      return dis.available();
+      return position + dis.available();
     } catch (IOException e) {
       throw new IllegalStateException("Error getting stream length", e);
     }
   }
 
   public void jumpTo(int location) throws IOException {
-    if (location > position) {
+    if (location >= position) {
       skipBytes(location - position);
     } else {
       dis.reset();
@@ -100,12 +101,17 @@ public class DataReader implements IDataReader {
 
   public void read(@NotNull byte[] b) throws IOException {
     position += b.length;
-    dis.read(b);
+    int off = 0;
+    while (off < b.length) {
+      int n = dis.read(b, off, b.length - off);
+      if (n == -1)
+        break;
+      off += n;
+    }
   }
 
   @NotNull
   public String readUtf(final int size) throws IOException {
-    position += size;
     byte b[] = new byte[size];
     read(b);
     int i = 0;
@@ -113,11 +119,10 @@ public class DataReader implements IDataReader {
       if (b[i] == 0)
         break;
     }
-    return new String(b, 0, i);
+    return new String(b, 0, i, StandardCharsets.ISO_8859_1);
   }
 
   public String readUtf() throws IOException {
-    //TODO: use encoding
     StringBuilder sb = new StringBuilder();
     int c;
     while ((c = readByte()) != 0) {
@@ -12,10 +12,14 @@ package org.boris.pecoff4j.io;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public class DataWriter implements IDataWriter {
   private BufferedOutputStream out;
   private int position;
+  @NotNull
+  private byte[] scratch = new byte[512];
 
   public DataWriter(File output) throws FileNotFoundException {
     this(new FileOutputStream(output));
@@ -31,10 +35,15 @@ public class DataWriter implements IDataWriter {
   }
 
   public void writeByte(int b, int count) throws IOException {
-    for (int i = 0; i < count; i++) {
-      out.write(b);
-    }
+    if (count <= 0)
+      return;
+    Arrays.fill(scratch, 0, Math.min(count, scratch.length), (byte) b);
     position += count;
+    while (count > 0) {
+      int len = Math.min(count, scratch.length);
+      out.write(scratch, 0, len);
+      count -= len;
+    }
   }
 
   public void writeBytes(@NotNull byte[] b) throws IOException {
@@ -43,22 +52,27 @@ public class DataWriter implements IDataWriter {
   }
 
   public void writeDoubleWord(int dw) throws IOException {
-    out.write(dw & 0xff);
-    out.write(dw >> 8 & 0xff);
-    out.write(dw >> 16 & 0xff);
-    out.write(dw >> 24 & 0xff);
+    scratch[0] = (byte) dw;
+    scratch[1] = (byte) (dw >> 8);
+    scratch[2] = (byte) (dw >> 16);
+    scratch[3] = (byte) (dw >> 24);
+    out.write(scratch, 0, 4);
     position += 4;
   }
 
   public void writeWord(int w) throws IOException {
-    out.write(w & 0xff);
-    out.write(w >> 8 & 0xff);
+    scratch[0] = (byte) w;
+    scratch[1] = (byte) (w >> 8);
+    out.write(scratch, 0, 2);
     position += 2;
   }
 
   public void writeLong(long l) throws IOException {
-    writeDoubleWord((int) l);
-    writeDoubleWord((int) (l >> 32));
+    for (int i = 0; i < 8; i++) {
+      scratch[i] = (byte) (l >> i * 8);
+    }
+    out.write(scratch, 0, 8);
+    position += 8;
   }
 
   public void flush() throws IOException {
@@ -74,19 +88,15 @@ public class DataWriter implements IDataWriter {
   }
 
   public void writeUtf(@NotNull String s, int len) throws IOException {
-    byte[] b = s.getBytes(); // FIXME sort out charset
-    int i = 0;
-    for (; i < b.length && i < len; i++) {
-      out.write(b[i]);
-    }
-    for (; i < len; i++) {
-      out.write(0);
-    }
-    position += len;
+    byte[] b = s.getBytes(StandardCharsets.ISO_8859_1);
+    int n = Math.min(b.length, len);
+    out.write(b, 0, n);
+    position += n;
+    writeByte(0, len - n);
   }
 
   public void writeUtf(@NotNull String s) throws IOException {
-    byte[] b = s.getBytes(); // FIXME sort out charset
+    byte[] b = s.getBytes(StandardCharsets.ISO_8859_1);
     out.write(b);
     out.write(0);
     position += b.length + 1;
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.io;
+
+import org.boris.pecoff4j.util.FuzzyHash;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A data reader that feeds each byte of the underlying stream to a fuzzy hash
+ * the first time it is read, so that the whole file digest is calculated in
+ * the same pass as PEParser.read(). Bytes that are skipped over are read and
+ * hashed so the digest always covers the file in order.
+ */
+public class FuzzyHashDataReader implements IDataReader {
+  private IDataReader dr;
+  @NotNull
+  private FuzzyHash hash = new FuzzyHash();
+  private int hashed;
+  private byte[] skip;
+
+  public FuzzyHashDataReader(IDataReader dr) {
+    this.dr = dr;
+  }
+
+  @NotNull
+  public FuzzyHash getHash() {
+    return hash;
+  }
+
+  /**
+   * Hashes any data that has not been read yet and returns the digest.
+   *
+   * @return the digest of the whole stream.
+   * @throws IOException if an error occurs reading the remaining data.
+   */
+  @NotNull
+  public String digest() throws IOException {
+    int remaining = dr.getLength() - dr.getPosition();
+    if (remaining > 0) {
+      jumpTo(dr.getPosition() + remaining);
+    }
+    return hash.digest();
+  }
+
+  public int readByte() throws IOException {
+    int pos = dr.getPosition();
+    int b = dr.readByte();
+    if (b != -1 && pos == hashed) {
+      hash.update(b);
+      hashed++;
+    }
+    return b;
+  }
+
+  public int readWord() throws IOException {
+    return readByte() | readByte() << 8;
+  }
+
+  public int readDoubleWord() throws IOException {
+    return readWord() | readWord() << 16;
+  }
+
+  public long readLong() throws IOException {
+    return (readDoubleWord() & 0x00000000ffffffffl) | ((long) readDoubleWord() << 32l);
+  }
+
+  public int getPosition() {
+    return dr.getPosition();
+  }
+
+  public int getLength() {
+    return dr.getLength();
+  }
+
+  public void jumpTo(int location) throws IOException {
+    if (location <= hashed) {
+      dr.jumpTo(location);
+      return;
+    }
+
+    // Read and hash everything up to the new location
+    if (dr.getPosition() != hashed)
+      dr.jumpTo(hashed);
+    if (skip == null)
+      skip = new byte[4096];
+    while (hashed < location) {
+      int len = Math.min(skip.length, location - hashed);
+      if (len != skip.length) {
+        byte[] b = new byte[len];
+        dr.read(b);
+        hash.update(b, 0, len);
+      } else {
+        dr.read(skip);
+        hash.update(skip, 0, len);
+      }
+      hashed += len;
+    }
+  }
+
+  public void skipBytes(int numBytes) throws IOException {
+    jumpTo(dr.getPosition() + numBytes);
+  }
+
+  public void close() throws IOException {
+    dr.close();
+  }
+
+  public void read(@NotNull byte[] b) throws IOException {
+    int pos = dr.getPosition();
+    dr.read(b);
+    if (pos <= hashed && pos + b.length > hashed) {
+      int off = hashed - pos;
+      hash.update(b, off, b.length - off);
+      hashed = pos + b.length;
+    }
+  }
+
+  @NotNull
+  public String readUtf(int size) throws IOException {
+    byte b[] = new byte[size];
+    read(b);
+    int i = 0;
+    for (; i < b.length; i++) {
+      if (b[i] == 0)
+        break;
+    }
+    return new String(b, 0, i, StandardCharsets.ISO_8859_1);
+  }
+
+  @NotNull
+  public String readUtf() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    int c;
+    while ((c = readByte()) != 0) {
+      if (c == -1)
+        throw new IOException("Unexpected end of stream");
+      sb.append((char) c);
+    }
+    return sb.toString();
+  }
+
+  @Nullable
+  public String readUnicode() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    char c;
+    while ((c = (char) readWord()) != 0) {
+      sb.append(c);
+    }
+    if (sb.length() == 0) {
+      return null;
+    }
+    return sb.toString();
+  }
+
+  @NotNull
+  public String readUnicode(int maxLength) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < maxLength; i++) {
+      char c = (char) readWord();
+      if (c == 0) {
+        break;
+      }
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,342 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.io;
+
+import org.boris.pecoff4j.*;
+import org.boris.pecoff4j.constant.ImageDataDirectoryType;
+import org.boris.pecoff4j.constant.SectionFlag;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Reassigns the file and virtual offsets of the sections after sections have
+ * been added or their data has changed size, and fixes up the header fields
+ * that depend on them. Once laid out, PEAssembler writes the file in one
+ * sequential pass.
+ * <p>
+ * Sections keep their offsets unless they would overlap the headers or the
+ * section before them. The contents of a section that moves in memory are
+ * not relocated, except for the resource directory which is rebuilt for its
+ * new address, so sections holding code or RVA based tables should only be
+ * grown when nothing follows them.
+ * <p>
+ * When compacting, the gaps left by sections that shrank or were removed are
+ * closed up. Every section is packed in the file, but in memory only the
+ * sections that hold nothing but resources or base relocations are moved,
+ * as anything else may be referenced by address from code.
+ */
+public class LayoutEngine {
+  private static final int SECTION_HEADER_SIZE = 40;
+  private static final int CERTIFICATE_ALIGNMENT = 8;
+
+  /**
+   * Lays out the executable.
+   *
+   * @param pe the executable.
+   */
+  public static void layout(@NotNull PE pe) {
+    layout(pe, false);
+  }
+
+  /**
+   * Lays out the executable.
+   *
+   * @param pe      the executable.
+   * @param compact whether to close up gaps between the sections.
+   */
+  public static void layout(@NotNull PE pe, boolean compact) {
+    OptionalHeader oh = pe.getOptionalHeader();
+    COFFHeader ch = pe.getCoffHeader();
+    SectionTable st = pe.getSectionTable();
+    ImageData id = pe.getImageData();
+    int fa = oh.getFileAlignment();
+    int sa = oh.getSectionAlignment();
+    int ns = st.getNumberOfSections();
+
+    // Headers
+    ch.setNumberOfSections(ns);
+    int endOfHeaders = pe.getDosHeader().getAddressOfNewExeHeader() + 24 +
+            ch.getSizeOfOptionalHeader() + ns * SECTION_HEADER_SIZE;
+    pe.setEndOfSectionTable(endOfHeaders);
+    clearHeaderDirectories(pe, endOfHeaders);
+    int sizeOfHeaders = Math.max(oh.getSizeOfHeaders(), align(endOfHeaders, fa));
+    oh.setSizeOfHeaders(sizeOfHeaders);
+
+    // Remember the old layout to fix up addresses
+    int[] oldVirtualAddress = new int[ns];
+    int[] oldVirtualEnd = new int[ns];
+    int[] oldSizeOfRawData = new int[ns];
+    int[] oldVirtualSize = new int[ns];
+    int oldEndOfSections = 0;
+    for (int i = 0; i < ns; i++) {
+      SectionHeader sh = st.getHeader(i);
+      oldVirtualAddress[i] = sh.getVirtualAddress();
+      oldSizeOfRawData[i] = sh.getSizeOfRawData();
+      oldVirtualSize[i] = sh.getVirtualSize();
+      if (sh.getVirtualAddress() != 0)
+        oldVirtualEnd[i] = sh.getVirtualAddress() + virtualExtent(sh);
+      if (sh.getPointerToRawData() != 0)
+        oldEndOfSections = Math.max(oldEndOfSections,
+                sh.getPointerToRawData() + sh.getSizeOfRawData());
+    }
+
+    // Raw data sizes
+    for (int i = 0; i < ns; i++) {
+      SectionHeader sh = st.getHeader(i);
+      SectionData sd = st.getSection(i);
+      byte[] data = sd == null ? null : sd.getData();
+      int len = data == null ? 0 : data.length;
+      int sizeOfRawData = align(len, fa);
+      if (len != sizeOfRawData)
+        sd.setData(Arrays.copyOf(data, sizeOfRawData));
+      // Data that changed size must all be mapped, so the virtual size grows
+      // with it before the virtual addresses are assigned. Data of the same
+      // size is the parsed raw data, padded beyond the virtual size.
+      if (sh.getVirtualSize() == 0 || len != oldSizeOfRawData[i] && len > sh.getVirtualSize())
+        sh.setVirtualSize(len);
+      sh.setSizeOfRawData(sizeOfRawData);
+      if (sizeOfRawData == 0)
+        sh.setPointerToRawData(0);
+    }
+
+    // File offsets
+    int pos = sizeOfHeaders;
+    for (SectionHeader sh : sort(st, false)) {
+      if (sh.getSizeOfRawData() == 0)
+        continue;
+      if (compact || sh.getPointerToRawData() < pos)
+        sh.setPointerToRawData(align(pos, fa));
+      pos = sh.getPointerToRawData() + sh.getSizeOfRawData();
+    }
+    int endOfSections = pos;
+
+    // Virtual addresses
+    int vpos = align(sizeOfHeaders, sa);
+    for (SectionHeader sh : sort(st, true)) {
+      if (sh.getVirtualAddress() < vpos || compact && isMovable(oh, sh))
+        sh.setVirtualAddress(vpos);
+      vpos = align(sh.getVirtualAddress() + virtualExtent(sh), sa);
+    }
+    oh.setSizeOfImage(vpos);
+
+    // Fix up addresses within sections that moved
+    boolean resourcesMoved = false;
+    for (int i = 0; i < oh.getDataDirectoryCount(); i++) {
+      if (i == ImageDataDirectoryType.CERTIFICATE_TABLE)
+        continue;
+      ImageDataDirectory idd = oh.getDataDirectory(i);
+      if (idd.getSize() == 0)
+        continue;
+      int va = relocate(st, oldVirtualAddress, oldVirtualEnd, idd.getVirtualAddress());
+      if (va != idd.getVirtualAddress()) {
+        idd.setVirtualAddress(va);
+        if (i == ImageDataDirectoryType.RESOURCE_TABLE)
+          resourcesMoved = true;
+      }
+    }
+    oh.setAddressOfEntryPoint(relocate(st, oldVirtualAddress, oldVirtualEnd,
+            oh.getAddressOfEntryPoint()));
+    oh.setBaseOfCode(relocate(st, oldVirtualAddress, oldVirtualEnd, oh.getBaseOfCode()));
+    if (!oh.isPE32plus())
+      oh.setBaseOfData(relocate(st, oldVirtualAddress, oldVirtualEnd, oh.getBaseOfData()));
+    updateSizes(st, oh, oldSizeOfRawData, oldVirtualSize);
+
+    // Data that lives in the file after the sections
+    ImageDataDirectory cert = oh.getDataDirectory(ImageDataDirectoryType.CERTIFICATE_TABLE);
+    DebugDirectory dd = id.getDebug();
+    boolean debugAfterSections = dd != null && id.getDebugRawData() != null &&
+            dd.getPointerToRawData() >= oldEndOfSections;
+    if (cert.getSize() > 0 && (cert.getVirtualAddress() < endOfSections ||
+            compact && !debugAfterSections))
+      cert.setVirtualAddress(align(endOfSections, CERTIFICATE_ALIGNMENT));
+    if (dd != null && dd.getPointerToRawData() >= oldEndOfSections &&
+            dd.getPointerToRawData() < endOfSections && id.getDebugRawData() != null)
+      throw new IllegalStateException("Sections overlap the debug data after them");
+
+    st.updateRVAConverter();
+    if (resourcesMoved && id.getResourceTable() != null)
+      updateResources(pe);
+    int endOfData = clearPreambles(pe);
+
+    // The COFF symbol table of mingw binaries lives in the trailing data
+    int trailing = id.getTrailingDataOffset();
+    int symbols = ch.getPointerToSymbolTable();
+    if (id.getTrailingData() != null && trailing >= 0 && symbols >= trailing)
+      ch.setPointerToSymbolTable(symbols + endOfData - trailing);
+  }
+
+  /**
+   * Rebuilds the resource directory for its new address. The rebuilt data is
+   * padded to the size already laid out for the section.
+   */
+  private static void updateResources(@NotNull PE pe) {
+    ResourceDirectoryAssembler.update(pe);
+    int va = pe.getOptionalHeader().getDataDirectory(
+            ImageDataDirectoryType.RESOURCE_TABLE).getVirtualAddress();
+    SectionTable st = pe.getSectionTable();
+    for (int i = 0; i < st.getNumberOfSections(); i++) {
+      SectionHeader sh = st.getHeader(i);
+      SectionData sd = st.getSection(i);
+      if (sh.getVirtualAddress() != va || sd == null)
+        continue;
+      if (sd.getData().length > sh.getSizeOfRawData())
+        throw new IllegalStateException("Resource directory grew when moved");
+      if (sd.getData().length < sh.getSizeOfRawData())
+        sd.setData(Arrays.copyOf(sd.getData(), sh.getSizeOfRawData()));
+    }
+  }
+
+  /**
+   * A section can only be moved in memory if nothing refers to its contents
+   * other than the data directories, which are relocated.
+   */
+  private static boolean isMovable(@NotNull OptionalHeader oh, @NotNull SectionHeader sh) {
+    if ((sh.getCharacteristics() &
+            (SectionFlag.IMAGE_SCN_CNT_CODE | SectionFlag.IMAGE_SCN_MEM_EXECUTE)) != 0)
+      return false;
+    int start = sh.getVirtualAddress();
+    int end = start + virtualExtent(sh);
+    boolean movable = false;
+    for (int i = 0; i < oh.getDataDirectoryCount(); i++) {
+      ImageDataDirectory idd = oh.getDataDirectory(i);
+      if (i == ImageDataDirectoryType.CERTIFICATE_TABLE || idd.getSize() == 0 ||
+              idd.getVirtualAddress() < start || idd.getVirtualAddress() >= end)
+        continue;
+      if (i != ImageDataDirectoryType.RESOURCE_TABLE &&
+              i != ImageDataDirectoryType.BASE_RELOCATION_TABLE)
+        return false;
+      movable = true;
+    }
+    return movable;
+  }
+
+  /**
+   * The bound import table often sits in the gap after the section headers
+   * and is only an optimization, so it is dropped if the headers grow into it.
+   */
+  private static void clearHeaderDirectories(@NotNull PE pe, int endOfHeaders) {
+    OptionalHeader oh = pe.getOptionalHeader();
+    if (oh.getDataDirectoryCount() <= ImageDataDirectoryType.BOUND_IMPORT)
+      return;
+    ImageDataDirectory idd = oh.getDataDirectory(ImageDataDirectoryType.BOUND_IMPORT);
+    if (idd.getSize() > 0 && idd.getVirtualAddress() < endOfHeaders &&
+            idd.getVirtualAddress() < pe.getSectionTable().getFirstSectionRawDataPointer()) {
+      idd.setVirtualAddress(0);
+      idd.setSize(0);
+      pe.getImageData().setBoundImports(null);
+    }
+  }
+
+  /**
+   * Drops any preamble that no longer matches the gap before its entry, so
+   * that the gap is filled with zeros by the assembler.
+   *
+   * @return where the trailing data will be written.
+   */
+  private static int clearPreambles(@NotNull PE pe) {
+    ImageData id = pe.getImageData();
+    SectionTable st = pe.getSectionTable();
+    int pos = pe.getEndOfSectionTable();
+    int end = pos;
+    DataEntry entry;
+    while ((entry = PEParser.findNextEntry(pe, pos)) != null) {
+      int gap = entry.pointer - pos;
+      int len;
+      if (entry.isSection) {
+        SectionData sd = st.getSection(entry.index);
+        if (sd == null)
+          throw new IllegalStateException("No data for section " + entry.index);
+        if (sd.getPreamble() != null && sd.getPreamble().length != gap)
+          sd.setPreamble(null);
+        len = sd.getData().length;
+      } else if (entry.isDebugRawData) {
+        byte[] pa = id.getDebugRawDataPreamble();
+        if (pa != null && pa.length != gap)
+          id.setDebugRawDataPreamble(null);
+        len = id.getDebugRawData() == null ? 0 : id.getDebugRawData().length;
+      } else {
+        byte[] pa = id.getPreamble(entry.index);
+        if (pa != null && pa.length != gap)
+          id.put(entry.index, null);
+        len = pe.getOptionalHeader().getDataDirectory(entry.index).getSize();
+      }
+      pos = entry.pointer + Math.max(len, 1);
+      end = Math.max(end, entry.pointer + len);
+    }
+    return end;
+  }
+
+  /**
+   * Linkers differ in which sections they count, so the sizes are adjusted by
+   * the change in each section rather than recalculated.
+   */
+  private static void updateSizes(@NotNull SectionTable st, @NotNull OptionalHeader oh,
+                                  @NotNull int[] oldSizeOfRawData, @NotNull int[] oldVirtualSize) {
+    int fa = oh.getFileAlignment();
+    for (int i = 0; i < st.getNumberOfSections(); i++) {
+      SectionHeader sh = st.getHeader(i);
+      int c = sh.getCharacteristics();
+      int raw = sh.getSizeOfRawData() - oldSizeOfRawData[i];
+      if ((c & SectionFlag.IMAGE_SCN_CNT_CODE) != 0)
+        oh.setSizeOfCode(oh.getSizeOfCode() + raw);
+      if ((c & SectionFlag.IMAGE_SCN_CNT_INITIALIZED_DATA) != 0)
+        oh.setSizeOfInitializedData(oh.getSizeOfInitializedData() + raw);
+      if ((c & SectionFlag.IMAGE_SCN_CNT_UNINITIALIZED_DATA) != 0)
+        oh.setSizeOfUninitializedData(oh.getSizeOfUninitializedData() +
+                align(sh.getVirtualSize(), fa) - align(oldVirtualSize[i], fa));
+    }
+  }
+
+  private static int relocate(@NotNull SectionTable st, @NotNull int[] oldVirtualAddress,
+                              @NotNull int[] oldVirtualEnd, int va) {
+    for (int i = 0; i < oldVirtualAddress.length; i++) {
+      if (va >= oldVirtualAddress[i] && va < oldVirtualEnd[i])
+        return va + st.getHeader(i).getVirtualAddress() - oldVirtualAddress[i];
+    }
+    return va;
+  }
+
+  /**
+   * Sorts the section headers by file offset or virtual address. New sections
+   * without an offset are placed after the rest.
+   */
+  @NotNull
+  private static SectionHeader[] sort(@NotNull SectionTable st, final boolean virtual) {
+    SectionHeader[] headers = new SectionHeader[st.getNumberOfSections()];
+    for (int i = 0; i < headers.length; i++) {
+      headers[i] = st.getHeader(i);
+    }
+    Arrays.sort(headers, new Comparator<SectionHeader>() {
+      public int compare(@NotNull SectionHeader o1, @NotNull SectionHeader o2) {
+        long k1 = key(o1);
+        long k2 = key(o2);
+        return k1 < k2 ? -1 : k1 == k2 ? 0 : 1;
+      }
+
+      private long key(@NotNull SectionHeader sh) {
+        int k = virtual ? sh.getVirtualAddress() : sh.getPointerToRawData();
+        return k == 0 ? Long.MAX_VALUE : k & 0xffffffffL;
+      }
+    });
+    return headers;
+  }
+
+  private static int virtualExtent(@NotNull SectionHeader sh) {
+    return sh.getVirtualSize() != 0 ? sh.getVirtualSize() : sh.getSizeOfRawData();
+  }
+
+  static int align(int value, int alignment) {
+    if (alignment <= 1)
+      return value;
+    return (value + alignment - 1) / alignment * alignment;
+  }
+}
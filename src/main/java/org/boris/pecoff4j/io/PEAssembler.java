@@ -14,6 +14,7 @@ import org.boris.pecoff4j.constant.ImageDataDirectoryType;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 public class PEAssembler {
@@ -24,11 +25,19 @@ public class PEAssembler {
   }
 
   public static void write(@NotNull PE pe, String filename) throws IOException {
-    write(pe, new FileOutputStream(filename));
+    write(pe, new File(filename));
   }
 
   public static void write(@NotNull PE pe, File file) throws IOException {
-    write(pe, new FileOutputStream(file));
+    FileOutputStream os = new FileOutputStream(file);
+    try {
+      ChannelDataWriter dw = new ChannelDataWriter(os.getChannel());
+      dw.setSparse(true);
+      write(pe, dw);
+      dw.flush();
+    } finally {
+      os.close();
+    }
   }
 
   public static void write(@NotNull PE pe, OutputStream os) throws IOException {
@@ -37,6 +46,41 @@ public class PEAssembler {
     dw.flush();
   }
 
+  /**
+   * Writes the executable, copying the sections, certificates and trailing
+   * data that have not been replaced since parsing directly from the source
+   * file. The headers and any changed data are written from the model.
+   *
+   * @param pe     the executable, parsed from source.
+   * @param source the file the executable was parsed from.
+   * @param dest   the file to write to, which must not be the source.
+   * @throws IOException if an error occurs.
+   */
+  public static void write(@NotNull PE pe, @NotNull File source, @NotNull File dest)
+          throws IOException {
+    if (source.getCanonicalFile().equals(dest.getCanonicalFile()))
+      throw new IllegalArgumentException("Cannot rewrite a file in place");
+    FileInputStream is = new FileInputStream(source);
+    try {
+      FileOutputStream os = new FileOutputStream(dest);
+      try {
+        write(pe, is.getChannel(), os.getChannel());
+      } finally {
+        os.close();
+      }
+    } finally {
+      is.close();
+    }
+  }
+
+  public static void write(@NotNull PE pe, @NotNull FileChannel source, @NotNull FileChannel dest)
+          throws IOException {
+    ChannelDataWriter dw = new ChannelDataWriter(dest, source);
+    dw.setSparse(dest.position() == 0 && dest.size() == 0);
+    write(pe, dw);
+    dw.flush();
+  }
+
   public static void write(@NotNull PE pe, @NotNull IDataWriter dw) throws IOException {
     write(pe.getDosHeader(), dw);
     write(pe.getStub(), dw);
@@ -60,7 +104,7 @@ public class PEAssembler {
     // Dump out any trailing data - TODO find out what this is
     byte[] tb = pe.getImageData().getTrailingData();
     if (tb != null)
-      dw.writeBytes(tb);
+      writeData(tb, pe.getImageData().getTrailingDataOffset(), dw);
   }
 
   private static void write(@NotNull DOSHeader dh, @NotNull IDataWriter dw) throws IOException {
@@ -229,7 +273,7 @@ public class PEAssembler {
         dw.writeBytes(id.getExceptionTable());
         break;
       case ImageDataDirectoryType.CERTIFICATE_TABLE:
-        dw.writeBytes(id.getCertificateTable());
+        writeData(id.getCertificateTable(), id.getCertificateTableOffset(), dw);
         break;
       case ImageDataDirectoryType.BASE_RELOCATION_TABLE:
         dw.writeBytes(id.getBaseRelocationTable());
@@ -293,8 +337,17 @@ public class PEAssembler {
       }
     }
 
-    byte[] b = sd.getData();
-    dw.writeBytes(b);
+    writeData(sd.getData(), sd.getSourceOffset(), dw);
+  }
+
+  private static void writeData(@NotNull byte[] b, int sourceOffset, @NotNull IDataWriter dw)
+          throws IOException {
+    if (sourceOffset != -1 && dw instanceof ChannelDataWriter &&
+            ((ChannelDataWriter) dw).getSource() != null) {
+      ((ChannelDataWriter) dw).transfer(sourceOffset, b.length);
+    } else {
+      dw.writeBytes(b);
+    }
   }
 
   private static void write(@NotNull PE pe, @NotNull BoundImportDirectoryTable bidt,
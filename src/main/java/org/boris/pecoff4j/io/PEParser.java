@@ -87,6 +87,7 @@ public class PEParser {
     int endOfSignature = dr.getPosition();
     dr.jumpTo(stubOffset);
     pe.setStub(readStub(pe.getDosHeader(), dr));
+    pe.setRichHeader(readRichHeader(pe.getDosHeader(), pe.getStub(), stubOffset));
     dr.jumpTo(endOfSignature);
 
     pe.setCoffHeader(readCOFF(dr));
@@ -134,9 +135,11 @@ public class PEParser {
     int length = dr.getLength() - dr.getPosition();
 
     if (length > 0) {
+      int offset = dr.getPosition();
       byte[] trailingData = new byte[length];
       dr.read(trailingData);
       pe.getImageData().setTrailingData(trailingData);
+      pe.getImageData().setTrailingDataOffset(offset);
     }
   }
 
@@ -194,6 +197,125 @@ public class PEParser {
     return ds;
   }
 
+  /**
+   * Decodes the rich header from the stub bytes that have already been read.
+   *
+   * @param header     the dos header, which is included in the checksum.
+   * @param stub       the stub to search.
+   * @param stubOffset the file offset of the stub.
+   * @return the rich header or null if the stub does not contain one.
+   */
+  @Nullable
+  public static RichHeader readRichHeader(@NotNull DOSHeader header, @NotNull DOSStub stub,
+                                          int stubOffset) {
+    byte[] b = stub.getStub();
+    if (b == null)
+      return null;
+
+    // The rich marker is dword aligned and followed by the xor key
+    int rich = -1;
+    for (int i = ((b.length - 8) & ~3); i >= 0; i -= 4) {
+      if (readDoubleWord(b, i) == RichHeader.RICH_MAGIC) {
+        rich = i;
+        break;
+      }
+    }
+    if (rich == -1)
+      return null;
+    int key = readDoubleWord(b, rich + 4);
+
+    // Work back to the start marker
+    int dans = -1;
+    for (int i = rich - 4; i >= 0; i -= 4) {
+      if ((readDoubleWord(b, i) ^ key) == RichHeader.DANS_MAGIC) {
+        dans = i;
+        break;
+      }
+    }
+    if (dans == -1)
+      return null;
+
+    byte[] decoded = new byte[rich - dans];
+    for (int i = 0; i < decoded.length; i += 4) {
+      int dw = readDoubleWord(b, dans + i) ^ key;
+      decoded[i] = (byte) dw;
+      decoded[i + 1] = (byte) (dw >> 8);
+      decoded[i + 2] = (byte) (dw >> 16);
+      decoded[i + 3] = (byte) (dw >> 24);
+    }
+
+    // Entries start after the marker and three padding dwords
+    int ne = (decoded.length - 16) / 8;
+    if (ne < 0)
+      ne = 0;
+    int[] compIds = new int[ne];
+    int[] counts = new int[ne];
+    for (int i = 0; i < ne; i++) {
+      compIds[i] = readDoubleWord(decoded, 16 + i * 8);
+      counts[i] = readDoubleWord(decoded, 20 + i * 8);
+    }
+
+    // The checksum covers the dos header (minus e_lfanew) and stub up to the
+    // start marker, followed by the entries
+    int start = stubOffset + dans;
+    int checksum = start;
+    int[] words = toWords(header);
+    for (int i = 0; i < words.length && i * 2 < start; i++) {
+      checksum += Integer.rotateLeft(words[i] & 0xff, i * 2);
+      checksum += Integer.rotateLeft((words[i] >> 8) & 0xff, i * 2 + 1);
+    }
+    for (int i = 0; i < dans; i++) {
+      checksum += Integer.rotateLeft(b[i] & 0xff, stubOffset + i);
+    }
+    for (int i = 0; i < ne; i++) {
+      checksum += Integer.rotateLeft(compIds[i], counts[i]);
+    }
+
+    RichHeader rh = new RichHeader();
+    rh.setOffset(start);
+    rh.setKey(key);
+    rh.setChecksum(checksum);
+    rh.setEntries(compIds, counts);
+    rh.setDecoded(decoded);
+    return rh;
+  }
+
+  private static int readDoubleWord(@NotNull byte[] b, int offset) {
+    return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8 |
+            (b[offset + 2] & 0xff) << 16 | (b[offset + 3] & 0xff) << 24;
+  }
+
+  @NotNull
+  private static int[] toWords(@NotNull DOSHeader dh) {
+    // The first 30 words of the header, ie. everything except e_lfanew
+    int[] w = new int[30];
+    w[0] = dh.getMagic();
+    w[1] = dh.getUsedBytesInLastPage();
+    w[2] = dh.getFileSizeInPages();
+    w[3] = dh.getNumRelocationItems();
+    w[4] = dh.getHeaderSizeInParagraphs();
+    w[5] = dh.getMinExtraParagraphs();
+    w[6] = dh.getMaxExtraParagraphs();
+    w[7] = dh.getInitialSS();
+    w[8] = dh.getInitialSP();
+    w[9] = dh.getChecksum();
+    w[10] = dh.getInitialIP();
+    w[11] = dh.getInitialRelativeCS();
+    w[12] = dh.getAddressOfRelocationTable();
+    w[13] = dh.getOverlayNumber();
+    int[] res = dh.getReserved();
+    for (int i = 0; res != null && i < res.length && i < 4; i++) {
+      w[14 + i] = res[i];
+    }
+    w[18] = dh.getOemId();
+    w[19] = dh.getOemInfo();
+    int[] res2 = dh.getReserved2();
+    for (int i = 0; res2 != null && i < res2.length && i < 10; i++) {
+      w[20 + i] = res2[i];
+    }
+    return w;
+  }
+
   @NotNull
   public static PESignature readSignature(@NotNull IDataReader dr) throws IOException {
     PESignature ps = new PESignature();
@@ -284,15 +406,7 @@ public class PEParser {
       st.add(readSectionHeader(dr));
     }
 
-    SectionHeader[] sorted = st.getHeadersPointerSorted();
-    int[] virtualAddress = new int[sorted.length];
-    int[] pointerToRawData = new int[sorted.length];
-    for (int i = 0; i < sorted.length; i++) {
-      virtualAddress[i] = sorted[i].getVirtualAddress();
-      pointerToRawData[i] = sorted[i].getPointerToRawData();
-    }
-
-    st.setRvaConverter(new RVAConverter(virtualAddress, pointerToRawData));
+    st.updateRVAConverter();
     return st;
   }
 
@@ -417,6 +531,7 @@ public class PEParser {
         break;
       case ImageDataDirectoryType.CERTIFICATE_TABLE:
         id.setCertificateTable(b);
+        id.setCertificateTableOffset(entry.pointer);
         break;
       case ImageDataDirectoryType.BASE_RELOCATION_TABLE:
         id.setBaseRelocationTable(b);
@@ -458,7 +573,7 @@ public class PEParser {
   private static byte[] readPreambleData(int pointer, @NotNull IDataReader dr)
           throws IOException {
     if (pointer > dr.getPosition()) {
-      byte[] pa = new byte[Math.min(pointer - dr.getPosition(), dr.getLength())];
+      byte[] pa = new byte[Math.max(0, Math.min(pointer, dr.getLength()) - dr.getPosition())];
       dr.read(pa);
       boolean zeroes = true;
       for (int i = 0; i < pa.length; i++) {
@@ -502,6 +617,7 @@ public class PEParser {
     byte[] b = new byte[sh.getSizeOfRawData()];
     dr.read(b);
     sd.setData(b);
+    sd.setSourceOffset(sh.getPointerToRawData());
     st.put(entry.index, sd);
 
     // Check for an image directory within this section
@@ -749,7 +865,7 @@ public class PEParser {
     int pos = dr.getPosition();
     if ((id & 0x80000000) != 0) {
       dr.jumpTo(id & 0x7fffffff);
-      re.setName(dr.readUnicode(255));
+      re.setName(dr.readUnicode(dr.readWord()));
     } else {
       re.setId(id);
     }
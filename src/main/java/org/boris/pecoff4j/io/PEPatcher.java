@@ -0,0 +1,514 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.io;
+
+import org.boris.pecoff4j.OptionalHeader;
+import org.boris.pecoff4j.PESignature;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Edits the fixed size header fields of an executable in place, without
+ * parsing or rewriting the file. The file is memory mapped and only the
+ * changed bytes are touched.
+ * <p>
+ * The checksum is maintained incrementally: once the sum of the file is
+ * known, each edit adjusts it by the words that changed, so updateChecksum()
+ * does not need to read the file again. Call trustChecksum() if the stored
+ * checksum is known to be correct to avoid reading the file at all.
+ */
+public class PEPatcher {
+  private static final int COFF_SIZE = 20;
+  private static final int SECTION_HEADER_SIZE = 40;
+  private static final int DATA_DIRECTORY_SIZE = 8;
+
+  @NotNull
+  private File path;
+  @NotNull
+  private RandomAccessFile file;
+  @NotNull
+  private MappedByteBuffer buffer;
+  private int length;
+  private int coffOffset;
+  private int optionalOffset;
+  private int sectionOffset;
+  private int checkSumOffset;
+  private int dataDirectoryOffset;
+  private int numberOfSections;
+  private int numberOfRvaAndSizes;
+  private boolean is64;
+
+  // The sum of the file words modulo 0xffff, or -1 if not known yet
+  private long sum = -1;
+
+  public PEPatcher(@NotNull File f) throws IOException {
+    path = f;
+    file = new RandomAccessFile(f, "rw");
+    try {
+      long len = file.length();
+      if (len > Integer.MAX_VALUE)
+        throw new IOException("File too large: " + f);
+      length = (int) len;
+      buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      readOffsets(f);
+    } catch (IOException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  private void readOffsets(@NotNull File f) throws IOException {
+    if (length < 0x40 || buffer.getShort(0) != 0x5a4d)
+      throw new IOException("Not a PE file: " + f);
+    int pe = buffer.getInt(0x3c);
+    if (pe <= 0 || pe > length - 4 - COFF_SIZE)
+      throw new IOException("Not a PE file: " + f);
+    PESignature ps = new PESignature();
+    ps.setSignature(new byte[]{buffer.get(pe), buffer.get(pe + 1),
+            buffer.get(pe + 2), buffer.get(pe + 3)});
+    if (!ps.isValid())
+      throw new IOException("Not a PE file: " + f);
+    coffOffset = pe + 4;
+    optionalOffset = coffOffset + COFF_SIZE;
+    numberOfSections = getWord(coffOffset + 2);
+    sectionOffset = optionalOffset + getWord(coffOffset + 16);
+    if (optionalOffset + 96 > length)
+      throw new IOException("Truncated optional header: " + f);
+
+    int magic = getWord(optionalOffset);
+    if (magic != OptionalHeader.MAGIC_PE32 && magic != OptionalHeader.MAGIC_PE32plus)
+      throw new IOException("Invalid optional header magic: " + f);
+    is64 = magic == OptionalHeader.MAGIC_PE32plus;
+    checkSumOffset = optionalOffset + 64;
+    dataDirectoryOffset = optionalOffset + (is64 ? 112 : 96);
+    numberOfRvaAndSizes = getDoubleWord(dataDirectoryOffset - 4);
+    if (numberOfRvaAndSizes < 0 ||
+            numberOfRvaAndSizes > (length - dataDirectoryOffset) / DATA_DIRECTORY_SIZE)
+      throw new IOException("Invalid number of data directories: " + f);
+    if (sectionOffset + numberOfSections * SECTION_HEADER_SIZE > length)
+      throw new IOException("Truncated section table: " + f);
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  public boolean isPE32plus() {
+    return is64;
+  }
+
+  public int getCOFFHeaderOffset() {
+    return coffOffset;
+  }
+
+  public int getOptionalHeaderOffset() {
+    return optionalOffset;
+  }
+
+  public int getSectionHeaderOffset(int index) {
+    if (index < 0 || index >= numberOfSections)
+      throw new IllegalArgumentException("Invalid section: " + index);
+    return sectionOffset + index * SECTION_HEADER_SIZE;
+  }
+
+  public int getNumberOfSections() {
+    return numberOfSections;
+  }
+
+  // DOS header
+
+  /**
+   * @return the file offset of the PE signature, e_lfanew.
+   */
+  public int getNewHeaderOffset() {
+    return getDoubleWord(0x3c);
+  }
+
+  /**
+   * Moves the PE headers by setting e_lfanew. The headers must already be at
+   * the new offset; the COFF, optional and section header offsets are read
+   * again from there.
+   *
+   * @throws IllegalArgumentException if there are no valid headers at the
+   *                                  offset, in which case e_lfanew is left
+   *                                  unchanged.
+   */
+  public void setNewHeaderOffset(int offset) {
+    int old = getNewHeaderOffset();
+    putDoubleWord(0x3c, offset);
+    try {
+      readOffsets(path);
+    } catch (IOException e) {
+      putDoubleWord(0x3c, old);
+      try {
+        readOffsets(path);
+      } catch (IOException ex) {
+        throw new IllegalStateException(ex);
+      }
+      throw new IllegalArgumentException("Invalid PE header offset: " + offset, e);
+    }
+  }
+
+  // COFF header
+
+  public int getTimeDateStamp() {
+    return getDoubleWord(coffOffset + 4);
+  }
+
+  public void setTimeDateStamp(int timeDateStamp) {
+    putDoubleWord(coffOffset + 4, timeDateStamp);
+  }
+
+  public int getPointerToSymbolTable() {
+    return getDoubleWord(coffOffset + 8);
+  }
+
+  public void setPointerToSymbolTable(int pointerToSymbolTable) {
+    putDoubleWord(coffOffset + 8, pointerToSymbolTable);
+  }
+
+  public int getNumberOfSymbols() {
+    return getDoubleWord(coffOffset + 12);
+  }
+
+  public void setNumberOfSymbols(int numberOfSymbols) {
+    putDoubleWord(coffOffset + 12, numberOfSymbols);
+  }
+
+  public int getCharacteristics() {
+    return getWord(coffOffset + 18);
+  }
+
+  public void setCharacteristics(int characteristics) {
+    putWord(coffOffset + 18, characteristics);
+  }
+
+  // Optional header
+
+  public int getAddressOfEntryPoint() {
+    return getDoubleWord(optionalOffset + 16);
+  }
+
+  public void setAddressOfEntryPoint(int addressOfEntryPoint) {
+    putDoubleWord(optionalOffset + 16, addressOfEntryPoint);
+  }
+
+  public void setOperatingSystemVersion(int major, int minor) {
+    putWord(optionalOffset + 40, major);
+    putWord(optionalOffset + 42, minor);
+  }
+
+  public void setImageVersion(int major, int minor) {
+    putWord(optionalOffset + 44, major);
+    putWord(optionalOffset + 46, minor);
+  }
+
+  public void setSubsystemVersion(int major, int minor) {
+    putWord(optionalOffset + 48, major);
+    putWord(optionalOffset + 50, minor);
+  }
+
+  public int getCheckSum() {
+    return getDoubleWord(checkSumOffset);
+  }
+
+  public int getSubsystem() {
+    return getWord(optionalOffset + 68);
+  }
+
+  public void setSubsystem(int subsystem) {
+    putWord(optionalOffset + 68, subsystem);
+  }
+
+  public int getDllCharacteristics() {
+    return getWord(optionalOffset + 70);
+  }
+
+  public void setDllCharacteristics(int dllCharacteristics) {
+    putWord(optionalOffset + 70, dllCharacteristics);
+  }
+
+  public int getNumberOfRvaAndSizes() {
+    return numberOfRvaAndSizes;
+  }
+
+  public int getDataDirectoryAddress(int index) {
+    return getDoubleWord(getDataDirectoryOffset(index));
+  }
+
+  public int getDataDirectorySize(int index) {
+    return getDoubleWord(getDataDirectoryOffset(index) + 4);
+  }
+
+  public void setDataDirectory(int index, int virtualAddress, int size) {
+    int off = getDataDirectoryOffset(index);
+    putDoubleWord(off, virtualAddress);
+    putDoubleWord(off + 4, size);
+  }
+
+  private int getDataDirectoryOffset(int index) {
+    if (index < 0 || index >= numberOfRvaAndSizes)
+      throw new IllegalArgumentException("Invalid data directory: " + index);
+    return dataDirectoryOffset + index * DATA_DIRECTORY_SIZE;
+  }
+
+  // Section headers
+
+  @NotNull
+  public String getSectionName(int index) {
+    int off = getSectionHeaderOffset(index);
+    byte[] b = new byte[8];
+    int i = 0;
+    for (; i < b.length; i++) {
+      b[i] = buffer.get(off + i);
+      if (b[i] == 0)
+        break;
+    }
+    return new String(b, 0, i, StandardCharsets.ISO_8859_1);
+  }
+
+  public void setSectionName(int index, @NotNull String name) {
+    byte[] b = name.getBytes(StandardCharsets.ISO_8859_1);
+    if (b.length > 8)
+      throw new IllegalArgumentException("Section name too long: " + name);
+    int off = getSectionHeaderOffset(index);
+    for (int i = 0; i < 8; i++) {
+      putByte(off + i, i < b.length ? b[i] : 0);
+    }
+  }
+
+  public int getSectionVirtualSize(int index) {
+    return getDoubleWord(getSectionHeaderOffset(index) + 8);
+  }
+
+  public void setSectionVirtualSize(int index, int virtualSize) {
+    putDoubleWord(getSectionHeaderOffset(index) + 8, virtualSize);
+  }
+
+  public int getSectionVirtualAddress(int index) {
+    return getDoubleWord(getSectionHeaderOffset(index) + 12);
+  }
+
+  public void setSectionVirtualAddress(int index, int virtualAddress) {
+    putDoubleWord(getSectionHeaderOffset(index) + 12, virtualAddress);
+  }
+
+  public int getSectionSizeOfRawData(int index) {
+    return getDoubleWord(getSectionHeaderOffset(index) + 16);
+  }
+
+  public void setSectionSizeOfRawData(int index, int sizeOfRawData) {
+    putDoubleWord(getSectionHeaderOffset(index) + 16, sizeOfRawData);
+  }
+
+  public int getSectionPointerToRawData(int index) {
+    return getDoubleWord(getSectionHeaderOffset(index) + 20);
+  }
+
+  public void setSectionPointerToRawData(int index, int pointerToRawData) {
+    putDoubleWord(getSectionHeaderOffset(index) + 20, pointerToRawData);
+  }
+
+  public int getSectionPointerToRelocations(int index) {
+    return getDoubleWord(getSectionHeaderOffset(index) + 24);
+  }
+
+  public void setSectionPointerToRelocations(int index, int pointerToRelocations) {
+    putDoubleWord(getSectionHeaderOffset(index) + 24, pointerToRelocations);
+  }
+
+  public int getSectionPointerToLinenumbers(int index) {
+    return getDoubleWord(getSectionHeaderOffset(index) + 28);
+  }
+
+  public void setSectionPointerToLinenumbers(int index, int pointerToLinenumbers) {
+    putDoubleWord(getSectionHeaderOffset(index) + 28, pointerToLinenumbers);
+  }
+
+  public int getSectionCharacteristics(int index) {
+    return getDoubleWord(getSectionHeaderOffset(index) + 36);
+  }
+
+  public void setSectionCharacteristics(int index, int characteristics) {
+    putDoubleWord(getSectionHeaderOffset(index) + 36, characteristics);
+  }
+
+  /**
+   * Converts a virtual address to a file offset using the section headers.
+   *
+   * @return the file offset, or -1 if the address is not in the file.
+   */
+  public int rvaToOffset(int rva) {
+    for (int i = 0; i < numberOfSections; i++) {
+      int va = getSectionVirtualAddress(i);
+      int raw = getSectionSizeOfRawData(i);
+      if (rva >= va && rva < va + raw) {
+        int pointer = getSectionPointerToRawData(i) + rva - va;
+        return pointer < length ? pointer : -1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Gets the number of bytes of a section that are in the file from a
+   * virtual address onwards.
+   *
+   * @return the number of bytes, or 0 if the address is not in the file.
+   */
+  public int getRawExtent(int rva) {
+    for (int i = 0; i < numberOfSections; i++) {
+      int va = getSectionVirtualAddress(i);
+      int raw = getSectionSizeOfRawData(i);
+      if (rva >= va && rva < va + raw)
+        return Math.min(va + raw - rva, length - rvaToOffset(rva));
+    }
+    return 0;
+  }
+
+  // Checksum
+
+  /**
+   * Assumes the stored checksum is correct and derives the file sum from it,
+   * so that updateChecksum() does not have to read the whole file.
+   */
+  public void trustChecksum() {
+    long r = (getCheckSum() & 0xffffffffL) - length;
+    if (r <= 0 || r > 0xffff)
+      throw new IllegalStateException("Stored checksum is not valid");
+    sum = r % 0xffff;
+  }
+
+  /**
+   * Calculates the checksum by reading the whole file.
+   *
+   * @return the checksum.
+   */
+  public int computeChecksum() {
+    sum = computeSum();
+    return toChecksum(sum);
+  }
+
+  public boolean isChecksumValid() {
+    return computeChecksum() == getCheckSum();
+  }
+
+  /**
+   * Writes the checksum for the current contents of the file.
+   *
+   * @return the new checksum.
+   */
+  public int updateChecksum() {
+    if (sum == -1)
+      sum = computeSum();
+    int cs = toChecksum(sum);
+    buffer.putInt(checkSumOffset, cs);
+    return cs;
+  }
+
+  private int toChecksum(long s) {
+    // A non-empty file never folds to zero
+    return (int) ((s == 0 ? 0xffff : s) + length);
+  }
+
+  private long computeSum() {
+    // 2^16 == 1 (mod 0xffff) so wider words can be summed directly
+    long s = 0;
+    int i = 0;
+    for (; i + 8 <= length; i += 8) {
+      long l = buffer.getLong(i);
+      s += (l & 0xffffffffL) + (l >>> 32);
+    }
+    for (; i < length; i++) {
+      s += (long) (buffer.get(i) & 0xff) << ((i & 1) << 3);
+    }
+    s %= 0xffff;
+
+    // The checksum field is not included
+    for (i = checkSumOffset; i < checkSumOffset + 4; i++) {
+      s += 0xffff - (((buffer.get(i) & 0xff) << ((i & 1) << 3)) % 0xffff);
+    }
+    return s % 0xffff;
+  }
+
+  // Raw access
+
+  public int getWord(int offset) {
+    return buffer.getShort(offset) & 0xffff;
+  }
+
+  public int getDoubleWord(int offset) {
+    return buffer.getInt(offset);
+  }
+
+  @NotNull
+  public byte[] getBytes(int offset, int length) {
+    byte[] b = new byte[length];
+    for (int i = 0; i < length; i++) {
+      b[i] = buffer.get(offset + i);
+    }
+    return b;
+  }
+
+  public void putBytes(int offset, @NotNull byte[] b) {
+    for (int i = 0; i < b.length; i++) {
+      putByte(offset + i, b[i]);
+    }
+  }
+
+  public void putByte(int offset, int value) {
+    int old = buffer.get(offset) & 0xff;
+    buffer.put(offset, (byte) value);
+    adjust(offset, old, value & 0xff);
+  }
+
+  public void putWord(int offset, int value) {
+    putByte(offset, value);
+    putByte(offset + 1, value >> 8);
+  }
+
+  public void putDoubleWord(int offset, int value) {
+    putWord(offset, value);
+    putWord(offset + 2, value >> 16);
+  }
+
+  public void putLong(int offset, long value) {
+    putDoubleWord(offset, (int) value);
+    putDoubleWord(offset + 4, (int) (value >> 32));
+  }
+
+  private void adjust(int offset, int oldByte, int newByte) {
+    if (sum == -1 || oldByte == newByte)
+      return;
+    if (offset >= checkSumOffset && offset < checkSumOffset + 4)
+      return;
+    int shift = (offset & 1) << 3;
+    sum = (sum + (newByte << shift) + 0xffff - ((oldByte << shift) % 0xffff)) % 0xffff;
+  }
+
+  /**
+   * Forces the changes to be written to the storage device.
+   */
+  public void flush() {
+    buffer.force();
+  }
+
+  public void close() throws IOException {
+    file.close();
+  }
+}
@@ -12,7 +12,10 @@ package org.boris.pecoff4j.io;
 import org.boris.pecoff4j.resources.*;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class ResourceAssembler {
   public static void write(@NotNull FixedFileInfo info, @NotNull IDataWriter dw)
@@ -91,4 +94,128 @@ public class ResourceAssembler {
       write(id.getEntry(i), dw);
     }
   }
+
+  @NotNull
+  public static byte[] toBytes(@NotNull VersionInfo vi) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DataWriter dw = new DataWriter(bos);
+    write(vi, dw);
+    dw.close();
+    return bos.toByteArray();
+  }
+
+  /**
+   * Writes a version resource. The lengths and padding are calculated from
+   * the contents rather than taken from the model. The writer must be at a
+   * four byte aligned position.
+   */
+  public static void write(@NotNull VersionInfo vi, @NotNull IDataWriter dw) throws IOException {
+    VersionBlock root = new VersionBlock(vi.getKey() == null ? "VS_VERSION_INFO" : vi.getKey(), 0);
+    FixedFileInfo ffi = vi.getFixedFileInfo();
+    if (ffi != null) {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      DataWriter fw = new DataWriter(bos);
+      write(ffi, fw);
+      fw.close();
+      root.value = bos.toByteArray();
+      root.valueLength = root.value.length;
+    }
+
+    StringFileInfo sfi = vi.getStringFileInfo();
+    if (sfi != null) {
+      VersionBlock sb = root.add(sfi.getKey() == null ? "StringFileInfo" : sfi.getKey(), 1);
+      for (int i = 0; i < sfi.getCount(); i++) {
+        StringTable st = sfi.getTable(i);
+        VersionBlock tb = sb.add(st.getKey(), 1);
+        for (int j = 0; j < st.getCount(); j++) {
+          StringPair sp = st.getString(j);
+          String value = sp.getValue() == null ? "" : sp.getValue();
+          VersionBlock pb = tb.add(sp.getKey(), 1);
+          pb.value = toUnicode(value);
+          pb.valueLength = value.length() + 1;
+        }
+      }
+    }
+
+    VarFileInfo vfi = vi.getVarFileInfo();
+    if (vfi != null) {
+      VersionBlock vb = root.add(vfi.getKey() == null ? "VarFileInfo" : vfi.getKey(), 1);
+      for (int i = 0; i < vfi.size(); i++) {
+        int[] values = vfi.getValue(i);
+        VersionBlock var = vb.add(vfi.getName(i), 0);
+        var.value = new byte[values.length * 4];
+        for (int j = 0; j < values.length; j++) {
+          for (int k = 0; k < 4; k++) {
+            var.value[j * 4 + k] = (byte) (values[j] >> (k * 8));
+          }
+        }
+        var.valueLength = var.value.length;
+      }
+    }
+
+    write(root, dw);
+  }
+
+  private static void write(@NotNull VersionBlock b, @NotNull IDataWriter dw) throws IOException {
+    dw.writeWord(b.sizeOf());
+    dw.writeWord(b.valueLength);
+    dw.writeWord(b.type);
+    dw.writeBytes(toUnicode(b.key));
+    dw.writeByte(0, padding(dw.getPosition()));
+    dw.writeBytes(b.value);
+    for (VersionBlock child : b.children) {
+      dw.writeByte(0, padding(dw.getPosition()));
+      write(child, dw);
+    }
+  }
+
+  @NotNull
+  private static byte[] toUnicode(@NotNull String s) {
+    byte[] b = new byte[s.length() * 2 + 2];
+    for (int i = 0; i < s.length(); i++) {
+      b[i * 2] = (byte) s.charAt(i);
+      b[i * 2 + 1] = (byte) (s.charAt(i) >> 8);
+    }
+    return b;
+  }
+
+  private static int padding(int position) {
+    return (4 - (position & 3)) & 3;
+  }
+
+  /**
+   * A node of a version resource. Every node starts on a four byte boundary
+   * and its length does not include any padding after its last child.
+   */
+  private static class VersionBlock {
+    @NotNull
+    private String key;
+    private int type;
+    @NotNull
+    private byte[] value = new byte[0];
+    private int valueLength;
+    @NotNull
+    private List<VersionBlock> children = new ArrayList<VersionBlock>();
+
+    VersionBlock(@NotNull String key, int type) {
+      this.key = key;
+      this.type = type;
+    }
+
+    @NotNull
+    VersionBlock add(@NotNull String key, int type) {
+      VersionBlock b = new VersionBlock(key, type);
+      children.add(b);
+      return b;
+    }
+
+    int sizeOf() {
+      int size = 6 + key.length() * 2 + 2;
+      size += padding(size) + value.length;
+      for (VersionBlock child : children) {
+        size += padding(size) + child.sizeOf();
+      }
+      return size;
+    }
+  }
 }
@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.io;
+
+import org.boris.pecoff4j.*;
+import org.boris.pecoff4j.constant.ImageDataDirectoryType;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+
+/**
+ * Writes a resource directory tree out from scratch. The layout follows the
+ * resource compiler: all directory tables first, then the data entries, then
+ * the name strings and finally the resource data. Identical names and
+ * identical resource data are only written once.
+ * <p>
+ * The size of the output is calculated while laying out the tree so that the
+ * data can be written into a single buffer.
+ */
+public class ResourceDirectoryAssembler {
+  private static final int TABLE_SIZE = 16;
+  private static final int ENTRY_SIZE = 8;
+  private static final int DATA_ENTRY_SIZE = 16;
+  private static final int DATA_ALIGNMENT = 8;
+
+  private List<ResourceDirectory> directories = new ArrayList<ResourceDirectory>();
+  private List<ResourceEntry> leaves = new ArrayList<ResourceEntry>();
+  private Map<ResourceDirectory, Integer> directoryOffsets =
+          new IdentityHashMap<ResourceDirectory, Integer>();
+  private Map<String, Integer> nameOffsets = new LinkedHashMap<String, Integer>();
+  private Map<Blob, Integer> dataOffsets = new LinkedHashMap<Blob, Integer>();
+  private Map<ResourceEntry, Integer> leafOffsets = new IdentityHashMap<ResourceEntry, Integer>();
+  private int dataEntryOffset;
+  private int size;
+
+  private ResourceDirectoryAssembler() {
+  }
+
+  /**
+   * Writes the resource directory.
+   *
+   * @param rd          the resource directory.
+   * @param baseAddress the virtual address the directory will be loaded at.
+   * @return the resource section data.
+   */
+  @NotNull
+  public static byte[] toBytes(@NotNull ResourceDirectory rd, int baseAddress) {
+    ResourceDirectoryAssembler a = new ResourceDirectoryAssembler();
+    a.layout(rd);
+    return a.write(baseAddress);
+  }
+
+  /**
+   * Calculates the size of the resource directory when written.
+   *
+   * @param rd the resource directory.
+   * @return the size in bytes.
+   */
+  public static int sizeOf(@NotNull ResourceDirectory rd) {
+    ResourceDirectoryAssembler a = new ResourceDirectoryAssembler();
+    a.layout(rd);
+    return a.size;
+  }
+
+  /**
+   * Writes the resource table of the executable back into the section that
+   * contains it. The resource directory must start the section. The section
+   * data is resized to fit, so use LayoutEngine.layout() to update the section
+   * headers before writing the executable.
+   *
+   * @param pe the executable.
+   */
+  public static void update(@NotNull PE pe) {
+    ResourceDirectory rd = pe.getImageData().getResourceTable();
+    if (rd == null)
+      throw new IllegalStateException("No resource table");
+    ImageDataDirectory idd = pe.getOptionalHeader().getDataDirectory(
+            ImageDataDirectoryType.RESOURCE_TABLE);
+    SectionTable st = pe.getSectionTable();
+    int index = -1;
+    for (int i = 0; i < st.getNumberOfSections(); i++) {
+      if (st.getHeader(i).getVirtualAddress() == idd.getVirtualAddress())
+        index = i;
+    }
+    if (index == -1)
+      throw new IllegalStateException("Resource table does not start a section");
+
+    SectionHeader sh = st.getHeader(index);
+    byte[] b = toBytes(rd, sh.getVirtualAddress());
+    int rawSize = LayoutEngine.align(b.length, pe.getOptionalHeader().getFileAlignment());
+    byte[] data = new byte[rawSize];
+    System.arraycopy(b, 0, data, 0, b.length);
+    SectionData sd = st.getSection(index);
+    if (sd == null) {
+      sd = new SectionData();
+      st.put(index, sd);
+    }
+    sd.setData(data);
+    sh.setVirtualSize(b.length);
+    idd.setSize(b.length);
+  }
+
+  private void layout(@NotNull ResourceDirectory root) {
+    // Tables are laid out breadth first
+    int offset = 0;
+    directories.add(root);
+    for (int i = 0; i < directories.size(); i++) {
+      ResourceDirectory rd = directories.get(i);
+      directoryOffsets.put(rd, offset);
+      offset += TABLE_SIZE + rd.size() * ENTRY_SIZE;
+      for (ResourceEntry re : sort(rd)) {
+        if (re.getName() != null && !nameOffsets.containsKey(re.getName()))
+          nameOffsets.put(re.getName(), 0);
+        if (re.getDirectory() != null) {
+          if (directoryOffsets.containsKey(re.getDirectory()))
+            throw new IllegalStateException("Resource directory is not a tree");
+          directoryOffsets.put(re.getDirectory(), -1);
+          directories.add(re.getDirectory());
+        } else {
+          leaves.add(re);
+        }
+      }
+    }
+
+    dataEntryOffset = offset;
+    offset += leaves.size() * DATA_ENTRY_SIZE;
+
+    for (Map.Entry<String, Integer> e : nameOffsets.entrySet()) {
+      e.setValue(offset);
+      offset += 2 + e.getKey().length() * 2;
+    }
+
+    for (ResourceEntry re : leaves) {
+      Blob blob = new Blob(re.getData());
+      Integer dataOffset = dataOffsets.get(blob);
+      if (dataOffset == null) {
+        offset = align(offset);
+        dataOffset = offset;
+        dataOffsets.put(blob, dataOffset);
+        offset += blob.data.length;
+      }
+      leafOffsets.put(re, dataOffset);
+    }
+    size = offset;
+  }
+
+  @NotNull
+  private byte[] write(int baseAddress) {
+    byte[] b = new byte[size];
+    ByteBuffer bb = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+
+    int leaf = 0;
+    for (ResourceDirectory rd : directories) {
+      bb.position(directoryOffsets.get(rd));
+      List<ResourceEntry> entries = sort(rd);
+      int named = 0;
+      for (ResourceEntry re : entries) {
+        if (re.getName() != null)
+          named++;
+      }
+      ResourceDirectoryTable t = rd.getTable();
+      bb.putInt(t == null ? 0 : t.getCharacteristics());
+      bb.putInt(t == null ? 0 : t.getTimeDateStamp());
+      bb.putShort((short) (t == null ? 0 : t.getMajorVersion()));
+      bb.putShort((short) (t == null ? 0 : t.getMinVersion()));
+      bb.putShort((short) named);
+      bb.putShort((short) (entries.size() - named));
+      for (ResourceEntry re : entries) {
+        if (re.getName() != null)
+          bb.putInt(0x80000000 | nameOffsets.get(re.getName()));
+        else
+          bb.putInt(re.getId());
+        if (re.getDirectory() != null)
+          bb.putInt(0x80000000 | directoryOffsets.get(re.getDirectory()));
+        else
+          bb.putInt(dataEntryOffset + leaf++ * DATA_ENTRY_SIZE);
+      }
+    }
+
+    bb.position(dataEntryOffset);
+    for (ResourceEntry re : leaves) {
+      bb.putInt(baseAddress + leafOffsets.get(re));
+      bb.putInt(re.getData().length);
+      bb.putInt(re.getCodePage());
+      bb.putInt(re.getReserved());
+    }
+
+    for (Map.Entry<String, Integer> e : nameOffsets.entrySet()) {
+      String s = e.getKey();
+      bb.position(e.getValue());
+      bb.putShort((short) s.length());
+      for (int i = 0; i < s.length(); i++) {
+        bb.putShort((short) s.charAt(i));
+      }
+    }
+
+    for (Map.Entry<Blob, Integer> e : dataOffsets.entrySet()) {
+      byte[] data = e.getKey().data;
+      System.arraycopy(data, 0, b, e.getValue(), data.length);
+    }
+
+    return b;
+  }
+
+  /**
+   * Named entries come before id entries and each are in ascending order, as
+   * the loader uses a binary search.
+   */
+  @NotNull
+  private static List<ResourceEntry> sort(@NotNull ResourceDirectory rd) {
+    List<ResourceEntry> entries = new ArrayList<ResourceEntry>(rd.size());
+    for (int i = 0; i < rd.size(); i++) {
+      entries.add(rd.get(i));
+    }
+    Collections.sort(entries, new Comparator<ResourceEntry>() {
+      public int compare(@NotNull ResourceEntry o1, @NotNull ResourceEntry o2) {
+        String n1 = o1.getName();
+        String n2 = o2.getName();
+        if (n1 != null && n2 != null)
+          return n1.toUpperCase().compareTo(n2.toUpperCase());
+        if (n1 != null)
+          return -1;
+        if (n2 != null)
+          return 1;
+        return (o1.getId() & 0xffffffffL) < (o2.getId() & 0xffffffffL) ? -1 :
+                o1.getId() == o2.getId() ? 0 : 1;
+      }
+    });
+    return entries;
+  }
+
+  private static int align(int offset) {
+    return (offset + DATA_ALIGNMENT - 1) & ~(DATA_ALIGNMENT - 1);
+  }
+
+  private static class Blob {
+    private final byte[] data;
+    private final int hash;
+
+    Blob(@NotNull byte[] data) {
+      this.data = data;
+      this.hash = Arrays.hashCode(data);
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(Object o) {
+      return o instanceof Blob && ((Blob) o).hash == hash &&
+              Arrays.equals(((Blob) o).data, data);
+    }
+  }
+}
@@ -128,21 +128,48 @@ public class ResourceParser {
 
   @NotNull
   public static VersionInfo readVersionInfo(byte[] data) throws IOException {
-    return readVersionInfo(new DataReader(data));
+    return readVersionInfo(new ByteArrayDataReader(data));
   }
 
+  /**
+   * Reads a version resource. Each block is read within its stated length,
+   * so blocks with unknown keys are skipped. The reader must start at a four
+   * byte aligned position.
+   */
   @NotNull
   public static VersionInfo readVersionInfo(@NotNull IDataReader dr)
           throws IOException {
+    int initialPos = dr.getPosition();
     VersionInfo vi = new VersionInfo();
     vi.setLength(dr.readWord());
     vi.setValueLength(dr.readWord());
     vi.setType(dr.readWord());
     vi.setKey(dr.readUnicode());
     alignDataReader(dr);
-    vi.setFixedFileInfo(ResourceParser.readFixedFileInfo(dr));
-    vi.setStringFileInfo(readStringFileInfo(dr));
-    // TODO read VarFileInfo
+    if (vi.getValueLength() > 0) {
+      int pos = dr.getPosition();
+      vi.setFixedFileInfo(ResourceParser.readFixedFileInfo(dr));
+      dr.jumpTo(pos + vi.getValueLength());
+    }
+
+    int end = initialPos + vi.getLength();
+    alignDataReader(dr);
+    while (dr.getPosition() + 6 < end) {
+      int pos = dr.getPosition();
+      int length = dr.readWord();
+      if (length == 0)
+        break;
+      dr.readWord();
+      dr.readWord();
+      String key = dr.readUnicode();
+      dr.jumpTo(pos);
+      if ("StringFileInfo".equals(key))
+        vi.setStringFileInfo(readStringFileInfo(dr));
+      else if ("VarFileInfo".equals(key))
+        vi.setVarFileInfo(readVarFileInfo(dr));
+      dr.jumpTo(pos + length);
+      alignDataReader(dr);
+    }
 
     return vi;
   }
@@ -150,13 +177,32 @@ public class ResourceParser {
   @NotNull
   public static VarFileInfo readVarFileInfo(@NotNull IDataReader dr)
           throws IOException {
+    int initialPos = dr.getPosition();
     VarFileInfo vfi = new VarFileInfo();
+    int length = dr.readWord();
+    dr.readWord();
+    dr.readWord();
     vfi.setKey(dr.readUnicode());
-    String name = null;
-    while ((name = dr.readUnicode()) != null) {
-      if (name.length() % 2 == 1)
-        dr.readWord();
-      vfi.add(name, dr.readUnicode());
+
+    int end = initialPos + length;
+    alignDataReader(dr);
+    while (dr.getPosition() + 6 < end) {
+      int pos = dr.getPosition();
+      int varLength = dr.readWord();
+      if (varLength == 0)
+        break;
+      int valueLength = dr.readWord();
+      dr.readWord();
+      String name = dr.readUnicode();
+      alignDataReader(dr);
+      int[] values = new int[Math.max(0, Math.min(valueLength,
+              pos + varLength - dr.getPosition())) / 4];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = dr.readDoubleWord();
+      }
+      vfi.add(name, values);
+      dr.jumpTo(pos + varLength);
+      alignDataReader(dr);
     }
     return vfi;
   }
@@ -176,22 +222,40 @@ public class ResourceParser {
     vfi.setKey(dr.readUnicode());
     vfi.setPadding(alignDataReader(dr));
 
-    while (dr.getPosition() - initialPos < vfi.getLength())
-      vfi.add(readStringPair(dr));
+    int end = initialPos + vfi.getLength();
+    while (dr.getPosition() + 6 < end) {
+      int pos = dr.getPosition();
+      StringPair sp = readStringPair(dr);
+      if (sp.getLength() == 0)
+        break;
+      vfi.add(sp);
+      dr.jumpTo(pos + sp.getLength());
+      alignDataReader(dr);
+    }
 
     return vfi;
   }
 
   @NotNull
   public static StringPair readStringPair(@NotNull IDataReader dr) throws IOException {
+    int initialPos = dr.getPosition();
     StringPair sp = new StringPair();
     sp.setLength(dr.readWord());
     sp.setValueLength(dr.readWord());
     sp.setType(dr.readWord());
     sp.setKey(dr.readUnicode());
     sp.setPadding(alignDataReader(dr));
-    sp.setValue(dr.readUnicode());
-    alignDataReader(dr);
+
+    // The value length is not reliable, so read up to the end of the block
+    StringBuilder sb = new StringBuilder();
+    int end = initialPos + sp.getLength();
+    while (dr.getPosition() + 2 <= end) {
+      char c = (char) dr.readWord();
+      if (c == 0)
+        break;
+      sb.append(c);
+    }
+    sp.setValue(sb.toString());
     return sp;
   }
 
@@ -226,8 +290,16 @@ public class ResourceParser {
     sfi.setKey(dr.readUnicode());
     sfi.setPadding(alignDataReader(dr));
 
-    while (dr.getPosition() - initialPos < sfi.getLength())
-      sfi.add(readStringTable(dr));
+    int end = initialPos + sfi.getLength();
+    while (dr.getPosition() + 6 < end) {
+      int pos = dr.getPosition();
+      StringTable st = readStringTable(dr);
+      if (st == null)
+        break;
+      sfi.add(st);
+      dr.jumpTo(pos + st.getLength());
+      alignDataReader(dr);
+    }
 
     return sfi;
   }
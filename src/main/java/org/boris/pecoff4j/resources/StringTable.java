@@ -11,6 +11,8 @@
 package org.boris.pecoff4j.resources;
 
 import org.boris.pecoff4j.util.Strings;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -35,6 +37,32 @@ public class StringTable {
     return strings.get(index);
   }
 
+  @Nullable
+  public String getValue(@NotNull String key) {
+    for (StringPair sp : strings) {
+      if (key.equals(sp.getKey()))
+        return sp.getValue();
+    }
+    return null;
+  }
+
+  /**
+   * Sets the value of a string, adding it if it is not in the table.
+   */
+  public void setValue(@NotNull String key, @NotNull String value) {
+    for (StringPair sp : strings) {
+      if (key.equals(sp.getKey())) {
+        sp.setValue(value);
+        return;
+      }
+    }
+    StringPair sp = new StringPair();
+    sp.setKey(key);
+    sp.setValue(value);
+    sp.setType(1);
+    strings.add(sp);
+  }
+
   public int getLength() {
     return length;
   }
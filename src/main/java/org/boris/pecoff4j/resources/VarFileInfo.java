@@ -19,7 +19,7 @@ public class VarFileInfo {
   @NotNull
   private List<String> names = new ArrayList();
   @NotNull
-  private List<String> values = new ArrayList();
+  private List<int[]> values = new ArrayList();
 
   public String getKey() {
     return key;
@@ -37,11 +37,15 @@ public class VarFileInfo {
     return names.get(index);
   }
 
-  public String getValue(int index) {
+  /**
+   * Gets the values of a variable. For the Translation variable each value
+   * holds a language in the low word and a code page in the high word.
+   */
+  public int[] getValue(int index) {
     return values.get(index);
   }
 
-  public void add(String name, String value) {
+  public void add(String name, int[] value) {
     names.add(name);
     values.add(value);
   }
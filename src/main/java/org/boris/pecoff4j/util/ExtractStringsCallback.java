@@ -0,0 +1,24 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.util;
+
+public interface ExtractStringsCallback {
+  /**
+   * Called for each string found. The value is only valid for the duration of
+   * the call; use toString() to keep a copy.
+   *
+   * @param section    the section index, or -1 for the overlay.
+   * @param rva        the relative virtual address, or -1 for the overlay.
+   * @param fileOffset the offset of the string within the file.
+   * @param value      a view of the characters.
+   * @param unicode    true if the string is UTF-16LE, false for ASCII.
+   */
+  void stringFound(int section, int rva, int fileOffset, CharSequence value, boolean unicode);
+}
@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Helpers for the ForkJoinPool methods of the scanners and disassemblers.
+ */
+public class ForkJoinTasks {
+
+  /**
+   * Runs tasks on a pool and waits for them all to complete. The tasks are
+   * forked from a task running on the pool, since forking them from any other
+   * thread would run them on the common pool instead.
+   */
+  public static void invokeAll(@NotNull ForkJoinPool pool, @NotNull List<? extends ForkJoinTask<?>> tasks) {
+    pool.invoke(new InvokeAllTask(tasks));
+  }
+
+  private static class InvokeAllTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<? extends ForkJoinTask<?>> tasks;
+
+    public InvokeAllTask(List<? extends ForkJoinTask<?>> tasks) {
+      this.tasks = tasks;
+    }
+
+    protected void compute() {
+      ForkJoinTask.invokeAll(tasks);
+    }
+  }
+}
@@ -0,0 +1,333 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.util;
+
+import org.boris.pecoff4j.SectionData;
+import org.boris.pecoff4j.SectionTable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Context triggered piecewise hash in the style of ssdeep. Data can be fed in
+ * incrementally and the digest has the form "blocksize:hash1:hash2", where
+ * hash2 uses twice the block size of hash1. Digests are compared with
+ * compare(), which returns a similarity score from 0 to 100.
+ * <p>
+ * All candidate block sizes are tracked while the data is streamed, so the
+ * total length does not need to be known up front.
+ */
+public class FuzzyHash {
+  public static final int SPAMSUM_LENGTH = 64;
+  public static final int MIN_BLOCKSIZE = 3;
+  public static final int ROLLING_WINDOW = 7;
+  private static final int NUM_BLOCKHASHES = 31;
+  private static final int HASH_PRIME = 0x01000193;
+  private static final int HASH_INIT = 0x28021967;
+  private static final char[] B64 =
+          "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+  // Rolling hash
+  private final int[] window = new int[ROLLING_WINDOW];
+  private int h1, h2, h3, n;
+
+  // Block hashes, one per candidate block size
+  private final int[] h = new int[NUM_BLOCKHASHES];
+  private final int[] halfh = new int[NUM_BLOCKHASHES];
+  private final char[][] digest = new char[NUM_BLOCKHASHES][SPAMSUM_LENGTH];
+  private final int[] dlen = new int[NUM_BLOCKHASHES];
+  private final char[] tail = new char[NUM_BLOCKHASHES];
+  private final char[] halfDigest = new char[NUM_BLOCKHASHES];
+  private int bhstart = 0;
+  private int bhend = 1;
+  private long totalSize;
+
+  public FuzzyHash() {
+    h[0] = HASH_INIT;
+    halfh[0] = HASH_INIT;
+  }
+
+  @NotNull
+  public static String hash(@NotNull byte[] data) {
+    return hash(data, 0, data.length);
+  }
+
+  @NotNull
+  public static String hash(@NotNull byte[] data, int offset, int length) {
+    FuzzyHash fh = new FuzzyHash();
+    fh.update(data, offset, length);
+    return fh.digest();
+  }
+
+  /**
+   * Hashes each section of the table.
+   *
+   * @param st the section table.
+   * @return the digests, indexed by section; null for sections without data.
+   */
+  @NotNull
+  public static String[] hashSections(@NotNull SectionTable st) {
+    String[] digests = new String[st.getNumberOfSections()];
+    for (int i = 0; i < digests.length; i++) {
+      SectionData sd = st.getSection(i);
+      if (sd != null && sd.getData() != null)
+        digests[i] = hash(sd.getData());
+    }
+    return digests;
+  }
+
+  public void update(int b) {
+    totalSize++;
+    step(b & 0xff);
+  }
+
+  public void update(@NotNull byte[] data, int offset, int length) {
+    totalSize += length;
+    int end = offset + length;
+    for (int i = offset; i < end; i++) {
+      step(data[i] & 0xff);
+    }
+  }
+
+  public long getTotalSize() {
+    return totalSize;
+  }
+
+  private void step(int c) {
+    // Roll the window
+    h2 -= h1;
+    h2 += ROLLING_WINDOW * c;
+    h1 += c;
+    h1 -= window[n];
+    window[n] = c;
+    if (++n == ROLLING_WINDOW)
+      n = 0;
+    h3 = (h3 << 5) ^ c;
+    int sum = h1 + h2 + h3;
+
+    for (int i = bhstart; i < bhend; i++) {
+      h[i] = h[i] * HASH_PRIME ^ c;
+      halfh[i] = halfh[i] * HASH_PRIME ^ c;
+    }
+
+    // A trigger at any block size is also a trigger at the smallest
+    long usum = sum & 0xffffffffL;
+    if (usum % MIN_BLOCKSIZE != MIN_BLOCKSIZE - 1)
+      return;
+
+    for (int i = bhstart; i < bhend; i++) {
+      long bs = blockSize(i);
+      if (usum % bs != bs - 1)
+        break;
+      if (dlen[i] == 0)
+        fork();
+      char ch = B64[(int) ((h[i] & 0xffffffffL) % 64)];
+      halfDigest[i] = B64[(int) ((halfh[i] & 0xffffffffL) % 64)];
+      if (dlen[i] < SPAMSUM_LENGTH - 1) {
+        digest[i][dlen[i]++] = ch;
+        tail[i] = 0;
+        h[i] = HASH_INIT;
+        if (dlen[i] < SPAMSUM_LENGTH / 2) {
+          halfh[i] = HASH_INIT;
+          halfDigest[i] = 0;
+        }
+      } else {
+        tail[i] = ch;
+        reduce();
+      }
+    }
+  }
+
+  private void fork() {
+    if (bhend >= NUM_BLOCKHASHES)
+      return;
+    h[bhend] = h[bhend - 1];
+    halfh[bhend] = halfh[bhend - 1];
+    dlen[bhend] = 0;
+    tail[bhend] = 0;
+    halfDigest[bhend] = 0;
+    bhend++;
+  }
+
+  private void reduce() {
+    if (bhend - bhstart < 2)
+      return;
+    if (blockSize(bhstart) * SPAMSUM_LENGTH >= totalSize)
+      return;
+    if (dlen[bhstart + 1] < SPAMSUM_LENGTH / 2)
+      return;
+    bhstart++;
+  }
+
+  private static long blockSize(int index) {
+    return (long) MIN_BLOCKSIZE << index;
+  }
+
+  /**
+   * @return the digest of the data so far.
+   */
+  @NotNull
+  public String digest() {
+    int sum = h1 + h2 + h3;
+    int i = bhstart;
+    while (blockSize(i) * SPAMSUM_LENGTH < totalSize && i < NUM_BLOCKHASHES - 1) {
+      i++;
+    }
+    if (i >= bhend)
+      i = bhend - 1;
+    while (i > bhstart && dlen[i] < SPAMSUM_LENGTH / 2) {
+      i--;
+    }
+
+    StringBuilder sb = new StringBuilder(SPAMSUM_LENGTH + SPAMSUM_LENGTH / 2 + 16);
+    sb.append(blockSize(i)).append(':');
+    sb.append(digest[i], 0, dlen[i]);
+    if (sum != 0)
+      sb.append(B64[(int) ((h[i] & 0xffffffffL) % 64)]);
+    else if (tail[i] != 0)
+      sb.append(tail[i]);
+    sb.append(':');
+
+    if (i < bhend - 1) {
+      i++;
+      sb.append(digest[i], 0, Math.min(dlen[i], SPAMSUM_LENGTH / 2 - 1));
+      if (sum != 0)
+        sb.append(B64[(int) ((halfh[i] & 0xffffffffL) % 64)]);
+      else if (halfDigest[i] != 0)
+        sb.append(halfDigest[i]);
+    } else if (sum != 0) {
+      sb.append(B64[(int) ((h[i] & 0xffffffffL) % 64)]);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Compares two digests.
+   *
+   * @param d1 the first digest.
+   * @param d2 the second digest.
+   * @return the similarity from 0 (no match) to 100 (identical).
+   */
+  public static int compare(@NotNull String d1, @NotNull String d2) {
+    long bs1 = getBlockSize(d1);
+    long bs2 = getBlockSize(d2);
+    if (bs1 != bs2 && bs1 != bs2 * 2 && bs2 != bs1 * 2)
+      return 0;
+
+    String[] p1 = getParts(d1);
+    String[] p2 = getParts(d2);
+    if (p1 == null || p2 == null)
+      throw new IllegalArgumentException("Invalid fuzzy hash");
+
+    if (bs1 == bs2 && p1[0].equals(p2[0]) && p1[1].equals(p2[1]))
+      return 100;
+
+    if (bs1 == bs2) {
+      return Math.max(score(p1[0], p2[0], bs1), score(p1[1], p2[1], bs1 * 2));
+    } else if (bs1 == bs2 * 2) {
+      return score(p1[0], p2[1], bs1);
+    } else {
+      return score(p1[1], p2[0], bs2);
+    }
+  }
+
+  public static long getBlockSize(@NotNull String digest) {
+    int c = digest.indexOf(':');
+    if (c == -1)
+      throw new IllegalArgumentException("Invalid fuzzy hash: " + digest);
+    return Long.parseLong(digest.substring(0, c));
+  }
+
+  /**
+   * Splits the digest into its two hashes, with runs of more than three
+   * identical characters shortened to three.
+   *
+   * @param digest the digest.
+   * @return the two hashes or null if the digest is malformed.
+   */
+  @Nullable
+  static String[] getParts(@NotNull String digest) {
+    int c1 = digest.indexOf(':');
+    int c2 = c1 == -1 ? -1 : digest.indexOf(':', c1 + 1);
+    if (c2 == -1)
+      return null;
+    int end = digest.indexOf(',', c2 + 1);
+    if (end == -1)
+      end = digest.length();
+    return new String[]{eliminateSequences(digest, c1 + 1, c2),
+            eliminateSequences(digest, c2 + 1, end)};
+  }
+
+  @NotNull
+  private static String eliminateSequences(@NotNull String s, int start, int end) {
+    StringBuilder sb = new StringBuilder(end - start);
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      int l = sb.length();
+      if (l >= 3 && sb.charAt(l - 1) == c && sb.charAt(l - 2) == c && sb.charAt(l - 3) == c)
+        continue;
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  private static int score(@NotNull String s1, @NotNull String s2, long blockSize) {
+    int l1 = s1.length();
+    int l2 = s2.length();
+    if (l1 > SPAMSUM_LENGTH || l2 > SPAMSUM_LENGTH)
+      return 0;
+    if (!hasCommonSubstring(s1, s2))
+      return 0;
+
+    long score = editDistance(s1, s2);
+    score = (score * SPAMSUM_LENGTH) / (l1 + l2);
+    score = (100 * score) / SPAMSUM_LENGTH;
+    score = 100 - score;
+
+    // Small block sizes can't give high scores on short hashes
+    if (blockSize < (99 + ROLLING_WINDOW) / ROLLING_WINDOW * MIN_BLOCKSIZE) {
+      long cap = blockSize / MIN_BLOCKSIZE * Math.min(l1, l2);
+      if (score > cap)
+        score = cap;
+    }
+    return (int) score;
+  }
+
+  private static boolean hasCommonSubstring(@NotNull String s1, @NotNull String s2) {
+    if (s1.length() < ROLLING_WINDOW || s2.length() < ROLLING_WINDOW)
+      return false;
+    for (int i = 0; i + ROLLING_WINDOW <= s1.length(); i++) {
+      if (s2.indexOf(s1.substring(i, i + ROLLING_WINDOW)) != -1)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Edit distance where insertions and deletions cost 1 and substitutions 2.
+   */
+  private static int editDistance(@NotNull String s1, @NotNull String s2) {
+    int[] prev = new int[s2.length() + 1];
+    int[] cur = new int[s2.length() + 1];
+    for (int j = 0; j <= s2.length(); j++) {
+      prev[j] = j;
+    }
+    for (int i = 1; i <= s1.length(); i++) {
+      cur[0] = i;
+      for (int j = 1; j <= s2.length(); j++) {
+        int sub = prev[j - 1] + (s1.charAt(i - 1) == s2.charAt(j - 1) ? 0 : 2);
+        cur[j] = Math.min(sub, Math.min(prev[j], cur[j - 1]) + 1);
+      }
+      int[] t = prev;
+      prev = cur;
+      cur = t;
+    }
+    return prev[s2.length()];
+  }
+}
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An index of fuzzy hashes for near-neighbour lookup. Two digests only score
+ * above zero if they share a run of seven characters at the same block size, so
+ * each digest is bucketed by every seven character run of both its hashes.
+ * A search then only compares the digests that share a bucket with the query.
+ * <p>
+ * Searches may run concurrently, but not at the same time as add().
+ */
+public class FuzzyHashIndex {
+  private static final int GRAM = FuzzyHash.ROLLING_WINDOW;
+
+  @NotNull
+  private Map<Long, int[]> buckets = new HashMap<Long, int[]>();
+  private String[] digests = new String[16];
+  private int[] ids = new int[16];
+  private int size;
+
+  /**
+   * Adds a digest to the index.
+   *
+   * @param id     the id returned by search.
+   * @param digest the digest.
+   */
+  public void add(int id, @NotNull String digest) {
+    String[] parts = FuzzyHash.getParts(digest);
+    if (parts == null)
+      throw new IllegalArgumentException("Invalid fuzzy hash: " + digest);
+    if (size == ids.length) {
+      ids = Arrays.copyOf(ids, size * 2);
+      digests = Arrays.copyOf(digests, size * 2);
+    }
+    int index = size++;
+    ids[index] = id;
+    digests[index] = digest;
+
+    int level = level(FuzzyHash.getBlockSize(digest));
+    addGrams(parts[0], level, index);
+    addGrams(parts[1], level + 1, index);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Finds the digests in the index that are similar to the given digest.
+   *
+   * @param digest   the digest to search for.
+   * @param minScore the minimum score from compare(), at least 1.
+   * @return the ids of the matching digests.
+   */
+  @NotNull
+  public int[] search(@NotNull String digest, int minScore) {
+    String[] parts = FuzzyHash.getParts(digest);
+    if (parts == null)
+      throw new IllegalArgumentException("Invalid fuzzy hash: " + digest);
+
+    // Gather the candidates that share a bucket
+    int level = level(FuzzyHash.getBlockSize(digest));
+    int[] candidates = new int[16];
+    candidates[0] = 0;
+    candidates = collect(parts[0], level, candidates);
+    candidates = collect(parts[1], level + 1, candidates);
+    int n = candidates[0];
+    Arrays.sort(candidates, 1, n + 1);
+
+    int[] result = new int[n];
+    int count = 0;
+    int last = -1;
+    for (int i = 1; i <= n; i++) {
+      int c = candidates[i];
+      if (c == last)
+        continue;
+      last = c;
+      if (FuzzyHash.compare(digest, digests[c]) >= Math.max(minScore, 1))
+        result[count++] = ids[c];
+    }
+    return Arrays.copyOf(result, count);
+  }
+
+  private void addGrams(@NotNull String s, int level, int index) {
+    for (int i = 0; i + GRAM <= s.length(); i++) {
+      Long key = key(s, i, level);
+      int[] b = buckets.get(key);
+      if (b == null) {
+        b = new int[4];
+        buckets.put(key, b);
+      } else if (b[b[0]] == index) {
+        // already added via an earlier run in this digest
+        continue;
+      } else if (b[0] + 1 == b.length) {
+        b = Arrays.copyOf(b, b.length * 2);
+        buckets.put(key, b);
+      }
+      b[++b[0]] = index;
+    }
+  }
+
+  @NotNull
+  private int[] collect(@NotNull String s, int level, @NotNull int[] candidates) {
+    for (int i = 0; i + GRAM <= s.length(); i++) {
+      int[] b = buckets.get(key(s, i, level));
+      if (b == null)
+        continue;
+      int n = candidates[0];
+      if (n + b[0] + 1 > candidates.length)
+        candidates = Arrays.copyOf(candidates, Math.max(candidates.length * 2, n + b[0] + 1));
+      System.arraycopy(b, 1, candidates, n + 1, b[0]);
+      candidates[0] = n + b[0];
+    }
+    return candidates;
+  }
+
+  private static Long key(@NotNull String s, int offset, int level) {
+    // Seven base64 characters pack exactly into 42 bits
+    long k = level;
+    for (int i = offset; i < offset + GRAM; i++) {
+      k = k << 6 | b64(s.charAt(i));
+    }
+    return k;
+  }
+
+  private static int level(long blockSize) {
+    return Long.numberOfTrailingZeros(blockSize / FuzzyHash.MIN_BLOCKSIZE);
+  }
+
+  private static int b64(char c) {
+    if (c >= 'A' && c <= 'Z')
+      return c - 'A';
+    if (c >= 'a' && c <= 'z')
+      return c - 'a' + 26;
+    if (c >= '0' && c <= '9')
+      return c - '0' + 52;
+    return c == '+' ? 62 : 63;
+  }
+}
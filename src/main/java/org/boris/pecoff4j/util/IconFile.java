@@ -14,6 +14,7 @@ import org.boris.pecoff4j.resources.IconDirectory;
 import org.boris.pecoff4j.resources.IconImage;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -21,6 +22,7 @@ import java.io.IOException;
 public class IconFile {
   private IconDirectory directory;
   private IconImage[] images;
+  private byte[][] imageData;
 
   @NotNull
   public static IconFile parse(String filename) throws IOException {
@@ -37,14 +39,42 @@ public class IconFile {
     IconFile ic = new IconFile();
     ic.directory = ResourceParser.readIconDirectory(dr);
     ic.images = new IconImage[ic.directory.getCount()];
+    ic.imageData = new byte[ic.directory.getCount()][];
     for (int i = 0; i < ic.directory.getCount(); i++) {
       dr.jumpTo(ic.directory.getEntry(i).getOffset());
-      ic.images[i] = ResourceParser.readIconImage(dr, ic.directory
-              .getEntry(i).getBytesInRes());
+      byte[] b = new byte[ic.directory.getEntry(i).getBytesInRes()];
+      dr.read(b);
+      ic.imageData[i] = b;
+      if (isPNG(b))
+        ic.images[i] = ResourceParser.readPNG(b);
+      else
+        ic.images[i] = ResourceParser.readIconImage(new DataReader(b), b.length);
     }
     return ic;
   }
 
+  private static boolean isPNG(@NotNull byte[] b) {
+    return b.length > 8 && (b[0] & 0xff) == 0x89 && b[1] == 'P' && b[2] == 'N' && b[3] == 'G';
+  }
+
+  /**
+   * Gets the bytes of an image as stored in an icon resource.
+   *
+   * @param index the index of the image.
+   * @return the image data, which is shared and must not be modified.
+   */
+  @NotNull
+  public synchronized byte[] getImageData(int index) throws IOException {
+    if (imageData[index] == null) {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      DataWriter dw = new DataWriter(bos);
+      ResourceAssembler.write(images[index], dw);
+      dw.close();
+      imageData[index] = bos.toByteArray();
+    }
+    return imageData[index];
+  }
+
   public void write(@NotNull IDataWriter dw) throws IOException {
     int offset = directory.sizeOf();
     for (int i = 0; i < images.length; i++) {
@@ -71,5 +101,6 @@ public class IconFile {
 
   public void setImages(IconImage[] images) {
     this.images = images;
+    this.imageData = new byte[images.length][];
   }
 }
@@ -0,0 +1,707 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.util;
+
+import org.boris.pecoff4j.*;
+import org.boris.pecoff4j.constant.*;
+import org.boris.pecoff4j.io.LayoutEngine;
+import org.boris.pecoff4j.io.PEAssembler;
+import org.boris.pecoff4j.io.ResourceDirectoryAssembler;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+
+/**
+ * Builds an executable from scratch. Sections are added with their raw
+ * contents and fixups that refer to other sections or to imported functions.
+ * On build() the sections are given their addresses, the import, export,
+ * resource and base relocation sections are generated, the fixups are applied
+ * and all the header fields are calculated.
+ * <p>
+ * eg. a console program that calls ExitProcess(0):
+ * <pre>
+ * byte[] code = {0x6a, 0x00, (byte) 0xff, 0x15, 0, 0, 0, 0};
+ * PE pe = new PEBuilder(MachineType.IMAGE_FILE_MACHINE_I386)
+ *     .setSubsystem(WindowsSubsystem.IMAGE_SUBSYSTEM_WINDOWS_CUI)
+ *     .addSection(".text", PEBuilder.CODE, code)
+ *     .addImportFixup(".text", 4, PEBuilder.FIXUP_VA32, "kernel32.dll", "ExitProcess")
+ *     .setEntryPoint(".text", 0)
+ *     .build();
+ * </pre>
+ */
+public class PEBuilder {
+  public static final int CODE = SectionFlag.IMAGE_SCN_CNT_CODE |
+          SectionFlag.IMAGE_SCN_MEM_EXECUTE | SectionFlag.IMAGE_SCN_MEM_READ;
+  public static final int READ_ONLY_DATA = SectionFlag.IMAGE_SCN_CNT_INITIALIZED_DATA |
+          SectionFlag.IMAGE_SCN_MEM_READ;
+  public static final int DATA = SectionFlag.IMAGE_SCN_CNT_INITIALIZED_DATA |
+          SectionFlag.IMAGE_SCN_MEM_READ | SectionFlag.IMAGE_SCN_MEM_WRITE;
+  private static final int RELOC = READ_ONLY_DATA | SectionFlag.IMAGE_SCN_MEM_DISCARDABLE;
+
+  // Fixup types
+  public static final int FIXUP_VA32 = 1;
+  public static final int FIXUP_VA64 = 2;
+  public static final int FIXUP_RVA32 = 3;
+  public static final int FIXUP_REL32 = 4;
+
+  private static final int DOS_HEADER_SIZE = 64;
+  private static final int SECTION_ALIGNMENT = 0x1000;
+  private static final int FILE_ALIGNMENT = 0x200;
+  private static final int DIRECTORIES = 16;
+  private static final byte[] DOS_STUB = {
+          0x0e, 0x1f, (byte) 0xba, 0x0e, 0x00, (byte) 0xb4, 0x09, (byte) 0xcd,
+          0x21, (byte) 0xb8, 0x01, 0x4c, (byte) 0xcd, 0x21, 'T', 'h',
+          'i', 's', ' ', 'p', 'r', 'o', 'g', 'r', 'a', 'm', ' ', 'c', 'a', 'n', 'n', 'o',
+          't', ' ', 'b', 'e', ' ', 'r', 'u', 'n', ' ', 'i', 'n', ' ', 'D', 'O', 'S', ' ',
+          'm', 'o', 'd', 'e', '.', 0x0d, 0x0d, 0x0a, '$', 0, 0, 0, 0, 0, 0, 0};
+
+  private boolean is64;
+  private int machine;
+  private boolean dll;
+  private String dllName;
+  private long imageBase;
+  private int subsystem = WindowsSubsystem.IMAGE_SUBSYSTEM_WINDOWS_GUI;
+  private int timeDateStamp;
+  private String entrySection;
+  private int entryOffset;
+  private List<Section> sections = new ArrayList<Section>();
+  private Map<String, List<String>> imports = new LinkedHashMap<String, List<String>>();
+  private List<Export> exports = new ArrayList<Export>();
+  private ResourceDirectory resources;
+
+  // Calculated on build
+  private Map<String, Integer> importAddresses = new HashMap<String, Integer>();
+  private int importDescriptors;
+
+  /**
+   * @param machine IMAGE_FILE_MACHINE_I386 for PE32 or IMAGE_FILE_MACHINE_AMD64
+   *                for PE32+.
+   */
+  public PEBuilder(int machine) {
+    if (machine != MachineType.IMAGE_FILE_MACHINE_I386 &&
+            machine != MachineType.IMAGE_FILE_MACHINE_AMD64)
+      throw new IllegalArgumentException("Unsupported machine: " + machine);
+    this.machine = machine;
+    this.is64 = machine == MachineType.IMAGE_FILE_MACHINE_AMD64;
+    this.imageBase = is64 ? 0x140000000L : 0x400000L;
+  }
+
+  /**
+   * Builds a DLL rather than an executable.
+   *
+   * @param name the name of the DLL, used in the export table.
+   * @return this builder.
+   */
+  @NotNull
+  public PEBuilder setDll(@NotNull String name) {
+    this.dll = true;
+    this.dllName = name;
+    if (imageBase == 0x400000L || imageBase == 0x140000000L)
+      imageBase = is64 ? 0x180000000L : 0x10000000L;
+    return this;
+  }
+
+  @NotNull
+  public PEBuilder setImageBase(long imageBase) {
+    this.imageBase = imageBase;
+    return this;
+  }
+
+  @NotNull
+  public PEBuilder setSubsystem(int subsystem) {
+    this.subsystem = subsystem;
+    return this;
+  }
+
+  @NotNull
+  public PEBuilder setTimeDateStamp(int timeDateStamp) {
+    this.timeDateStamp = timeDateStamp;
+    return this;
+  }
+
+  @NotNull
+  public PEBuilder setEntryPoint(@NotNull String section, int offset) {
+    this.entrySection = section;
+    this.entryOffset = offset;
+    return this;
+  }
+
+  /**
+   * Adds a section. Sections are laid out in the order they are added.
+   *
+   * @param name            the section name, up to 8 characters.
+   * @param characteristics the section flags, eg. CODE or DATA.
+   * @param data            the raw contents.
+   * @return this builder.
+   */
+  @NotNull
+  public PEBuilder addSection(@NotNull String name, int characteristics, @NotNull byte[] data) {
+    return addSection(name, characteristics, data, data.length);
+  }
+
+  /**
+   * Adds a section that is larger in memory than its raw contents.
+   */
+  @NotNull
+  public PEBuilder addSection(@NotNull String name, int characteristics, @NotNull byte[] data,
+                              int virtualSize) {
+    if (name.length() > 8)
+      throw new IllegalArgumentException("Section name too long: " + name);
+    if (findSection(name) != null)
+      throw new IllegalArgumentException("Duplicate section: " + name);
+    Section s = new Section();
+    s.name = name;
+    s.characteristics = characteristics;
+    s.data = data;
+    s.virtualSize = Math.max(virtualSize, data.length);
+    sections.add(s);
+    return this;
+  }
+
+  @NotNull
+  public PEBuilder addImport(@NotNull String dll, @NotNull String function) {
+    List<String> fns = imports.get(dll.toLowerCase());
+    if (fns == null) {
+      fns = new ArrayList<String>();
+      imports.put(dll.toLowerCase(), fns);
+    }
+    if (!fns.contains(function))
+      fns.add(function);
+    return this;
+  }
+
+  /**
+   * Adds a fixup to an address within a section.
+   *
+   * @param section       the section to patch.
+   * @param offset        the offset of the field in the section.
+   * @param type          the fixup type, eg. FIXUP_VA32.
+   * @param targetSection the section containing the target.
+   * @param targetOffset  the offset of the target in its section.
+   * @return this builder.
+   */
+  @NotNull
+  public PEBuilder addFixup(@NotNull String section, int offset, int type,
+                            @NotNull String targetSection, int targetOffset) {
+    Fixup f = new Fixup();
+    f.offset = offset;
+    f.type = type;
+    f.targetSection = targetSection;
+    f.targetOffset = targetOffset;
+    getSection(section).fixups.add(f);
+    return this;
+  }
+
+  /**
+   * Adds a fixup to the import address table slot of a function, which is
+   * imported if it was not already.
+   */
+  @NotNull
+  public PEBuilder addImportFixup(@NotNull String section, int offset, int type,
+                                  @NotNull String dll, @NotNull String function) {
+    addImport(dll, function);
+    Fixup f = new Fixup();
+    f.offset = offset;
+    f.type = type;
+    f.importKey = importKey(dll, function);
+    getSection(section).fixups.add(f);
+    return this;
+  }
+
+  @NotNull
+  public PEBuilder addExport(@NotNull String name, @NotNull String section, int offset) {
+    Export e = new Export();
+    e.name = name;
+    e.section = section;
+    e.offset = offset;
+    exports.add(e);
+    return this;
+  }
+
+  @NotNull
+  public PEBuilder addResource(int type, int name, int language, @NotNull byte[] data) {
+    if (resources == null)
+      resources = new ResourceDirectory();
+    ResourceDirectory names = getDirectory(resources, type);
+    ResourceDirectory languages = getDirectory(names, name);
+    ResourceEntry re = new ResourceEntry();
+    re.setId(language);
+    re.setData(data);
+    languages.add(re);
+    return this;
+  }
+
+  /**
+   * Uses the given resource tree, replacing any resources added so far.
+   */
+  @NotNull
+  public PEBuilder setResources(@Nullable ResourceDirectory resources) {
+    this.resources = resources;
+    return this;
+  }
+
+  /**
+   * @return the RVA of the import address table slot for the function. Only
+   * valid after build().
+   */
+  public int getImportAddress(@NotNull String dll, @NotNull String function) {
+    Integer rva = importAddresses.get(importKey(dll, function));
+    if (rva == null)
+      throw new IllegalStateException("Unknown import: " + dll + "!" + function);
+    return rva;
+  }
+
+  /**
+   * @return the RVA of the section. Only valid after build().
+   */
+  public int getSectionAddress(@NotNull String name) {
+    return getSection(name).rva;
+  }
+
+  @NotNull
+  public byte[] toBytes() throws IOException {
+    return PEAssembler.toBytes(build());
+  }
+
+  @NotNull
+  public PE build() {
+    // The generated sections follow the user sections
+    List<Section> all = new ArrayList<Section>(sections);
+    Section idata = null, edata = null, rsrc = null, reloc = null;
+    if (!imports.isEmpty()) {
+      idata = generated(".idata", DATA, buildImports(0));
+      all.add(idata);
+    }
+    if (!exports.isEmpty()) {
+      if (dllName == null)
+        throw new IllegalStateException("Exports require a DLL name");
+      edata = generated(".edata", READ_ONLY_DATA, buildExports(0));
+      all.add(edata);
+    }
+    if (resources != null) {
+      rsrc = generated(".rsrc", READ_ONLY_DATA,
+              new byte[ResourceDirectoryAssembler.sizeOf(resources)]);
+      all.add(rsrc);
+    }
+
+    // Assign addresses, regenerating the tables that contain addresses
+    int headerSize = DOS_HEADER_SIZE + DOS_STUB.length + 24 + optionalHeaderSize() + 40 * (all.size() + 1);
+    int rva = align(headerSize, SECTION_ALIGNMENT);
+    for (Section s : all) {
+      s.rva = rva;
+      if (s == idata)
+        s.data = buildImports(rva);
+      if (s == edata)
+        s.data = buildExports(rva);
+      if (s == rsrc)
+        s.data = ResourceDirectoryAssembler.toBytes(resources, rva);
+      s.virtualSize = Math.max(s.virtualSize, s.data.length);
+      rva = align(rva + s.virtualSize, SECTION_ALIGNMENT);
+    }
+
+    // Apply fixups to copies of the section data
+    List<Integer> relocations = new ArrayList<Integer>();
+    Map<Section, byte[]> contents = new IdentityHashMap<Section, byte[]>();
+    for (Section s : sections) {
+      byte[] b = s.data.clone();
+      ByteBuffer bb = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+      for (Fixup f : s.fixups) {
+        int target = f.importKey != null ? importAddresses.get(f.importKey) :
+                getSection(f.targetSection).rva + f.targetOffset;
+        switch (f.type) {
+          case FIXUP_VA32:
+            bb.putInt(f.offset, (int) (imageBase + target));
+            relocations.add(s.rva + f.offset);
+            break;
+          case FIXUP_VA64:
+            bb.putLong(f.offset, imageBase + target);
+            relocations.add(s.rva + f.offset);
+            break;
+          case FIXUP_RVA32:
+            bb.putInt(f.offset, target);
+            break;
+          case FIXUP_REL32:
+            bb.putInt(f.offset, target - (s.rva + f.offset + 4));
+            break;
+          default:
+            throw new IllegalStateException("Invalid fixup type: " + f.type);
+        }
+      }
+      contents.put(s, b);
+    }
+    if (!relocations.isEmpty()) {
+      reloc = generated(".reloc", RELOC, buildRelocations(relocations));
+      reloc.rva = rva;
+      all.add(reloc);
+    }
+
+    PE pe = new PE();
+    pe.setDosHeader(createDosHeader());
+    DOSStub stub = new DOSStub();
+    stub.setStub(DOS_STUB.clone());
+    pe.setStub(stub);
+    PESignature ps = new PESignature();
+    ps.setSignature(new byte[]{'P', 'E', 0, 0});
+    pe.setSignature(ps);
+    pe.setCoffHeader(createCOFFHeader(all.size(), !relocations.isEmpty()));
+    pe.setOptionalHeader(createOptionalHeader(!relocations.isEmpty()));
+    pe.setImageData(new ImageData());
+    pe.getImageData().setResourceTable(resources);
+
+    SectionTable st = new SectionTable();
+    for (int i = 0; i < all.size(); i++) {
+      Section s = all.get(i);
+      SectionHeader sh = new SectionHeader();
+      sh.setName(s.name);
+      sh.setVirtualAddress(s.rva);
+      sh.setVirtualSize(s.virtualSize);
+      sh.setCharacteristics(s.characteristics);
+      st.add(sh);
+      byte[] b = contents.get(s);
+      if (b == null)
+        b = s.data;
+      if (b.length > 0) {
+        SectionData sd = new SectionData();
+        sd.setData(b);
+        st.put(i, sd);
+      }
+    }
+    pe.setSectionTable(st);
+
+    OptionalHeader oh = pe.getOptionalHeader();
+    if (idata != null) {
+      oh.getDataDirectory(ImageDataDirectoryType.IMPORT_TABLE).setVirtualAddress(
+              idata.rva + importDescriptors);
+      oh.getDataDirectory(ImageDataDirectoryType.IMPORT_TABLE).setSize(
+              (imports.size() + 1) * 20);
+      oh.getDataDirectory(ImageDataDirectoryType.IAT).setVirtualAddress(idata.rva);
+      oh.getDataDirectory(ImageDataDirectoryType.IAT).setSize(importDescriptors);
+    }
+    if (edata != null)
+      setDirectory(oh, ImageDataDirectoryType.EXPORT_TABLE, edata);
+    if (rsrc != null)
+      setDirectory(oh, ImageDataDirectoryType.RESOURCE_TABLE, rsrc);
+    if (reloc != null)
+      setDirectory(oh, ImageDataDirectoryType.BASE_RELOCATION_TABLE, reloc);
+    for (Section s : all) {
+      if ((s.characteristics & SectionFlag.IMAGE_SCN_CNT_CODE) != 0) {
+        oh.setBaseOfCode(s.rva);
+        break;
+      }
+    }
+    if (!is64) {
+      for (Section s : all) {
+        if ((s.characteristics & SectionFlag.IMAGE_SCN_CNT_CODE) == 0) {
+          oh.setBaseOfData(s.rva);
+          break;
+        }
+      }
+    }
+    if (entrySection != null)
+      oh.setAddressOfEntryPoint(getSection(entrySection).rva + entryOffset);
+
+    // File offsets, sizes and header fields
+    LayoutEngine.layout(pe);
+    return pe;
+  }
+
+  @NotNull
+  private Section generated(@NotNull String name, int characteristics, @Nullable byte[] data) {
+    if (findSection(name) != null)
+      throw new IllegalStateException("Section name is reserved: " + name);
+    Section s = new Section();
+    s.name = name;
+    s.characteristics = characteristics;
+    s.data = data == null ? new byte[0] : data;
+    return s;
+  }
+
+  private static void setDirectory(@NotNull OptionalHeader oh, int index, @NotNull Section s) {
+    oh.getDataDirectory(index).setVirtualAddress(s.rva);
+    oh.getDataDirectory(index).setSize(s.data.length);
+  }
+
+  /**
+   * Import section layout: the address tables, the descriptors, the lookup
+   * tables, then the hint/name entries and dll names.
+   */
+  @NotNull
+  private byte[] buildImports(int rva) {
+    int ptr = is64 ? 8 : 4;
+    int tables = 0;
+    for (List<String> fns : imports.values()) {
+      tables += (fns.size() + 1) * ptr;
+    }
+    int descriptors = tables;
+    importDescriptors = descriptors;
+    int lookup = descriptors + (imports.size() + 1) * 20;
+    int names = lookup + tables;
+    int size = names;
+    for (Map.Entry<String, List<String>> e : imports.entrySet()) {
+      for (String fn : e.getValue()) {
+        size += align2(2 + fn.length() + 1);
+      }
+      size += align2(e.getKey().length() + 1);
+    }
+
+    byte[] b = new byte[size];
+    ByteBuffer bb = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+    int table = 0;
+    int d = descriptors;
+    int n = names;
+    for (Map.Entry<String, List<String>> e : imports.entrySet()) {
+      int iat = table;
+      for (String fn : e.getValue()) {
+        importAddresses.put(importKey(e.getKey(), fn), rva + table);
+        putPointer(bb, table, rva + n);
+        putPointer(bb, lookup + table, rva + n);
+        n = align2(putString(b, n + 2, fn));
+        table += ptr;
+      }
+      table += ptr;
+      bb.putInt(d, rva + lookup + iat);
+      bb.putInt(d + 12, rva + n);
+      bb.putInt(d + 16, rva + iat);
+      n = align2(putString(b, n, e.getKey()));
+      d += 20;
+    }
+    return b;
+  }
+
+  private void putPointer(@NotNull ByteBuffer bb, int offset, int value) {
+    if (is64)
+      bb.putLong(offset, value);
+    else
+      bb.putInt(offset, value);
+  }
+
+  @NotNull
+  private byte[] buildExports(int rva) {
+    List<Export> sorted = new ArrayList<Export>(exports);
+    Collections.sort(sorted, new Comparator<Export>() {
+      public int compare(@NotNull Export o1, @NotNull Export o2) {
+        return o1.name.compareTo(o2.name);
+      }
+    });
+    int n = sorted.size();
+    int functions = 40;
+    int namePointers = functions + n * 4;
+    int ordinals = namePointers + n * 4;
+    int strings = ordinals + n * 2;
+    int size = strings + dllName.length() + 1;
+    for (Export e : sorted) {
+      size += e.name.length() + 1;
+    }
+
+    byte[] b = new byte[size];
+    ByteBuffer bb = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+    bb.putInt(4, timeDateStamp);
+    bb.putInt(12, rva + strings);
+    bb.putInt(16, 1);
+    bb.putInt(20, n);
+    bb.putInt(24, n);
+    bb.putInt(28, rva + functions);
+    bb.putInt(32, rva + namePointers);
+    bb.putInt(36, rva + ordinals);
+    int s = putString(b, strings, dllName);
+    for (int i = 0; i < n; i++) {
+      Export e = sorted.get(i);
+      Section section = getSection(e.section);
+      bb.putInt(functions + i * 4, section.rva + e.offset);
+      bb.putInt(namePointers + i * 4, rva + s);
+      bb.putShort(ordinals + i * 2, (short) i);
+      s = putString(b, s, e.name);
+    }
+    return b;
+  }
+
+  /**
+   * Base relocations are grouped into blocks for each 4K page.
+   */
+  @NotNull
+  private byte[] buildRelocations(@NotNull List<Integer> relocations) {
+    Collections.sort(relocations);
+    int type = is64 ? 10 : 3;
+    ByteBuffer bb = ByteBuffer.allocate(relocations.size() * 4 + 16).order(ByteOrder.LITTLE_ENDIAN);
+    int i = 0;
+    while (i < relocations.size()) {
+      int page = relocations.get(i) & ~0xfff;
+      int start = bb.position();
+      bb.putInt(page);
+      bb.putInt(0);
+      int count = 0;
+      for (; i < relocations.size() && (relocations.get(i) & ~0xfff) == page; i++) {
+        bb.putShort((short) (type << 12 | relocations.get(i) & 0xfff));
+        count++;
+      }
+      if ((count & 1) != 0)
+        bb.putShort((short) 0);
+      bb.putInt(start + 4, bb.position() - start);
+      if (bb.remaining() < relocations.size() * 4 + 8) {
+        ByteBuffer nb = ByteBuffer.allocate(bb.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+        bb.flip();
+        nb.put(bb);
+        bb = nb;
+      }
+    }
+    return Arrays.copyOf(bb.array(), bb.position());
+  }
+
+  @NotNull
+  private DOSHeader createDosHeader() {
+    DOSHeader dh = new DOSHeader();
+    dh.setMagic(0x5a4d);
+    dh.setUsedBytesInLastPage(0x90);
+    dh.setFileSizeInPages(3);
+    dh.setHeaderSizeInParagraphs(4);
+    dh.setMaxExtraParagraphs(0xffff);
+    dh.setInitialSP(0xb8);
+    dh.setAddressOfRelocationTable(0x40);
+    dh.setReserved(new int[4]);
+    dh.setReserved2(new int[10]);
+    dh.setAddressOfNewExeHeader(DOS_HEADER_SIZE + DOS_STUB.length);
+    return dh;
+  }
+
+  @NotNull
+  private COFFHeader createCOFFHeader(int numberOfSections, boolean relocatable) {
+    COFFHeader ch = new COFFHeader();
+    ch.setMachine(machine);
+    ch.setNumberOfSections(numberOfSections);
+    ch.setTimeDateStamp(timeDateStamp);
+    ch.setSizeOfOptionalHeader(optionalHeaderSize());
+    int c = Characteristics.IMAGE_FILE_EXECUTABLE_IMAGE;
+    if (is64)
+      c |= Characteristics.IMAGE_FILE_LARGE_ADDRESS_AWARE;
+    else
+      c |= Characteristics.IMAGE_FILE_32BIT_MACHINE;
+    if (dll)
+      c |= Characteristics.IMAGE_FILE_DLL;
+    if (!relocatable && !dll)
+      c |= Characteristics.IMAGE_FILE_RELOCS_STRIPPED;
+    ch.setCharacteristics(c);
+    return ch;
+  }
+
+  @NotNull
+  private OptionalHeader createOptionalHeader(boolean relocatable) {
+    OptionalHeader oh = new OptionalHeader();
+    oh.setMagic(is64 ? OptionalHeader.MAGIC_PE32plus : OptionalHeader.MAGIC_PE32);
+    oh.setMajorLinkerVersion(1);
+    oh.setImageBase(imageBase);
+    oh.setSectionAlignment(SECTION_ALIGNMENT);
+    oh.setFileAlignment(FILE_ALIGNMENT);
+    oh.setMajorOperatingSystemVersion(is64 ? 5 : 4);
+    oh.setMinorOperatingSystemVersion(is64 ? 2 : 0);
+    oh.setMajorSubsystemVersion(is64 ? 5 : 4);
+    oh.setMinorSubsystemVersion(is64 ? 2 : 0);
+    oh.setSubsystem(subsystem);
+    int dc = DLLCharacteristics.IMAGE_DLL_CHARACTERISTICS_NX_COMPAT;
+    if (relocatable)
+      dc |= DLLCharacteristics.IMAGE_DLL_CHARACTERISTICS_DYNAMIC_BASE;
+    if (!dll)
+      dc |= DLLCharacteristics.IMAGE_DLLCHARACTERISTICS_TERMINAL_SERVER_AWARE;
+    oh.setDllCharacteristics(dc);
+    oh.setSizeOfStackReserve(0x100000);
+    oh.setSizeOfStackCommit(0x1000);
+    oh.setSizeOfHeapReserve(0x100000);
+    oh.setSizeOfHeapCommit(0x1000);
+    oh.setNumberOfRvaAndSizes(DIRECTORIES);
+    ImageDataDirectory[] dds = new ImageDataDirectory[DIRECTORIES];
+    for (int i = 0; i < dds.length; i++) {
+      dds[i] = new ImageDataDirectory();
+    }
+    oh.setDataDirectories(dds);
+    return oh;
+  }
+
+  private int optionalHeaderSize() {
+    return (is64 ? 112 : 96) + DIRECTORIES * 8;
+  }
+
+  @NotNull
+  private static ResourceDirectory getDirectory(@NotNull ResourceDirectory rd, int id) {
+    for (int i = 0; i < rd.size(); i++) {
+      ResourceEntry re = rd.get(i);
+      if (re.getName() == null && re.getId() == id && re.getDirectory() != null)
+        return re.getDirectory();
+    }
+    ResourceEntry re = new ResourceEntry();
+    re.setId(id);
+    re.setDirectory(new ResourceDirectory());
+    rd.add(re);
+    return re.getDirectory();
+  }
+
+  @Nullable
+  private Section findSection(@NotNull String name) {
+    for (Section s : sections) {
+      if (s.name.equals(name))
+        return s;
+    }
+    return null;
+  }
+
+  @NotNull
+  private Section getSection(@NotNull String name) {
+    Section s = findSection(name);
+    if (s == null)
+      throw new IllegalArgumentException("Unknown section: " + name);
+    return s;
+  }
+
+  @NotNull
+  private static String importKey(@NotNull String dll, @NotNull String function) {
+    return dll.toLowerCase() + "!" + function;
+  }
+
+  private static int putString(@NotNull byte[] b, int offset, @NotNull String s) {
+    for (int i = 0; i < s.length(); i++) {
+      b[offset++] = (byte) s.charAt(i);
+    }
+    b[offset++] = 0;
+    return offset;
+  }
+
+  private static int align(int value, int alignment) {
+    return (value + alignment - 1) & ~(alignment - 1);
+  }
+
+  private static int align2(int value) {
+    return value + (value & 1);
+  }
+
+  private static class Section {
+    private String name;
+    private int characteristics;
+    private byte[] data;
+    private int virtualSize;
+    private int rva;
+    private List<Fixup> fixups = new ArrayList<Fixup>();
+  }
+
+  private static class Fixup {
+    private int offset;
+    private int type;
+    private String targetSection;
+    private int targetOffset;
+    private String importKey;
+  }
+
+  private static class Export {
+    private String name;
+    private String section;
+    private int offset;
+  }
+}
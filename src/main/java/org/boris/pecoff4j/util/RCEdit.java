@@ -11,53 +11,176 @@ package org.boris.pecoff4j.util;
 
 import org.boris.pecoff4j.PE;
 import org.boris.pecoff4j.ResourceDirectory;
+import org.boris.pecoff4j.ResourceEntry;
 import org.boris.pecoff4j.io.PEParser;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
 
 public class RCEdit {
   public static void main(String[] args) throws Exception {
-    launch(new String[0]);
-    launch(new String[]{"/I", "test/WinRun4J.exe", "test/eclipse.ico"});
+    launch(args);
   }
 
   public static void launch(@NotNull String[] args) throws Exception {
+    if (args.length > 0 && "/B".equalsIgnoreCase(args[0])) {
+      assertArgCount(args, 3, Integer.MAX_VALUE);
+      batch(args);
+      return;
+    }
     assertArgCount(args, 2, 3);
 
     String option = args[0].toUpperCase();
-    if ("/I".equals(option)) {
-      assertArgCount(args, 3, 3);
-      addIcon(args[1], args[2]);
-    } else if ("/N".equals(option)) {
+    File exe = new File(args[1]);
+    if ("/L".equals(option)) {
+      list(exe);
+    } else if ("/P".equals(option)) {
+      printIni(exe);
+    } else if ("/E".equals(option)) {
       assertArgCount(args, 3, 3);
-      setIni(args[1], args[2]);
+      extractJar(exe, args[2]);
+    } else {
+      if (!"/C".equals(option))
+        assertArgCount(args, 3, 3);
+      ResourceEditBatch batch = new ResourceEditBatch();
+      batch.add(createEdit(option, args.length > 2 ? args[2] : null));
+      batch.apply(exe);
+    }
+  }
+
+  /**
+   * Creates an edit for an option, reading in its resource.
+   *
+   * @param option   the option, eg. /I.
+   * @param resource the file for the option, if it needs one.
+   * @return the edit.
+   */
+  @NotNull
+  public static ResourceEdit createEdit(@NotNull String option, @Nullable String resource)
+          throws IOException {
+    option = option.toUpperCase();
+    if ("/C".equals(option)) {
+      return new ResourceEdit() {
+        public void apply(@NotNull ResourceEditor editor) {
+          editor.clear();
+        }
+      };
+    }
+
+    if (resource == null)
+      throw new IllegalArgumentException("No resource for option: " + option);
+    if ("/I".equals(option) || "/A".equals(option)) {
+      final IconFile icon = IconFile.parse(resource);
+      final boolean add = "/A".equals(option);
+      return new ResourceEdit() {
+        public void apply(@NotNull ResourceEditor editor) throws IOException {
+          if (add)
+            editor.addIcon(icon);
+          else
+            editor.setIcon(1, icon);
+        }
+      };
+    }
+
+    File f = new File(resource);
+    final byte[] data = IO.toBytes(f);
+    final String name = f.getName();
+    if ("/N".equals(option)) {
+      return new ResourceEdit() {
+        public void apply(@NotNull ResourceEditor editor) {
+          editor.put(ResourceEditor.RT_INI_FILE, ResourceEditor.INI_RESOURCE_ID,
+                  ResourceEditor.LANGUAGE_NEUTRAL, data);
+        }
+      };
     } else if ("/S".equals(option)) {
-      assertArgCount(args, 3, 3);
-      setSplash(args[1], args[2]);
+      return new ResourceEdit() {
+        public void apply(@NotNull ResourceEditor editor) {
+          editor.put(ResourceEditor.RT_SPLASH_FILE, ResourceEditor.SPLASH_RESOURCE_ID,
+                  ResourceEditor.LANGUAGE_NEUTRAL, data);
+        }
+      };
+    } else if ("/J".equals(option)) {
+      return new ResourceEdit() {
+        public void apply(@NotNull ResourceEditor editor) {
+          editor.put(ResourceEditor.RT_JAR_FILE, name, ResourceEditor.LANGUAGE_NEUTRAL, data);
+        }
+      };
     }
+    throw new IllegalArgumentException("Unknown option: " + option);
   }
 
-  private static void addIcon(String exe, String icon) throws IOException {
-    PE pe = PEParser.parse(exe);
-    IconFile ic = IconFile.parse(icon);
+  /**
+   * Applies a script of edits, one option and resource per line, to each of
+   * the executables.
+   */
+  private static void batch(@NotNull String[] args) throws Exception {
+    ResourceEditBatch batch = new ResourceEditBatch();
+    for (String line : Files.readAllLines(new File(args[1]).toPath())) {
+      line = line.trim();
+      if (line.length() == 0 || line.startsWith("#"))
+        continue;
+      int sp = line.indexOf(' ');
+      if (sp == -1)
+        batch.add(createEdit(line, null));
+      else
+        batch.add(createEdit(line.substring(0, sp), line.substring(sp + 1).trim()));
+    }
+    File[] exes = new File[args.length - 2];
+    for (int i = 0; i < exes.length; i++) {
+      exes[i] = new File(args[i + 2]);
+    }
+    Map<File, Exception> failed = batch.apply(exes,
+            Runtime.getRuntime().availableProcessors());
+    for (Map.Entry<File, Exception> e : failed.entrySet()) {
+      printf(e.getKey() + ": " + e.getValue() + "\n");
+    }
+    if (!failed.isEmpty())
+      System.exit(1);
   }
 
-  private static void setIni(String exe, String ini) throws IOException {
+  private static void list(@NotNull File exe) throws IOException {
     PE pe = PEParser.parse(exe);
-    byte[] inib = IO.toBytes(new File(ini));
     ResourceDirectory rd = pe.getImageData().getResourceTable();
-    if (rd != null) {
+    if (rd != null)
+      list(rd, "");
+  }
 
+  private static void list(@NotNull ResourceDirectory rd, @NotNull String path) {
+    for (int i = 0; i < rd.size(); i++) {
+      ResourceEntry re = rd.get(i);
+      String p = path + "/" + (re.getName() != null ? re.getName() : Integer.toString(re.getId()));
+      if (re.getDirectory() != null)
+        list(re.getDirectory(), p);
+      else
+        printf(p.substring(1) + "\t" + re.getData().length + "\n");
     }
   }
 
-  private static void setSplash(String exe, String splash) throws IOException {
-    PE pe = PEParser.parse(exe);
-    byte[] spb = IO.toBytes(new File(splash));
-    ResourceDirectory rd = pe.getImageData().getResourceTable();
+  private static void printIni(@NotNull File exe) throws IOException {
+    byte[] b = new ResourceEditor(PEParser.parse(exe)).get(ResourceEditor.RT_INI_FILE,
+            ResourceEditor.INI_RESOURCE_ID);
+    if (b != null)
+      printf(new String(b, StandardCharsets.ISO_8859_1));
+  }
 
+  private static void extractJar(@NotNull File exe, @NotNull String jar) throws IOException {
+    File out = new File(jar);
+    byte[] b = new ResourceEditor(PEParser.parse(exe)).get(ResourceEditor.RT_JAR_FILE,
+            out.getName());
+    if (b == null)
+      throw new IOException("JAR not found: " + jar);
+    FileOutputStream fos = new FileOutputStream(out);
+    try {
+      fos.write(b);
+    } finally {
+      fos.close();
+    }
   }
 
   private static void assertArgCount(@NotNull String[] args, int min, int max) {
@@ -70,7 +193,8 @@ public class RCEdit {
   private static void printUsage() {
     printf("WinRun4J Resource Editor v2.0 (winrun4j.sf.net)\n\n");
     printf("Edits resources in executables (EXE) and dynamic link-libraries (DLL).\n\n");
-    printf("RCEDIT <option> <exe/dll> [resource]\n\n");
+    printf("RCEDIT <option> <exe/dll> [resource]\n");
+    printf("RCEDIT /B <script> <exe/dll>...\n\n");
     printf("  filename\tSpecifies the filename of the EXE/DLL.\n");
     printf("  resource\tSpecifies the name of the resource to add to the EXE/DLL.\n");
     printf("  /I\t\tSet the icon as the default icon for the executable.\n");
@@ -82,6 +206,7 @@ public class RCEdit {
     printf("  /C\t\tClears all resources from the EXE/DLL.\n");
     printf("  /L\t\tLists the resources in the EXE/DLL.\n");
     printf("  /P\t\tOutputs the contents of the INI file in the EXE.\n");
+    printf("  /B\t\tApplies a script of the above edits to each EXE/DLL.\n");
   }
 
   private static void printf(String s) {
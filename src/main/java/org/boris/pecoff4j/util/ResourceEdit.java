@@ -0,0 +1,23 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * A single change to the resources of an executable. Edits hold their input
+ * already decoded so that one edit can be applied to many executables, from
+ * several threads at once.
+ */
+public interface ResourceEdit {
+  void apply(@NotNull ResourceEditor editor) throws IOException;
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.util;
+
+import org.boris.pecoff4j.PE;
+import org.boris.pecoff4j.io.PEParser;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Applies the same list of resource edits to many executables. The edits are
+ * shared by all the jobs, so icons and files are read once however many
+ * executables are edited.
+ */
+public class ResourceEditBatch {
+  @NotNull
+  private List<ResourceEdit> edits = new ArrayList<ResourceEdit>();
+
+  public void add(@NotNull ResourceEdit edit) {
+    edits.add(edit);
+  }
+
+  public int size() {
+    return edits.size();
+  }
+
+  /**
+   * Edits an executable in place.
+   */
+  public void apply(@NotNull File exe) throws IOException {
+    File dir = exe.getAbsoluteFile().getParentFile();
+    File temp = File.createTempFile(exe.getName(), ".tmp", dir);
+    try {
+      apply(exe, temp);
+      Files.move(temp.toPath(), exe.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      temp.delete();
+    }
+  }
+
+  /**
+   * Writes an edited copy of an executable.
+   */
+  public void apply(@NotNull File exe, @NotNull File output) throws IOException {
+    PE pe = PEParser.parse(exe);
+    ResourceEditor editor = new ResourceEditor(pe);
+    for (ResourceEdit edit : edits) {
+      edit.apply(editor);
+    }
+    editor.write(exe, output);
+  }
+
+  /**
+   * Edits the executables in place on a pool of threads.
+   *
+   * @param exes    the executables.
+   * @param threads the number of threads to use.
+   * @return the executables that could not be edited and the reason why.
+   */
+  @NotNull
+  public Map<File, Exception> apply(@NotNull File[] exes, int threads)
+          throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    Map<File, Future<Object>> results = new LinkedHashMap<File, Future<Object>>();
+    try {
+      for (final File exe : exes) {
+        results.put(exe, executor.submit(new Callable<Object>() {
+          public Object call() throws IOException {
+            apply(exe);
+            return null;
+          }
+        }));
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    Map<File, Exception> failed = new LinkedHashMap<File, Exception>();
+    for (Map.Entry<File, Future<Object>> e : results.entrySet()) {
+      try {
+        e.getValue().get();
+      } catch (ExecutionException ex) {
+        Throwable t = ex.getCause();
+        failed.put(e.getKey(), t instanceof Exception ? (Exception) t : ex);
+      }
+    }
+    return failed;
+  }
+}
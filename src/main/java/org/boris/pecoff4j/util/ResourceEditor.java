@@ -0,0 +1,371 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.util;
+
+import org.boris.pecoff4j.*;
+import org.boris.pecoff4j.constant.ImageDataDirectoryType;
+import org.boris.pecoff4j.constant.ResourceType;
+import org.boris.pecoff4j.constant.SectionFlag;
+import org.boris.pecoff4j.io.*;
+import org.boris.pecoff4j.resources.GroupIconDirectory;
+import org.boris.pecoff4j.resources.IconDirectoryEntry;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Edits the resource tree of an executable. Resources are addressed by type,
+ * name and language; a language of -1 matches any existing language. The
+ * resource section is rebuilt, or created if the executable has none, when
+ * the executable is written.
+ */
+public class ResourceEditor {
+  // Resource types used by the WinRun4J launcher
+  public static final int RT_INI_FILE = 687;
+  public static final int RT_JAR_FILE = 688;
+  public static final int RT_SPLASH_FILE = 689;
+  public static final int INI_RESOURCE_ID = 1;
+  public static final int SPLASH_RESOURCE_ID = 1;
+  public static final int LANGUAGE_NEUTRAL = 0;
+
+  @NotNull
+  private PE pe;
+  @NotNull
+  private ResourceDirectory root;
+
+  public ResourceEditor(@NotNull PE pe) {
+    this.pe = pe;
+    ResourceDirectory rd = pe.getImageData().getResourceTable();
+    this.root = rd == null ? new ResourceDirectory() : rd;
+  }
+
+  @NotNull
+  public PE getPE() {
+    return pe;
+  }
+
+  @NotNull
+  public ResourceDirectory getResourceTable() {
+    return root;
+  }
+
+  @Nullable
+  public byte[] get(int type, int name) {
+    return get(type, name, null);
+  }
+
+  @Nullable
+  public byte[] get(int type, @NotNull String name) {
+    return get(type, 0, name);
+  }
+
+  @Nullable
+  private byte[] get(int type, int id, @Nullable String name) {
+    ResourceEntry re = find(root, type, null);
+    if (re == null || re.getDirectory() == null)
+      return null;
+    re = find(re.getDirectory(), id, name);
+    if (re == null)
+      return null;
+    if (re.getDirectory() == null)
+      return re.getData();
+    ResourceDirectory langs = re.getDirectory();
+    return langs.size() == 0 ? null : langs.get(0).getData();
+  }
+
+  public void put(int type, int name, int language, @NotNull byte[] data) {
+    put(type, name, null, language, data);
+  }
+
+  public void put(int type, @NotNull String name, int language, @NotNull byte[] data) {
+    put(type, 0, name, language, data);
+  }
+
+  private void put(int type, int id, @Nullable String name, int language, @NotNull byte[] data) {
+    ResourceDirectory names = findOrAdd(root, type, null).getDirectory();
+    ResourceDirectory langs = findOrAdd(names, id, name).getDirectory();
+    ResourceEntry leaf = null;
+    if (language == -1) {
+      if (langs.size() > 0)
+        leaf = langs.get(0);
+      language = LANGUAGE_NEUTRAL;
+    } else {
+      leaf = find(langs, language, null);
+    }
+    if (leaf == null) {
+      leaf = new ResourceEntry();
+      leaf.setId(language);
+      langs.add(leaf);
+    }
+    leaf.setData(data);
+  }
+
+  /**
+   * Removes a resource in every language.
+   *
+   * @return whether the resource existed.
+   */
+  public boolean remove(int type, int name) {
+    return remove(type, name, null);
+  }
+
+  public boolean remove(int type, @NotNull String name) {
+    return remove(type, 0, name);
+  }
+
+  private boolean remove(int type, int id, @Nullable String name) {
+    int t = indexOf(root, type, null);
+    if (t == -1)
+      return false;
+    ResourceDirectory names = root.get(t).getDirectory();
+    int n = names == null ? -1 : indexOf(names, id, name);
+    if (n == -1)
+      return false;
+    names.remove(n);
+    if (names.size() == 0)
+      root.remove(t);
+    return true;
+  }
+
+  /**
+   * Removes all the resources of a type.
+   *
+   * @return whether there were any.
+   */
+  public boolean removeType(int type) {
+    int t = indexOf(root, type, null);
+    if (t == -1)
+      return false;
+    root.remove(t);
+    return true;
+  }
+
+  public void clear() {
+    while (root.size() > 0) {
+      root.remove(root.size() - 1);
+    }
+  }
+
+  /**
+   * Replaces an icon group with the images of an icon file. Images that are
+   * already in the executable are shared rather than added again, and the
+   * icons of the old group are removed unless another group still uses them.
+   *
+   * @param groupId the id of the group icon resource.
+   * @param icon    the icon.
+   */
+  public void setIcon(int groupId, @NotNull IconFile icon) throws IOException {
+    int language = LANGUAGE_NEUTRAL;
+    Set<Integer> unused = new HashSet<Integer>();
+    ResourceEntry group = find(root, ResourceType.GROUP_ICON, null);
+    ResourceEntry old = group == null ? null : find(group.getDirectory(), groupId, null);
+    if (old != null && old.getDirectory() != null && old.getDirectory().size() > 0) {
+      ResourceEntry leaf = old.getDirectory().get(0);
+      language = leaf.getId();
+      addIconIds(leaf.getData(), unused);
+    }
+
+    Map<ByteBuffer, Integer> icons = indexIcons();
+    int nextId = nextId(ResourceType.ICON);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DataWriter dw = new DataWriter(bos);
+    int count = icon.getDirectory().getCount();
+    dw.writeWord(0);
+    dw.writeWord(1);
+    dw.writeWord(count);
+    for (int i = 0; i < count; i++) {
+      byte[] image = icon.getImageData(i);
+      Integer id = icons.get(ByteBuffer.wrap(image));
+      if (id == null) {
+        id = nextId++;
+        put(ResourceType.ICON, id, language, image);
+        icons.put(ByteBuffer.wrap(image), id);
+      }
+      IconDirectoryEntry ide = icon.getDirectory().getEntry(i);
+      dw.writeByte(ide.getWidth());
+      dw.writeByte(ide.getHeight());
+      dw.writeByte(ide.getColorCount());
+      dw.writeByte(ide.getReserved());
+      dw.writeWord(ide.getPlanes());
+      dw.writeWord(ide.getBitCount());
+      dw.writeDoubleWord(image.length);
+      dw.writeWord(id);
+    }
+    dw.close();
+    remove(ResourceType.GROUP_ICON, groupId);
+    put(ResourceType.GROUP_ICON, groupId, language, bos.toByteArray());
+
+    if (!unused.isEmpty()) {
+      ResourceEntry[] groups = ResourceHelper.findResources(root, ResourceType.GROUP_ICON);
+      for (ResourceEntry re : groups) {
+        Set<Integer> used = new HashSet<Integer>();
+        addIconIds(re.getData(), used);
+        unused.removeAll(used);
+      }
+      for (Integer id : unused) {
+        remove(ResourceType.ICON, id);
+      }
+    }
+  }
+
+  /**
+   * Adds an icon group after the existing ones.
+   *
+   * @return the id of the new group.
+   */
+  public int addIcon(@NotNull IconFile icon) throws IOException {
+    int id = nextId(ResourceType.GROUP_ICON);
+    setIcon(id, icon);
+    return id;
+  }
+
+  /**
+   * Writes the edited executable. The output must not be the source.
+   *
+   * @param source the file the executable was parsed from.
+   * @param output the file to write.
+   */
+  public void write(@NotNull File source, @NotNull File output) throws IOException {
+    layout();
+    PEAssembler.write(pe, source, output);
+    PEPatcher pp = new PEPatcher(output);
+    try {
+      pp.updateChecksum();
+    } finally {
+      pp.close();
+    }
+  }
+
+  /**
+   * Rebuilds the resource section and lays out the executable.
+   */
+  public void layout() {
+    ImageData id = pe.getImageData();
+    if (root.size() == 0) {
+      if (id.getResourceTable() != null)
+        ResourceStripper.strip(pe, null, null);
+      return;
+    }
+    if (id.getResourceTable() == null)
+      addSection();
+    ResourceDirectoryAssembler.update(pe);
+    LayoutEngine.layout(pe, true);
+  }
+
+  private void addSection() {
+    SectionTable st = pe.getSectionTable();
+    SectionHeader sh = new SectionHeader();
+    sh.setName(SectionTable.RESOURCE_TABLE);
+    sh.setCharacteristics(SectionFlag.IMAGE_SCN_CNT_INITIALIZED_DATA |
+            SectionFlag.IMAGE_SCN_MEM_READ);
+    SectionData sd = new SectionData();
+    sd.setData(new byte[0]);
+    st.add(sh);
+    st.put(st.getNumberOfSections() - 1, sd);
+    LayoutEngine.layout(pe);
+
+    ImageDataDirectory idd = pe.getOptionalHeader().getDataDirectory(
+            ImageDataDirectoryType.RESOURCE_TABLE);
+    idd.setVirtualAddress(sh.getVirtualAddress());
+    pe.getImageData().setResourceTable(root);
+  }
+
+  /**
+   * Maps the content of each icon to its id. The buffers wrap the resource
+   * data, so equal images are found by comparing content.
+   */
+  @NotNull
+  private Map<ByteBuffer, Integer> indexIcons() {
+    Map<ByteBuffer, Integer> icons = new HashMap<ByteBuffer, Integer>();
+    ResourceEntry re = find(root, ResourceType.ICON, null);
+    if (re == null || re.getDirectory() == null)
+      return icons;
+    ResourceDirectory rd = re.getDirectory();
+    for (int i = 0; i < rd.size(); i++) {
+      ResourceEntry name = rd.get(i);
+      if (name.getName() != null || name.getDirectory() == null)
+        continue;
+      ResourceDirectory langs = name.getDirectory();
+      for (int j = 0; j < langs.size(); j++) {
+        byte[] data = langs.get(j).getData();
+        if (data != null && !icons.containsKey(ByteBuffer.wrap(data)))
+          icons.put(ByteBuffer.wrap(data), name.getId());
+      }
+    }
+    return icons;
+  }
+
+  private static void addIconIds(@Nullable byte[] group, @NotNull Set<Integer> ids)
+          throws IOException {
+    if (group == null)
+      return;
+    GroupIconDirectory gid = GroupIconDirectory.read(group);
+    for (int i = 0; i < gid.getCount(); i++) {
+      ids.add(gid.getEntry(i).getId());
+    }
+  }
+
+  private int nextId(int type) {
+    int max = 0;
+    ResourceEntry re = find(root, type, null);
+    if (re != null && re.getDirectory() != null) {
+      ResourceDirectory rd = re.getDirectory();
+      for (int i = 0; i < rd.size(); i++) {
+        if (rd.get(i).getName() == null)
+          max = Math.max(max, rd.get(i).getId());
+      }
+    }
+    return max + 1;
+  }
+
+  @NotNull
+  private static ResourceEntry findOrAdd(@NotNull ResourceDirectory rd, int id,
+                                         @Nullable String name) {
+    ResourceEntry re = find(rd, id, name);
+    if (re == null) {
+      re = new ResourceEntry();
+      re.setId(id);
+      re.setName(name);
+      rd.add(re);
+    }
+    if (re.getDirectory() == null) {
+      if (re.getData() != null)
+        throw new IllegalStateException("Resource entry is not a directory");
+      re.setDirectory(new ResourceDirectory());
+    }
+    return re;
+  }
+
+  @Nullable
+  private static ResourceEntry find(@Nullable ResourceDirectory rd, int id, @Nullable String name) {
+    if (rd == null)
+      return null;
+    int i = indexOf(rd, id, name);
+    return i == -1 ? null : rd.get(i);
+  }
+
+  private static int indexOf(@NotNull ResourceDirectory rd, int id, @Nullable String name) {
+    for (int i = 0; i < rd.size(); i++) {
+      ResourceEntry re = rd.get(i);
+      if (name == null ? re.getName() == null && re.getId() == id :
+              name.equalsIgnoreCase(re.getName()))
+        return i;
+    }
+    return -1;
+  }
+}
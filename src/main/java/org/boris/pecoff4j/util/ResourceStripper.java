@@ -1,7 +1,7 @@
 /*******************************************************************************
  * This program and the accompanying materials
  * are made available under the terms of the Common Public License v1.0
- * which accompanies this distribution, and is available at 
+ * which accompanies this distribution, and is available at
  * http://www.eclipse.org/legal/cpl-v10.html
  *
  * Contributors:
@@ -9,13 +9,132 @@
  *******************************************************************************/
 package org.boris.pecoff4j.util;
 
-import org.boris.pecoff4j.PE;
+import org.boris.pecoff4j.*;
+import org.boris.pecoff4j.constant.ImageDataDirectoryType;
+import org.boris.pecoff4j.constant.SectionFlag;
+import org.boris.pecoff4j.io.LayoutEngine;
+import org.boris.pecoff4j.io.PEAssembler;
 import org.boris.pecoff4j.io.PEParser;
+import org.boris.pecoff4j.io.PEPatcher;
+import org.boris.pecoff4j.io.ResourceDirectoryAssembler;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
+import java.io.IOException;
 
+/**
+ * Removes resources from an executable. The resource section is rebuilt and
+ * the file is compacted, so the image shrinks and the sections after the
+ * resources move down. Sections that are not changed, the certificate table
+ * and any overlay are copied straight from the original file.
+ */
 public class ResourceStripper {
-  public static void remove(File pecoff, File output) throws Exception {
+  /**
+   * Removes all the resources, along with the resource section.
+   */
+  public static void remove(@NotNull File pecoff, @NotNull File output) throws IOException {
+    remove(pecoff, output, null, null);
+  }
+
+  /**
+   * Removes the resources that match one of the types and one of the
+   * languages. Named types are only matched when no types are given.
+   *
+   * @param pecoff    the executable.
+   * @param output    the file to write, which must not be the executable.
+   * @param types     the resource types to remove, or null for all types.
+   * @param languages the languages to remove, or null for all languages.
+   * @throws IOException if an error occurs.
+   */
+  public static void remove(@NotNull File pecoff, @NotNull File output,
+                            @Nullable int[] types, @Nullable int[] languages) throws IOException {
     PE pe = PEParser.parse(pecoff);
+    strip(pe, types, languages);
+    PEAssembler.write(pe, pecoff, output);
+    PEPatcher pp = new PEPatcher(output);
+    try {
+      pp.updateChecksum();
+    } finally {
+      pp.close();
+    }
+  }
+
+  /**
+   * Removes the matching resources from the executable and lays it out again.
+   * The resource section is removed if no resources are left.
+   *
+   * @return whether the executable changed.
+   */
+  public static boolean strip(@NotNull PE pe, @Nullable int[] types, @Nullable int[] languages) {
+    ResourceDirectory rd = pe.getImageData().getResourceTable();
+    if (rd == null || !remove(rd, types, languages, 0) && rd.size() > 0)
+      return false;
+    if (rd.size() > 0 || !removeSection(pe))
+      ResourceDirectoryAssembler.update(pe);
+    LayoutEngine.layout(pe, true);
+    return true;
+  }
+
+  /**
+   * Removes the matching entries below the directory, along with any
+   * directories that are left empty.
+   */
+  private static boolean remove(@NotNull ResourceDirectory rd, @Nullable int[] types,
+                                @Nullable int[] languages, int level) {
+    int[] ids = level == 0 ? types : level == 2 ? languages : null;
+    boolean removed = false;
+    for (int i = rd.size() - 1; i >= 0; i--) {
+      ResourceEntry re = rd.get(i);
+      if (ids != null && (re.getName() != null || !contains(ids, re.getId())))
+        continue;
+      ResourceDirectory child = re.getDirectory();
+      if (child != null) {
+        removed |= remove(child, types, languages, level + 1);
+        if (child.size() > 0)
+          continue;
+      }
+      rd.remove(i);
+      removed = true;
+    }
+    return removed;
+  }
+
+  /**
+   * Removes the resource section if nothing else lives in it.
+   */
+  private static boolean removeSection(@NotNull PE pe) {
+    OptionalHeader oh = pe.getOptionalHeader();
+    SectionTable st = pe.getSectionTable();
+    ImageDataDirectory idd = oh.getDataDirectory(ImageDataDirectoryType.RESOURCE_TABLE);
+    for (int i = 0; i < st.getNumberOfSections(); i++) {
+      SectionHeader sh = st.getHeader(i);
+      if (sh.getVirtualAddress() != idd.getVirtualAddress())
+        continue;
+      int end = sh.getVirtualAddress() + Math.max(sh.getVirtualSize(), sh.getSizeOfRawData());
+      for (int j = 0; j < oh.getDataDirectoryCount(); j++) {
+        ImageDataDirectory d = oh.getDataDirectory(j);
+        if (j != ImageDataDirectoryType.RESOURCE_TABLE &&
+                j != ImageDataDirectoryType.CERTIFICATE_TABLE && d.getSize() > 0 &&
+                d.getVirtualAddress() >= sh.getVirtualAddress() && d.getVirtualAddress() < end)
+          return false;
+      }
+      if ((sh.getCharacteristics() & SectionFlag.IMAGE_SCN_CNT_INITIALIZED_DATA) != 0)
+        oh.setSizeOfInitializedData(oh.getSizeOfInitializedData() - sh.getSizeOfRawData());
+      st.remove(i);
+      idd.setVirtualAddress(0);
+      idd.setSize(0);
+      pe.getImageData().setResourceTable(null);
+      return true;
+    }
+    return false;
+  }
+
+  private static boolean contains(@NotNull int[] ids, int id) {
+    for (int i : ids) {
+      if (i == id)
+        return true;
+    }
+    return false;
   }
 }
@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.util;
+
+import org.boris.pecoff4j.PE;
+import org.boris.pecoff4j.SectionData;
+import org.boris.pecoff4j.SectionTable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Byte histogram and Shannon entropy of a block of data, typically a section
+ * or the overlay. High entropy sections are a good indicator of packed or
+ * encrypted code.
+ */
+public class SectionStats {
+  // Blocks larger than this are split across fork/join tasks
+  public static final int DEFAULT_THRESHOLD = 1 << 20;
+  private static final double LN2 = Math.log(2);
+
+  private final int[] histogram;
+  private final int length;
+  private final double entropy;
+
+  private SectionStats(int[] histogram, int length) {
+    this.histogram = histogram;
+    this.length = length;
+    this.entropy = entropy(histogram, length);
+  }
+
+  /**
+   * @return the count of each byte value, indexed by the unsigned byte.
+   */
+  public int[] getHistogram() {
+    return histogram;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * @return the entropy in bits per byte, from 0 to 8.
+   */
+  public double getEntropy() {
+    return entropy;
+  }
+
+  /**
+   * Calculates the stats for each section in the table. Sections that have no
+   * raw data are returned as null.
+   *
+   * @param st the section table.
+   * @return the stats, indexed by section.
+   */
+  @NotNull
+  public static SectionStats[] compute(@NotNull SectionTable st) {
+    return compute(st, ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+  }
+
+  @NotNull
+  public static SectionStats[] compute(@NotNull SectionTable st, @NotNull ForkJoinPool pool,
+                                       int threshold) {
+    checkThreshold(threshold);
+    SectionStats[] stats = new SectionStats[st.getNumberOfSections()];
+    for (int i = 0; i < stats.length; i++) {
+      SectionData sd = st.getSection(i);
+      if (sd != null && sd.getData() != null)
+        stats[i] = compute(sd.getData(), pool, threshold);
+    }
+    return stats;
+  }
+
+  @NotNull
+  public static SectionStats compute(@NotNull byte[] data) {
+    return compute(data, ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+  }
+
+  @NotNull
+  public static SectionStats compute(@NotNull byte[] data, @NotNull ForkJoinPool pool,
+                                     int threshold) {
+    checkThreshold(threshold);
+    int[] h;
+    if (data.length <= threshold) {
+      h = new int[256];
+      count(data, 0, data.length, h);
+    } else {
+      h = pool.invoke(new HistogramTask(data, 0, data.length, threshold));
+    }
+    return new SectionStats(h, data.length);
+  }
+
+  /**
+   * Calculates the stats for the trailing data (overlay) of the executable.
+   *
+   * @param pe the executable.
+   * @return the stats or null if there is no overlay.
+   */
+  @Nullable
+  public static SectionStats computeOverlay(@NotNull PE pe) {
+    byte[] b = pe.getImageData().getTrailingData();
+    if (b == null)
+      return null;
+    return compute(b);
+  }
+
+  /**
+   * Calculates the entropy of a window sliding over the overlay.
+   *
+   * @param pe     the executable.
+   * @param window the window size in bytes.
+   * @param step   the number of bytes to advance between samples.
+   * @return the entropy samples or null if there is no overlay.
+   */
+  @Nullable
+  public static double[] overlayProfile(@NotNull PE pe, int window, int step) {
+    byte[] b = pe.getImageData().getTrailingData();
+    if (b == null)
+      return null;
+    return entropyProfile(b, 0, b.length, window, step);
+  }
+
+  /**
+   * Calculates the entropy of a window sliding over the data. The histogram and
+   * the sum of c*log2(c) are updated as each byte enters and leaves the window,
+   * so each sample costs O(step) rather than O(window).
+   *
+   * @param data   the data to profile.
+   * @param offset the start of the data.
+   * @param length the length of the data.
+   * @param window the window size in bytes.
+   * @param step   the number of bytes to advance between samples.
+   * @return the entropy of each window position.
+   */
+  @NotNull
+  public static double[] entropyProfile(@NotNull byte[] data, int offset, int length,
+                                        int window, int step) {
+    if (window <= 0 || step <= 0)
+      throw new IllegalArgumentException("Window and step must be positive");
+    if (length < window)
+      window = length;
+    if (window == 0)
+      return new double[0];
+
+    // c * log2(c) for every count that can occur within the window
+    double[] clogc = new double[window + 1];
+    for (int c = 2; c <= window; c++) {
+      clogc[c] = c * log2(c);
+    }
+
+    int[] h = new int[256];
+    count(data, offset, window, h);
+    double sum = 0;
+    for (int i = 0; i < 256; i++) {
+      sum += clogc[h[i]];
+    }
+
+    double logw = log2(window);
+    double[] profile = new double[(length - window) / step + 1];
+    int pos = offset;
+    int end = offset + length;
+    for (int s = 0; s < profile.length; s++) {
+      if (s > 0) {
+        for (int i = 0; i < step && pos + window < end; i++, pos++) {
+          int out = data[pos] & 0xff;
+          int in = data[pos + window] & 0xff;
+          if (out != in) {
+            sum -= clogc[h[out]] + clogc[h[in]];
+            h[out]--;
+            h[in]++;
+            sum += clogc[h[out]] + clogc[h[in]];
+          }
+        }
+      }
+      double e = logw - sum / window;
+      profile[s] = e < 0 ? 0 : e;
+    }
+    return profile;
+  }
+
+  private static void checkThreshold(int threshold) {
+    if (threshold < 1)
+      throw new IllegalArgumentException("Invalid threshold: " + threshold);
+  }
+
+  private static void count(@NotNull byte[] data, int offset, int length, @NotNull int[] h) {
+    int end = offset + length;
+    for (int i = offset; i < end; i++) {
+      h[data[i] & 0xff]++;
+    }
+  }
+
+  private static double entropy(@NotNull int[] h, int length) {
+    if (length == 0)
+      return 0;
+    double e = 0;
+    for (int i = 0; i < 256; i++) {
+      if (h[i] != 0) {
+        double p = (double) h[i] / length;
+        e -= p * log2(p);
+      }
+    }
+    return e;
+  }
+
+  private static double log2(double d) {
+    return Math.log(d) / LN2;
+  }
+
+  private static class HistogramTask extends RecursiveTask<int[]> {
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+    private final int threshold;
+
+    public HistogramTask(byte[] data, int offset, int length, int threshold) {
+      this.data = data;
+      this.offset = offset;
+      this.length = length;
+      this.threshold = threshold;
+    }
+
+    protected int[] compute() {
+      if (length <= threshold) {
+        int[] h = new int[256];
+        count(data, offset, length, h);
+        return h;
+      }
+
+      int half = length >>> 1;
+      HistogramTask left = new HistogramTask(data, offset, half, threshold);
+      HistogramTask right = new HistogramTask(data, offset + half, length - half, threshold);
+      left.fork();
+      int[] h = right.compute();
+      int[] l = left.join();
+      for (int i = 0; i < 256; i++) {
+        h[i] += l[i];
+      }
+      return h;
+    }
+  }
+}
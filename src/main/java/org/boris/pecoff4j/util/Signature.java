@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.util;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A byte signature for the SignatureScanner. Bytes that are not significant
+ * (written as ?? in the pattern) have a false entry in the mask.
+ */
+public class Signature {
+  public static final int SCOPE_ANY = 0;
+  public static final int SCOPE_ENTRY_POINT_SECTION = 1;
+  public static final int SCOPE_RVA_RANGE = 2;
+
+  private int id;
+  private byte[] bytes;
+  private boolean[] mask;
+  private int scope = SCOPE_ANY;
+  private int minRva;
+  private int maxRva;
+
+  public Signature(int id, byte[] bytes, boolean[] mask) {
+    if (bytes.length != mask.length)
+      throw new IllegalArgumentException("Mask length does not match pattern");
+    this.id = id;
+    this.bytes = bytes;
+    this.mask = mask;
+  }
+
+  /**
+   * Parses a pattern of hex bytes with optional whitespace, eg.
+   * "55 8B EC ?? ?? 33 C0".
+   *
+   * @param id      the id reported when the signature matches.
+   * @param pattern the pattern.
+   * @return the signature.
+   */
+  @NotNull
+  public static Signature parse(int id, @NotNull String pattern) {
+    byte[] b = new byte[pattern.length() / 2];
+    boolean[] m = new boolean[b.length];
+    int n = 0;
+    for (int i = 0; i < pattern.length(); ) {
+      char c = pattern.charAt(i);
+      if (Character.isWhitespace(c)) {
+        i++;
+        continue;
+      }
+      if (i + 1 >= pattern.length())
+        throw new IllegalArgumentException("Incomplete byte in pattern: " + pattern);
+      char d = pattern.charAt(i + 1);
+      if (c == '?' && d == '?') {
+        m[n] = false;
+      } else {
+        int hi = Character.digit(c, 16);
+        int lo = Character.digit(d, 16);
+        if (hi == -1 || lo == -1)
+          throw new IllegalArgumentException("Invalid byte in pattern: " + pattern);
+        b[n] = (byte) (hi << 4 | lo);
+        m[n] = true;
+      }
+      n++;
+      i += 2;
+    }
+
+    byte[] bytes = new byte[n];
+    boolean[] mask = new boolean[n];
+    System.arraycopy(b, 0, bytes, 0, n);
+    System.arraycopy(m, 0, mask, 0, n);
+    return new Signature(id, bytes, mask);
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  public boolean[] getMask() {
+    return mask;
+  }
+
+  public int length() {
+    return bytes.length;
+  }
+
+  public int getScope() {
+    return scope;
+  }
+
+  public int getMinRva() {
+    return minRva;
+  }
+
+  public int getMaxRva() {
+    return maxRva;
+  }
+
+  /**
+   * Only report matches within the section containing the entry point.
+   */
+  public void setEntryPointSection() {
+    this.scope = SCOPE_ENTRY_POINT_SECTION;
+  }
+
+  /**
+   * Only report matches that start within the given RVA range.
+   *
+   * @param minRva the first RVA (inclusive).
+   * @param maxRva the last RVA (exclusive).
+   */
+  public void setRvaRange(int minRva, int maxRva) {
+    this.scope = SCOPE_RVA_RANGE;
+    this.minRva = minRva;
+    this.maxRva = maxRva;
+  }
+}
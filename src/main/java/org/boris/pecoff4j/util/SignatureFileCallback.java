@@ -0,0 +1,18 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.util;
+
+import java.io.File;
+
+public interface SignatureFileCallback {
+  void matchFound(File file, int patternId, int rva, int fileOffset);
+
+  void scanFailed(File file, Exception e);
+}
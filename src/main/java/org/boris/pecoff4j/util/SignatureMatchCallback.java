@@ -0,0 +1,22 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.util;
+
+public interface SignatureMatchCallback {
+  /**
+   * Called for each signature match. When scanning in parallel this may be
+   * called from several threads at once.
+   *
+   * @param patternId  the id of the signature.
+   * @param rva        the relative virtual address of the start of the match.
+   * @param fileOffset the file offset of the start of the match.
+   */
+  void matchFound(int patternId, int rva, int fileOffset);
+}
@@ -0,0 +1,449 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.util;
+
+import org.boris.pecoff4j.PE;
+import org.boris.pecoff4j.SectionData;
+import org.boris.pecoff4j.SectionHeader;
+import org.boris.pecoff4j.SectionTable;
+import org.boris.pecoff4j.constant.SectionFlag;
+import org.boris.pecoff4j.io.DataReader;
+import org.boris.pecoff4j.io.PEParser;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Matches a set of byte signatures against the code sections of executables.
+ * <p>
+ * The longest run of fixed bytes in each signature is compiled into an
+ * Aho-Corasick automaton. When the automaton reports one of these anchors the
+ * full signature, including any ?? wildcards, is verified in place. Once
+ * compiled the scanner is immutable and may be shared between threads; the scan
+ * loop itself only uses local ints.
+ */
+public class SignatureScanner {
+  private static final int CODE_FLAGS = SectionFlag.IMAGE_SCN_CNT_CODE |
+          SectionFlag.IMAGE_SCN_MEM_EXECUTE;
+
+  // Automaton, state 0 is the root
+  private final int[] rootNext;
+  private final int[] edgeStart;
+  private final byte[] edgeLabel;
+  private final int[] edgeTarget;
+  private final int[] fail;
+  private final int[] dictLink;
+  private final int[] outStart;
+  private final int[] outPattern;
+
+  // Patterns
+  private final int[] ids;
+  private final byte[][] bytes;
+  private final boolean[][] masks;
+  private final int[] anchorEnd;
+  private final int[] scopes;
+  private final int[] minRvas;
+  private final int[] maxRvas;
+
+  private SignatureScanner(@NotNull Signature[] sigs, @NotNull int[] anchorEnd, @NotNull int[] rootNext,
+                           @NotNull int[] edgeStart, @NotNull byte[] edgeLabel, @NotNull int[] edgeTarget,
+                           @NotNull int[] fail, @NotNull int[] dictLink, @NotNull int[] outStart,
+                           @NotNull int[] outPattern) {
+    this.rootNext = rootNext;
+    this.edgeStart = edgeStart;
+    this.edgeLabel = edgeLabel;
+    this.edgeTarget = edgeTarget;
+    this.fail = fail;
+    this.dictLink = dictLink;
+    this.outStart = outStart;
+    this.outPattern = outPattern;
+    this.anchorEnd = anchorEnd;
+
+    int n = sigs.length;
+    ids = new int[n];
+    bytes = new byte[n][];
+    masks = new boolean[n][];
+    scopes = new int[n];
+    minRvas = new int[n];
+    maxRvas = new int[n];
+    for (int i = 0; i < n; i++) {
+      ids[i] = sigs[i].getId();
+      bytes[i] = sigs[i].getBytes().clone();
+      masks[i] = sigs[i].getMask().clone();
+      scopes[i] = sigs[i].getScope();
+      minRvas[i] = sigs[i].getMinRva();
+      maxRvas[i] = sigs[i].getMaxRva();
+    }
+  }
+
+  @NotNull
+  public static SignatureScanner compile(@NotNull List<Signature> signatures) {
+    return compile(signatures.toArray(new Signature[signatures.size()]));
+  }
+
+  /**
+   * Compiles the signatures into a scanner.
+   *
+   * @param sigs the signatures.
+   * @return the scanner.
+   * @throws IllegalArgumentException if a signature has no fixed bytes.
+   */
+  @NotNull
+  public static SignatureScanner compile(@NotNull Signature[] sigs) {
+    // Find the longest run of fixed bytes in each signature
+    int[] anchorStart = new int[sigs.length];
+    int[] anchorLength = new int[sigs.length];
+    int total = 1;
+    for (int i = 0; i < sigs.length; i++) {
+      boolean[] m = sigs[i].getMask();
+      int run = 0;
+      for (int j = 0; j < m.length; j++) {
+        run = m[j] ? run + 1 : 0;
+        if (run > anchorLength[i]) {
+          anchorLength[i] = run;
+          anchorStart[i] = j - run + 1;
+        }
+      }
+      if (anchorLength[i] == 0)
+        throw new IllegalArgumentException("Signature " + sigs[i].getId() + " has no fixed bytes");
+      total += anchorLength[i];
+    }
+
+    // Build the trie; every state except the root has one incoming edge so
+    // the edge data is stored against the child state
+    int[] firstChild = new int[total];
+    int[] sibling = new int[total];
+    byte[] label = new byte[total];
+    int[] outHead = new int[total];
+    int[] outNext = new int[sigs.length];
+    int[] anchorEnd = new int[sigs.length];
+    Arrays.fill(firstChild, -1);
+    Arrays.fill(outHead, -1);
+    int states = 1;
+    for (int i = 0; i < sigs.length; i++) {
+      byte[] b = sigs[i].getBytes();
+      int s = 0;
+      for (int j = anchorStart[i]; j < anchorStart[i] + anchorLength[i]; j++) {
+        int c = child(firstChild, sibling, label, s, b[j]);
+        if (c == -1) {
+          c = states++;
+          label[c] = b[j];
+          sibling[c] = firstChild[s];
+          firstChild[s] = c;
+        }
+        s = c;
+      }
+      outNext[i] = outHead[s];
+      outHead[s] = i;
+      anchorEnd[i] = anchorStart[i] + anchorLength[i] - 1;
+    }
+
+    // Breadth first to set failure and dictionary links
+    int[] fail = new int[states];
+    int[] dictLink = new int[states];
+    int[] queue = new int[states];
+    int qh = 0, qt = 0;
+    for (int c = firstChild[0]; c != -1; c = sibling[c]) {
+      queue[qt++] = c;
+    }
+    while (qh < qt) {
+      int s = queue[qh++];
+      for (int c = firstChild[s]; c != -1; c = sibling[c]) {
+        int f = fail[s];
+        int t;
+        while ((t = child(firstChild, sibling, label, f, label[c])) == -1 && f != 0) {
+          f = fail[f];
+        }
+        fail[c] = t == -1 ? 0 : t;
+        queue[qt++] = c;
+      }
+      int f = fail[s];
+      dictLink[s] = outHead[f] != -1 ? f : dictLink[f];
+    }
+
+    // Compact the edges and outputs into sorted arrays
+    int[] edgeStart = new int[states + 1];
+    byte[] edgeLabel = new byte[states];
+    int[] edgeTarget = new int[states];
+    int[] outStart = new int[states + 1];
+    int[] outPattern = new int[sigs.length];
+    int ne = 0, no = 0;
+    for (int s = 0; s < states; s++) {
+      edgeStart[s] = ne;
+      for (int c = firstChild[s]; c != -1; c = sibling[c]) {
+        // insertion sort on the unsigned label
+        int k = ne++;
+        while (k > edgeStart[s] && (edgeLabel[k - 1] & 0xff) > (label[c] & 0xff)) {
+          edgeLabel[k] = edgeLabel[k - 1];
+          edgeTarget[k] = edgeTarget[k - 1];
+          k--;
+        }
+        edgeLabel[k] = label[c];
+        edgeTarget[k] = c;
+      }
+      outStart[s] = no;
+      for (int p = outHead[s]; p != -1; p = outNext[p]) {
+        outPattern[no++] = p;
+      }
+    }
+    edgeStart[states] = ne;
+    outStart[states] = no;
+
+    int[] rootNext = new int[256];
+    for (int c = firstChild[0]; c != -1; c = sibling[c]) {
+      rootNext[label[c] & 0xff] = c;
+    }
+
+    return new SignatureScanner(sigs, anchorEnd, rootNext, edgeStart, edgeLabel, edgeTarget,
+            fail, dictLink, outStart, outPattern);
+  }
+
+  private static int child(@NotNull int[] firstChild, @NotNull int[] sibling, @NotNull byte[] label,
+                           int state, byte b) {
+    for (int c = firstChild[state]; c != -1; c = sibling[c]) {
+      if (label[c] == b)
+        return c;
+    }
+    return -1;
+  }
+
+  /**
+   * Scans the code sections of the executable on the calling thread.
+   *
+   * @param pe       the executable.
+   * @param callback receives the matches.
+   */
+  public void scan(@NotNull PE pe, @NotNull SignatureMatchCallback callback) {
+    SectionTable st = pe.getSectionTable();
+    if (st == null)
+      return;
+    int ep = getEntryPointSection(pe);
+    for (int i = 0; i < st.getNumberOfSections(); i++) {
+      scanSection(st, i, i == ep, callback);
+    }
+  }
+
+  /**
+   * Scans the code sections of the executable in parallel.
+   *
+   * @param pe       the executable.
+   * @param callback receives the matches, must be thread safe.
+   * @param pool     the pool to scan on.
+   */
+  public void scan(@NotNull PE pe, @NotNull SignatureMatchCallback callback,
+                   @NotNull ForkJoinPool pool) {
+    pool.invoke(new PETask(pe, callback));
+  }
+
+  /**
+   * Parses and scans a set of files in parallel.
+   *
+   * @param files    the files to scan.
+   * @param callback receives the matches, must be thread safe.
+   * @param pool     the pool to scan on.
+   */
+  public void scan(@NotNull File[] files, @NotNull SignatureFileCallback callback,
+                   @NotNull ForkJoinPool pool) {
+    List<FileTask> tasks = new ArrayList<FileTask>();
+    for (File f : files) {
+      tasks.add(new FileTask(f, callback));
+    }
+    ForkJoinTasks.invokeAll(pool, tasks);
+  }
+
+  /**
+   * Scans a block of data.
+   *
+   * @param data            the data to scan.
+   * @param offset          the start of the block.
+   * @param length          the length of the block.
+   * @param rva             the RVA of the start of the block.
+   * @param fileOffset      the file offset of the start of the block.
+   * @param entryPointBlock true if the block is the entry point section.
+   * @param callback        receives the matches.
+   */
+  public void scan(@NotNull byte[] data, int offset, int length, int rva, int fileOffset,
+                   boolean entryPointBlock, @NotNull SignatureMatchCallback callback) {
+    int end = offset + length;
+    int s = 0;
+    for (int i = offset; i < end; i++) {
+      s = next(s, data[i] & 0xff);
+      if (s == 0)
+        continue;
+      int o = outStart[s] != outStart[s + 1] ? s : dictLink[s];
+      while (o != 0) {
+        for (int k = outStart[o]; k < outStart[o + 1]; k++) {
+          verify(outPattern[k], data, i, offset, end, rva, fileOffset, entryPointBlock, callback);
+        }
+        o = dictLink[o];
+      }
+    }
+  }
+
+  public int size() {
+    return ids.length;
+  }
+
+  private int next(int s, int b) {
+    while (s != 0) {
+      int lo = edgeStart[s];
+      int hi = edgeStart[s + 1] - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        int l = edgeLabel[mid] & 0xff;
+        if (l < b)
+          lo = mid + 1;
+        else if (l > b)
+          hi = mid - 1;
+        else
+          return edgeTarget[mid];
+      }
+      s = fail[s];
+    }
+    return rootNext[b];
+  }
+
+  private void verify(int p, @NotNull byte[] data, int pos, int offset, int end, int rva,
+                      int fileOffset, boolean entryPointBlock,
+                      @NotNull SignatureMatchCallback callback) {
+    byte[] b = bytes[p];
+    boolean[] m = masks[p];
+    int start = pos - anchorEnd[p];
+    if (start < offset || start + b.length > end)
+      return;
+    int matchRva = rva + start - offset;
+    switch (scopes[p]) {
+      case Signature.SCOPE_ENTRY_POINT_SECTION:
+        if (!entryPointBlock)
+          return;
+        break;
+      case Signature.SCOPE_RVA_RANGE:
+        if (matchRva < minRvas[p] || matchRva >= maxRvas[p])
+          return;
+        break;
+    }
+    for (int i = 0; i < b.length; i++) {
+      if (m[i] && data[start + i] != b[i])
+        return;
+    }
+    callback.matchFound(ids[p], matchRva, fileOffset + start - offset);
+  }
+
+  private void scanSection(@NotNull SectionTable st, int index, boolean entryPoint,
+                           @NotNull SignatureMatchCallback callback) {
+    SectionHeader sh = st.getHeader(index);
+    SectionData sd = st.getSection(index);
+    if ((sh.getCharacteristics() & CODE_FLAGS) == 0 || sd == null || sd.getData() == null)
+      return;
+    byte[] b = sd.getData();
+    scan(b, 0, b.length, sh.getVirtualAddress(), sh.getPointerToRawData(), entryPoint, callback);
+  }
+
+  private static int getEntryPointSection(@NotNull PE pe) {
+    if (pe.getOptionalHeader() == null)
+      return -1;
+    int ep = pe.getOptionalHeader().getAddressOfEntryPoint();
+    SectionTable st = pe.getSectionTable();
+    for (int i = 0; i < st.getNumberOfSections(); i++) {
+      SectionHeader sh = st.getHeader(i);
+      int size = Math.max(sh.getVirtualSize(), sh.getSizeOfRawData());
+      if (ep >= sh.getVirtualAddress() && ep < sh.getVirtualAddress() + size)
+        return i;
+    }
+    return -1;
+  }
+
+  private class PETask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final PE pe;
+    private final SignatureMatchCallback callback;
+
+    public PETask(PE pe, SignatureMatchCallback callback) {
+      this.pe = pe;
+      this.callback = callback;
+    }
+
+    protected void compute() {
+      SectionTable st = pe.getSectionTable();
+      if (st == null)
+        return;
+      int ep = getEntryPointSection(pe);
+      List<SectionTask> tasks = new ArrayList<SectionTask>();
+      for (int i = 0; i < st.getNumberOfSections(); i++) {
+        tasks.add(new SectionTask(st, i, i == ep, callback));
+      }
+      ForkJoinTask.invokeAll(tasks);
+    }
+  }
+
+  private class SectionTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final SectionTable st;
+    private final int index;
+    private final boolean entryPoint;
+    private final SignatureMatchCallback callback;
+
+    public SectionTask(SectionTable st, int index, boolean entryPoint,
+                       SignatureMatchCallback callback) {
+      this.st = st;
+      this.index = index;
+      this.entryPoint = entryPoint;
+      this.callback = callback;
+    }
+
+    protected void compute() {
+      scanSection(st, index, entryPoint, callback);
+    }
+  }
+
+  private class FileTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final File file;
+    private final SignatureFileCallback callback;
+
+    public FileTask(File file, SignatureFileCallback callback) {
+      this.file = file;
+      this.callback = callback;
+    }
+
+    protected void compute() {
+      PE pe;
+      try {
+        DataReader dr = new DataReader(new FileInputStream(file));
+        try {
+          pe = PEParser.read(dr);
+        } finally {
+          dr.close();
+        }
+      } catch (Exception e) {
+        callback.scanFailed(file, e);
+        return;
+      }
+      if (pe.getOptionalHeader() == null)
+        return;
+
+      new PETask(pe, new SignatureMatchCallback() {
+        public void matchFound(int patternId, int rva, int fileOffset) {
+          callback.matchFound(file, patternId, rva, fileOffset);
+        }
+      }).compute();
+    }
+  }
+}
@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.util;
+
+import org.boris.pecoff4j.PE;
+import org.boris.pecoff4j.RVAConverter;
+import org.boris.pecoff4j.SectionData;
+import org.boris.pecoff4j.SectionHeader;
+import org.boris.pecoff4j.SectionTable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Finds runs of printable ASCII and UTF-16LE characters, like the "strings"
+ * utility. Eight bytes are tested at a time so that binary data and long
+ * strings are skipped without looking at each byte. Strings are passed to the
+ * callback as a view over the section data and are not retained.
+ * <p>
+ * An extractor reuses its view between calls, so use one per thread.
+ */
+public class StringExtractor {
+  public static final int DEFAULT_MIN_LENGTH = 4;
+
+  private static final long LOW7 = 0x7f7f7f7f7f7f7f7fL;
+  private static final long HIGH = 0x8080808080808080L;
+  private static final long BELOW_SPACE = 0x6060606060606060L; // 0x80 - 0x20
+  private static final long ABOVE_TILDE = 0x0101010101010101L; // 0x80 - 0x7f
+  private static final long EVEN_HIGH = 0x0080008000800080L;
+  private static final long ODD_BYTES = 0xff00ff00ff00ff00L;
+
+  private final int minLength;
+  @NotNull
+  private final View view = new View();
+
+  public StringExtractor() {
+    this(DEFAULT_MIN_LENGTH);
+  }
+
+  public StringExtractor(int minLength) {
+    this.minLength = minLength;
+  }
+
+  /**
+   * Extracts strings from each section and then the overlay.
+   *
+   * @param pe       the executable.
+   * @param callback receives the strings.
+   */
+  public void extract(@NotNull PE pe, @NotNull ExtractStringsCallback callback) {
+    extract(pe.getSectionTable(), callback);
+    extractOverlay(pe, callback);
+  }
+
+  public void extract(@NotNull SectionTable st, @NotNull ExtractStringsCallback callback) {
+    RVAConverter rvc = st.getRVAConverter();
+    for (int i = 0; i < st.getNumberOfSections(); i++) {
+      SectionHeader sh = st.getHeader(i);
+      SectionData sd = st.getSection(i);
+      if (sd == null || sd.getData() == null)
+        continue;
+      byte[] b = sd.getData();
+      extract(b, 0, b.length, i, sh.getPointerToRawData(), rvc, callback);
+    }
+  }
+
+  public void extractOverlay(@NotNull PE pe, @NotNull ExtractStringsCallback callback) {
+    byte[] b = pe.getImageData().getTrailingData();
+    if (b == null)
+      return;
+    extract(b, 0, b.length, -1, pe.getImageData().getTrailingDataOffset(), null, callback);
+  }
+
+  /**
+   * Extracts strings from a block of data.
+   *
+   * @param data       the data to scan.
+   * @param offset     the start of the block.
+   * @param length     the length of the block.
+   * @param section    the section index reported to the callback.
+   * @param fileOffset the file offset of the start of the block.
+   * @param rvc        used to convert file offsets to RVAs, may be null.
+   * @param callback   receives the strings.
+   */
+  public void extract(@NotNull byte[] data, int offset, int length, int section,
+                      int fileOffset, @Nullable RVAConverter rvc,
+                      @NotNull ExtractStringsCallback callback) {
+    ByteBuffer bb = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    int base = fileOffset - offset;
+    scanAscii(bb, data, offset, offset + length, section, base, rvc, callback);
+    scanUnicode(bb, data, offset, offset + length, section, base, rvc, callback);
+    scanUnicode(bb, data, offset + 1, offset + length, section, base, rvc, callback);
+  }
+
+  private void scanAscii(@NotNull ByteBuffer bb, @NotNull byte[] data, int i, int end,
+                         int section, int base, @Nullable RVAConverter rvc,
+                         @NotNull ExtractStringsCallback callback) {
+    int start = -1;
+    while (i < end) {
+      if (i + 8 <= end) {
+        long p = printable(bb.getLong(i));
+        if (p == HIGH) {
+          if (start == -1)
+            start = i;
+          i += 8;
+          continue;
+        } else if (p == 0) {
+          if (start != -1) {
+            found(data, start, i - start, 1, section, base, rvc, callback);
+            start = -1;
+          }
+          i += 8;
+          continue;
+        }
+      }
+
+      if (isPrintable(data[i])) {
+        if (start == -1)
+          start = i;
+      } else if (start != -1) {
+        found(data, start, i - start, 1, section, base, rvc, callback);
+        start = -1;
+      }
+      i++;
+    }
+
+    if (start != -1)
+      found(data, start, end - start, 1, section, base, rvc, callback);
+  }
+
+  private void scanUnicode(@NotNull ByteBuffer bb, @NotNull byte[] data, int i, int end,
+                           int section, int base, @Nullable RVAConverter rvc,
+                           @NotNull ExtractStringsCallback callback) {
+    int start = -1;
+    while (i + 1 < end) {
+      if (i + 8 <= end) {
+        long w = bb.getLong(i);
+        long p = printable(w) & EVEN_HIGH;
+        if (p == EVEN_HIGH && (w & ODD_BYTES) == 0) {
+          if (start == -1)
+            start = i;
+          i += 8;
+          continue;
+        } else if (p == 0) {
+          if (start != -1) {
+            found(data, start, (i - start) >> 1, 2, section, base, rvc, callback);
+            start = -1;
+          }
+          i += 8;
+          continue;
+        }
+      }
+
+      if (isPrintable(data[i]) && data[i + 1] == 0) {
+        if (start == -1)
+          start = i;
+      } else if (start != -1) {
+        found(data, start, (i - start) >> 1, 2, section, base, rvc, callback);
+        start = -1;
+      }
+      i += 2;
+    }
+
+    if (start != -1)
+      found(data, start, (i - start) >> 1, 2, section, base, rvc, callback);
+  }
+
+  private void found(@NotNull byte[] data, int start, int length, int width, int section,
+                     int base, @Nullable RVAConverter rvc,
+                     @NotNull ExtractStringsCallback callback) {
+    if (length < minLength)
+      return;
+    int fileOffset = base + start;
+    int rva = rvc == null ? -1 : rvc.convertRawDataPointerToVirtualAddress(fileOffset);
+    view.set(data, start, length, width);
+    callback.stringFound(section, rva, fileOffset, view, width == 2);
+  }
+
+  /**
+   * @return the high bit of each byte set if that byte is within 0x20-0x7e.
+   */
+  private static long printable(long w) {
+    long low = w & LOW7;
+    return (low + BELOW_SPACE) & ~(low + ABOVE_TILDE) & ~w & HIGH;
+  }
+
+  private static boolean isPrintable(byte b) {
+    return b >= 0x20 && b < 0x7f;
+  }
+
+  private static class View implements CharSequence {
+    private byte[] data;
+    private int start;
+    private int length;
+    private int width;
+
+    public void set(byte[] data, int start, int length, int width) {
+      this.data = data;
+      this.start = start;
+      this.length = length;
+      this.width = width;
+    }
+
+    public int length() {
+      return length;
+    }
+
+    public char charAt(int index) {
+      return (char) (data[start + index * width] & 0xff);
+    }
+
+    @NotNull
+    public CharSequence subSequence(int start, int end) {
+      return toString().substring(start, end);
+    }
+
+    @NotNull
+    public String toString() {
+      char[] c = new char[length];
+      for (int i = 0; i < length; i++) {
+        c[i] = charAt(i);
+      }
+      return new String(c);
+    }
+  }
+}
@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j.util;
+
+import org.boris.pecoff4j.ResourceEntry;
+import org.boris.pecoff4j.constant.ImageDataDirectoryType;
+import org.boris.pecoff4j.constant.ResourceType;
+import org.boris.pecoff4j.io.PEPatcher;
+import org.boris.pecoff4j.io.ResourceAssembler;
+import org.boris.pecoff4j.io.ResourceParser;
+import org.boris.pecoff4j.resources.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Sets the version numbers and strings of executables.
+ * <p>
+ * Where possible the version resource is rewritten in place: if the new
+ * resource fits in the space used by the old one, only those bytes, the size
+ * in its data entry and the checksum are written. Otherwise the executable is
+ * rewritten with a rebuilt resource section. Executables without a version
+ * resource are given one.
+ */
+public class VersionStamper implements ResourceEdit {
+  private static final int FIXED_FILE_INFO_SIGNATURE = 0xfeef04bd;
+  private static final int DEFAULT_TRANSLATION = 0x04b00409;
+
+  @Nullable
+  private int[] fileVersion;
+  @Nullable
+  private int[] productVersion;
+  @NotNull
+  private Map<String, String> strings = new LinkedHashMap<String, String>();
+  private boolean trustChecksum = true;
+
+  /**
+   * Sets the file version number and the FileVersion string.
+   *
+   * @param version a version of up to four dot separated numbers.
+   */
+  public void setFileVersion(@NotNull String version) {
+    fileVersion = parseVersion(version);
+    strings.put("FileVersion", version);
+  }
+
+  /**
+   * Sets the product version number and the ProductVersion string.
+   *
+   * @param version a version of up to four dot separated numbers.
+   */
+  public void setProductVersion(@NotNull String version) {
+    productVersion = parseVersion(version);
+    strings.put("ProductVersion", version);
+  }
+
+  /**
+   * Sets a string in every string table.
+   */
+  public void setString(@NotNull String key, @NotNull String value) {
+    strings.put(key, value);
+  }
+
+  /**
+   * Sets whether the stored checksum of an executable stamped in place is
+   * assumed to be correct, so that it is adjusted by the bytes changed
+   * rather than calculated by reading the whole file. True by default; a
+   * stored checksum that is already wrong stays wrong.
+   */
+  public void setTrustChecksum(boolean trustChecksum) {
+    this.trustChecksum = trustChecksum;
+  }
+
+  public void stamp(@NotNull VersionInfo vi) {
+    FixedFileInfo ffi = vi.getFixedFileInfo();
+    if (ffi == null && (fileVersion != null || productVersion != null)) {
+      ffi = new FixedFileInfo();
+      ffi.setSignature(FIXED_FILE_INFO_SIGNATURE);
+      ffi.setStrucVersion(0x10000);
+      vi.setFixedFileInfo(ffi);
+    }
+    if (fileVersion != null) {
+      ffi.setFileVersionMS(fileVersion[0]);
+      ffi.setFileVersionLS(fileVersion[1]);
+    }
+    if (productVersion != null) {
+      ffi.setProductVersionMS(productVersion[0]);
+      ffi.setProductVersionLS(productVersion[1]);
+    }
+
+    if (strings.isEmpty())
+      return;
+    StringFileInfo sfi = vi.getStringFileInfo();
+    if (sfi == null) {
+      sfi = new StringFileInfo();
+      vi.setStringFileInfo(sfi);
+    }
+    if (sfi.getCount() == 0) {
+      StringTable st = new StringTable();
+      st.setKey(String.format("%04x%04x", DEFAULT_TRANSLATION & 0xffff,
+              DEFAULT_TRANSLATION >>> 16));
+      st.setType(1);
+      sfi.add(st);
+    }
+    for (int i = 0; i < sfi.getCount(); i++) {
+      for (Map.Entry<String, String> e : strings.entrySet()) {
+        sfi.getTable(i).setValue(e.getKey(), e.getValue());
+      }
+    }
+  }
+
+  /**
+   * Stamps the version resources in the tree, adding one if there are none.
+   */
+  public void apply(@NotNull ResourceEditor editor) throws IOException {
+    ResourceEntry[] entries = ResourceHelper.findResources(editor.getResourceTable(),
+            ResourceType.VERSION_INFO);
+    for (ResourceEntry re : entries) {
+      VersionInfo vi = ResourceParser.readVersionInfo(re.getData());
+      stamp(vi);
+      re.setData(ResourceAssembler.toBytes(vi));
+    }
+    if (entries.length == 0) {
+      VersionInfo vi = new VersionInfo();
+      VarFileInfo vfi = new VarFileInfo();
+      vfi.add("Translation", new int[]{DEFAULT_TRANSLATION});
+      vi.setVarFileInfo(vfi);
+      stamp(vi);
+      editor.put(ResourceType.VERSION_INFO, 1, DEFAULT_TRANSLATION & 0xffff,
+              ResourceAssembler.toBytes(vi));
+    }
+  }
+
+  /**
+   * Stamps an executable in place.
+   *
+   * @return true if the version resource was patched, false if the
+   * executable had to be rewritten.
+   */
+  public boolean stamp(@NotNull File exe) throws IOException {
+    if (stampInPlace(exe))
+      return true;
+    ResourceEditBatch batch = new ResourceEditBatch();
+    batch.add(this);
+    batch.apply(exe);
+    return false;
+  }
+
+  /**
+   * Stamps the executables in place on a pool of threads.
+   *
+   * @return the executables that could not be stamped and the reason why.
+   */
+  @NotNull
+  public Map<File, Exception> stamp(@NotNull File[] exes, int threads)
+          throws InterruptedException {
+    ResourceEditBatch batch = new ResourceEditBatch() {
+      public void apply(@NotNull File exe) throws IOException {
+        stamp(exe);
+      }
+    };
+    return batch.apply(exes, threads);
+  }
+
+  /**
+   * Rewrites the version resources of an executable if they all still fit
+   * in their slots, which run up to the next structure in the resource
+   * section.
+   */
+  private boolean stampInPlace(@NotNull File exe) throws IOException {
+    PEPatcher pp = new PEPatcher(exe);
+    try {
+      if (pp.getNumberOfRvaAndSizes() <= ImageDataDirectoryType.RESOURCE_TABLE)
+        return false;
+      int base = pp.getDataDirectoryAddress(ImageDataDirectoryType.RESOURCE_TABLE);
+      if (base == 0 || pp.rvaToOffset(base) == -1)
+        return false;
+
+      // Data entry addresses of the version resources, and the start of
+      // everything else in the resource section
+      List<Integer> leaves = new ArrayList<Integer>();
+      TreeSet<Integer> starts = new TreeSet<Integer>();
+      for (int i = 0; i < pp.getNumberOfRvaAndSizes(); i++) {
+        if (i != ImageDataDirectoryType.CERTIFICATE_TABLE && pp.getDataDirectorySize(i) > 0)
+          starts.add(pp.getDataDirectoryAddress(i));
+      }
+      if (!walk(pp, base, 0, 0, false, leaves, starts))
+        return false;
+      if (leaves.isEmpty())
+        return false;
+
+      byte[][] blobs = new byte[leaves.size()][];
+      for (int i = 0; i < blobs.length; i++) {
+        int entry = pp.rvaToOffset(leaves.get(i));
+        int rva = pp.getDoubleWord(entry);
+        int size = pp.getDoubleWord(entry + 4);
+        VersionInfo vi = ResourceParser.readVersionInfo(
+                pp.getBytes(pp.rvaToOffset(rva), size));
+        stamp(vi);
+        blobs[i] = ResourceAssembler.toBytes(vi);
+        Integer next = starts.higher(rva);
+        int slot = pp.getRawExtent(rva);
+        if (next != null)
+          slot = Math.min(slot, next - rva);
+        if (blobs[i].length > slot)
+          return false;
+      }
+
+      boolean checksum = pp.getCheckSum() != 0;
+      if (checksum && trustChecksum) {
+        try {
+          pp.trustChecksum();
+        } catch (IllegalStateException e) {
+          // Not a checksum of this file, so updateChecksum reads it all
+        }
+      }
+      for (int i = 0; i < blobs.length; i++) {
+        int entry = pp.rvaToOffset(leaves.get(i));
+        int offset = pp.rvaToOffset(pp.getDoubleWord(entry));
+        int size = pp.getDoubleWord(entry + 4);
+        pp.putBytes(offset, blobs[i]);
+        for (int j = blobs[i].length; j < size; j++) {
+          pp.putByte(offset + j, 0);
+        }
+        pp.putDoubleWord(entry + 4, blobs[i].length);
+      }
+      if (checksum)
+        pp.updateChecksum();
+      pp.flush();
+      return true;
+    } finally {
+      pp.close();
+    }
+  }
+
+  /**
+   * Walks a resource directory, collecting the version resource data entries
+   * and the addresses of all the structures.
+   *
+   * @return false if the directory is not valid.
+   */
+  private static boolean walk(@NotNull PEPatcher pp, int base, int dir, int level,
+                              boolean version, @NotNull List<Integer> leaves,
+                              @NotNull Set<Integer> starts) {
+    int offset = pp.rvaToOffset(base + dir);
+    if (offset == -1 || level > 2 || !starts.add(base + dir) && level > 0)
+      return false;
+    int count = pp.getWord(offset + 12) + pp.getWord(offset + 14);
+    for (int i = 0; i < count; i++) {
+      int name = pp.getDoubleWord(offset + 16 + i * 8);
+      int data = pp.getDoubleWord(offset + 20 + i * 8);
+      if ((name & 0x80000000) != 0)
+        starts.add(base + (name & 0x7fffffff));
+      boolean v = version || level == 0 && name == ResourceType.VERSION_INFO;
+      if ((data & 0x80000000) != 0) {
+        if (!walk(pp, base, data & 0x7fffffff, level + 1, v, leaves, starts))
+          return false;
+      } else {
+        int entry = pp.rvaToOffset(base + data);
+        if (entry == -1)
+          return false;
+        starts.add(base + data);
+        starts.add(pp.getDoubleWord(entry));
+        if (v)
+          leaves.add(base + data);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Converts a version such as 1.2.3.4 to its most and least significant
+   * double words.
+   */
+  @NotNull
+  private static int[] parseVersion(@NotNull String version) {
+    String[] parts = version.trim().split("[.,]\\s*");
+    if (parts.length > 4)
+      throw new IllegalArgumentException("Invalid version: " + version);
+    int[] v = new int[4];
+    try {
+      for (int i = 0; i < parts.length; i++) {
+        v[i] = Integer.parseInt(parts[i]);
+        if (v[i] < 0 || v[i] > 0xffff)
+          throw new IllegalArgumentException("Invalid version: " + version);
+      }
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid version: " + version);
+    }
+    return new int[]{v[0] << 16 | v[1], v[2] << 16 | v[3]};
+  }
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j;
+
+import org.boris.pecoff4j.asm.AssemblyFormatter;
+import org.boris.pecoff4j.asm.DecodedInstruction;
+import org.boris.pecoff4j.asm.SymbolTable;
+import org.boris.pecoff4j.asm.X86Decoder;
+import org.boris.pecoff4j.io.PEParser;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+
+public class AssemblyFormatterTest {
+  public static void main(String[] args) throws Exception {
+    PE pe = PEParser.parse(AssemblyFormatterTest.class
+            .getResourceAsStream("/WinRun4J.exe"));
+    ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    if (!(mx instanceof com.sun.management.ThreadMXBean)) {
+      System.out.println("Thread allocation counts not available");
+      return;
+    }
+    com.sun.management.ThreadMXBean tmx = (com.sun.management.ThreadMXBean) mx;
+    long thread = Thread.currentThread().getId();
+
+    // Discards the text so only the formatter's own allocations are counted
+    Appendable sink = new Appendable() {
+      public Appendable append(CharSequence csq) {
+        return this;
+      }
+
+      public Appendable append(CharSequence csq, int start, int end) {
+        return this;
+      }
+
+      public Appendable append(char c) {
+        return this;
+      }
+    };
+    SectionHeader sh = pe.getSectionTable().findHeader(".text");
+    byte[] data = pe.getSectionTable().findSection(".text").getData();
+    ByteBuffer code = ByteBuffer.wrap(data, 0, Math.min(data.length, sh.getVirtualSize()));
+    long base = pe.getOptionalHeader().getImageBase() + sh.getVirtualAddress();
+    X86Decoder decoder = X86Decoder.forPE(pe);
+    DecodedInstruction ins = new DecodedInstruction();
+
+    for (int syntax = AssemblyFormatter.SYNTAX_INTEL; syntax <= AssemblyFormatter.SYNTAX_ATT; syntax++) {
+      AssemblyFormatter f = new AssemblyFormatter(sink, syntax);
+      f.setSymbols(SymbolTable.forPE(pe));
+      // The first pass loads and initializes the classes. The JIT compiler
+      // may allocate a little now and then, so the least of several passes is
+      // taken; an allocation per instruction would show in every pass.
+      int n = format(f, decoder, code, base, ins);
+      long allocated = Long.MAX_VALUE;
+      for (int i = 0; i < 5; i++) {
+        long before = tmx.getThreadAllocatedBytes(thread);
+        format(f, decoder, code, base, ins);
+        allocated = Math.min(allocated, tmx.getThreadAllocatedBytes(thread) - before);
+      }
+      if (allocated != 0)
+        throw new IllegalStateException("Formatting " + n + " instructions allocated " + allocated + " bytes");
+      System.out.println(n + " instructions formatted without allocating");
+    }
+  }
+
+  private static int format(AssemblyFormatter f, X86Decoder decoder, ByteBuffer code, long base,
+                            DecodedInstruction ins) throws IOException {
+    int n = 0;
+    int len;
+    for (int p = 0; p < code.limit(); p += len) {
+      len = decoder.decode(code, p, base + p, ins);
+      f.format(ins);
+      n++;
+    }
+    f.flush();
+    return n;
+  }
+}
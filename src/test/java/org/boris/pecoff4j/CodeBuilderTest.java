@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j;
+
+import org.boris.pecoff4j.asm.CodeBuilder;
+import org.boris.pecoff4j.asm.DecodedInstruction;
+import org.boris.pecoff4j.asm.Register;
+import org.boris.pecoff4j.asm.X86Decoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CodeBuilderTest {
+  public static void main(String[] args) throws Exception {
+    test(X86Decoder.MODE_32, Register.EBP, Register.ESP, "ebp", "esp");
+    test(X86Decoder.MODE_64, Register.RBP, Register.RSP, "rbp", "rsp");
+    System.out.println("CodeBuilder output decodes as built");
+  }
+
+  private static void test(int mode, int bp, int sp, String bpName, String spName) {
+    CodeBuilder cb = new CodeBuilder(mode);
+    int top = cb.newLabel();
+    int near = cb.newLabel();
+    int far = cb.newLabel();
+    int function = cb.newLabel();
+
+    cb.push(bp);
+    cb.mov(bp, sp);
+    cb.bind(top);
+    cb.jcc(CodeBuilder.COND_E, near);
+    cb.xor(Register.EAX, Register.EAX);
+    cb.bind(near);
+    // Over the padding, so both branches must be lengthened
+    cb.jcc(CodeBuilder.COND_NE, far);
+    for (int i = 0; i < 200; i++) {
+      cb.nop();
+    }
+    cb.jmp(top);
+    cb.bind(far);
+    cb.call(function);
+    cb.pop(bp);
+    cb.ret();
+    cb.bind(function);
+    cb.ret(8);
+    byte[] code = cb.toBytes();
+
+    List<String> expected = new ArrayList<String>();
+    expected.add("push " + bpName);
+    expected.add("mov " + bpName + ", " + spName);
+    expected.add("je " + hex(cb.getOffset(near)));
+    expected.add("xor eax, eax");
+    expected.add("jne " + hex(cb.getOffset(far)));
+    expected.add("jmp " + hex(cb.getOffset(top)));
+    expected.add("call " + hex(cb.getOffset(function)));
+    expected.add("pop " + bpName);
+    expected.add("ret");
+    expected.add("ret 0x8");
+
+    // Short je, then near jne, jmp and call
+    int[] branchLengths = {2, 6, 5, 5};
+    List<String> actual = new ArrayList<String>();
+    List<Integer> lengths = new ArrayList<Integer>();
+    X86Decoder d = new X86Decoder(mode);
+    DecodedInstruction ins = new DecodedInstruction();
+    ByteBuffer bb = ByteBuffer.wrap(code);
+    for (int p = 0; p < code.length; p += ins.getLength()) {
+      d.decode(bb, p, p, ins);
+      if (!ins.isValid())
+        throw new IllegalStateException("Invalid instruction at " + hex(p));
+      String text = ins.toIntelAssembly();
+      if (text.equals("nop"))
+        continue;
+      actual.add(text);
+      if (ins.getRelativeOperand() != -1)
+        lengths.add(ins.getLength());
+    }
+    if (!actual.equals(expected))
+      throw new IllegalStateException(mode + "-bit: expected " + expected + ", got " + actual);
+    for (int i = 0; i < branchLengths.length; i++) {
+      if (lengths.get(i) != branchLengths[i])
+        throw new IllegalStateException(mode + "-bit: branch " + i + " is " + lengths.get(i) + " bytes");
+    }
+  }
+
+  private static String hex(int offset) {
+    return "0x" + Integer.toHexString(offset);
+  }
+}
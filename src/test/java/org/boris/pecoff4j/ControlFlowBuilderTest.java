@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j;
+
+import org.boris.pecoff4j.asm.ControlFlowBuilder;
+import org.boris.pecoff4j.asm.ControlFlowGraph;
+import org.boris.pecoff4j.asm.DecodedInstruction;
+import org.boris.pecoff4j.asm.Mnemonic;
+import org.boris.pecoff4j.asm.X86Decoder;
+import org.boris.pecoff4j.io.PEParser;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+public class ControlFlowBuilderTest {
+  public static void main(String[] args) throws Exception {
+    PE pe = PEParser.parse(ControlFlowBuilderTest.class
+            .getResourceAsStream("/WinRun4J.exe"));
+    ControlFlowGraph s = new ControlFlowBuilder(pe).build();
+    checkEntryPoint(pe, s);
+    int tables = checkBlocks(pe, s);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      ControlFlowGraph p = new ControlFlowBuilder(pe).build(pool);
+      if (p.getFunctionCount() != s.getFunctionCount() || p.getBlockCount() != s.getBlockCount() ||
+              p.getEdgeCount() != s.getEdgeCount() || s.getFunctionCount() == 0)
+        throw new IllegalStateException("Sequential " + s.getFunctionCount() + "/" + s.getBlockCount() + "/" +
+                s.getEdgeCount() + " and parallel " + p.getFunctionCount() + "/" + p.getBlockCount() + "/" +
+                p.getEdgeCount() + " functions/blocks/edges");
+      for (int f = 0; f < s.getFunctionCount(); f++) {
+        if (p.getFunction(f) != s.getFunction(f) || p.getFirstBlock(f) != s.getFirstBlock(f) ||
+                p.getLastBlock(f) != s.getLastBlock(f) || p.getEntryBlock(f) != s.getEntryBlock(f))
+          throw new IllegalStateException("Function " + Integer.toHexString(s.getFunction(f)) + " differs");
+      }
+      for (int b = 0; b < s.getBlockCount(); b++) {
+        if (p.getBlockStart(b) != s.getBlockStart(b) || p.getBlockEnd(b) != s.getBlockEnd(b) ||
+                p.getBlockFlow(b) != s.getBlockFlow(b) || p.getFunctionOf(b) != s.getFunctionOf(b) ||
+                p.getFirstEdge(b) != s.getFirstEdge(b) || p.getLastEdge(b) != s.getLastEdge(b))
+          throw new IllegalStateException("Block " + Integer.toHexString(s.getBlockStart(b)) + " differs");
+      }
+      for (int e = 0; e < s.getEdgeCount(); e++) {
+        if (p.getEdgeTarget(e) != s.getEdgeTarget(e) || p.getEdgeKind(e) != s.getEdgeKind(e))
+          throw new IllegalStateException("Edge " + e + " differs");
+      }
+    } finally {
+      pool.shutdown();
+    }
+    System.out.println(s.getFunctionCount() + " functions, " + s.getBlockCount() + " blocks, " +
+            s.getEdgeCount() + " edges (" + tables + " from jump tables), sequential and parallel graphs match");
+  }
+
+  private static void checkEntryPoint(PE pe, ControlFlowGraph g) {
+    int entry = pe.getOptionalHeader().getAddressOfEntryPoint();
+    int f = g.indexOfFunction(entry);
+    if (f == -1)
+      throw new IllegalStateException("No function at the entry point " + Integer.toHexString(entry));
+    int b = g.getEntryBlock(f);
+    if (b == -1 || g.getBlockStart(b) != entry)
+      throw new IllegalStateException("Entry block does not start at the entry point");
+  }
+
+  /**
+   * Decodes each block again, checking that its end falls on an instruction
+   * boundary and that its edges lead where its last instruction goes.
+   *
+   * @return the number of edges out of indirect jumps.
+   */
+  private static int checkBlocks(PE pe, ControlFlowGraph g) {
+    X86Decoder decoder = X86Decoder.forPE(pe);
+    DecodedInstruction ins = new DecodedInstruction();
+    long imageBase = pe.getOptionalHeader().getImageBase();
+    SectionTable st = pe.getSectionTable();
+    int tables = 0;
+    for (int b = 0; b < g.getBlockCount(); b++) {
+      int start = g.getBlockStart(b);
+      int end = g.getBlockEnd(b);
+      int section = indexOfSection(st, start);
+      ByteBuffer code = ByteBuffer.wrap(st.getSection(section).getData());
+      int va = st.getHeader(section).getVirtualAddress();
+      int p = start;
+      while (p < end) {
+        p += decoder.decode(code, p - va, imageBase + p, ins);
+      }
+      if (p != end)
+        throw new IllegalStateException("Block " + Integer.toHexString(start) + " does not end on an instruction");
+      if (ins.getFlow() != g.getBlockFlow(b) && ins.isValid())
+        throw new IllegalStateException("Block " + Integer.toHexString(start) + " has the wrong flow");
+
+      for (int e = g.getFirstEdge(b); e < g.getLastEdge(b); e++) {
+        int target = g.getBlockStart(g.getEdgeTarget(e));
+        switch (g.getEdgeKind(e)) {
+          case ControlFlowGraph.EDGE_TAKEN:
+          case ControlFlowGraph.EDGE_JUMP:
+            if (ins.getRelativeOperand() == -1) {
+              if (ins.getFlow() != Mnemonic.FLOW_JUMP)
+                throw new IllegalStateException("Block " + Integer.toHexString(start) + " has a jump edge");
+              tables++;
+            } else if (target != ins.getTarget() - imageBase) {
+              throw new IllegalStateException("Edge from " + Integer.toHexString(start) + " leads to " +
+                      Integer.toHexString(target) + " not " + Long.toHexString(ins.getTarget() - imageBase));
+            }
+            break;
+          default:
+            if (target != end)
+              throw new IllegalStateException("Block " + Integer.toHexString(start) + " falls through to " +
+                      Integer.toHexString(target));
+        }
+      }
+    }
+    return tables;
+  }
+
+  private static int indexOfSection(SectionTable st, int rva) {
+    for (int i = 0; i < st.getNumberOfSections(); i++) {
+      SectionHeader sh = st.getHeader(i);
+      if (rva >= sh.getVirtualAddress() && rva < sh.getVirtualAddress() + sh.getVirtualSize())
+        return i;
+    }
+    throw new IllegalStateException("No section at " + Integer.toHexString(rva));
+  }
+}
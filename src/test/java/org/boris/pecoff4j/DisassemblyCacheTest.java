@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j;
+
+import org.boris.pecoff4j.asm.DisassemblyCache;
+import org.boris.pecoff4j.asm.InstructionStream;
+import org.boris.pecoff4j.asm.SectionDisassembler;
+import org.boris.pecoff4j.io.PEParser;
+
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+
+public class DisassemblyCacheTest {
+  public static void main(String[] args) throws Exception {
+    PE pe = PEParser.parse(DisassemblyCacheTest.class
+            .getResourceAsStream("/WinRun4J.exe"));
+    InstructionStream expected = new SectionDisassembler(pe).disassemble();
+
+    // Memory
+    DisassemblyCache cache = new DisassemblyCache(1 << 24);
+    SectionDisassembler sd = new SectionDisassembler(pe);
+    sd.setCache(cache);
+    check(expected, sd.disassemble(), "first pass");
+    check(expected, sd.disassemble(), "memory hit");
+    ForkJoinPool pool = new ForkJoinPool(4);
+    check(expected, sd.disassemble(pool), "parallel memory hit");
+    if (cache.getMissCount() == 0 || cache.getHitCount() != 2 * cache.getMissCount())
+      throw new IllegalStateException("Expected memory hits: " + cache.getHitCount() + "/" + cache.getMissCount());
+
+    // Disk, read back by a new cache as another process would
+    File dir = File.createTempFile("discache", "");
+    dir.delete();
+    dir.mkdir();
+    try {
+      sd.setCache(new DisassemblyCache(1 << 24, dir));
+      check(expected, sd.disassemble(pool), "written to disk");
+      DisassemblyCache disk = new DisassemblyCache(0, dir);
+      sd.setCache(disk);
+      check(expected, sd.disassemble(), "disk hit");
+      if (disk.getDiskHitCount() == 0 || disk.getMissCount() != 0 || disk.getSize() != 0)
+        throw new IllegalStateException("Expected disk hits only: " + disk.getDiskHitCount() + "/" +
+                disk.getMissCount());
+    } finally {
+      File[] files = dir.listFiles();
+      if (files != null) {
+        for (File f : files) {
+          f.delete();
+        }
+      }
+      dir.delete();
+      pool.shutdown();
+    }
+    System.out.println(expected.size() + " instructions cached");
+  }
+
+  private static void check(InstructionStream expected, InstructionStream s, String name) {
+    if (s.size() != expected.size())
+      throw new IllegalStateException(name + ": " + s.size() + " instructions, expected " + expected.size());
+    for (int i = 0; i < s.size(); i++) {
+      if (s.getRVA(i) != expected.getRVA(i) || s.getLength(i) != expected.getLength(i) ||
+              s.getMnemonic(i) != expected.getMnemonic(i) || s.getOpcode(i) != expected.getOpcode(i) ||
+              s.getOperands(i) != expected.getOperands(i) || s.getReference(i) != expected.getReference(i))
+        throw new IllegalStateException(name + ": instruction " + i + " differs");
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j;
+
+import org.boris.pecoff4j.asm.InstructionStream;
+import org.boris.pecoff4j.asm.Mnemonic;
+import org.boris.pecoff4j.asm.OpcodeFeatures;
+import org.boris.pecoff4j.asm.SectionDisassembler;
+import org.boris.pecoff4j.io.PEParser;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+public class OpcodeFeaturesTest {
+  public static void main(String[] args) throws Exception {
+    PE pe = PEParser.parse(OpcodeFeaturesTest.class
+            .getResourceAsStream("/WinRun4J.exe"));
+    OpcodeFeatures[] s = OpcodeFeatures.extract(pe);
+    checkCounts(pe, s);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    int instructions = 0;
+    try {
+      OpcodeFeatures[] p = OpcodeFeatures.extract(pe, OpcodeFeatures.DEFAULT_BUCKETS, pool);
+      if (p.length != s.length)
+        throw new IllegalStateException("Sections differ: " + s.length + " != " + p.length);
+      for (int i = 0; i < s.length; i++) {
+        if (s[i] == null || p[i] == null) {
+          if (s[i] != p[i])
+            throw new IllegalStateException("Section " + i + " is only executable in one result");
+          continue;
+        }
+        if (p[i].getInstructionCount() != s[i].getInstructionCount() ||
+                !Arrays.equals(p[i].getHistogram(), s[i].getHistogram()) ||
+                !Arrays.equals(p[i].getBigrams(), s[i].getBigrams()) ||
+                !Arrays.equals(p[i].getTrigrams(), s[i].getTrigrams()))
+          throw new IllegalStateException("Features of section " + i + " differ");
+        instructions += s[i].getInstructionCount();
+      }
+    } finally {
+      pool.shutdown();
+    }
+    if (instructions == 0)
+      throw new IllegalStateException("No instructions counted");
+    System.out.println(instructions + " instructions, sequential and parallel features match");
+  }
+
+  /**
+   * Counts the mnemonics of the disassembled sections, and the pairs and
+   * triples within each run of the sweep, which starts again at each
+   * section and declared function.
+   */
+  private static void checkCounts(PE pe, OpcodeFeatures[] features) {
+    SectionDisassembler sd = new SectionDisassembler(pe);
+    InstructionStream is = sd.disassemble();
+    int[] starts = sd.getFunctionStarts();
+    SectionTable st = pe.getSectionTable();
+    int[][] histograms = new int[features.length][Mnemonic.getCount()];
+    int[] bigrams = new int[features.length];
+    int[] trigrams = new int[features.length];
+    int section = -1;
+    int run = 0;
+    for (int i = 0; i < is.size(); i++) {
+      int rva = is.getRVA(i);
+      int sec = indexOfSection(st, rva);
+      if (sec != section || Arrays.binarySearch(starts, rva) >= 0) {
+        section = sec;
+        run = 0;
+      }
+      histograms[sec][is.getMnemonic(i)]++;
+      if (run >= 1)
+        bigrams[sec]++;
+      if (run >= 2)
+        trigrams[sec]++;
+      run++;
+    }
+
+    for (int i = 0; i < features.length; i++) {
+      if (features[i] == null)
+        continue;
+      if (!Arrays.equals(features[i].getHistogram(), histograms[i]))
+        throw new IllegalStateException("Histogram of section " + i + " differs from the disassembly");
+      if (sum(features[i].getBigrams()) != bigrams[i] || sum(features[i].getTrigrams()) != trigrams[i])
+        throw new IllegalStateException("Section " + i + " has " + sum(features[i].getBigrams()) + " bigrams and " +
+                sum(features[i].getTrigrams()) + " trigrams, expected " + bigrams[i] + " and " + trigrams[i]);
+    }
+  }
+
+  private static int sum(int[] counts) {
+    int n = 0;
+    for (int c : counts) {
+      n += c;
+    }
+    return n;
+  }
+
+  private static int indexOfSection(SectionTable st, int rva) {
+    for (int i = 0; i < st.getNumberOfSections(); i++) {
+      SectionHeader sh = st.getHeader(i);
+      if (rva >= sh.getVirtualAddress() && rva < sh.getVirtualAddress() + sh.getVirtualSize())
+        return i;
+    }
+    throw new IllegalStateException("No section at " + Integer.toHexString(rva));
+  }
+}
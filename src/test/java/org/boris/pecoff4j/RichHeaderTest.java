@@ -0,0 +1,34 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j;
+
+import org.boris.pecoff4j.io.PEParser;
+
+public class RichHeaderTest {
+  public static void main(String[] args) throws Exception {
+    PE pe = PEParser.parse(RichHeaderTest.class
+            .getResourceAsStream("/WinRun4J.exe"));
+    RichHeader rh = pe.getRichHeader();
+    if (rh == null || rh.size() == 0)
+      throw new IllegalStateException("No Rich header entries");
+    if (!rh.isChecksumValid())
+      throw new IllegalStateException("Rich header checksum is not valid");
+    boolean found = false;
+    for (int i = 0; i < rh.size(); i++) {
+      System.out.println(rh.getProductId(i) + "." + rh.getBuildNumber(i) +
+              " x" + rh.getCount(i));
+      // Product 110, build 50727, used by 16 objects
+      if (rh.getProductId(i) == 110 && rh.getBuildNumber(i) == 50727 && rh.getCount(i) == 16)
+        found = true;
+    }
+    if (rh.size() != 9 || !found)
+      throw new IllegalStateException("Expected 9 entries including 110.50727 x16");
+  }
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j;
+
+import org.boris.pecoff4j.asm.InstructionStream;
+import org.boris.pecoff4j.asm.Mnemonic;
+import org.boris.pecoff4j.asm.SectionDisassembler;
+import org.boris.pecoff4j.io.PEParser;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+public class SectionDisassemblerTest {
+  // Instructions of WinRun4J.exe's .text as listed by objdump: RVA, length,
+  // mnemonic and the RVA referred to, or -1
+  private static final Object[][] KNOWN = {
+          {0x1000, 1, "push", -1},
+          {0x1001, 2, "mov", -1},
+          {0x1003, 3, "mov", -1},
+          {0x18c4, 3, "ret", -1},
+          {0x18c7, 1, "push", -1},
+          {0x18ca, 6, "sub", -1},
+          {0x677e, 3, "sub", -1},
+          {0x6781, 5, "mov", 0xb098},
+          {0x6788, 2, "je", 0x6794},
+          {0x678a, 2, "call", -1},
+  };
+
+  public static void main(String[] args) throws Exception {
+    PE pe = PEParser.parse(SectionDisassemblerTest.class
+            .getResourceAsStream("/WinRun4J.exe"));
+    SectionDisassembler sd = new SectionDisassembler(pe);
+    InstructionStream s = sd.disassemble();
+    for (Object[] k : KNOWN) {
+      int rva = (Integer) k[0];
+      int i = s.indexOf(rva);
+      if (i == -1)
+        throw new IllegalStateException("No instruction at " + Integer.toHexString(rva));
+      if (s.getLength(i) != (Integer) k[1] || s.getMnemonic(i) != Mnemonic.get((String) k[2]) ||
+              s.getReference(i) != (Integer) k[3])
+        throw new IllegalStateException("Instruction at " + Integer.toHexString(rva) + " is " + s.getLength(i) +
+                " " + Mnemonic.getName(s.getMnemonic(i)) + " " + Integer.toHexString(s.getReference(i)));
+    }
+    int[] starts = sd.getFunctionStarts();
+    if (Arrays.binarySearch(starts, pe.getOptionalHeader().getAddressOfEntryPoint()) < 0)
+      throw new IllegalStateException("The entry point is not a declared function start");
+    for (int rva : starts) {
+      if (s.indexOf(rva) == -1)
+        throw new IllegalStateException("Declared function start " + Integer.toHexString(rva) +
+                " is not an instruction start");
+    }
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      InstructionStream p = sd.disassemble(pool);
+      if (p.size() != s.size() || s.size() == 0)
+        throw new IllegalStateException("Sequential " + s.size() + " and parallel " + p.size() + " instructions");
+      for (int i = 0; i < s.size(); i++) {
+        if (p.getRVA(i) != s.getRVA(i) || p.getLength(i) != s.getLength(i) ||
+                p.getMnemonic(i) != s.getMnemonic(i) || p.getOpcode(i) != s.getOpcode(i) ||
+                p.getOperands(i) != s.getOperands(i) || p.getReference(i) != s.getReference(i))
+          throw new IllegalStateException("Instruction at " + Integer.toHexString(s.getRVA(i)) + " differs");
+        if (i > 0 && s.getRVA(i) <= s.getRVA(i - 1))
+          throw new IllegalStateException("Instructions out of order at " + Integer.toHexString(s.getRVA(i)));
+      }
+    } finally {
+      pool.shutdown();
+    }
+    System.out.println(s.size() + " instructions, sequential and parallel sweeps match");
+  }
+}
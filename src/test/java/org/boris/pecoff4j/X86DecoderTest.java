@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j;
+
+import org.boris.pecoff4j.asm.DecodedInstruction;
+import org.boris.pecoff4j.asm.X86Decoder;
+
+import java.nio.ByteBuffer;
+
+public class X86DecoderTest {
+  private static final long ADDRESS = 0x401000;
+
+  // Mode, code, expected length and Intel assembly
+  private static final Object[][] CASES = {
+          {32, "55", 1, "push ebp"},
+          {32, "8bec", 2, "mov ebp, esp"},
+          {32, "83ec10", 3, "sub esp, 0x10"},
+          {32, "8b4508", 3, "mov eax, dword ptr [ebp+0x8]"},
+          {32, "8d0c8500104000", 7, "lea ecx, [eax*4+0x401000]"},
+          {32, "0fb6c0", 3, "movzx eax, al"},
+          {32, "f3a5", 2, "rep movsd dword ptr es:[edi], dword ptr ds:[esi]"},
+          {32, "d9c9", 2, "fxch st(1)"},
+          {32, "e8fbffffff", 5, "call 0x401000"},
+          {32, "7405", 2, "je 0x401007"},
+          {32, "c20c00", 3, "ret 0xc"},
+          {32, "48", 1, "dec eax"},
+          {32, "e8ff", 1, "(bad)"},
+          {64, "4889e5", 3, "mov rbp, rsp"},
+          {64, "4883ec28", 4, "sub rsp, 0x28"},
+          {64, "488b0510000000", 7, "mov rax, qword ptr [rip+0x10]"},
+          {64, "ff1510000000", 6, "call qword ptr [rip+0x10]"},
+          {64, "48b88877665544332211", 10, "mov rax, 0x1122334455667788"},
+          {64, "4c8b4008", 4, "mov r8, qword ptr [rax+0x8]"},
+          {64, "41ffd0", 3, "call r8"},
+          {64, "40b7ff", 3, "mov dil, 0xff"},
+          {64, "c5f877", 3, "vzeroupper"},
+          {64, "c5f9efc0", 4, "vpxor xmm0, xmm0, xmm0"},
+          {64, "e9fbffffff", 5, "jmp 0x401000"},
+  };
+
+  public static void main(String[] args) throws Exception {
+    X86Decoder d32 = new X86Decoder(X86Decoder.MODE_32);
+    X86Decoder d64 = new X86Decoder(X86Decoder.MODE_64);
+    DecodedInstruction ins = new DecodedInstruction();
+    for (Object[] c : CASES) {
+      X86Decoder d = (Integer) c[0] == 64 ? d64 : d32;
+      byte[] code = toBytes((String) c[1]);
+      int len = d.decode(ByteBuffer.wrap(code), 0, ADDRESS, ins);
+      String text = ins.toIntelAssembly();
+      if (len != (Integer) c[2] || !text.equals(c[3]))
+        throw new IllegalStateException(c[0] + "-bit " + c[1] + ": expected " + c[2] + " " + c[3] +
+                ", got " + len + " " + text);
+    }
+
+    // Targets and addresses are absolute
+    d64.decode(ByteBuffer.wrap(toBytes("488b0510000000")), 0, ADDRESS, ins);
+    if (ins.getMemoryAddress() != ADDRESS + 7 + 0x10)
+      throw new IllegalStateException("Invalid RIP-relative address: " + ins.getMemoryAddress());
+    d32.decode(ByteBuffer.wrap(toBytes("7405")), 0, ADDRESS, ins);
+    if (ins.getTarget() != ADDRESS + 7)
+      throw new IllegalStateException("Invalid branch target: " + ins.getTarget());
+    System.out.println(CASES.length + " instructions decoded");
+  }
+
+  private static byte[] toBytes(String hex) {
+    byte[] b = new byte[hex.length() / 2];
+    for (int i = 0; i < b.length; i++) {
+      b[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+    }
+    return b;
+  }
+}
@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * This program and the accompanying materials
+ * are made available under the terms of the Common Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Contributors:
+ *     Peter Smith
+ *******************************************************************************/
+package org.boris.pecoff4j;
+
+import org.boris.pecoff4j.asm.XrefIndex;
+import org.boris.pecoff4j.io.PEParser;
+
+import java.io.File;
+import java.util.Arrays;
+
+public class XrefIndexTest {
+  public static void main(String[] args) throws Exception {
+    PE pe = PEParser.parse(XrefIndexTest.class
+            .getResourceAsStream("/WinRun4J.exe"));
+    XrefIndex xi = XrefIndex.build(pe);
+    File f = File.createTempFile("xref", ".idx");
+    try {
+      xi.write(f);
+      XrefIndex r = XrefIndex.read(f);
+
+      if (r.size() != xi.size())
+        throw new IllegalStateException("References differ: " + xi.size() + " != " + r.size());
+      for (int i = 0; i < xi.size(); i++) {
+        if (r.getSource(i) != xi.getSource(i) || r.getTarget(i) != xi.getTarget(i) ||
+                r.getKind(i) != xi.getKind(i))
+          throw new IllegalStateException("Reference " + i + " differs");
+        if (!Arrays.equals(r.getReferencesTo(xi.getTarget(i)), xi.getReferencesTo(xi.getTarget(i))))
+          throw new IllegalStateException("References to " + Integer.toHexString(xi.getTarget(i)) + " differ");
+        if (r.resolveImport(xi.getTarget(i)) != xi.resolveImport(xi.getTarget(i)))
+          throw new IllegalStateException("Import of " + Integer.toHexString(xi.getTarget(i)) + " differs");
+      }
+
+      if (r.getImportCount() != xi.getImportCount() || xi.getImportCount() == 0)
+        throw new IllegalStateException("Imports differ: " + xi.getImportCount() + " != " + r.getImportCount());
+      int called = 0;
+      for (int i = 0; i < xi.getImportCount(); i++) {
+        if (r.getImportSlot(i) != xi.getImportSlot(i) ||
+                !r.getImportModule(i).equals(xi.getImportModule(i)) ||
+                !r.getImportName(i).equals(xi.getImportName(i)))
+          throw new IllegalStateException("Import " + i + " differs");
+        int[] callers = xi.getImportCallers(i);
+        if (!Arrays.equals(r.getImportCallers(i), callers))
+          throw new IllegalStateException("Callers of " + xi.getImportName(i) + " differ");
+        if (callers.length > 0)
+          called++;
+      }
+      System.out.println(xi.size() + " references, " + called + " of " +
+              xi.getImportCount() + " imports called");
+    } finally {
+      f.delete();
+    }
+  }
+}